@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An extension of SimpleMemoryPool that recycles the memory of released buffers, so that receiving large requests does
+ * not allocate a new buffer every time. The memory is allocated in chunks whose sizes are powers of two, and the buffers
+ * returned are slices of a chunk of the smallest size which fits them. Released chunks are kept in a free list per size
+ * as long as the kept and the allocated chunks fit in the size of the pool, so the pool never retains more memory than
+ * its size (plus the over-allocation of the non-strict mode). Since the pool accounts for the size of the buffers while
+ * their chunks may be up to twice as large, the chunks of the buffers in use may take up to twice the size of the pool.
+ *
+ * Buffers smaller than {@link #MIN_RECYCLED_SIZE} are allocated on the heap for every request, as by SimpleMemoryPool,
+ * since they are cheaper to allocate than to track.
+ */
+public class RecyclingMemoryPool extends SimpleMemoryPool {
+    public static final int MIN_RECYCLED_SIZE = 4096;
+    private static final int MIN_RECYCLED_SIZE_SHIFT = Integer.numberOfTrailingZeros(MIN_RECYCLED_SIZE);
+    private static final int MAX_RECYCLED_SIZE = 1 << 30;
+
+    private final boolean direct;
+    //the free chunks of each size class, the most recently released first
+    private final List<Deque<ByteBuffer>> freeChunks;
+    //the chunk of every recycled buffer in use, by buffer identity
+    private final Map<BufferReference, ByteBuffer> chunksInUse = new ConcurrentHashMap<>();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong chunkBytesInUse = new AtomicLong();
+    private final AtomicLong bufferBytesInUse = new AtomicLong();
+    private final AtomicLong recycledChunks = new AtomicLong();
+    private final AtomicLong allocatedChunks = new AtomicLong();
+
+    public RecyclingMemoryPool(long sizeInBytes, int maxSingleAllocationBytes, boolean strict, Sensor oomPeriodSensor, boolean direct) {
+        super(sizeInBytes, maxSingleAllocationBytes, strict, oomPeriodSensor);
+        this.direct = direct;
+        int numSizeClasses = maxSingleAllocationBytes >= MIN_RECYCLED_SIZE
+            ? sizeClass(Math.min(maxSingleAllocationBytes, MAX_RECYCLED_SIZE)) + 1 : 0;
+        this.freeChunks = new ArrayList<>(numSizeClasses);
+        for (int i = 0; i < numSizeClasses; i++)
+            freeChunks.add(new ConcurrentLinkedDeque<>());
+    }
+
+    @Override
+    protected ByteBuffer allocate(int sizeBytes) {
+        if (!isRecycled(sizeBytes))
+            return super.allocate(sizeBytes);
+
+        int sizeClass = sizeClass(sizeBytes);
+        ByteBuffer chunk = freeChunks.get(sizeClass).pollFirst();
+        if (chunk != null) {
+            retainedBytes.addAndGet(-chunk.capacity());
+            recycledChunks.incrementAndGet();
+        } else {
+            int chunkSize = MIN_RECYCLED_SIZE << sizeClass;
+            evictFreeChunks(chunkSize);
+            chunk = direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+            allocatedChunks.incrementAndGet();
+        }
+        chunkBytesInUse.addAndGet(chunk.capacity());
+        bufferBytesInUse.addAndGet(sizeBytes);
+
+        chunk.clear();
+        chunk.limit(sizeBytes);
+        ByteBuffer buffer = chunk.slice();
+        chunksInUse.put(new BufferReference(buffer), chunk);
+        return buffer;
+    }
+
+    @Override
+    protected void bufferToBeReleased(ByteBuffer justReleased) {
+        super.bufferToBeReleased(justReleased);
+        if (!isRecycled(justReleased.capacity()))
+            return;
+
+        ByteBuffer chunk = chunksInUse.remove(new BufferReference(justReleased));
+        if (chunk == null)
+            //either a double free or not our buffer
+            throw new IllegalArgumentException("returned buffer of size " + justReleased.capacity() + " is not in use in this pool");
+        long inUse = chunkBytesInUse.addAndGet(-chunk.capacity());
+        bufferBytesInUse.addAndGet(-justReleased.capacity());
+
+        if (retainedBytes.addAndGet(chunk.capacity()) + inUse <= sizeBytes)
+            freeChunks.get(sizeClass(chunk.capacity())).offerFirst(chunk);
+        else
+            retainedBytes.addAndGet(-chunk.capacity());
+    }
+
+    //drops the least recently released free chunks, the largest first, until a new chunk of the given size fits
+    private void evictFreeChunks(int chunkSize) {
+        for (int sizeClass = freeChunks.size() - 1; sizeClass >= 0 && mustEvict(chunkSize); sizeClass--) {
+            Deque<ByteBuffer> chunks = freeChunks.get(sizeClass);
+            ByteBuffer chunk;
+            while (mustEvict(chunkSize) && (chunk = chunks.pollLast()) != null)
+                retainedBytes.addAndGet(-chunk.capacity());
+        }
+    }
+
+    private boolean mustEvict(int chunkSize) {
+        return retainedBytes.get() > 0 && retainedBytes.get() + chunkBytesInUse.get() + chunkSize > sizeBytes;
+    }
+
+    private static boolean isRecycled(int sizeBytes) {
+        return sizeBytes >= MIN_RECYCLED_SIZE && sizeBytes <= MAX_RECYCLED_SIZE;
+    }
+
+    //the index of the smallest power of two which is at least the given size, from MIN_RECYCLED_SIZE
+    private static int sizeClass(int sizeBytes) {
+        return 32 - Integer.numberOfLeadingZeros(sizeBytes - 1) - MIN_RECYCLED_SIZE_SHIFT;
+    }
+
+    /**
+     * The ratio of the recycled buffers to all the buffers of at least {@link #MIN_RECYCLED_SIZE} since the pool was
+     * created
+     */
+    public double hitRatio() {
+        long recycled = recycledChunks.get();
+        long total = recycled + allocatedChunks.get();
+        return total == 0 ? 0.0 : (double) recycled / total;
+    }
+
+    /**
+     * The size of the free chunks kept for reuse
+     */
+    public long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * The size of the chunks of the buffers in use which is not part of the buffers, since chunk sizes are rounded up to
+     * a power of two
+     */
+    public long fragmentationBytes() {
+        return chunkBytesInUse.get() - bufferBytesInUse.get();
+    }
+
+    @Override
+    public String toString() {
+        long allocated = sizeBytes - availableMemory.get();
+        return "RecyclingMemoryPool{" + Utils.formatBytes(allocated) + "/" + Utils.formatBytes(sizeBytes) + " used, " +
+            Utils.formatBytes(retainedBytes.get()) + " retained}";
+    }
+
+    private static final class BufferReference {
+        private final ByteBuffer buffer;
+
+        private BufferReference(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BufferReference && ((BufferReference) o).buffer == buffer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(buffer);
+        }
+    }
+}
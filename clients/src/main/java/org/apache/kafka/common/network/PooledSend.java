@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.network;
+
+import org.apache.kafka.common.memory.MemoryPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A send whose data, apart from the zero-copy records, was written into a buffer allocated from a memory pool. The
+ * buffer must be released once the send is complete or abandoned, and is not released if it never is, so the pool
+ * should not be a strict one.
+ *
+ * The release is not thread-safe, it is meant to be done by the thread which writes the send.
+ */
+public class PooledSend implements Send {
+    private final Send send;
+    private final MemoryPool memoryPool;
+    private final int bufferSize;
+    private ByteBuffer buffer;
+
+    public PooledSend(Send send, MemoryPool memoryPool, ByteBuffer buffer) {
+        this.send = send;
+        this.memoryPool = memoryPool;
+        this.bufferSize = buffer.capacity();
+        this.buffer = buffer;
+    }
+
+    @Override
+    public boolean completed() {
+        return send.completed();
+    }
+
+    @Override
+    public long writeTo(TransferableChannel channel) throws IOException {
+        return send.writeTo(channel);
+    }
+
+    @Override
+    public long size() {
+        return send.size();
+    }
+
+    /**
+     * The size of the buffer allocated for the send
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Release the buffer to the pool. The send must not be written afterwards. Calling this more than once has no effect.
+     */
+    public void release() {
+        if (buffer != null) {
+            memoryPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledSend(" +
+            "send=" + send +
+            ", bufferSize=" + bufferSize +
+            ", released=" + (buffer == null) +
+            ')';
+    }
+}
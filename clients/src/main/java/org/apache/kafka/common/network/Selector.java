@@ -124,6 +124,9 @@ public class Selector implements Selectable, AutoCloseable {
     private final MemoryPool memoryPool;
     private final long lowMemThreshold;
     private final int failedAuthenticationDelayMs;
+    private final boolean eagerWrites;
+    //the channels given a send since the last poll, which are written before the select if eagerWrites is set
+    private final List<KafkaChannel> channelsWithNewSends;
 
     //indicates if the previous call to poll was able to make progress in reading already-buffered data.
     //this is used to prevent tight loops when memory is not available to read any more data
@@ -141,6 +144,10 @@ public class Selector implements Selectable, AutoCloseable {
      * @param metricTags Additional tags to add to metrics registered by Selector
      * @param metricsPerConnection Whether or not to enable per-connection metrics
      * @param channelBuilder Channel builder for every new connection
+     * @param memoryPool The pool of the buffers of the receives
+     * @param eagerWrites Whether new sends are written as soon as the next poll starts rather than once the select has
+     *                    found their sockets writable. Since most sends fit in the socket buffer, this saves a select
+     *                    and the registration of the write interest with the OS for each of them.
      * @param logContext Context for logging with additional info
      */
     public Selector(int maxReceiveSize,
@@ -154,6 +161,7 @@ public class Selector implements Selectable, AutoCloseable {
             boolean recordTimePerConnection,
             ChannelBuilder channelBuilder,
             MemoryPool memoryPool,
+            boolean eagerWrites,
             LogContext logContext) {
         try {
             this.nioSelector = java.nio.channels.Selector.open();
@@ -182,6 +190,24 @@ public class Selector implements Selectable, AutoCloseable {
         this.lowMemThreshold = (long) (0.1 * this.memoryPool.size());
         this.failedAuthenticationDelayMs = failedAuthenticationDelayMs;
         this.delayedClosingChannels = (failedAuthenticationDelayMs > NO_FAILED_AUTHENTICATION_DELAY) ? new LinkedHashMap<String, DelayedAuthenticationFailureClose>() : null;
+        this.eagerWrites = eagerWrites;
+        this.channelsWithNewSends = new ArrayList<>();
+    }
+
+    public Selector(int maxReceiveSize,
+                    long connectionMaxIdleMs,
+                    int failedAuthenticationDelayMs,
+                    Metrics metrics,
+                    Time time,
+                    String metricGrpPrefix,
+                    Map<String, String> metricTags,
+                    boolean metricsPerConnection,
+                    boolean recordTimePerConnection,
+                    ChannelBuilder channelBuilder,
+                    MemoryPool memoryPool,
+                    LogContext logContext) {
+        this(maxReceiveSize, connectionMaxIdleMs, failedAuthenticationDelayMs, metrics, time, metricGrpPrefix, metricTags,
+                metricsPerConnection, recordTimePerConnection, channelBuilder, memoryPool, false, logContext);
     }
 
     public Selector(int maxReceiveSize,
@@ -392,6 +418,8 @@ public class Selector implements Selectable, AutoCloseable {
         } else {
             try {
                 channel.setSend(send);
+                if (eagerWrites)
+                    channelsWithNewSends.add(channel);
             } catch (Exception e) {
                 // update the state for consistency, the channel will be discarded after `close`
                 channel.state(ChannelState.FAILED_SEND);
@@ -444,9 +472,12 @@ public class Selector implements Selectable, AutoCloseable {
         boolean madeReadProgressLastCall = madeReadProgressLastPoll;
         clear();
 
+        if (!channelsWithNewSends.isEmpty())
+            writeNewSends();
+
         boolean dataInBuffers = !keysWithBufferedRead.isEmpty();
 
-        if (!immediatelyConnectedKeys.isEmpty() || (madeReadProgressLastCall && dataInBuffers))
+        if (!immediatelyConnectedKeys.isEmpty() || (madeReadProgressLastCall && dataInBuffers) || !completedSends.isEmpty())
             timeout = 0;
 
         if (!memoryPool.isOutOfMemory() && outOfMemory) {
@@ -629,6 +660,34 @@ public class Selector implements Selectable, AutoCloseable {
         }
     }
 
+    /**
+     * Write the sends given since the last poll without waiting for the select. The write interest registered by
+     * {@link KafkaChannel#setSend(NetworkSend)} is removed again when a send completes, before the next select applies
+     * it, so it only reaches the OS for the sends which do not fit in the socket buffer.
+     */
+    private void writeNewSends() {
+        long nowNanos = time.nanoseconds();
+        for (KafkaChannel channel : channelsWithNewSends) {
+            // skip the channels closed since their send was given
+            if (channels.get(channel.id()) != channel || !channel.hasSend() || !channel.ready())
+                continue;
+            long channelStartTimeNanos = recordTimePerConnection ? time.nanoseconds() : 0;
+            try {
+                if (!channel.maybeBeginClientReauthentication(() -> nowNanos))
+                    write(channel);
+            } catch (Exception e) {
+                if (e instanceof IOException)
+                    log.debug("Connection with {} disconnected", channel.socketDescription(), e);
+                else
+                    log.warn("Unexpected error from {}; closing connection", channel.socketDescription(), e);
+                close(channel, CloseMode.NOTIFY_ONLY);
+            } finally {
+                maybeRecordTimePerConnection(channel, channelStartTimeNanos);
+            }
+        }
+        channelsWithNewSends.clear();
+    }
+
     private void attemptWrite(SelectionKey key, KafkaChannel channel, long nowNanos) throws IOException {
         if (channel.hasSend()
                 && channel.ready()
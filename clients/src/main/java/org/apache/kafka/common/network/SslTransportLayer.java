@@ -71,6 +71,10 @@ public class SslTransportLayer implements TransportLayer {
         CLOSING
     }
 
+    // The buffer into which the records of file transfers are wrapped, shared by the connections of a network thread.
+    // A connection only keeps it while its records are not fully written to the socket.
+    private static final ThreadLocal<ByteBuffer> TRANSFER_NET_WRITE_BUFFER = new ThreadLocal<>();
+
     private final String channelId;
     private final SSLEngine sslEngine;
     private final SelectionKey key;
@@ -86,6 +90,9 @@ public class SslTransportLayer implements TransportLayer {
     private ByteBuffer netWriteBuffer;
     private ByteBuffer appReadBuffer;
     private ByteBuffer fileChannelBuffer;
+    // the packet-sized `netWriteBuffer` while it is replaced by the transfer buffer, see `transferFrom`
+    private ByteBuffer packetNetWriteBuffer;
+    private boolean transferring;
     private boolean hasBytesBuffered;
 
     public static SslTransportLayer create(String channelId, SelectionKey key, SSLEngine sslEngine,
@@ -697,6 +704,13 @@ public class SslTransportLayer implements TransportLayer {
         while (flush(netWriteBuffer) && src.hasRemaining()) {
             netWriteBuffer.clear();
             SSLEngineResult wrapResult = sslEngine.wrap(src, netWriteBuffer);
+            // Wrap the following records into the same buffer while there is room for them, so that they are sent
+            // with a single socket write. This only happens once `transferFrom` has enlarged the buffer.
+            while (wrapResult.getStatus() == Status.OK && wrapResult.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING
+                    && src.hasRemaining() && netWriteBuffer.remaining() >= netWriteBufferSize()) {
+                written += wrapResult.bytesConsumed();
+                wrapResult = sslEngine.wrap(src, netWriteBuffer);
+            }
             netWriteBuffer.flip();
 
             //handle ssl renegotiation
@@ -706,15 +720,20 @@ public class SslTransportLayer implements TransportLayer {
             if (wrapResult.getStatus() == Status.OK) {
                 written += wrapResult.bytesConsumed();
             } else if (wrapResult.getStatus() == Status.BUFFER_OVERFLOW) {
-                // BUFFER_OVERFLOW means that the last `wrap` call had no effect, so we expand the buffer and try again
-                netWriteBuffer = Utils.ensureCapacity(netWriteBuffer, netWriteBufferSize());
-                netWriteBuffer.position(netWriteBuffer.limit());
+                // BUFFER_OVERFLOW means that the last `wrap` call had no effect, so we expand the buffer and try again,
+                // unless it follows records wrapped into the same buffer, which are flushed first
+                if (!netWriteBuffer.hasRemaining()) {
+                    netWriteBuffer = Utils.ensureCapacity(netWriteBuffer, netWriteBufferSize());
+                    netWriteBuffer.position(netWriteBuffer.limit());
+                }
             } else if (wrapResult.getStatus() == Status.BUFFER_UNDERFLOW) {
                 throw new IllegalStateException("SSL BUFFER_UNDERFLOW during write");
             } else if (wrapResult.getStatus() == Status.CLOSED) {
                 throw new EOFException();
             }
         }
+        if (!transferring)
+            maybeReleaseTransferBuffer();
         return written;
     }
 
@@ -971,9 +990,11 @@ public class SslTransportLayer implements TransportLayer {
             // are no remaining bytes in the empty buffer
             fileChannelBuffer.position(fileChannelBuffer.limit());
         }
+        useTransferBuffer();
 
         int totalBytesWritten = 0;
         long pos = position;
+        transferring = true;
         try {
             while (totalBytesWritten < totalBytesToWrite) {
                 if (!fileChannelBuffer.hasRemaining()) {
@@ -1001,6 +1022,38 @@ public class SslTransportLayer implements TransportLayer {
             if (totalBytesWritten > 0)
                 return totalBytesWritten;
             throw e;
+        } finally {
+            transferring = false;
+            maybeReleaseTransferBuffer();
+        }
+    }
+
+    /**
+     * Replace the empty `netWriteBuffer` by the transfer buffer of the thread, which holds the records of a whole
+     * `fileChannelBuffer`, so that they are sent with a single socket write instead of one per record
+     */
+    private void useTransferBuffer() {
+        if (packetNetWriteBuffer != null)
+            return;
+        int transferBufferSize = (fileChannelBuffer.capacity() / applicationBufferSize() + 1) * netWriteBufferSize();
+        ByteBuffer transferBuffer = TRANSFER_NET_WRITE_BUFFER.get();
+        TRANSFER_NET_WRITE_BUFFER.remove();
+        if (transferBuffer == null || transferBuffer.capacity() < transferBufferSize)
+            transferBuffer = ByteBuffer.allocate(transferBufferSize);
+        transferBuffer.limit(0);
+        packetNetWriteBuffer = netWriteBuffer;
+        netWriteBuffer = transferBuffer;
+    }
+
+    /**
+     * Give the transfer buffer back to the thread once its records are written, so that connections which are not
+     * transferring a file only keep a packet-sized `netWriteBuffer`
+     */
+    private void maybeReleaseTransferBuffer() {
+        if (packetNetWriteBuffer != null && netWriteBuffer != null && !netWriteBuffer.hasRemaining()) {
+            TRANSFER_NET_WRITE_BUFFER.set(netWriteBuffer);
+            netWriteBuffer = packetNetWriteBuffer;
+            packetNetWriteBuffer = null;
         }
     }
 }
@@ -18,7 +18,9 @@
 package org.apache.kafka.common.protocol;
 
 import org.apache.kafka.common.utils.ByteUtils;
+import org.apache.kafka.common.utils.Utils;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 public class ByteBufferAccessor implements Readable, Writable {
@@ -58,6 +60,16 @@ public class ByteBufferAccessor implements Readable, Writable {
         buf.get(arr);
     }
 
+    @Override
+    public String readString(int length) {
+        if (length > buf.remaining())
+            throw new BufferUnderflowException();
+        // decode heap buffers in place rather than copying the bytes to a temporary array first
+        String result = Utils.utf8(buf, length);
+        buf.position(buf.position() + length);
+        return result;
+    }
+
     @Override
     public int readUnsignedVarint() {
         return ByteUtils.readUnsignedVarint(buf);
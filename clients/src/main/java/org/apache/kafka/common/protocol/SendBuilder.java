@@ -16,7 +16,9 @@
  */
 package org.apache.kafka.common.protocol;
 
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.network.ByteBufferSend;
+import org.apache.kafka.common.network.PooledSend;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.record.BaseRecords;
 import org.apache.kafka.common.record.MemoryRecords;
@@ -51,7 +53,11 @@ public class SendBuilder implements Writable {
     private long sizeOfBuffers = 0;
 
     SendBuilder(int size) {
-        this.buffer = ByteBuffer.allocate(size);
+        this(ByteBuffer.allocate(size));
+    }
+
+    private SendBuilder(ByteBuffer buffer) {
+        this.buffer = buffer;
         this.buffer.mark();
     }
 
@@ -205,6 +211,36 @@ public class SendBuilder implements Writable {
         );
     }
 
+    /**
+     * Build a response send whose fields are written into a buffer allocated from the given pool, e.g. a pool of direct
+     * buffers, which saves the allocation of a heap buffer per response and its copy into a direct buffer by the socket
+     * writes. The zero-copy records are not copied into the buffer, they are written between its slices.
+     *
+     * The buffer is allocated on the heap, and the pool is not used, if the pool does not have the memory for it. The
+     * returned send must be released once it has been written or abandoned, see {@link PooledSend#release()}.
+     */
+    public static PooledSend buildResponseSend(
+        ResponseHeader header,
+        Message apiResponse,
+        short apiVersion,
+        MemoryPool memoryPool
+    ) {
+        ObjectSerializationCache serializationCache = new ObjectSerializationCache();
+        MessageSizeAccumulator messageSize = new MessageSizeAccumulator();
+        header.data().addSize(messageSize, serializationCache, header.headerVersion());
+        apiResponse.addSize(messageSize, serializationCache, apiVersion);
+
+        int bufferSize = messageSize.sizeExcludingZeroCopy() + 4;
+        ByteBuffer buffer = bufferSize <= memoryPool.size() ? memoryPool.tryAllocate(bufferSize) : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+            memoryPool = MemoryPool.NONE;
+        }
+        Send send = write(new SendBuilder(buffer), messageSize, serializationCache, header.data(),
+            header.headerVersion(), apiResponse, apiVersion);
+        return new PooledSend(send, memoryPool, buffer);
+    }
+
     private static Send buildSend(
         Message header,
         short headerVersion,
@@ -218,6 +254,18 @@ public class SendBuilder implements Writable {
         apiMessage.addSize(messageSize, serializationCache, apiVersion);
 
         SendBuilder builder = new SendBuilder(messageSize.sizeExcludingZeroCopy() + 4);
+        return write(builder, messageSize, serializationCache, header, headerVersion, apiMessage, apiVersion);
+    }
+
+    private static Send write(
+        SendBuilder builder,
+        MessageSizeAccumulator messageSize,
+        ObjectSerializationCache serializationCache,
+        Message header,
+        short headerVersion,
+        Message apiMessage,
+        short apiVersion
+    ) {
         builder.writeInt(messageSize.totalSize());
         header.write(builder, serializationCache, headerVersion);
         apiMessage.write(builder, serializationCache, apiVersion);
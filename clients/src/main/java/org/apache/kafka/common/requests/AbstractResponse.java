@@ -16,6 +16,8 @@
  */
 package org.apache.kafka.common.requests;
 
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.network.PooledSend;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
@@ -43,6 +45,14 @@ public abstract class AbstractResponse implements AbstractRequestResponse {
         return SendBuilder.buildResponseSend(header, data(), version);
     }
 
+    /**
+     * Like `toSend`, but writes the response into a buffer allocated from the given memory pool, which must be
+     * released once the send is complete, see {@link PooledSend#release()}.
+     */
+    public final PooledSend toSend(ResponseHeader header, short version, MemoryPool memoryPool) {
+        return SendBuilder.buildResponseSend(header, data(), version, memoryPool);
+    }
+
     /**
      * Serializes header and body without prefixing with size (unlike `toSend`, which does include a size prefix).
      */
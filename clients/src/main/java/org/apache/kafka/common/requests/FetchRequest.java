@@ -119,7 +119,11 @@ public class FetchRequest extends AbstractRequest {
     }
 
     private Map<TopicPartition, PartitionData> toPartitionDataMap(List<FetchRequestData.FetchTopic> fetchableTopics) {
-        Map<TopicPartition, PartitionData> result = new LinkedHashMap<>();
+        int numPartitions = 0;
+        for (FetchRequestData.FetchTopic fetchTopic : fetchableTopics)
+            numPartitions += fetchTopic.partitions().size();
+        // size the map for all the partitions up front, since fetches of followers may have thousands of them
+        Map<TopicPartition, PartitionData> result = new LinkedHashMap<>(numPartitions * 4 / 3 + 1);
         fetchableTopics.forEach(fetchTopic -> fetchTopic.partitions().forEach(fetchPartition -> {
             result.put(new TopicPartition(fetchTopic.topic(), fetchPartition.partition()),
                 new PartitionData(
@@ -134,6 +138,8 @@ public class FetchRequest extends AbstractRequest {
     }
 
     private List<TopicPartition> toForgottenTopicList(List<FetchRequestData.ForgottenTopic> forgottenTopics) {
+        if (forgottenTopics.isEmpty())
+            return Collections.emptyList();
         List<TopicPartition> result = new ArrayList<>();
         forgottenTopics.forEach(forgottenTopic ->
             forgottenTopic.partitions().forEach(partitionId ->
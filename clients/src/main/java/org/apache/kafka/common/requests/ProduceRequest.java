@@ -133,7 +133,10 @@ public class ProduceRequest extends AbstractRequest {
             // this method may be called by different thread (see the comment on data)
             synchronized (this) {
                 if (partitionSizes == null) {
-                    partitionSizes = new HashMap<>();
+                    int numPartitions = 0;
+                    for (ProduceRequestData.TopicProduceData topicData : data.topicData())
+                        numPartitions += topicData.partitionData().size();
+                    partitionSizes = new HashMap<>(numPartitions * 4 / 3 + 1);
                     data.topicData().forEach(topicData ->
                         topicData.partitionData().forEach(partitionData ->
                             partitionSizes.compute(new TopicPartition(topicData.name(), partitionData.index()),
@@ -18,8 +18,10 @@ package org.apache.kafka.common.requests;
 
 import org.apache.kafka.common.errors.InvalidRequestException;
 import org.apache.kafka.common.message.ApiVersionsRequestData;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.network.ClientInformation;
 import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.network.PooledSend;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.security.auth.KafkaPrincipal;
@@ -111,6 +113,14 @@ public class RequestContext implements AuthorizableRequestContext {
         return body.toSend(header.toResponseHeader(), apiVersion());
     }
 
+    /**
+     * Build a {@link Send} for direct transmission of the provided response over the network, written into a buffer
+     * allocated from the given memory pool, which must be released once the send is complete.
+     */
+    public PooledSend buildResponseSend(AbstractResponse body, MemoryPool memoryPool) {
+        return body.toSend(header.toResponseHeader(), apiVersion(), memoryPool);
+    }
+
     /**
      * Serialize a response into a {@link ByteBuffer}. This is used when the response
      * will be encapsulated in an {@link EnvelopeResponse}. The buffer will contain
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class RecyclingMemoryPoolTest {
+    private static final int KB = 1024;
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    public void testReleasedBuffersAreRecycled(boolean direct) {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * KB, 64 * KB, false, null, direct);
+        ByteBuffer buffer = pool.tryAllocate(10 * KB);
+        assertNotNull(buffer);
+        assertEquals(direct, buffer.isDirect());
+        assertEquals(10 * KB, buffer.capacity());
+        assertEquals(10 * KB, buffer.remaining());
+        assertEquals(1024 * KB - 10 * KB, pool.availableMemory());
+        assertEquals(6 * KB, pool.fragmentationBytes());
+        buffer.putInt(0, 42);
+        pool.release(buffer);
+        assertEquals(1024 * KB, pool.availableMemory());
+        assertEquals(16 * KB, pool.retainedBytes());
+        assertEquals(0, pool.fragmentationBytes());
+
+        // a buffer of the same size class gets the same memory
+        ByteBuffer recycled = pool.tryAllocate(12 * KB);
+        assertEquals(12 * KB, recycled.capacity());
+        assertEquals(42, recycled.getInt(0));
+        assertEquals(0, pool.retainedBytes());
+        assertEquals(0.5, pool.hitRatio());
+
+        // while a buffer of another size class does not
+        ByteBuffer other = pool.tryAllocate(20 * KB);
+        assertEquals(0, other.getInt(0));
+        pool.release(recycled);
+        pool.release(other);
+        assertEquals(48 * KB, pool.retainedBytes());
+    }
+
+    @Test
+    public void testHeapBuffersShareChunk() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * KB, 64 * KB, false, null, false);
+        ByteBuffer buffer = pool.tryAllocate(5 * KB);
+        byte[] chunk = buffer.array();
+        assertEquals(8 * KB, chunk.length);
+        pool.release(buffer);
+        assertSame(chunk, pool.tryAllocate(7 * KB).array());
+    }
+
+    @Test
+    public void testSmallBuffersAreNotRecycled() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * KB, 64 * KB, false, null, false);
+        ByteBuffer buffer = pool.tryAllocate(100);
+        assertEquals(100, buffer.array().length);
+        pool.release(buffer);
+        assertEquals(0, pool.retainedBytes());
+        assertEquals(0.0, pool.hitRatio());
+        assertEquals(1024 * KB, pool.availableMemory());
+    }
+
+    @Test
+    public void testRetainedMemoryIsBoundedBySize() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(64 * KB, 32 * KB, true, null, false);
+        ByteBuffer buffer1 = pool.tryAllocate(32 * KB);
+        ByteBuffer buffer2 = pool.tryAllocate(30 * KB);
+        pool.release(buffer1);
+        pool.release(buffer2);
+        assertEquals(64 * KB, pool.retainedBytes());
+
+        // the free chunks are dropped to make room for chunks of other sizes
+        ByteBuffer small = pool.tryAllocate(8 * KB);
+        assertEquals(32 * KB, pool.retainedBytes());
+        ByteBuffer large = pool.tryAllocate(32 * KB);
+        assertEquals(0, pool.retainedBytes());
+        assertEquals(0.25, pool.hitRatio());
+
+        // released chunks are not retained beyond the size of the pool
+        ByteBuffer other = pool.tryAllocate(16 * KB);
+        pool.release(large);
+        pool.release(other);
+        pool.release(small);
+        assertTrue(pool.retainedBytes() <= 64 * KB);
+        assertEquals(64 * KB, pool.availableMemory());
+    }
+
+    @Test
+    public void testMaxSingleAllocationLargerThanRecycledSizes() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(Integer.MAX_VALUE, Integer.MAX_VALUE, false, null, false);
+        ByteBuffer buffer = pool.tryAllocate(10 * KB);
+        pool.release(buffer);
+        assertEquals(16 * KB, pool.retainedBytes());
+        assertEquals(10 * KB, pool.tryAllocate(10 * KB).capacity());
+        assertEquals(1.0 / 2, pool.hitRatio());
+    }
+
+    @Test
+    public void testReleaseForeignBuffer() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * KB, 64 * KB, false, null, false);
+        assertThrows(IllegalArgumentException.class, () -> pool.release(ByteBuffer.allocate(8 * KB)));
+    }
+
+    @Test
+    public void testDoubleFree() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * KB, 64 * KB, false, null, false);
+        ByteBuffer buffer = pool.tryAllocate(8 * KB);
+        pool.release(buffer);
+        assertThrows(IllegalArgumentException.class, () -> pool.release(buffer));
+    }
+}
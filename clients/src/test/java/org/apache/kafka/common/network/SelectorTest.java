@@ -684,6 +684,40 @@ public class SelectorTest {
         assertEquals(0, selector.completedReceives().size());
     }
 
+    @Test
+    public void testEagerWrites() throws Exception {
+        // replace the default selector, which is closed last since closing it closes the channel builder
+        Selector defaultSelector = selector;
+        selector = new Selector(NetworkReceive.UNLIMITED, 5000, Selector.NO_FAILED_AUTHENTICATION_DELAY, metrics, time,
+            METRIC_GROUP, Collections.singletonMap("selector", "eager"), true, false, channelBuilder, MemoryPool.NONE, true,
+            new LogContext());
+        String node = "0";
+        blockingConnect(node);
+        KafkaChannel channel = selector.channel(node);
+
+        for (int i = 0; i < 10; i++) {
+            selector.send(createSend(node, "hello-" + i));
+            // the send is written before the select, and the select does not wait since the send is complete
+            selector.poll(10000L);
+            assertEquals(1, selector.completedSends().size());
+            assertEquals(0, channel.selectionKey().interestOps() & SelectionKey.OP_WRITE);
+            String response = null;
+            while (response == null) {
+                selector.poll(1000L);
+                for (NetworkReceive receive : selector.completedReceives())
+                    response = asString(receive);
+            }
+            assertEquals("hello-" + i, response);
+        }
+
+        // the send of a channel closed before the poll is not written
+        selector.send(createSend(node, "hello"));
+        selector.close(node);
+        selector.poll(0L);
+        assertTrue(selector.completedSends().isEmpty());
+        defaultSelector.close();
+    }
+
     @Test
     public void testMuteOnOOM() throws Exception {
         //clean up default selector, replace it with one that uses a finite mem pool
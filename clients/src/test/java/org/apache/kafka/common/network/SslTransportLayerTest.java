@@ -24,6 +24,8 @@ import org.apache.kafka.common.errors.InvalidConfigurationException;
 import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.message.ApiMessageType;
 import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.DefaultRecordsSend;
+import org.apache.kafka.common.record.FileRecords;
 import org.apache.kafka.common.requests.ApiVersionsResponse;
 import org.apache.kafka.common.security.TestSecurityConfig;
 import org.apache.kafka.common.security.auth.SecurityProtocol;
@@ -49,8 +51,10 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -67,6 +71,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -333,6 +338,46 @@ public class SslTransportLayerTest {
         verifySslConfigs(args);
     }
 
+    /**
+     * Tests that data sent from a file spanning several TLS records, which are wrapped together for a socket write,
+     * is received intact.
+     */
+    @ParameterizedTest
+    @ArgumentsSource(SslTransportLayerArgumentsProvider.class)
+    public void testFileTransfer(Args args) throws Exception {
+        server = createEchoServer(args, SecurityProtocol.SSL);
+        createSelector(args.sslClientConfigs);
+        String node = "0";
+        selector.connect(node, new InetSocketAddress("localhost", server.port()), BUFFER_SIZE, BUFFER_SIZE);
+        // with TLSv1.3, files are only sent once data has been received, as brokers do after receiving a request
+        NetworkTestUtils.checkClientConnection(selector, node, 100, 1);
+
+        byte[] payload = TestUtils.randomBytes(200 * 1024 + 17);
+        File file = TestUtils.tempFile();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer sizePrefixed = ByteBuffer.allocate(4 + payload.length);
+            sizePrefixed.putInt(payload.length).put(payload).flip();
+            while (sizePrefixed.hasRemaining())
+                channel.write(sizePrefixed);
+        }
+
+        try (FileRecords records = FileRecords.open(file)) {
+            selector.send(new NetworkSend(node, new DefaultRecordsSend<>(records)));
+            List<NetworkReceive> receives = new ArrayList<>();
+            TestUtils.waitForCondition(() -> {
+                selector.poll(100L);
+                receives.addAll(selector.completedReceives());
+                return !receives.isEmpty();
+            }, "Did not receive the echoed file");
+            assertArrayEquals(payload, Utils.toArray(receives.get(0).payload()));
+        }
+
+        // the buffer of the transfer is given back once the file is sent
+        SslTransportLayer transportLayer = TestUtils.fieldValue(selector.channel(node), KafkaChannel.class, "transportLayer");
+        ByteBuffer netWriteBuffer = TestUtils.fieldValue(transportLayer, SslTransportLayer.class, "netWriteBuffer");
+        assertEquals(transportLayer.netWriteBufferSize(), netWriteBuffer.capacity());
+    }
+
     /**
      * Tests that disabling client authentication as a listener override has the desired effect.
      */
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ByteBufferAccessorTest {
+
+    @Test
+    public void testReadString() {
+        byte[] topic = "topic-é".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(3 + topic.length + 4);
+        buffer.put((byte) 1).put((byte) 2).put((byte) 3).put(topic).putInt(42).flip();
+        buffer.position(1);
+        // read from a slice, whose array offset is not 0
+        ByteBufferAccessor accessor = new ByteBufferAccessor(buffer.slice());
+        assertEquals(2, accessor.readByte());
+        assertEquals(3, accessor.readByte());
+        assertEquals("topic-é", accessor.readString(topic.length));
+        assertEquals(42, accessor.readInt());
+    }
+
+    @Test
+    public void testReadStringFromDirectBuffer() {
+        byte[] topic = "topic".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(topic.length + 4);
+        buffer.put(topic).putInt(42).flip();
+        ByteBufferAccessor accessor = new ByteBufferAccessor(buffer);
+        assertEquals("topic", accessor.readString(topic.length));
+        assertEquals(42, accessor.readInt());
+    }
+
+    @Test
+    public void testReadStringPastLimit() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put("topic".getBytes(StandardCharsets.UTF_8)).flip();
+        ByteBufferAccessor accessor = new ByteBufferAccessor(buffer);
+        assertThrows(BufferUnderflowException.class, () -> accessor.readString(6));
+    }
+}
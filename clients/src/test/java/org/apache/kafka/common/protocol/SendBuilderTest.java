@@ -16,6 +16,10 @@
  */
 package org.apache.kafka.common.protocol;
 
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.memory.RecyclingMemoryPool;
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.network.PooledSend;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.MemoryRecords;
@@ -23,13 +27,18 @@ import org.apache.kafka.common.record.MemoryRecordsBuilder;
 import org.apache.kafka.common.record.SimpleRecord;
 import org.apache.kafka.common.record.TimestampType;
 import org.apache.kafka.common.record.UnalignedMemoryRecords;
+import org.apache.kafka.common.requests.ResponseHeader;
 import org.apache.kafka.common.utils.Utils;
 import org.apache.kafka.test.TestUtils;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SendBuilderTest {
 
@@ -132,6 +141,61 @@ public class SendBuilderTest {
         assertEquals(15, readBuffer.getInt());
     }
 
+    @Test
+    public void testBuildResponseSendIntoPooledBuffer() {
+        short version = ApiKeys.FETCH.latestVersion();
+        ResponseHeader header = new ResponseHeader(5, ApiKeys.FETCH.responseHeaderVersion(version));
+        MemoryRecords records = createRecords(ByteBuffer.allocate(128), "foo");
+        FetchResponseData data = fetchResponseData(records, 200);
+        ByteBuffer expected = TestUtils.toBuffer(SendBuilder.buildResponseSend(header, data, version));
+
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * 1024, 1024 * 1024, false, null, true);
+        PooledSend send = SendBuilder.buildResponseSend(header, data, version, pool);
+        // the records are not copied into the buffer
+        assertEquals(expected.remaining() - 200 * records.sizeInBytes(), send.bufferSize());
+        assertEquals(pool.size() - send.bufferSize(), pool.availableMemory());
+        assertEquals(expected, TestUtils.toBuffer(send));
+        send.release();
+        send.release();
+        assertEquals(pool.size(), pool.availableMemory());
+
+        // the buffer of the next response is recycled
+        send = SendBuilder.buildResponseSend(header, data, version, pool);
+        assertEquals(expected, TestUtils.toBuffer(send));
+        send.release();
+        assertEquals(0.5, pool.hitRatio());
+        assertEquals(pool.size(), pool.availableMemory());
+    }
+
+    @Test
+    public void testBuildResponseSendWithExhaustedPool() {
+        short version = ApiKeys.FETCH.latestVersion();
+        ResponseHeader header = new ResponseHeader(5, ApiKeys.FETCH.responseHeaderVersion(version));
+        FetchResponseData data = fetchResponseData(createRecords(ByteBuffer.allocate(128), "foo"), 200);
+        ByteBuffer expected = TestUtils.toBuffer(SendBuilder.buildResponseSend(header, data, version));
+
+        // the response does not fit in the pool, so it is serialized into a heap buffer
+        MemoryPool pool = new RecyclingMemoryPool(4096, 4096, false, null, true);
+        PooledSend send = SendBuilder.buildResponseSend(header, data, version, pool);
+        assertTrue(send.bufferSize() > pool.size());
+        assertEquals(pool.size(), pool.availableMemory());
+        assertEquals(expected, TestUtils.toBuffer(send));
+        send.release();
+        assertEquals(pool.size(), pool.availableMemory());
+    }
+
+    private FetchResponseData fetchResponseData(MemoryRecords records, int numPartitions) {
+        List<FetchResponseData.PartitionData> partitions = new ArrayList<>(numPartitions);
+        for (int i = 0; i < numPartitions; i++)
+            partitions.add(new FetchResponseData.PartitionData()
+                .setPartitionIndex(i)
+                .setHighWatermark(100L)
+                .setRecords(records));
+        return new FetchResponseData().setResponses(Collections.singletonList(
+            new FetchResponseData.FetchableTopicResponse()
+                .setTopic("topic")
+                .setPartitions(partitions)));
+    }
 
     private String getString(ByteBuffer buffer, int size) {
         byte[] readData = new byte[size];
@@ -228,6 +228,8 @@ class Partition(val topicPartition: TopicPartition,
 
   private val stateChangeLogger = new StateChangeLogger(localBrokerId, inControllerContext = false, None)
   private val remoteReplicasMap = new Pool[Int, Replica]
+  // The values of remoteReplicasMap, which are scanned without lock and without allocation to compute the HW
+  @volatile private var remoteReplicasArray = Array.empty[Replica]
   // The read lock is only required when multiple reads are executed and needs to be in a consistent manner
   private val leaderIsrUpdateLock = new ReentrantReadWriteLock
 
@@ -520,6 +522,7 @@ class Partition(val topicPartition: TopicPartition,
     // need to hold the lock to prevent appendMessagesToLeader() from hitting I/O exceptions due to log being deleted
     inWriteLock(leaderIsrUpdateLock) {
       remoteReplicasMap.clear()
+      remoteReplicasArray = Array.empty
       assignmentState = SimpleAssignmentState(Seq.empty)
       log = None
       futureLog = None
@@ -703,9 +706,13 @@ class Partition(val topicPartition: TopicPartition,
         // check if the HW of the partition can now be incremented
         // since the replica may already be in the ISR and its LEO has just incremented
         val leaderHWIncremented = if (prevFollowerEndOffset != followerReplica.logEndOffset) {
-          // the leader log may be updated by ReplicaAlterLogDirsThread so the following method must be in lock of
-          // leaderIsrUpdateLock to prevent adding new hw to invalid log.
-          inReadLock(leaderIsrUpdateLock) {
+          // The new HW is computed without lock first, since it usually doesn't change when a follower other than the
+          // slowest one fetches. Every follower computes it after updating its LEO, hence the last of concurrent
+          // fetches sees all their LEOs. The leader log may be updated by ReplicaAlterLogDirsThread so the HW must only
+          // be updated in lock of leaderIsrUpdateLock to prevent adding new hw to invalid log.
+          leaderLogIfLocal.exists { leaderLog =>
+            leaderLog.canIncrementHighWatermark(highWatermarkCandidate(leaderLog, followerFetchTimeMs))
+          } && inReadLock(leaderIsrUpdateLock) {
             leaderLogIfLocal.exists(leaderLog => maybeIncrementLeaderHW(leaderLog, followerFetchTimeMs))
           }
         } else {
@@ -751,6 +758,7 @@ class Partition(val topicPartition: TopicPartition,
     // first add the new replicas and then remove the old ones
     newRemoteReplicas.foreach(id => remoteReplicasMap.getAndMaybePut(id, new Replica(id, topicPartition)))
     remoteReplicasMap.removeAll(removedReplicas)
+    remoteReplicasArray = remoteReplicasMap.values.toArray
 
     if (addingReplicas.nonEmpty || removingReplicas.nonEmpty)
       assignmentState = OngoingReassignmentState(addingReplicas, removingReplicas, assignment)
@@ -873,17 +881,7 @@ class Partition(val topicPartition: TopicPartition,
    * @return true if the HW was incremented, and false otherwise.
    */
   private def maybeIncrementLeaderHW(leaderLog: Log, curTime: Long = time.milliseconds): Boolean = {
-    // maybeIncrementLeaderHW is in the hot path, the following code is written to
-    // avoid unnecessary collection generation
-    var newHighWatermark = leaderLog.logEndOffsetMetadata
-    remoteReplicasMap.values.foreach { replica =>
-      // Note here we are using the "maximal", see explanation above
-      if (replica.logEndOffsetMetadata.messageOffset < newHighWatermark.messageOffset &&
-        (curTime - replica.lastCaughtUpTimeMs <= replicaLagTimeMaxMs || isrState.maximalIsr.contains(replica.brokerId))) {
-        newHighWatermark = replica.logEndOffsetMetadata
-      }
-    }
-
+    val newHighWatermark = highWatermarkCandidate(leaderLog, curTime)
     leaderLog.maybeIncrementHighWatermark(newHighWatermark) match {
       case Some(oldHighWatermark) =>
         debug(s"High watermark updated from $oldHighWatermark to $newHighWatermark")
@@ -904,6 +902,28 @@ class Partition(val topicPartition: TopicPartition,
     }
   }
 
+  /**
+   * The smallest LEO among the leader and the replicas that are in the maximal ISR or are considered caught-up, see
+   * maybeIncrementLeaderHW(). It only reads volatile fields, hence it may be computed without lock.
+   */
+  private def highWatermarkCandidate(leaderLog: Log, curTime: Long): LogOffsetMetadata = {
+    // this is in the hot path, the following code is written to avoid unnecessary collection generation
+    var newHighWatermark = leaderLog.logEndOffsetMetadata
+    val replicas = remoteReplicasArray
+    var i = 0
+    while (i < replicas.length) {
+      val replica = replicas(i)
+      val replicaEndOffsetMetadata = replica.logEndOffsetMetadata
+      // Note here we are using the "maximal", see explanation above
+      if (replicaEndOffsetMetadata.messageOffset < newHighWatermark.messageOffset &&
+        (curTime - replica.lastCaughtUpTimeMs <= replicaLagTimeMaxMs || isrState.maximalIsr.contains(replica.brokerId))) {
+        newHighWatermark = replicaEndOffsetMetadata
+      }
+      i += 1
+    }
+    newHighWatermark
+  }
+
   /**
    * The low watermark offset value, calculated only if the local replica is the partition leader
    * It is only used by leader broker to decide when DeleteRecordsRequest is satisfied. Its value is minimum logStartOffset of all live replicas
@@ -34,9 +34,10 @@ import org.apache.kafka.common.utils.{ByteBufferUnmapper, OperatingSystem, Utils
  * @param _file The index file
  * @param baseOffset the base offset of the segment that this index is corresponding to.
  * @param maxIndexSize The maximum index size in bytes.
+ * @param sampleCache The cache of the sampled keys which guides the lookups, if enabled
  */
 abstract class AbstractIndex(@volatile private var _file: File, val baseOffset: Long, val maxIndexSize: Int = -1,
-                             val writable: Boolean) extends Closeable {
+                             val writable: Boolean, sampleCache: Option[IndexSampleCache] = None) extends Closeable {
   import AbstractIndex._
 
   // Length of the index file
@@ -103,6 +104,17 @@ abstract class AbstractIndex(@volatile private var _file: File, val baseOffset:
  */
   protected def _warmEntries: Int = 8192 / entrySize
 
+  /*
+   The lookups of targets before the warm section are guided by the keys of the index sampled at page intervals, which
+   are kept in the IndexSampleCache shared by the logs of the broker, if it is enabled. The lookup then only binary searches the page holding the target
+   rather than the whole index, which avoids most of the page faults when consumers catch up on old segments.
+
+   The samples are discarded when entries are removed from the index, which increments the content version. Appending
+   entries doesn't invalidate the samples since they only cover the entries which existed when they were taken.
+   */
+  @volatile
+  private var _contentVersion: Int = 0
+
   protected val lock = new ReentrantLock
 
   @volatile
@@ -162,6 +174,21 @@ abstract class AbstractIndex(@volatile private var _file: File, val baseOffset:
 
   def updateParentDir(parentDir: File): Unit = _file = new File(parentDir, file.getName)
 
+  /**
+   * The version of the entries of this index, which changes whenever entries are removed
+   */
+  private[log] def contentVersion: Int = _contentVersion
+
+  /**
+   * The number of entries which fit in a page of the index file
+   */
+  private[log] def entriesPerPage: Int = IndexSampleCache.PageSize / entrySize
+
+  /**
+   * The key of the entry in the given slot
+   */
+  private[log] def keyAt(buffer: ByteBuffer, n: Int): Long = parseEntry(buffer, n).indexKey
+
   /**
    * Reset the size of the memory map and the underneath file. This is used in two kinds of cases: (1) in
    * trimToValidSize() which is called at closing the segment or new segment being rolled; (2) at
@@ -259,6 +286,7 @@ abstract class AbstractIndex(@volatile private var _file: File, val baseOffset:
     // To prevent this, we forcefully cleanup memory mapping within proper execution which never affects API responsiveness.
     // See https://issues.apache.org/jira/browse/KAFKA-4614 for the details.
     inLock(lock) {
+      sampleCache.foreach(_.remove(this))
       safeForceUnmap()
     }
   }
@@ -275,6 +303,14 @@ abstract class AbstractIndex(@volatile private var _file: File, val baseOffset:
    */
   protected def truncate(): Unit
 
+  /**
+   * Must be called by the subclasses, holding the lock, whenever entries are removed from the index
+   */
+  protected def onEntriesRemoved(): Unit = {
+    _contentVersion += 1
+    sampleCache.foreach(_.remove(this))
+  }
+
   /**
    * Remove all entries from the index which have an offset greater than or equal to the given offset.
    * Truncating to an offset larger than the largest in the index has no effect.
@@ -399,6 +435,18 @@ abstract class AbstractIndex(@volatile private var _file: File, val baseOffset:
       return binarySearch(firstHotEntry, _entries - 1)
     }
 
+    // use the sampled keys to only search the page of the index holding the target
+    if (searchEntity == IndexSearchType.KEY && sampleCache.isDefined) {
+      val samples = sampleCache.get.samplesFor(this, idx, firstHotEntry + 1)
+      if (samples != null) {
+        val sample = samples.largestLowerBound(target)
+        if (sample < 0)
+          return (-1, 0)
+        val (begin, end) = samples.slotRange(sample, firstHotEntry)
+        return binarySearch(begin, end)
+      }
+    }
+
     // check if the target offset is smaller than the least offset
     if(compareIndexEntry(parseEntry(idx, 0), target, searchEntity) > 0)
       return (-1, 0)
@@ -28,6 +28,9 @@ package kafka.log
  * @param backOffMs The amount of time to wait before rechecking if no logs are eligible for cleaning
  * @param enableCleaner Allows completely disabling the log cleaner
  * @param hashAlgorithm The hash algorithm to use in key comparison.
+ * @param parallelismPerLog The number of workers cleaning a single log, the log is cleaned by its cleaner thread alone if 1
+ * @param keySummaryEnable Write a summary of the retained keys next to each cleaned segment, which allows later cleanings
+ *                         to leave the segment in place if none of its keys have been updated
  */
 case class CleanerConfig(numThreads: Int = 1,
                          dedupeBufferSize: Long = 4*1024*1024L,
@@ -37,5 +40,7 @@ case class CleanerConfig(numThreads: Int = 1,
                          maxIoBytesPerSecond: Double = Double.MaxValue,
                          backOffMs: Long = 15 * 1000,
                          enableCleaner: Boolean = true,
-                         hashAlgorithm: String = "MD5") {
+                         hashAlgorithm: String = "MD5",
+                         parallelismPerLog: Int = 1,
+                         keySummaryEnable: Boolean = false) {
 }
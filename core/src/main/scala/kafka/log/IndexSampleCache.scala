@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{Logging, threadsafe}
+
+import scala.jdk.CollectionConverters._
+
+/**
+ * The keys of an index sampled every `step` entries: `keys(i)` is the key of the entry in slot `i * step`.
+ *
+ * @param keys The sampled keys
+ * @param step The number of index entries between two samples
+ * @param entries The number of entries of the index covered by the samples
+ * @param version The version of the index content the samples were taken from
+ * @param segmentLastModified The last modified time of the index file when sampled, used to evict older segments first
+ */
+private[log] class IndexSamples(val keys: Array[Long], val step: Int, val entries: Int, val version: Int,
+                                val segmentLastModified: Long) {
+
+  def sizeInBytes: Int = keys.length * 8 + IndexSamples.Overhead
+
+  /**
+   * The range of slots of the index which holds the largest entry less than or equal to the target key, given the
+   * position of the largest sample less than or equal to it. The range following the last sample extends to the last
+   * slot to search, since the index may have grown since it was sampled.
+   */
+  def slotRange(sample: Int, lastSlot: Int): (Int, Int) = {
+    val begin = sample * step
+    if (sample == keys.length - 1) (begin, lastSlot)
+    else (begin, math.min(begin + step - 1, lastSlot))
+  }
+
+  /**
+   * The position of the largest sample less than or equal to the target key, or -1 if the target is smaller than all
+   * the samples
+   */
+  def largestLowerBound(target: Long): Int = {
+    var lo = 0
+    var hi = keys.length - 1
+    if (keys(lo) > target)
+      return -1
+    while (lo < hi) {
+      val mid = (lo + hi + 1) >>> 1
+      if (keys(mid) > target)
+        hi = mid - 1
+      else
+        lo = mid
+    }
+    lo
+  }
+}
+
+private object IndexSamples {
+  // rough size of the object headers and fields
+  val Overhead = 64
+}
+
+/**
+ * A cache of the keys of the index entries sampled at page intervals, which is shared by the offset and time indexes of
+ * all the logs of the broker. It is owned by the log manager and only created if log.index.sample.cache.max.bytes is
+ * positive.
+ *
+ * Lookups of targets before the warm section of an index binary search the whole index, touching a page of the index
+ * file at each step. When the index is not in the page cache, e.g. consumers catching up on old segments, each of
+ * these is a page fault. With the samples, a lookup first searches the cached keys to find the page which holds the
+ * target entry, and then only binary searches the entries of that page, so that it touches a single page of the index.
+ * The results are the same as without the cache.
+ *
+ * The cache is bounded in size. When full, the samples of the indexes of the oldest segments are evicted first, and the
+ * indexes of segments older than all the cached ones are not sampled.
+ */
+@threadsafe
+private[log] class IndexSampleCache(@volatile private var _maxBytes: Long) extends Logging with KafkaMetricsGroup {
+  private val samples = new ConcurrentHashMap[AbstractIndex, IndexSamples]()
+  private val usedBytes = new AtomicLong(0L)
+  /* the last modified time of the segment whose samples were evicted last */
+  @volatile private var evictedUpTo = Long.MinValue
+
+  private[log] val hitCount = new AtomicLong(0L)
+  private[log] val missCount = new AtomicLong(0L)
+  private[log] val evictionCount = new AtomicLong(0L)
+
+  private val hitMeter = newMeter("HitsPerSec", "lookups", TimeUnit.SECONDS)
+  private val missMeter = newMeter("MissesPerSec", "lookups", TimeUnit.SECONDS)
+  private val evictionMeter = newMeter("EvictionsPerSec", "indexes", TimeUnit.SECONDS)
+
+  newGauge("SizeBytes", () => sizeInBytes)
+  newGauge("Indexes", () => numIndexes)
+  newGauge("HitRatio", () => {
+    val hits = hitCount.get
+    val lookups = hits + missCount.get
+    if (lookups == 0) 0.0 else hits.toDouble / lookups
+  })
+
+  def maxBytes: Long = _maxBytes
+
+  def sizeInBytes: Long = usedBytes.get
+
+  def numIndexes: Int = samples.size
+
+  def contains(index: AbstractIndex): Boolean = samples.containsKey(index)
+
+  def resize(maxBytes: Long): Unit = {
+    _maxBytes = maxBytes
+    if (maxBytes == 0)
+      clear()
+    else
+      maybeEvict()
+  }
+
+  /**
+   * Get the samples of the leading entries of the index, sampling the index if they are not cached yet or if they
+   * leave more than a couple of pages of these entries uncovered, which happens as the index grows.
+   *
+   * @param index The index
+   * @param buffer The buffer of the index to sample from
+   * @param entries The number of leading entries of the index which need to be covered
+   * @return The samples, or null if the cache is disabled or the index should not be sampled
+   */
+  def samplesFor(index: AbstractIndex, buffer: ByteBuffer, entries: Int): IndexSamples = {
+    if (_maxBytes <= 0)
+      return null
+
+    val cached = samples.get(index)
+    if (cached != null && cached.version == index.contentVersion && entries - cached.entries <= 2 * cached.step) {
+      hitCount.incrementAndGet()
+      hitMeter.mark()
+      return cached
+    }
+
+    missCount.incrementAndGet()
+    missMeter.mark()
+    val step = index.entriesPerPage
+    // an index which spans a couple of pages is cheap enough to search
+    if (entries <= 2 * step)
+      return null
+
+    // once the cache is full, don't sample segments which are older than those we evicted
+    val segmentLastModified = index.file.lastModified
+    if (isFull && segmentLastModified <= evictedUpTo)
+      return null
+
+    val version = index.contentVersion
+    val keys = new Array[Long]((entries + step - 1) / step)
+    var i = 0
+    while (i < keys.length) {
+      keys(i) = index.keyAt(buffer, i * step)
+      i += 1
+    }
+    val newSamples = new IndexSamples(keys, step, entries, version, segmentLastModified)
+    val previous = samples.put(index, newSamples)
+    usedBytes.addAndGet(newSamples.sizeInBytes - (if (previous == null) 0 else previous.sizeInBytes))
+    maybeEvict()
+    newSamples
+  }
+
+  /**
+   * Remove the samples of the index, e.g. when it is closed
+   */
+  def remove(index: AbstractIndex): Unit = {
+    val removed = samples.remove(index)
+    if (removed != null)
+      usedBytes.addAndGet(-removed.sizeInBytes)
+  }
+
+  def clear(): Unit = {
+    samples.keySet.asScala.foreach(remove)
+  }
+
+  /**
+   * Drop all the samples and remove the metrics of the cache
+   */
+  def close(): Unit = {
+    clear()
+    IndexSampleCache.MetricNames.foreach(removeMetric(_))
+  }
+
+  private def isFull: Boolean = usedBytes.get >= _maxBytes
+
+  private def maybeEvict(): Unit = {
+    if (usedBytes.get > _maxBytes) {
+      synchronized {
+        if (usedBytes.get > _maxBytes) {
+          val byAge = samples.asScala.toSeq.sortBy { case (_, indexSamples) => indexSamples.segmentLastModified }
+          val iterator = byAge.iterator
+          while (usedBytes.get > _maxBytes && iterator.hasNext) {
+            val (index, indexSamples) = iterator.next()
+            if (samples.remove(index, indexSamples)) {
+              usedBytes.addAndGet(-indexSamples.sizeInBytes)
+              evictedUpTo = indexSamples.segmentLastModified
+              evictionCount.incrementAndGet()
+              evictionMeter.mark()
+            }
+          }
+          debug(s"Evicted index samples down to ${usedBytes.get} bytes for ${samples.size} indexes")
+        }
+      }
+    }
+  }
+}
+
+object IndexSampleCache {
+  /* the interval at which index entries are sampled, the size of a page on most systems */
+  private[log] val PageSize = 4096
+
+  private val MetricNames = Seq("HitsPerSec", "MissesPerSec", "EvictionsPerSec", "SizeBytes", "Indexes", "HitRatio")
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.{Channels, FileChannel}
+import java.nio.file.{Files, StandardOpenOption}
+
+import kafka.utils.{Logging, nonthreadsafe}
+import org.apache.kafka.common.record.{MemoryRecords, Record, RecordBatch}
+import org.apache.kafka.common.utils.Utils
+
+/**
+ * A key summary lists the keys retained in a cleaned segment along with their offsets. It is written by the cleaner
+ * next to the segment and allows a later cleaning to find out whether the segment would be copied unchanged, i.e.
+ * whether none of its keys have been superseded in the offset map, without reading the segment. The summary is renamed
+ * and deleted along with the files of its segment.
+ *
+ * The file holds a sequence of (key size, key, offset) entries followed by a fixed size trailer:
+ *  - entry count (int)
+ *  - size of the segment in bytes (int)
+ *  - last modified time of the segment (long)
+ *  - flags (byte)
+ *  - version (short)
+ *  - magic (int)
+ *
+ * A summary is only written for segments which a later cleaning could change by removing superseded keys or expired
+ * tombstones alone, so it is not written if the segment retains transactional or control batches, empty batches kept
+ * to preserve producer state, or records beyond the offset map. It is ignored if the size or the modification time of
+ * the segment no longer match.
+ */
+private[log] object KeySummary extends Logging {
+  private val Magic = 0x4b53554d
+  private val Version: Short = 0
+  private val TrailerSize = 4 + 4 + 8 + 1 + 2 + 4
+  private val TombstonesFlag: Byte = 0x1
+
+  /**
+   * Check whether cleaning the given segment with the given offset map would leave it unchanged
+   *
+   * @param segment The segment to check
+   * @param map The offset map of the cleaning
+   * @param retainDeletes Whether the cleaning retains the tombstones of the segment
+   * @return true if the segment has a valid summary none of whose keys are superseded in the map
+   */
+  def isUnchanged(segment: LogSegment, map: OffsetMap, retainDeletes: Boolean): Boolean = {
+    val file = Log.keySummaryFile(segment.log.file.getParentFile, segment.baseOffset)
+    if (!file.exists)
+      return false
+
+    try {
+      val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+      try {
+        val fileSize = channel.size
+        if (fileSize < TrailerSize)
+          return false
+        val trailer = ByteBuffer.allocate(TrailerSize)
+        Utils.readFully(channel, trailer, fileSize - TrailerSize)
+        trailer.flip()
+        val entries = trailer.getInt
+        val segmentSize = trailer.getInt
+        val segmentLastModified = trailer.getLong
+        val flags = trailer.get
+        val version = trailer.getShort
+        val magic = trailer.getInt
+        if (magic != Magic || version != Version || segmentSize != segment.size || segmentLastModified != segment.lastModified) {
+          debug(s"Ignoring key summary $file which does not match segment $segment")
+          return false
+        }
+        if ((flags & TombstonesFlag) != 0 && !retainDeletes)
+          return false
+
+        val in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0L))))
+        var key = new Array[Byte](64)
+        var i = 0
+        while (i < entries) {
+          val keySize = in.readInt()
+          if (keySize > key.length)
+            key = new Array[Byte](math.max(keySize, key.length * 2))
+          in.readFully(key, 0, keySize)
+          val offset = in.readLong()
+          if (map.get(ByteBuffer.wrap(key, 0, keySize)) > offset)
+            return false
+          i += 1
+        }
+        true
+      } finally channel.close()
+    } catch {
+      case e: IOException =>
+        warn(s"Failed to read key summary $file, the segment will be cleaned", e)
+        false
+    }
+  }
+
+  /**
+   * Delete the summaries in the log directory whose segment is no longer part of the log
+   */
+  def deleteStale(log: Log): Unit = {
+    val files = log.dir.listFiles
+    if (files != null) {
+      val baseOffsets = log.logSegments.map(_.baseOffset).toSet
+      for (file <- files if file.getName.endsWith(Log.KeySummaryFileSuffix) &&
+          !baseOffsets.contains(Log.offsetFromFile(file))) {
+        debug(s"Deleting stale key summary $file")
+        Files.deleteIfExists(file.toPath)
+      }
+    }
+  }
+
+  /**
+   * Write the trailer of a summary, see the class description for the format
+   */
+  private[log] def writeTrailer(out: DataOutputStream, entries: Int, segment: LogSegment, hasTombstones: Boolean): Unit = {
+    out.writeInt(entries)
+    out.writeInt(segment.size)
+    out.writeLong(segment.lastModified)
+    out.writeByte(if (hasTombstones) TombstonesFlag else 0)
+    out.writeShort(Version)
+    out.writeInt(Magic)
+  }
+}
+
+/**
+ * Writes the key summary of a segment being cleaned from the batches and records retained by the cleaner. The summary
+ * is written next to the cleaned segment with the same suffix, so that it is renamed along with the segment when the
+ * segment is swapped in. Failing to write the summary does not fail the cleaning, the segment is simply cleaned again
+ * next time.
+ *
+ * @param dir The directory of the log
+ * @param baseOffset The base offset of the cleaned segment
+ * @param mappedUpToOffset The latest offset in the offset map used to clean the segment
+ */
+@nonthreadsafe
+private[log] class KeySummaryWriter(dir: File, baseOffset: Long, mappedUpToOffset: Long) extends Logging {
+  private val summaryFile = Log.keySummaryFile(dir, baseOffset, Log.CleanedFileSuffix)
+  private var complete = true
+  private var entries = 0
+  private var hasTombstones = false
+  private var transactionalBatch = false
+  private var retainsEmptyBatch = false
+  private var recordsRetainedInBatch = 0
+  private val out = write(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(summaryFile.toPath)))).orNull
+
+  /**
+   * Called for each batch of the source segment with the retention decided by the cleaner
+   */
+  def onBatchRead(batch: RecordBatch, retention: MemoryRecords.RecordFilter.BatchRetention): Unit = {
+    checkEmptyBatch()
+    transactionalBatch = batch.isControlBatch || batch.isTransactional
+    retainsEmptyBatch = retention == MemoryRecords.RecordFilter.BatchRetention.RETAIN_EMPTY
+    recordsRetainedInBatch = 0
+  }
+
+  /**
+   * Called for each record of the source segment which is retained in the cleaned segment
+   */
+  def onRecordRetained(record: Record): Unit = {
+    recordsRetainedInBatch += 1
+    if (!record.hasValue)
+      hasTombstones = true
+    if (transactionalBatch || !record.hasKey || record.offset > mappedUpToOffset) {
+      complete = false
+    } else if (complete) {
+      write {
+        val key = record.key
+        out.writeInt(key.remaining)
+        Utils.writeTo(out, key, key.remaining)
+        out.writeLong(record.offset)
+        entries += 1
+      }
+    }
+  }
+
+  /**
+   * Complete the summary of the cleaned segment once its size and modification time are final
+   */
+  def close(segment: LogSegment): Unit = {
+    checkEmptyBatch()
+    if (complete)
+      write(KeySummary.writeTrailer(out, entries, segment, hasTombstones))
+    if (out != null)
+      write(out.close())
+    if (!complete)
+      Files.deleteIfExists(summaryFile.toPath)
+  }
+
+  /**
+   * Discard the summary, e.g. when the cleaning is aborted
+   */
+  def abort(): Unit = {
+    complete = false
+    Utils.closeQuietly(out, "key summary")
+    Files.deleteIfExists(summaryFile.toPath)
+  }
+
+  private def checkEmptyBatch(): Unit = {
+    if (retainsEmptyBatch && recordsRetainedInBatch == 0)
+      complete = false
+    retainsEmptyBatch = false
+  }
+
+  private def write[T](action: => T): Option[T] = {
+    try Some(action)
+    catch {
+      case e: IOException =>
+        warn(s"Failed to write key summary $summaryFile, the segment will be cleaned again", e)
+        complete = false
+        None
+    }
+  }
+}
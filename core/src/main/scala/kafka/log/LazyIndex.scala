@@ -102,11 +102,13 @@ class LazyIndex[T <: AbstractIndex] private (@volatile private var indexWrapper:
 
 object LazyIndex {
 
-  def forOffset(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true): LazyIndex[OffsetIndex] =
-    new LazyIndex(new IndexFile(file), file => new OffsetIndex(file, baseOffset, maxIndexSize, writable))
+  def forOffset(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true,
+                sampleCache: Option[IndexSampleCache] = None): LazyIndex[OffsetIndex] =
+    new LazyIndex(new IndexFile(file), file => new OffsetIndex(file, baseOffset, maxIndexSize, writable, sampleCache))
 
-  def forTime(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true): LazyIndex[TimeIndex] =
-    new LazyIndex(new IndexFile(file), file => new TimeIndex(file, baseOffset, maxIndexSize, writable))
+  def forTime(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true,
+              sampleCache: Option[IndexSampleCache] = None): LazyIndex[TimeIndex] =
+    new LazyIndex(new IndexFile(file), file => new TimeIndex(file, baseOffset, maxIndexSize, writable, sampleCache))
 
   private sealed trait IndexWrapper {
 
@@ -24,7 +24,7 @@ import java.text.NumberFormat
 import java.util.Map.{Entry => JEntry}
 import java.util.Optional
 import java.util.concurrent.atomic._
-import java.util.concurrent.{ConcurrentNavigableMap, ConcurrentSkipListMap, TimeUnit}
+import java.util.concurrent.{ConcurrentNavigableMap, ConcurrentSkipListMap, ExecutionException, Executor, FutureTask, TimeUnit}
 import java.util.regex.Pattern
 
 import kafka.api.{ApiVersion, KAFKA_0_10_0_IV0}
@@ -198,6 +198,16 @@ object RollParams {
   }
 }
 
+/**
+ * Used by the log manager to speed up and track the recovery of the logs it loads after an unclean shutdown.
+ *
+ * @param executor The executor on which the unflushed segments of a log are validated and indexed concurrently, if
+ *                 any. The thread recovering the log runs the validations which were not picked up yet itself, so it
+ *                 may be the executor the log is loaded on.
+ * @param onSegmentRecovered Called with the size in bytes of each recovered segment
+ */
+case class LogRecoveryContext(executor: Option[Executor], onSegmentRecovered: Int => Unit)
+
 sealed trait LogStartOffsetIncrementReason
 case object ClientRecordDeletion extends LogStartOffsetIncrementReason {
   override def toString: String = "client delete records request"
@@ -247,6 +257,11 @@ case object SnapshotGenerated extends LogStartOffsetIncrementReason {
  *                                  the broker. If inter-broker protocol is downgraded below 2.8, a topic ID may be lost
  *                                  and a new ID generated upon re-upgrade. If the inter-broker protocol version is below
  *                                  2.8, partition.metadata will be deleted to avoid ID conflicts upon re-upgrade.
+ * @param recoveryContext The context of the recovery of the log by the log manager, if any
+ * @param flushCoordinator The coordinator which flushes the log when its appends require a flush, if any. The log is
+ *                         flushed by the appending thread while holding the lock of the log otherwise.
+ * @param indexSampleCache The cache of the sampled index keys shared by the logs of the broker, if enabled
+ * @param readAhead The read-ahead of the sequential reads shared by the logs of the broker, if enabled
  */
 @threadsafe
 class Log(@volatile private var _dir: File,
@@ -262,7 +277,11 @@ class Log(@volatile private var _dir: File,
           val producerStateManager: ProducerStateManager,
           logDirFailureChannel: LogDirFailureChannel,
           private val hadCleanShutdown: Boolean = true,
-          val keepPartitionMetadataFile: Boolean = true) extends Logging with KafkaMetricsGroup {
+          val keepPartitionMetadataFile: Boolean = true,
+          recoveryContext: Option[LogRecoveryContext] = None,
+          flushCoordinator: Option[LogFlushCoordinator] = None,
+          private[log] val indexSampleCache: Option[IndexSampleCache] = None,
+          readAhead: Option[ReadAhead] = None) extends Logging with KafkaMetricsGroup {
 
   import kafka.log.Log._
 
@@ -310,6 +329,9 @@ class Log(@volatile private var _dir: File,
   /* the actual segments of the log */
   private val segments: ConcurrentNavigableMap[java.lang.Long, LogSegment] = new ConcurrentSkipListMap[java.lang.Long, LogSegment]
 
+  /* detects the sequential reads of the log in order to read ahead of them */
+  private val readAheadDetector = readAhead.map(new SequentialReadDetector(_))
+
   // Visible for testing
   @volatile var leaderEpochCache: Option[LeaderEpochFileCache] = None
 
@@ -452,6 +474,17 @@ class Log(@volatile private var _dir: File,
     }
   }
 
+  /**
+   * Check without lock whether maybeIncrementHighWatermark() would update the high watermark to the given value, as of
+   * the current high watermark.
+   */
+  def canIncrementHighWatermark(newHighWatermark: LogOffsetMetadata): Boolean = {
+    val oldHighWatermark = highWatermarkMetadata
+    oldHighWatermark.messageOffset < newHighWatermark.messageOffset ||
+      (oldHighWatermark.messageOffset == newHighWatermark.messageOffset &&
+        (oldHighWatermark.messageOffsetOnly || oldHighWatermark.onOlderSegment(newHighWatermark)))
+  }
+
   /**
    * Get the offset and metadata for the current high watermark. If offset metadata is not
    * known, this will do a lookup in the index and cache the result.
@@ -642,6 +675,9 @@ class Log(@volatile private var _dir: File,
         } else if (isLogFile(baseFile)) {
           deleteIndicesIfExist(baseFile)
           swapFiles += file
+        } else if (filename.endsWith(KeySummaryFileSuffix + SwapFileSuffix)) {
+          // the key summary is an optimization of the cleaner, the segment is cleaned again without it
+          Files.deleteIfExists(file.toPath)
         }
       }
     }
@@ -693,6 +729,7 @@ class Log(@volatile private var _dir: File,
           baseOffset = baseOffset,
           config,
           time = time,
+          indexSampleCache = indexSampleCache,
           fileAlreadyExists = true)
 
         try segment.sanityCheck(timeIndexFileNewlyCreated)
@@ -715,20 +752,69 @@ class Log(@volatile private var _dir: File,
    * Recover the given segment.
    * @param segment Segment to recover
    * @param leaderEpochCache Optional cache for updating the leader epoch during recovery
+   * @param validation Optional task validating and indexing the segment ahead of its recovery, see
+   *                   `validateSegmentsConcurrently`. It is run here if no other thread picked it up yet.
    * @return The number of bytes truncated from the segment
    * @throws LogSegmentOffsetOverflowException if the segment contains messages that cause index offset overflow
    */
   private def recoverSegment(segment: LogSegment,
-                             leaderEpochCache: Option[LeaderEpochFileCache] = None): Int = lock synchronized {
-    val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
+                             leaderEpochCache: Option[LeaderEpochFileCache] = None,
+                             validation: Option[FutureTask[Int]] = None): Int = lock synchronized {
+    val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs,
+      indexedSnapshots = this.producerStateManager.indexedSnapshots)
     rebuildProducerState(segment.baseOffset, reloadFromCleanShutdown = false, producerStateManager)
-    val bytesTruncated = segment.recover(producerStateManager, leaderEpochCache)
+    val bytesTruncated = validation match {
+      case Some(task) =>
+        task.run()
+        val truncated = try task.get catch {
+          case e: ExecutionException => throw e.getCause
+        }
+        segment.recoverTransactionState(producerStateManager, leaderEpochCache)
+        truncated
+      case None =>
+        segment.recover(producerStateManager, leaderEpochCache)
+    }
+    recoveryContext.foreach(_.onSegmentRecovered(segment.size))
     // once we have recovered the segment's data, take a snapshot to ensure that we won't
     // need to reload the same segment again while recovering another segment.
     producerStateManager.takeSnapshot()
     bytesTruncated
   }
 
+  /**
+   * Submit the validation and indexing of the given segments, which is the bulk of their recovery and doesn't depend on
+   * the preceding segments, to the recovery executor so that they are processed concurrently. The rest of the recovery
+   * of each segment then happens in order in `recoverSegment`.
+   *
+   * @param segments The segments to recover
+   * @param aborted Skip the validations which have not started yet once set
+   * @return The validation tasks of the segments, keyed by base offset, or an empty map without recovery executor
+   */
+  private def validateSegmentsConcurrently(segments: Seq[LogSegment], aborted: AtomicBoolean): Map[Long, FutureTask[Int]] = {
+    recoveryContext.flatMap(_.executor) match {
+      case Some(executor) if segments.size > 1 =>
+        segments.map { segment =>
+          val task = new FutureTask[Int](() => if (aborted.get) 0 else segment.recoverIndexes())
+          executor.execute(task)
+          segment.baseOffset -> task
+        }.toMap
+      case _ => Map.empty
+    }
+  }
+
+  /**
+   * Wait for the given validation tasks to complete, skipping those which have not started yet
+   */
+  private def awaitValidations(validations: Iterable[FutureTask[Int]], aborted: AtomicBoolean): Unit = {
+    aborted.set(true)
+    validations.foreach { task =>
+      task.run()
+      try task.get catch {
+        case _: ExecutionException => // the failure is reported by the recovery of the segment, if needed
+      }
+    }
+  }
+
   /**
    * This method does not need to convert IOException to KafkaStorageException because it is only called before all logs
    * are loaded.
@@ -747,6 +833,7 @@ class Log(@volatile private var _dir: File,
         baseOffset = baseOffset,
         config,
         time = time,
+        indexSampleCache = indexSampleCache,
         fileSuffix = SwapFileSuffix)
       info(s"Found log file ${swapFile.getPath} from interrupted swap operation, repairing.")
       recoverSegment(swapSegment)
@@ -809,6 +896,7 @@ class Log(@volatile private var _dir: File,
             baseOffset = 0,
             config,
             time = time,
+            indexSampleCache = indexSampleCache,
             initFileSize = this.initFileSize))
        }
       0
@@ -867,30 +955,41 @@ class Log(@volatile private var _dir: File,
 
     // if we have the clean shutdown marker, skip recovery
     if (!hadCleanShutdown) {
-      val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).iterator
+      val unflushedSegments = logSegments(this.recoveryPoint, Long.MaxValue).toSeq
+      val validationsAborted = new AtomicBoolean(false)
+      val validations = validateSegmentsConcurrently(unflushedSegments, validationsAborted)
+      val unflushed = unflushedSegments.iterator
       var truncated = false
 
-      while (unflushed.hasNext && !truncated) {
-        val segment = unflushed.next()
-        info(s"Recovering unflushed segment ${segment.baseOffset}")
-        val truncatedBytes =
-          try {
-            recoverSegment(segment, leaderEpochCache)
-          } catch {
-            case _: InvalidOffsetException =>
-              val startOffset = segment.baseOffset
-              warn("Found invalid offset during recovery. Deleting the corrupt segment and " +
-                s"creating an empty one with starting offset $startOffset")
-              segment.truncateTo(startOffset)
+      try {
+        while (unflushed.hasNext && !truncated) {
+          val segment = unflushed.next()
+          info(s"Recovering unflushed segment ${segment.baseOffset}")
+          val truncatedBytes =
+            try {
+              recoverSegment(segment, leaderEpochCache, validations.get(segment.baseOffset))
+            } catch {
+              case _: InvalidOffsetException =>
+                val startOffset = segment.baseOffset
+                warn("Found invalid offset during recovery. Deleting the corrupt segment and " +
+                  s"creating an empty one with starting offset $startOffset")
+                segment.truncateTo(startOffset)
+            }
+          if (truncatedBytes > 0) {
+            // we had an invalid message, delete all remaining log
+            warn(s"Corruption found in segment ${segment.baseOffset}, truncating to offset ${segment.readNextOffset}")
+            val remaining = unflushed.toList
+            awaitValidations(remaining.flatMap(segment => validations.get(segment.baseOffset)), validationsAborted)
+            removeAndDeleteSegments(remaining,
+              asyncDelete = true,
+              reason = LogRecovery)
+            truncated = true
           }
-        if (truncatedBytes > 0) {
-          // we had an invalid message, delete all remaining log
-          warn(s"Corruption found in segment ${segment.baseOffset}, truncating to offset ${segment.readNextOffset}")
-          removeAndDeleteSegments(unflushed.toList,
-            asyncDelete = true,
-            reason = LogRecovery)
-          truncated = true
         }
+      } finally {
+        // make sure that no segment is still being validated if the recovery failed, e.g. to split a segment with
+        // offset overflow before retrying
+        awaitValidations(validations.values, validationsAborted)
       }
     }
 
@@ -902,6 +1001,7 @@ class Log(@volatile private var _dir: File,
         baseOffset = logStartOffset,
         config,
         time = time,
+        indexSampleCache = indexSampleCache,
         initFileSize = this.initFileSize,
         preallocate = config.preallocate))
     }
@@ -1167,6 +1267,7 @@ class Log(@volatile private var _dir: File,
       var validRecords = trimInvalidBytes(records, appendInfo)
 
       // they are valid, insert them in the log
+      var flushOffset = -1L
       lock synchronized {
         maybeHandleIOException(s"Error while appending records to $topicPartition in dir ${dir.getParent}") {
           checkIfMemoryMappedBufferClosed()
@@ -1324,11 +1425,19 @@ class Log(@volatile private var _dir: File,
                 s"next offset: ${nextOffsetMetadata.messageOffset}, " +
                 s"and messages: $validRecords")
 
-              if (unflushedMessages >= config.flushInterval) flush()
+              if (unflushedMessages >= config.flushInterval) {
+                if (flushCoordinator.isDefined) flushOffset = logEndOffset
+                else flush()
+              }
           }
-          appendInfo
         }
       }
+
+      // the flush coordinator flushes the log along with the other logs of its directory, and the following appends
+      // to the log don't wait for it
+      if (flushOffset >= 0)
+        flushCoordinator.foreach(_.flush(this, flushOffset))
+      appendInfo
     }
   }
 
@@ -1421,9 +1530,7 @@ class Log(@volatile private var _dir: File,
         // if this is a client produce request, there will be up to 5 batches which could have been duplicated.
         // If we find a duplicate, we return the metadata of the appended batch to the client.
         if (origin == AppendOrigin.Client) {
-          val maybeLastEntry = producerStateManager.lastEntry(batch.producerId)
-
-          maybeLastEntry.flatMap(_.findDuplicateBatch(batch)).foreach { duplicate =>
+          producerStateManager.findDuplicateBatch(batch).foreach { duplicate =>
             return (updatedProducers, completedTxns.toList, Some(duplicate))
           }
         }
@@ -1636,6 +1743,8 @@ class Log(@volatile private var _dir: File,
 
           fetchDataInfo = segment.read(startOffset, maxLength, maxPosition, minOneMessage)
           if (fetchDataInfo != null) {
+            readAheadDetector.foreach(_.onRead(segment, fetchDataInfo.fetchOffsetMetadata.relativePositionInSegment,
+              fetchDataInfo.records.sizeInBytes, isActiveSegment = segment eq activeSegment))
             if (includeAbortedTxns)
               fetchDataInfo = addAbortedTransactions(startOffset, segmentEntry, fetchDataInfo)
           } else segmentEntry = segments.higherEntry(segmentEntry.getKey)
@@ -2055,6 +2164,7 @@ class Log(@volatile private var _dir: File,
           baseOffset = newOffset,
           config,
           time = time,
+          indexSampleCache = indexSampleCache,
           initFileSize = initFileSize,
           preallocate = config.preallocate)
         addSegment(segment)
@@ -2207,6 +2317,7 @@ class Log(@volatile private var _dir: File,
           baseOffset = newOffset,
           config = config,
           time = time,
+          indexSampleCache = indexSampleCache,
           initFileSize = initFileSize,
           preallocate = config.preallocate))
         leaderEpochCache.foreach(_.clearAndFlush())
@@ -2561,6 +2672,9 @@ object Log {
   /** an (aborted) txn index */
   val TxnIndexFileSuffix = ".txnindex"
 
+  /** a summary of the keys retained in a cleaned segment */
+  val KeySummaryFileSuffix = ".keysummary"
+
   /** a file that is scheduled to be deleted */
   val DeletedFileSuffix = ".deleted"
 
@@ -2600,11 +2714,19 @@ object Log {
             producerIdExpirationCheckIntervalMs: Int,
             logDirFailureChannel: LogDirFailureChannel,
             lastShutdownClean: Boolean = true,
-            keepPartitionMetadataFile: Boolean = true): Log = {
+            keepPartitionMetadataFile: Boolean = true,
+            recoveryContext: Option[LogRecoveryContext] = None,
+            flushCoordinator: Option[LogFlushCoordinator] = None,
+            indexSampleCache: Option[IndexSampleCache] = None,
+            indexedProducerSnapshots: Boolean = false,
+            offHeapProducerState: Boolean = false,
+            readAhead: Option[ReadAhead] = None): Log = {
     val topicPartition = Log.parseTopicPartitionName(dir)
-    val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
+    val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs,
+      indexedProducerSnapshots, offHeapProducerState)
     new Log(dir, config, logStartOffset, recoveryPoint, scheduler, brokerTopicStats, time, maxProducerIdExpirationMs,
-      producerIdExpirationCheckIntervalMs, topicPartition, producerStateManager, logDirFailureChannel, lastShutdownClean, keepPartitionMetadataFile)
+      producerIdExpirationCheckIntervalMs, topicPartition, producerStateManager, logDirFailureChannel, lastShutdownClean,
+      keepPartitionMetadataFile, recoveryContext, flushCoordinator, indexSampleCache, readAhead)
   }
 
   /**
@@ -2708,6 +2830,16 @@ object Log {
   def transactionIndexFile(dir: File, offset: Long, suffix: String = ""): File =
     new File(dir, filenamePrefixFromOffset(offset) + TxnIndexFileSuffix + suffix)
 
+  /**
+   * Construct a key summary file name in the given dir using the given base offset and the given suffix
+   *
+   * @param dir The directory in which the log will reside
+   * @param offset The base offset of the log file
+   * @param suffix The suffix to be appended to the file name ("" or ".cleaned")
+   */
+  def keySummaryFile(dir: File, offset: Long, suffix: String = ""): File =
+    new File(dir, filenamePrefixFromOffset(offset) + KeySummaryFileSuffix + suffix)
+
   def offsetFromFileName(filename: String): Long = {
     filename.substring(0, filename.indexOf('.')).toLong
   }
@@ -2767,7 +2899,7 @@ object Log {
     filename.endsWith(IndexFileSuffix) || filename.endsWith(TimeIndexFileSuffix) || filename.endsWith(TxnIndexFileSuffix)
   }
 
-  private def isLogFile(file: File): Boolean =
+  private[log] def isLogFile(file: File): Boolean =
     file.getPath.endsWith(LogFileSuffix)
 
   private def loadProducersFromRecords(producerStateManager: ProducerStateManager, records: Records): Unit = {
@@ -20,7 +20,8 @@ package kafka.log
 import java.io.{File, IOException}
 import java.nio._
 import java.util.Date
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import java.util.concurrent.{ExecutionException, ExecutorService, ForkJoinPool, ForkJoinWorkerThread, TimeUnit}
 import kafka.common._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server.{BrokerReconfigurable, KafkaConfig, LogDirFailureChannel}
@@ -34,7 +35,7 @@ import org.apache.kafka.common.record._
 import org.apache.kafka.common.utils.{BufferSupplier, Time}
 
 import scala.jdk.CollectionConverters._
-import scala.collection.mutable.ListBuffer
+import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 import scala.collection.{Iterable, Seq, Set, mutable}
 import scala.util.control.ControlThrowable
 
@@ -61,6 +62,15 @@ import scala.util.control.ControlThrowable
  *
  * Cleaned segments are swapped into the log as they become available.
  *
+ * When log.cleaner.parallelism.per.log is greater than one, a single log is cleaned by several workers of a shared
+ * fork/join pool: the offset map is built concurrently for as many dirty segments as are guaranteed to fit in the
+ * map, and the groups of segments are recopied concurrently, each starting from the transaction state that the
+ * serial cleaning would have at the start of the group.
+ *
+ * When log.cleaner.key.summary.enable is set, the cleaner writes a [[KeySummary]] of the retained keys next to each
+ * cleaned segment. A later cleaning leaves a segment in place without reading it if its summary shows that none of
+ * its keys are superseded in the offset map, so the cleaner mostly reads the newly appended data.
+ *
  * One nuance that the cleaner must handle is log truncation. If a log is truncated while it is being cleaned the cleaning of that log is aborted.
  *
  * Messages with null payload are treated as deletes for the purpose of log compaction. This means that they receive special treatment by the cleaner.
@@ -111,6 +121,9 @@ class LogCleaner(initialConfig: CleanerConfig,
 
   private[log] val cleaners = mutable.ArrayBuffer[CleanerThread]()
 
+  /* the pool shared by the cleaner threads to clean a single log in parallel, if enabled */
+  private var workerPool: Option[ForkJoinPool] = None
+
   /**
    * scala 2.12 does not support maxOption so we handle the empty manually.
    * @param f to compute the result
@@ -124,6 +137,10 @@ class LogCleaner(initialConfig: CleanerConfig,
   newGauge("max-buffer-utilization-percent",
     () => maxOverCleanerThreads(_.lastStats.bufferUtilization) * 100)
 
+  /* a metric to track the maximum rate of probe collisions in any thread's offset map in the last cleaning */
+  newGauge("max-offset-map-collision-percent",
+    () => maxOverCleanerThreads(_.lastStats.mapCollisionRate * 100))
+
   /* a metric to track the recopy rate of each thread's last cleaning */
   newGauge("cleaner-recopy-percent", () => {
     val stats = cleaners.map(_.lastStats)
@@ -135,6 +152,13 @@ class LogCleaner(initialConfig: CleanerConfig,
   newGauge("max-clean-time-secs",
     () => maxOverCleanerThreads(_.lastStats.elapsedSecs))
 
+  /* metrics to track the maximum time spent building the offset map and recopying segments in the last cleaning */
+  newGauge("max-offset-map-time-secs",
+    () => maxOverCleanerThreads(_.lastStats.elapsedIndexSecs))
+
+  newGauge("max-recopy-time-secs",
+    () => maxOverCleanerThreads(thread => thread.lastStats.elapsedSecs - thread.lastStats.elapsedIndexSecs))
+
 
   // a metric to track delay between the time when a log is required to be compacted
   // as determined by max compaction lag and the time of last cleaner run.
@@ -150,6 +174,13 @@ class LogCleaner(initialConfig: CleanerConfig,
    */
   def startup(): Unit = {
     info("Starting the log cleaner")
+    if (config.parallelismPerLog > 1) {
+      if (!config.hashAlgorithm.equalsIgnoreCase(OffsetMap.Murmur3HashAlgorithm))
+        warn(s"Ignoring ${KafkaConfig.LogCleanerHashAlgorithmProp}=${config.hashAlgorithm} since " +
+          s"${KafkaConfig.LogCleanerParallelismPerLogProp}=${config.parallelismPerLog}: the offset map of a log cleaned " +
+          s"in parallel is keyed by the ${OffsetMap.Murmur3HashAlgorithm} hash")
+      workerPool = Some(LogCleaner.createWorkerPool(config.numThreads * config.parallelismPerLog))
+    }
     (0 until config.numThreads).foreach { i =>
       val cleaner = new CleanerThread(i)
       cleaners += cleaner
@@ -164,6 +195,11 @@ class LogCleaner(initialConfig: CleanerConfig,
     info("Shutting down the log cleaner.")
     cleaners.foreach(_.shutdown())
     cleaners.clear()
+    workerPool.foreach { pool =>
+      pool.shutdownNow()
+      pool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+    workerPool = None
   }
 
   override def reconfigurableConfigs: Set[String] = {
@@ -294,15 +330,20 @@ class LogCleaner(initialConfig: CleanerConfig,
     if (config.dedupeBufferSize / config.numThreads > Int.MaxValue)
       warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
 
+    private val offsetMapMemory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt
+
     val cleaner = new Cleaner(id = threadId,
-                              offsetMap = new SkimpyOffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt,
-                                                              hashAlgorithm = config.hashAlgorithm),
+                              offsetMap = if (workerPool.isDefined) new ConcurrentOffsetMap(offsetMapMemory)
+                                          else OffsetMap(memory = offsetMapMemory, hashAlgorithm = config.hashAlgorithm),
                               ioBufferSize = config.ioBufferSize / config.numThreads / 2,
                               maxIoBufferSize = config.maxMessageSize,
                               dupBufferLoadFactor = config.dedupeBufferLoadFactor,
                               throttler = throttler,
                               time = time,
-                              checkDone = checkDone)
+                              checkDone = checkDone,
+                              parallelism = config.parallelismPerLog,
+                              workerPool = workerPool,
+                              keySummaries = config.keySummaryEnable)
 
     @volatile var lastStats: CleanerStats = new CleanerStats()
     @volatile var lastPreCleanStats: PreCleanStats = new PreCleanStats()
@@ -408,9 +449,11 @@ class LogCleaner(initialConfig: CleanerConfig,
                                                                                            mb(stats.mapBytesRead.toDouble) / stats.elapsedIndexSecs,
                                                                                            100 * stats.elapsedIndexSecs / stats.elapsedSecs) +
         "\tBuffer utilization: %.1f%%%n".format(100 * stats.bufferUtilization) +
+        "\tOffset map collision rate: %.1f%%%n".format(100 * stats.mapCollisionRate) +
         "\tCleaned %,.1f MB in %.1f seconds (%,.1f Mb/sec, %.1f%% of total time)%n".format(mb(stats.bytesRead.toDouble),
                                                                                            stats.elapsedSecs - stats.elapsedIndexSecs,
                                                                                            mb(stats.bytesRead.toDouble) / (stats.elapsedSecs - stats.elapsedIndexSecs), 100 * (stats.elapsedSecs - stats.elapsedIndexSecs) / stats.elapsedSecs) +
+        "\tLeft %,.1f MB in %,d unchanged segments in place%n".format(mb(stats.bytesSkipped.toDouble), stats.segmentsSkipped) +
         "\tStart size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesRead.toDouble), stats.messagesRead) +
         "\tEnd size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesWritten.toDouble), stats.messagesWritten) +
         "\t%.1f%% size reduction (%.1f%% fewer messages)%n".format(100.0 * (1.0 - stats.bytesWritten.toDouble/stats.bytesRead),
@@ -435,7 +478,10 @@ object LogCleaner {
     KafkaConfig.LogCleanerIoBufferSizeProp,
     KafkaConfig.MessageMaxBytesProp,
     KafkaConfig.LogCleanerIoMaxBytesPerSecondProp,
-    KafkaConfig.LogCleanerBackoffMsProp
+    KafkaConfig.LogCleanerBackoffMsProp,
+    KafkaConfig.LogCleanerHashAlgorithmProp,
+    KafkaConfig.LogCleanerParallelismPerLogProp,
+    KafkaConfig.LogCleanerKeySummaryEnableProp
   )
 
   def cleanerConfig(config: KafkaConfig): CleanerConfig = {
@@ -446,14 +492,30 @@ object LogCleaner {
       maxMessageSize = config.messageMaxBytes,
       maxIoBytesPerSecond = config.logCleanerIoMaxBytesPerSecond,
       backOffMs = config.logCleanerBackoffMs,
-      enableCleaner = config.logCleanerEnable)
+      enableCleaner = config.logCleanerEnable,
+      hashAlgorithm = config.logCleanerHashAlgorithm,
+      parallelismPerLog = config.logCleanerParallelismPerLog,
+      keySummaryEnable = config.logCleanerKeySummaryEnable)
 
   }
 
+  private def createWorkerPool(parallelism: Int): ForkJoinPool = {
+    val threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory {
+      private val threadCount = new AtomicInteger(0)
+      override def newThread(pool: ForkJoinPool): ForkJoinWorkerThread = {
+        val thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool)
+        thread.setName(s"kafka-log-cleaner-worker-${threadCount.getAndIncrement()}")
+        thread
+      }
+    }
+    new ForkJoinPool(parallelism, threadFactory, null, false)
+  }
+
   def createNewCleanedSegment(log: Log, baseOffset: Long): LogSegment = {
     LogSegment.deleteIfExists(log.dir, baseOffset, fileSuffix = Log.CleanedFileSuffix)
     LogSegment.open(log.dir, baseOffset, log.config, Time.SYSTEM,
-      fileSuffix = Log.CleanedFileSuffix, initFileSize = log.initFileSize, preallocate = log.config.preallocate)
+      fileSuffix = Log.CleanedFileSuffix, initFileSize = log.initFileSize, preallocate = log.config.preallocate,
+      indexSampleCache = log.indexSampleCache)
   }
 
 }
@@ -468,6 +530,9 @@ object LogCleaner {
  * @param throttler The throttler instance to use for limiting I/O rate.
  * @param time The time instance
  * @param checkDone Check if the cleaning for a partition is finished or aborted.
+ * @param parallelism The number of workers cleaning a single log, each of which has its own I/O buffers
+ * @param workerPool The pool running the workers if a log is cleaned in parallel, the offset map must then be thread-safe
+ * @param keySummaries Write the key summaries of the cleaned segments and leave the segments which they show unchanged
  */
 private[log] class Cleaner(val id: Int,
                            val offsetMap: OffsetMap,
@@ -476,7 +541,10 @@ private[log] class Cleaner(val id: Int,
                            dupBufferLoadFactor: Double,
                            throttler: Throttler,
                            time: Time,
-                           checkDone: TopicPartition => Unit) extends Logging {
+                           checkDone: TopicPartition => Unit,
+                           parallelism: Int = 1,
+                           workerPool: Option[ExecutorService] = None,
+                           keySummaries: Boolean = false) extends Logging {
 
   protected override def loggerName = classOf[LogCleaner].getName
 
@@ -492,6 +560,16 @@ private[log] class Cleaner(val id: Int,
 
   require(offsetMap.slots * dupBufferLoadFactor > 1, "offset map is too small to fit in even a single message, so log cleaning will never make progress. You can increase log.cleaner.dedupe.buffer.size or decrease log.cleaner.threads")
 
+  private val cleansInParallel = workerPool.isDefined && parallelism > 1
+
+  require(!cleansInParallel || offsetMap.isInstanceOf[ConcurrentOffsetMap], "cleaning a log in parallel requires a thread-safe offset map")
+
+  /* the cleaners used by the workers of the pool, which share the offset map and throttler but not the I/O buffers */
+  private lazy val workers = (0 until parallelism).map { _ =>
+    new Cleaner(id, offsetMap, ioBufferSize, maxIoBufferSize, dupBufferLoadFactor, throttler, time, checkDone,
+      keySummaries = keySummaries)
+  }
+
   /**
    * Clean the given log
    *
@@ -531,14 +609,21 @@ private[log] class Cleaner(val id: Int,
     // group the segments and clean the groups
     info("Cleaning log %s (cleaning prior to %s, discarding tombstones prior to %s)...".format(log.name, new Date(cleanableHorizonMs), new Date(deleteHorizonMs)))
     val transactionMetadata = new CleanedTransactionMetadata
+    if (keySummaries)
+      KeySummary.deleteStale(log)
 
     val groupedSegments = groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize,
       log.config.maxIndexSize, cleanable.firstUncleanableOffset)
-    for (group <- groupedSegments)
-      cleanSegments(log, group, offsetMap, deleteHorizonMs, stats, transactionMetadata)
+    if (cleansInParallel && groupedSegments.size > 1)
+      cleanSegmentGroupsInParallel(log, groupedSegments, offsetMap, deleteHorizonMs, stats)
+    else {
+      for (group <- groupedSegments)
+        cleanSegments(log, group, offsetMap, deleteHorizonMs, stats, transactionMetadata)
+    }
 
-    // record buffer utilization
+    // record buffer utilization and the probe collisions of the map lookups
     stats.bufferUtilization = offsetMap.utilization
+    stats.mapCollisionRate = offsetMap.collisionRate
 
     stats.allDone()
 
@@ -562,9 +647,23 @@ private[log] class Cleaner(val id: Int,
                                  deleteHorizonMs: Long,
                                  stats: CleanerStats,
                                  transactionMetadata: CleanedTransactionMetadata): Unit = {
+    if (keySummaries && segments.size == 1) {
+      val segment = segments.head
+      val retainDeletes = segment.lastModified > deleteHorizonMs
+      if (KeySummary.isUnchanged(segment, map, retainDeletes)) {
+        info(s"Leaving $segment in log ${log.name} in place since none of its keys have been updated.")
+        // there are no transactional batches in the segment, but transactions aborted in the segment's range still
+        // need to be tracked for the following segments
+        transactionMetadata.addAbortedTransactions(log.collectAbortedTransactions(segment.baseOffset, map.latestOffset + 1))
+        stats.skipSegment(segment.size)
+        return
+      }
+    }
+
     // create a new segment with a suffix appended to the name of the log and indexes
     val cleaned = LogCleaner.createNewCleanedSegment(log, segments.head.baseOffset)
     transactionMetadata.cleanedIndex = Some(cleaned.txnIndex)
+    val keySummary = if (keySummaries) Some(new KeySummaryWriter(log.dir, cleaned.baseOffset, map.latestOffset)) else None
 
     try {
       // clean segments into the new destination segment
@@ -588,7 +687,7 @@ private[log] class Cleaner(val id: Int,
 
         try {
           cleanInto(log.topicPartition, currentSegment.log, cleaned, map, retainDeletesAndTxnMarkers, log.config.maxMessageSize,
-            transactionMetadata, lastOffsetOfActiveProducers, stats)
+            transactionMetadata, lastOffsetOfActiveProducers, stats, keySummary)
         } catch {
           case e: LogSegmentOffsetOverflowException =>
             // Split the current segment. It's also safest to abort the current cleaning process, so that we retry from
@@ -607,18 +706,118 @@ private[log] class Cleaner(val id: Int,
       // update the modification date to retain the last modified date of the original files
       val modified = segments.last.lastModified
       cleaned.lastModified = modified
+      keySummary.foreach(_.close(cleaned))
 
       // swap in new segment
       info(s"Swapping in cleaned segment $cleaned for segment(s) $segments in log $log")
+      // the summary of the cleaned segment is swapped in with it and those of the replaced segments are deleted with them
       log.replaceSegments(List(cleaned), segments)
     } catch {
       case e: LogCleaningAbortedException =>
-        try cleaned.deleteIfExists()
-        catch {
+        try {
+          keySummary.foreach(_.abort())
+          cleaned.deleteIfExists()
+        } catch {
           case deleteException: Exception =>
             e.addSuppressed(deleteException)
         } finally throw e
+      case e: Throwable =>
+        keySummary.foreach(_.abort())
+        throw e
+    }
+  }
+
+  /**
+   * Clean the groups of segments concurrently on the worker pool. The transaction state which is carried from one
+   * group to the next is computed upfront by replaying the batches of the groups in order, which only reads the
+   * batch headers apart from the control batches.
+   *
+   * @param log The log being cleaned
+   * @param groups The groups of segments being cleaned
+   * @param map The offset map to use for cleaning segments
+   * @param deleteHorizonMs The time to retain delete tombstones
+   * @param stats Collector for cleaning statistics
+   */
+  private def cleanSegmentGroupsInParallel(log: Log,
+                                           groups: Seq[Seq[LogSegment]],
+                                           map: OffsetMap,
+                                           deleteHorizonMs: Long,
+                                           stats: CleanerStats): Unit = {
+    val transactionMetadata = new CleanedTransactionMetadata
+    val initialTransactionMetadata = new ArrayBuffer[CleanedTransactionMetadata](groups.size)
+    for (group <- groups) {
+      initialTransactionMetadata += transactionMetadata.copy()
+      if (initialTransactionMetadata.size < groups.size)
+        replayTransactionMetadata(log, group, map, transactionMetadata)
+    }
+
+    runOnWorkers(groups.size, stats) { (worker, i, workerStats) =>
+      worker.cleanSegments(log, groups(i), map, deleteHorizonMs, workerStats, initialTransactionMetadata(i))
+    }
+  }
+
+  /**
+   * Update the transaction metadata with the batches of the given segments in the same way as `cleanSegments`,
+   * without cleaning them.
+   */
+  private def replayTransactionMetadata(log: Log,
+                                        segments: Seq[LogSegment],
+                                        map: OffsetMap,
+                                        transactionMetadata: CleanedTransactionMetadata): Unit = {
+    for ((segment, i) <- segments.zipWithIndex) {
+      checkDone(log.topicPartition)
+      val upperBoundOffset = if (i + 1 < segments.size) segments(i + 1).baseOffset else map.latestOffset + 1
+      transactionMetadata.addAbortedTransactions(log.collectAbortedTransactions(segment.baseOffset, upperBoundOffset))
+      for (batch <- segment.log.batches.asScala) {
+        if (batch.isControlBatch)
+          transactionMetadata.onControlBatchRead(batch)
+        else
+          transactionMetadata.onBatchRead(batch)
+      }
+    }
+  }
+
+  /**
+   * Run the given number of tasks on the worker pool. Each worker runs one task at a time using its own cleaner and
+   * statistics, the latter are added to `stats` once all the tasks are done. If a task fails, the workers don't
+   * start any further tasks and the first failure is rethrown.
+   */
+  private def runOnWorkers(numTasks: Int, stats: CleanerStats)(task: (Cleaner, Int, CleanerStats) => Unit): Unit = {
+    val pool = workerPool.getOrElse(throw new IllegalStateException("No worker pool to clean the log in parallel"))
+    val nextTask = new AtomicInteger(0)
+    val failed = new AtomicBoolean(false)
+    val runningWorkers = workers.take(numTasks).map { worker =>
+      val workerStats = new CleanerStats(time)
+      val future = pool.submit(new Runnable {
+        override def run(): Unit = {
+          try {
+            var i = nextTask.getAndIncrement()
+            while (i < numTasks && !failed.get) {
+              task(worker, i, workerStats)
+              i = nextTask.getAndIncrement()
+            }
+          } catch {
+            case e: Throwable =>
+              failed.set(true)
+              throw e
+          }
+        }
+      })
+      (future, workerStats)
+    }
+
+    var error: Throwable = null
+    runningWorkers.foreach { case (future, workerStats) =>
+      try future.get()
+      catch {
+        case e: ExecutionException =>
+          if (error == null) error = e.getCause
+          else error.addSuppressed(e.getCause)
+      }
+      stats.add(workerStats)
     }
+    if (error != null)
+      throw error
   }
 
   /**
@@ -632,6 +831,7 @@ private[log] class Cleaner(val id: Int,
    * @param retainDeletesAndTxnMarkers Should tombstones and markers be retained while cleaning this segment
    * @param maxLogMessageSize The maximum message size of the corresponding topic
    * @param stats Collector for cleaning statistics
+   * @param keySummary The summary of the destination segment to which the retained batches and records are reported
    */
   private[log] def cleanInto(topicPartition: TopicPartition,
                              sourceRecords: FileRecords,
@@ -641,7 +841,8 @@ private[log] class Cleaner(val id: Int,
                              maxLogMessageSize: Int,
                              transactionMetadata: CleanedTransactionMetadata,
                              lastRecordsOfActiveProducers: Map[Long, LastRecord],
-                             stats: CleanerStats): Unit = {
+                             stats: CleanerStats,
+                             keySummary: Option[KeySummaryWriter] = None): Unit = {
     val logCleanerFilter: RecordFilter = new RecordFilter {
       var discardBatchRecords: Boolean = _
 
@@ -665,20 +866,27 @@ private[log] class Cleaner(val id: Int,
           }
         }
 
-        if (batch.hasProducerId && isBatchLastRecordOfProducer)
-          BatchRetention.RETAIN_EMPTY
-        else if (discardBatchRecords)
-          BatchRetention.DELETE
-        else
-          BatchRetention.DELETE_EMPTY
+        val batchRetention =
+          if (batch.hasProducerId && isBatchLastRecordOfProducer)
+            BatchRetention.RETAIN_EMPTY
+          else if (discardBatchRecords)
+            BatchRetention.DELETE
+          else
+            BatchRetention.DELETE_EMPTY
+        keySummary.foreach(_.onBatchRead(batch, batchRetention))
+        batchRetention
       }
 
       override def shouldRetainRecord(batch: RecordBatch, record: Record): Boolean = {
         if (discardBatchRecords)
           // The batch is only retained to preserve producer sequence information; the records can be removed
           false
-        else
-          Cleaner.this.shouldRetainRecord(map, retainDeletesAndTxnMarkers, batch, record, stats)
+        else {
+          val retained = Cleaner.this.shouldRetainRecord(map, retainDeletesAndTxnMarkers, batch, record, stats)
+          if (retained)
+            keySummary.foreach(_.onRecordRetained(record))
+          retained
+        }
       }
     }
 
@@ -894,14 +1102,19 @@ private[log] class Cleaner(val id: Int,
     }
     info("Building offset map for log %s for %d segments in offset range [%d, %d).".format(log.name, dirty.size, start, end))
 
+    val segmentsAndEnds = dirty.zip(nextSegmentStartOffsets)
+    val mappedSegments = if (cleansInParallel) buildOffsetMapInParallel(log, segmentsAndEnds, start, map, stats) else 0
+    val remainingSegmentsAndEnds = segmentsAndEnds.drop(mappedSegments)
+    val remainingStart = remainingSegmentsAndEnds.headOption.fold(start)(entry => math.max(start, entry._1.baseOffset))
+
     val transactionMetadata = new CleanedTransactionMetadata
-    val abortedTransactions = log.collectAbortedTransactions(start, end)
+    val abortedTransactions = log.collectAbortedTransactions(remainingStart, end)
     transactionMetadata.addAbortedTransactions(abortedTransactions)
 
     // Add all the cleanable dirty segments. We must take at least map.slots * load_factor,
     // but we may be able to fit more (if there is lots of duplication in the dirty section of the log)
     var full = false
-    for ((segment, nextSegmentStartOffset) <- dirty.zip(nextSegmentStartOffsets) if !full) {
+    for ((segment, nextSegmentStartOffset) <- remainingSegmentsAndEnds if !full) {
       checkDone(log.topicPartition)
 
       full = buildOffsetMapForSegment(log.topicPartition, segment, map, start, nextSegmentStartOffset, log.config.maxMessageSize,
@@ -912,6 +1125,67 @@ private[log] class Cleaner(val id: Int,
     info("Offset map for log %s complete.".format(log.name))
   }
 
+  /**
+   * Build the offset map concurrently on the worker pool for as many of the leading dirty segments as possible.
+   *
+   * The number of offsets in a segment is an upper bound on the number of keys it can add to the map, so segments are
+   * mapped in successive waves of the following segments which are guaranteed to fit in the map. The map then covers
+   * the same prefix of the dirty section as if it had been built serially, and the remaining segments, if any, are
+   * mapped serially by the caller.
+   *
+   * @param log The log to use
+   * @param segments The dirty segments along with the start offset of the following segment
+   * @param start The offset at which dirty messages begin
+   * @param map The map in which to store the mappings
+   * @param stats Collector for cleaning statistics
+   *
+   * @return The number of leading segments which have been fully mapped
+   */
+  private def buildOffsetMapInParallel(log: Log,
+                                       segments: Seq[(LogSegment, Long)],
+                                       start: Long,
+                                       map: OffsetMap,
+                                       stats: CleanerStats): Int = {
+    val maxDesiredMapSize = (map.slots * this.dupBufferLoadFactor).toInt
+    var mapped = 0
+    var done = false
+    while (!done) {
+      var capacity = maxDesiredMapSize.toLong - map.size
+      var waveEnd = mapped
+      var fits = true
+      while (fits && waveEnd < segments.size) {
+        val (segment, nextSegmentStartOffset) = segments(waveEnd)
+        val maxKeys = nextSegmentStartOffset - math.max(start, segment.baseOffset)
+        fits = maxKeys <= capacity
+        if (fits) {
+          capacity -= maxKeys
+          waveEnd += 1
+        }
+      }
+
+      if (waveEnd - mapped < 2) {
+        done = true
+      } else {
+        val wave = segments.slice(mapped, waveEnd)
+        debug(s"Building offset map for log ${log.name} for ${wave.size} segments in parallel starting at " +
+          s"base offset ${wave.head._1.baseOffset}")
+        runOnWorkers(wave.size, stats) { (worker, i, workerStats) =>
+          val (segment, nextSegmentStartOffset) = wave(i)
+          val transactionMetadata = new CleanedTransactionMetadata
+          transactionMetadata.addAbortedTransactions(log.collectAbortedTransactions(math.max(start, segment.baseOffset),
+            nextSegmentStartOffset))
+          val full = worker.buildOffsetMapForSegment(log.topicPartition, segment, map, start, nextSegmentStartOffset,
+            log.config.maxMessageSize, transactionMetadata, workerStats)
+          if (full)
+            throw new IllegalStateException(s"Offset map filled up while mapping segment $segment in parallel")
+        }
+        map.updateLatestOffset(wave.last._2 - 1L)
+        mapped = waveEnd
+      }
+    }
+    mapped
+  }
+
   /**
    * Add the messages in the given segment to the offset map
    *
@@ -921,7 +1195,7 @@ private[log] class Cleaner(val id: Int,
    *
    * @return If the map was filled whilst loading from this segment
    */
-  private def buildOffsetMapForSegment(topicPartition: TopicPartition,
+  private[log] def buildOffsetMapForSegment(topicPartition: TopicPartition,
                                        segment: LogSegment,
                                        map: OffsetMap,
                                        startOffset: Long,
@@ -1025,6 +1299,9 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
   var invalidMessagesRead = 0L
   var messagesWritten = 0L
   var bufferUtilization = 0.0d
+  var mapCollisionRate = 0.0d
+  var segmentsSkipped = 0
+  var bytesSkipped = 0L
 
   def readMessages(messagesRead: Int, bytesRead: Int): Unit = {
     this.messagesRead += messagesRead
@@ -1040,6 +1317,11 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
     this.bytesWritten += bytesWritten
   }
 
+  def skipSegment(size: Int): Unit = {
+    segmentsSkipped += 1
+    bytesSkipped += size
+  }
+
   def indexMessagesRead(size: Int): Unit = {
     mapMessagesRead += size
   }
@@ -1056,6 +1338,21 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
     endTime = time.milliseconds
   }
 
+  /**
+   * Add the counts collected by another collector, e.g. by a worker cleaning part of the same log
+   */
+  def add(other: CleanerStats): Unit = {
+    bytesRead += other.bytesRead
+    bytesWritten += other.bytesWritten
+    mapBytesRead += other.mapBytesRead
+    mapMessagesRead += other.mapMessagesRead
+    messagesRead += other.messagesRead
+    invalidMessagesRead += other.invalidMessagesRead
+    messagesWritten += other.messagesWritten
+    segmentsSkipped += other.segmentsSkipped
+    bytesSkipped += other.bytesSkipped
+  }
+
   def elapsedSecs: Double = (endTime - startTime) / 1000.0
 
   def elapsedIndexSecs: Double = (mapCompleteTime - startTime) / 1000.0
@@ -1095,6 +1392,21 @@ private[log] class CleanedTransactionMetadata {
   // Output cleaned index to write retained aborted transactions
   var cleanedIndex: Option[TransactionIndex] = None
 
+  /**
+   * A copy of the current transaction state, without the cleaned index
+   */
+  def copy(): CleanedTransactionMetadata = {
+    val copy = new CleanedTransactionMetadata
+    copy.ongoingCommittedTxns ++= ongoingCommittedTxns
+    ongoingAbortedTxns.foreach { case (producerId, abortedTxnMetadata) =>
+      val copiedMetadata = new AbortedTransactionMetadata(abortedTxnMetadata.abortedTxn)
+      copiedMetadata.lastObservedBatchOffset = abortedTxnMetadata.lastObservedBatchOffset
+      copy.ongoingAbortedTxns.put(producerId, copiedMetadata)
+    }
+    copy.abortedTransactions ++= abortedTransactions
+    copy
+  }
+
   def addAbortedTransactions(abortedTransactions: List[AbortedTxn]): Unit = {
     this.abortedTransactions ++= abortedTransactions
   }
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.locks.ReentrantLock
+
+import kafka.metrics.{KafkaMetricsGroup, KafkaTimer}
+import kafka.utils.CoreUtils.inLock
+import kafka.utils.{Logging, ShutdownableThread, threadsafe}
+import org.apache.kafka.common.utils.Time
+
+import scala.jdk.CollectionConverters._
+
+/**
+ * Flushes the logs of a log directory whose appends trigger a flush, i.e. whose topic sets `flush.messages`, as group
+ * commits. The flushes requested while a group commit is in progress, or within the maximum delay of the first one,
+ * are done together by the flush thread of the directory, and the group commit starts as soon as its first request is
+ * older than the maximum delay or enough logs are waiting for it, and the appending threads wait for the group commit which
+ * covers their request. A log which is appended to several times until the next group commit is flushed once up to the
+ * highest requested offset, and since the appending threads wait for the flush without holding the lock of the log,
+ * the following appends to the log are not blocked by it.
+ *
+ * @param logDir The absolute path of the log directory
+ * @param maxDelayMs The maximum time to wait for more flush requests after the first one of a group commit
+ * @param time The time instance used to measure the delay of the group commits
+ * @param maxLogsPerGroupCommit The number of logs to flush which starts a group commit without waiting any longer
+ */
+@threadsafe
+class LogFlushCoordinator(val logDir: String,
+                          maxDelayMs: Long,
+                          time: Time,
+                          maxLogsPerGroupCommit: Int = LogFlushCoordinator.DefaultMaxLogsPerGroupCommit) extends Logging with KafkaMetricsGroup {
+  import LogFlushCoordinator._
+
+  this.logIdent = s"[LogFlushCoordinator dir=$logDir] "
+
+  private val lock = new ReentrantLock
+  private val flushRequested = lock.newCondition()
+  // the flushes of the next group commit, guarded by the lock
+  private var pendingFlushes = new util.LinkedHashMap[Log, PendingFlush]
+  // the time of the first request of the next group commit, guarded by the lock
+  private var firstRequestNanos = 0L
+  private var stopped = false
+
+  private val tags = Map("logDirectory" -> logDir)
+  private val flushRequestRate = newMeter("FlushRequestsPerSec", "requests", TimeUnit.SECONDS, tags)
+  private val groupCommitTimer = new KafkaTimer(newTimer("GroupCommitRateAndTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS, tags))
+  private val groupCommitSizeHist = newHistogram("GroupCommitSize", biased = true, tags)
+
+  private val flushThread = new ShutdownableThread(s"log-flush-coordinator-$logDir", isInterruptible = false) {
+    override def doWork(): Unit = groupCommit(awaitFlushes())
+  }
+  flushThread.start()
+
+  /**
+   * Flush the log up to the given offset in the next group commit and wait for it to complete. The caller must not
+   * hold the lock of the log.
+   *
+   * @param log The log to flush
+   * @param offset The offset to flush up to (non-inclusive)
+   */
+  def flush(log: Log, offset: Long): Unit = {
+    flushRequestRate.mark()
+    val pendingFlush = inLock(lock) {
+      if (stopped) {
+        None
+      } else {
+        var pendingFlush = pendingFlushes.get(log)
+        if (pendingFlush == null) {
+          pendingFlush = new PendingFlush
+          if (pendingFlushes.isEmpty) {
+            firstRequestNanos = time.nanoseconds
+            flushRequested.signal()
+          }
+          pendingFlushes.put(log, pendingFlush)
+          if (pendingFlushes.size == maxLogsPerGroupCommit)
+            flushRequested.signal()
+        }
+        pendingFlush.offset = math.max(pendingFlush.offset, offset)
+        Some(pendingFlush)
+      }
+    }
+    pendingFlush match {
+      case Some(flush) => flush.await()
+      // the coordinator was shut down, so flush the log on the calling thread
+      case None => log.flush(offset)
+    }
+  }
+
+  // Visible for testing
+  private[log] def pendingFlushOffsets: Map[Log, Long] = inLock(lock) {
+    pendingFlushes.asScala.map { case (log, flush) => log -> flush.offset }.toMap
+  }
+
+  private def awaitFlushes(): util.Map[Log, PendingFlush] = inLock(lock) {
+    if (pendingFlushes.isEmpty && !stopped)
+      flushRequested.await(PollIntervalMs, TimeUnit.MILLISECONDS)
+    // the requests which arrived during the previous group commit may have waited for the whole delay already
+    val deadlineNanos = firstRequestNanos + TimeUnit.MILLISECONDS.toNanos(maxDelayMs)
+    var remainingNanos = deadlineNanos - time.nanoseconds
+    while (!pendingFlushes.isEmpty && pendingFlushes.size < maxLogsPerGroupCommit && !stopped && remainingNanos > 0) {
+      flushRequested.awaitNanos(math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(PollIntervalMs)))
+      remainingNanos = deadlineNanos - time.nanoseconds
+    }
+    val flushes = pendingFlushes
+    pendingFlushes = new util.LinkedHashMap[Log, PendingFlush]
+    flushes
+  }
+
+  private def groupCommit(flushes: util.Map[Log, PendingFlush]): Unit = {
+    if (!flushes.isEmpty) {
+      groupCommitTimer.time {
+        flushes.forEach { (log, flush) =>
+          try {
+            log.flush(flush.offset)
+            flush.complete(null)
+          } catch {
+            case e: Throwable => flush.complete(e)
+          }
+        }
+      }
+      groupCommitSizeHist.update(flushes.size)
+    }
+  }
+
+  /**
+   * Stop the flush thread once the pending flushes are done. The flushes requested afterwards are done by the
+   * requesting threads.
+   */
+  def shutdown(): Unit = {
+    info("Shutting down.")
+    inLock(lock) {
+      stopped = true
+      flushRequested.signal()
+    }
+    flushThread.initiateShutdown()
+    flushThread.awaitShutdown()
+    // the flush thread may have stopped before picking up the last requests
+    groupCommit(awaitFlushes())
+
+    removeMetric("FlushRequestsPerSec", tags)
+    removeMetric("GroupCommitRateAndTimeMs", tags)
+    removeMetric("GroupCommitSize", tags)
+    info("Shutdown complete.")
+  }
+}
+
+object LogFlushCoordinator {
+  private val PollIntervalMs = 300L
+  val DefaultMaxLogsPerGroupCommit = 64
+
+  private class PendingFlush {
+    // the offset to flush up to, guarded by the lock of the coordinator
+    var offset = -1L
+    private val completed = new CountDownLatch(1)
+    @volatile private var error: Throwable = _
+
+    def complete(error: Throwable): Unit = {
+      this.error = error
+      completed.countDown()
+    }
+
+    def await(): Unit = {
+      completed.await()
+      if (error != null)
+        throw error
+    }
+  }
+}
@@ -28,6 +28,7 @@ import kafka.server.metadata.ConfigRepository
 import kafka.server._
 import kafka.utils._
 import org.apache.kafka.common.{KafkaException, TopicPartition}
+import org.apache.kafka.common.internals.Topic
 import org.apache.kafka.common.utils.Time
 import org.apache.kafka.common.errors.{KafkaStorageException, LogDirNotFoundException}
 
@@ -63,7 +64,13 @@ class LogManager(logDirs: Seq[File],
                  brokerTopicStats: BrokerTopicStats,
                  logDirFailureChannel: LogDirFailureChannel,
                  time: Time,
-                 val keepPartitionMetadataFile: Boolean) extends Logging with KafkaMetricsGroup {
+                 val keepPartitionMetadataFile: Boolean,
+                 flushGroupCommitMaxDelayMs: Long = -1L,
+                 indexSampleCacheMaxBytes: Long = 0L,
+                 indexedProducerSnapshots: Boolean = false,
+                 offHeapProducerState: Boolean = false,
+                 readAheadBytes: Int = 0,
+                 readAheadThreads: Int = 1) extends Logging with KafkaMetricsGroup {
 
   import LogManager._
 
@@ -111,6 +118,21 @@ class LogManager(logDirs: Seq[File],
 
   private val preferredLogDirs = new ConcurrentHashMap[TopicPartition, String]()
 
+  // The coordinators of the flushes triggered by appends, by log dir, if group commit is enabled
+  private val flushCoordinators: Map[String, LogFlushCoordinator] =
+    if (flushGroupCommitMaxDelayMs < 0) Map.empty
+    else liveLogDirs.map { dir =>
+      dir.getAbsolutePath -> new LogFlushCoordinator(dir.getAbsolutePath, flushGroupCommitMaxDelayMs, time)
+    }.toMap
+
+  // The cache of the sampled keys of the indexes of all the logs, if enabled
+  private val indexSampleCache: Option[IndexSampleCache] =
+    if (indexSampleCacheMaxBytes > 0) Some(new IndexSampleCache(indexSampleCacheMaxBytes)) else None
+
+  // The read-ahead of the sequential reads of all the logs, if enabled
+  private val readAhead: Option[ReadAhead] =
+    if (readAheadBytes > 0) Some(new ReadAhead(readAheadBytes, readAheadThreads)) else None
+
   private def offlineLogDirs: Iterable[File] = {
     val logDirsSet = mutable.Set[File]() ++= logDirs
     _liveLogDirs.forEach(dir => logDirsSet -= dir)
@@ -122,6 +144,8 @@ class LogManager(logDirs: Seq[File],
 
   newGauge("OfflineLogDirectoryCount", () => offlineLogDirs.size)
 
+  private val recoveryBytesRate = newMeter("RecoveryBytesPerSec", "bytes", TimeUnit.SECONDS)
+
   for (dir <- logDirs) {
     newGauge("LogDirectoryOffline",
       () => if (_liveLogDirs.contains(dir)) 0 else 1,
@@ -198,6 +222,7 @@ class LogManager(logDirs: Seq[File],
       logStartOffsetCheckpoints = logStartOffsetCheckpoints.filter { case (file, _) => file.getAbsolutePath != dir }
       if (cleaner != null)
         cleaner.handleLogDirFailure(dir)
+      flushCoordinators.get(dir).foreach(coordinator => CoreUtils.swallow(coordinator.shutdown(), this))
 
       def removeOfflineLogs(logs: Pool[TopicPartition, Log]): Iterable[TopicPartition] = {
         val offlineTopicPartitions: Iterable[TopicPartition] = logs.collect {
@@ -252,7 +277,8 @@ class LogManager(logDirs: Seq[File],
                            hadCleanShutdown: Boolean,
                            recoveryPoints: Map[TopicPartition, Long],
                            logStartOffsets: Map[TopicPartition, Long],
-                           topicConfigOverrides: Map[String, LogConfig]): Log = {
+                           topicConfigOverrides: Map[String, LogConfig],
+                           recoveryContext: Option[LogRecoveryContext] = None): Log = {
     val topicPartition = Log.parseTopicPartitionName(logDir)
     val config = topicConfigOverrides.getOrElse(topicPartition.topic, currentDefaultConfig)
     val logRecoveryPoint = recoveryPoints.getOrElse(topicPartition, 0L)
@@ -270,7 +296,13 @@ class LogManager(logDirs: Seq[File],
       brokerTopicStats = brokerTopicStats,
       logDirFailureChannel = logDirFailureChannel,
       lastShutdownClean = hadCleanShutdown,
-      keepPartitionMetadataFile = keepPartitionMetadataFile)
+      keepPartitionMetadataFile = keepPartitionMetadataFile,
+      recoveryContext = recoveryContext,
+      flushCoordinator = flushCoordinators.get(logDir.getAbsoluteFile.getParent),
+      indexSampleCache = indexSampleCache,
+      indexedProducerSnapshots = indexedProducerSnapshots,
+      offHeapProducerState = offHeapProducerState,
+      readAhead = readAhead)
 
     if (logDir.getName.endsWith(Log.DeleteDirSuffix)) {
       addLogToBeDeleted(log)
@@ -304,6 +336,7 @@ class LogManager(logDirs: Seq[File],
     val threadPools = ArrayBuffer.empty[ExecutorService]
     val offlineDirs = mutable.Set.empty[(String, IOException)]
     val jobs = ArrayBuffer.empty[Seq[Future[_]]]
+    val recoveryGauges = ArrayBuffer.empty[Map[String, String]]
     var numTotalLogs = 0
 
     for (dir <- liveLogDirs) {
@@ -343,18 +376,30 @@ class LogManager(logDirs: Seq[File],
               s"$logDirAbsolutePath, resetting to the base offset of the first segment", e)
         }
 
-        val logsToLoad = Option(dir.listFiles).getOrElse(Array.empty).filter(logDir =>
-          logDir.isDirectory && Log.parseTopicPartitionName(logDir).topic != KafkaRaftServer.MetadataTopic)
+        val logsToLoad = prioritizeLogRecovery(Option(dir.listFiles).getOrElse(Array.empty).filter(logDir =>
+          logDir.isDirectory && Log.parseTopicPartitionName(logDir).topic != KafkaRaftServer.MetadataTopic),
+          hadCleanShutdown, recoveryPoints)
         val numLogsLoaded = new AtomicInteger(0)
         numTotalLogs += logsToLoad.length
 
+        val gaugeTags = Map("logDirectory" -> logDirAbsolutePath)
+        newGauge("RemainingLogsToRecover", () => logsToLoad.length - numLogsLoaded.get, gaugeTags)
+        recoveryGauges += gaugeTags
+
+        // the segments of a log are validated concurrently on the pool of the log directory, which is only worth
+        // it with more than one thread since the thread recovering the log runs the validations not picked up yet
+        val recoveryContext = LogRecoveryContext(
+          executor = if (numRecoveryThreadsPerDataDir > 1) Some(pool) else None,
+          onSegmentRecovered = bytes => recoveryBytesRate.mark(bytes))
+
         val jobsForDir = logsToLoad.map { logDir =>
           val runnable: Runnable = () => {
             try {
               debug(s"Loading log $logDir")
 
               val logLoadStartMs = time.hiResClockMs()
-              val log = loadLog(logDir, hadCleanShutdown, recoveryPoints, logStartOffsets, topicConfigOverrides)
+              val log = loadLog(logDir, hadCleanShutdown, recoveryPoints, logStartOffsets, topicConfigOverrides,
+                Some(recoveryContext))
               val logLoadDurationMs = time.hiResClockMs() - logLoadStartMs
               val currentNumLoaded = numLogsLoaded.incrementAndGet()
 
@@ -391,11 +436,42 @@ class LogManager(logDirs: Seq[File],
         throw e.getCause
     } finally {
       threadPools.foreach(_.shutdown())
+      recoveryGauges.foreach(tags => removeMetric("RemainingLogsToRecover", tags))
     }
 
     info(s"Loaded $numTotalLogs logs in ${time.hiResClockMs() - startMs}ms.")
   }
 
+  /**
+   * Order the logs of a log directory so that the ones which can be brought online the soonest are loaded first. The
+   * logs of the internal topics come first since the group and transaction coordinators depend on them. After an
+   * unclean shutdown, the other logs are then ordered by the size of their segments to recover, so that most
+   * partitions are available, and can rejoin the ISR, before the recovery of the few large backlogs completes.
+   */
+  private[log] def prioritizeLogRecovery(logDirs: Array[File],
+                                         hadCleanShutdown: Boolean,
+                                         recoveryPoints: Map[TopicPartition, Long]): Array[File] = {
+    logDirs.map { logDir =>
+      val topicPartition = Log.parseTopicPartitionName(logDir)
+      val bytesToRecover =
+        if (hadCleanShutdown) 0L
+        else estimateBytesToRecover(logDir, recoveryPoints.getOrElse(topicPartition, 0L))
+      (logDir, Topic.isInternal(topicPartition.topic), bytesToRecover)
+    }.sortBy { case (_, isInternal, bytesToRecover) => (!isInternal, bytesToRecover) }
+      .map { case (logDir, _, _) => logDir }
+  }
+
+  /**
+   * Estimate the number of bytes to recover in a log, that is the size of the segment holding the recovery point and
+   * of the following segments.
+   */
+  private def estimateBytesToRecover(logDir: File, recoveryPoint: Long): Long = {
+    val segmentFiles = Option(logDir.listFiles).getOrElse(Array.empty).filter(Log.isLogFile)
+    val baseOffsets = segmentFiles.map(Log.offsetFromFile)
+    val firstUnflushed = baseOffsets.filter(_ <= recoveryPoint).foldLeft(Long.MinValue)(math.max)
+    segmentFiles.zip(baseOffsets).collect { case (file, baseOffset) if baseOffset >= firstUnflushed => file.length }.sum
+  }
+
   /**
    *  Start the background threads to flush logs and do log cleanup
    */
@@ -464,6 +540,7 @@ class LogManager(logDirs: Seq[File],
     info("Shutting down.")
 
     removeMetric("OfflineLogDirectoryCount")
+    removeMetric("RecoveryBytesPerSec")
     for (dir <- logDirs) {
       removeMetric("LogDirectoryOffline", Map("logDirectory" -> dir.getAbsolutePath))
     }
@@ -475,6 +552,7 @@ class LogManager(logDirs: Seq[File],
     if (cleaner != null) {
       CoreUtils.swallow(cleaner.shutdown(), this)
     }
+    flushCoordinators.values.foreach(coordinator => CoreUtils.swallow(coordinator.shutdown(), this))
 
     val localLogsByDir = logsByDir
 
@@ -521,6 +599,8 @@ class LogManager(logDirs: Seq[File],
       threadPools.foreach(_.shutdown())
       // regardless of whether the close succeeded, we need to unlock the data directories
       dirLocks.foreach(_.destroy())
+      indexSampleCache.foreach(_.close())
+      readAhead.foreach(_.shutdown())
     }
 
     info("Shutdown complete.")
@@ -827,7 +907,12 @@ class LogManager(logDirs: Seq[File],
           time = time,
           brokerTopicStats = brokerTopicStats,
           logDirFailureChannel = logDirFailureChannel,
-          keepPartitionMetadataFile = keepPartitionMetadataFile)
+          keepPartitionMetadataFile = keepPartitionMetadataFile,
+          flushCoordinator = flushCoordinators.get(logDir.getAbsoluteFile.getParent),
+          indexSampleCache = indexSampleCache,
+          indexedProducerSnapshots = indexedProducerSnapshots,
+          offHeapProducerState = offHeapProducerState,
+          readAhead = readAhead)
 
         if (isFuture)
           futureLogs.put(topicPartition, log)
@@ -1235,7 +1320,13 @@ object LogManager {
       brokerTopicStats = brokerTopicStats,
       logDirFailureChannel = logDirFailureChannel,
       time = time,
-      keepPartitionMetadataFile = keepPartitionMetadataFile)
+      keepPartitionMetadataFile = keepPartitionMetadataFile,
+      flushGroupCommitMaxDelayMs = config.logFlushGroupCommitMaxDelayMs,
+      indexSampleCacheMaxBytes = config.logIndexSampleCacheMaxBytes,
+      indexedProducerSnapshots = config.logProducerSnapshotIndexedEnable,
+      offHeapProducerState = config.logProducerStateOffHeapEnable,
+      readAheadBytes = config.logReadAheadBytes,
+      readAheadThreads = config.logReadAheadThreads)
   }
 
 }
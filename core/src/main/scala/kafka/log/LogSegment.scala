@@ -29,7 +29,7 @@ import org.apache.kafka.common.InvalidRecordException
 import org.apache.kafka.common.errors.CorruptRecordException
 import org.apache.kafka.common.record.FileRecords.{LogOffsetPosition, TimestampAndOffset}
 import org.apache.kafka.common.record._
-import org.apache.kafka.common.utils.{BufferSupplier, Time}
+import org.apache.kafka.common.utils.{BufferSupplier, Time, Utils}
 
 import scala.jdk.CollectionConverters._
 import scala.math._
@@ -333,9 +333,24 @@ class LogSegment private[log] (val log: FileRecords,
    */
   @nonthreadsafe
   def recover(producerStateManager: ProducerStateManager, leaderEpochCache: Option[LeaderEpochFileCache] = None): Int = {
+    txnIndex.reset()
+    recoverIndexes(batch => updateLeaderEpochAndProducerState(batch, producerStateManager, leaderEpochCache))
+  }
+
+  /**
+   * Run the first part of the recovery of the segment, which validates the batches of the log and rebuilds the offset
+   * and time indexes. Unlike `recover`, it does not depend on the preceding segments so that the segments of a log can
+   * be validated concurrently. The transaction index, leader epochs and producer state must then be recovered in
+   * order by `recoverTransactionState`.
+   *
+   * @param onValidBatch Called for each valid batch of the log, in order
+   * @return The number of bytes truncated from the log
+   * @throws LogSegmentOffsetOverflowException if the log segment contains an offset that causes the index offset to overflow
+   */
+  @nonthreadsafe
+  def recoverIndexes(onValidBatch: RecordBatch => Unit = _ => ()): Int = {
     offsetIndex.reset()
     timeIndex.reset()
-    txnIndex.reset()
     var validBytes = 0
     var lastIndexEntry = 0
     maxTimestampSoFar = RecordBatch.NO_TIMESTAMP
@@ -357,14 +372,7 @@ class LogSegment private[log] (val log: FileRecords,
           lastIndexEntry = validBytes
         }
         validBytes += batch.sizeInBytes()
-
-        if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
-          leaderEpochCache.foreach { cache =>
-            if (batch.partitionLeaderEpoch >= 0 && cache.latestEpoch.forall(batch.partitionLeaderEpoch > _))
-              cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
-          }
-          updateProducerState(producerStateManager, batch)
-        }
+        onValidBatch(batch)
       }
     } catch {
       case e@ (_: CorruptRecordException | _: InvalidRecordException) =>
@@ -383,6 +391,33 @@ class LogSegment private[log] (val log: FileRecords,
     truncated
   }
 
+  /**
+   * Complete the recovery of a segment whose batches were validated by `recoverIndexes`, rebuilding the transaction
+   * index and updating the leader epochs and the producer state from the batches of the segment.
+   *
+   * @param producerStateManager Producer state corresponding to the segment's base offset
+   * @param leaderEpochCache Optionally a cache for updating the leader epoch during recovery.
+   */
+  @nonthreadsafe
+  def recoverTransactionState(producerStateManager: ProducerStateManager,
+                              leaderEpochCache: Option[LeaderEpochFileCache] = None): Unit = {
+    txnIndex.reset()
+    for (batch <- log.batches.asScala)
+      updateLeaderEpochAndProducerState(batch, producerStateManager, leaderEpochCache)
+  }
+
+  private def updateLeaderEpochAndProducerState(batch: RecordBatch,
+                                                producerStateManager: ProducerStateManager,
+                                                leaderEpochCache: Option[LeaderEpochFileCache]): Unit = {
+    if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
+      leaderEpochCache.foreach { cache =>
+        if (batch.partitionLeaderEpoch >= 0 && cache.latestEpoch.forall(batch.partitionLeaderEpoch > _))
+          cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
+      }
+      updateProducerState(producerStateManager, batch)
+    }
+  }
+
   private def loadLargestTimestamp(): Unit = {
     // Get the last time index entry. If the time index is empty, it will return (-1, baseOffset)
     val lastTimeIndexEntry = timeIndex.lastEntry
@@ -436,6 +471,8 @@ class LogSegment private[log] (val log: FileRecords,
     timeIndex.resize(timeIndex.maxIndexSize)
 
     val bytesTruncated = if (mapping == null) 0 else log.truncateTo(mapping.position)
+    if (bytesTruncated > 0)
+      Files.deleteIfExists(keySummaryFile.toPath)
     if (log.sizeInBytes == 0) {
       created = time.milliseconds
       rollingBasedTimestamp = None
@@ -491,12 +528,22 @@ class LogSegment private[log] (val log: FileRecords,
    * IOException from this method should be handled by the caller
    */
   def changeFileSuffixes(oldSuffix: String, newSuffix: String): Unit = {
+    val summaryFile = keySummaryFile
     log.renameTo(new File(CoreUtils.replaceSuffix(log.file.getPath, oldSuffix, newSuffix)))
     lazyOffsetIndex.renameTo(new File(CoreUtils.replaceSuffix(lazyOffsetIndex.file.getPath, oldSuffix, newSuffix)))
     lazyTimeIndex.renameTo(new File(CoreUtils.replaceSuffix(lazyTimeIndex.file.getPath, oldSuffix, newSuffix)))
     txnIndex.renameTo(new File(CoreUtils.replaceSuffix(txnIndex.file.getPath, oldSuffix, newSuffix)))
+    if (summaryFile.exists)
+      Utils.atomicMoveWithFallback(summaryFile.toPath, new File(CoreUtils.replaceSuffix(summaryFile.getPath, oldSuffix, newSuffix)).toPath)
   }
 
+  /**
+   * The key summary written by the log cleaner for this segment, if any. It carries the same suffix as the log file, so
+   * it follows the segment when it is swapped in or scheduled for deletion.
+   */
+  private def keySummaryFile: File =
+    new File(log.file.getParentFile, log.file.getName.replace(Log.LogFileSuffix, Log.KeySummaryFileSuffix))
+
   /**
    * Append the largest time index entry to the time index and trim the log and indexes.
    *
@@ -623,7 +670,8 @@ class LogSegment private[log] (val log: FileRecords,
       () => delete(log.deleteIfExists _, "log", log.file, logIfMissing = true),
       () => delete(lazyOffsetIndex.deleteIfExists _, "offset index", lazyOffsetIndex.file, logIfMissing = true),
       () => delete(lazyTimeIndex.deleteIfExists _, "time index", lazyTimeIndex.file, logIfMissing = true),
-      () => delete(txnIndex.deleteIfExists _, "transaction index", txnIndex.file, logIfMissing = false)
+      () => delete(txnIndex.deleteIfExists _, "transaction index", txnIndex.file, logIfMissing = false),
+      () => delete(() => Files.deleteIfExists(keySummaryFile.toPath), "key summary", keySummaryFile, logIfMissing = false)
     ))
   }
 
@@ -657,12 +705,15 @@ class LogSegment private[log] (val log: FileRecords,
 object LogSegment {
 
   def open(dir: File, baseOffset: Long, config: LogConfig, time: Time, fileAlreadyExists: Boolean = false,
-           initFileSize: Int = 0, preallocate: Boolean = false, fileSuffix: String = ""): LogSegment = {
+           initFileSize: Int = 0, preallocate: Boolean = false, fileSuffix: String = "",
+           indexSampleCache: Option[IndexSampleCache] = None): LogSegment = {
     val maxIndexSize = config.maxIndexSize
     new LogSegment(
       FileRecords.open(Log.logFile(dir, baseOffset, fileSuffix), fileAlreadyExists, initFileSize, preallocate),
-      LazyIndex.forOffset(Log.offsetIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize),
-      LazyIndex.forTime(Log.timeIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize),
+      LazyIndex.forOffset(Log.offsetIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize,
+        sampleCache = indexSampleCache),
+      LazyIndex.forTime(Log.timeIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize,
+        sampleCache = indexSampleCache),
       new TransactionIndex(baseOffset, Log.transactionIndexFile(dir, baseOffset, fileSuffix)),
       baseOffset,
       indexIntervalBytes = config.indexInterval,
@@ -674,6 +725,7 @@ object LogSegment {
     Log.deleteFileIfExists(Log.offsetIndexFile(dir, baseOffset, fileSuffix))
     Log.deleteFileIfExists(Log.timeIndexFile(dir, baseOffset, fileSuffix))
     Log.deleteFileIfExists(Log.transactionIndexFile(dir, baseOffset, fileSuffix))
+    Log.deleteFileIfExists(Log.keySummaryFile(dir, baseOffset, fileSuffix))
     Log.deleteFileIfExists(Log.logFile(dir, baseOffset, fileSuffix))
   }
 }
@@ -50,8 +50,9 @@ import org.apache.kafka.common.errors.InvalidOffsetException
  * storage format.
  */
 // Avoid shadowing mutable `file` in AbstractIndex
-class OffsetIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true)
-    extends AbstractIndex(_file, baseOffset, maxIndexSize, writable) {
+class OffsetIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true,
+                 sampleCache: Option[IndexSampleCache] = None)
+    extends AbstractIndex(_file, baseOffset, maxIndexSize, writable, sampleCache) {
   import OffsetIndex._
 
   override def entrySize = 8
@@ -183,6 +184,8 @@ class OffsetIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writabl
    */
   private def truncateToEntries(entries: Int): Unit = {
     inLock(lock) {
+      if (entries < _entries)
+        onEntriesRemoved()
       _entries = entries
       mmap.position(_entries * entrySize)
       _lastOffset = lastEntry.offset
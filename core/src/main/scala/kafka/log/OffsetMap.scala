@@ -17,9 +17,11 @@
 
 package kafka.log
 
+import java.lang.{Long => JLong}
 import java.util.Arrays
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong, AtomicLongArray, LongAdder}
 import java.security.MessageDigest
-import java.nio.ByteBuffer
+import java.nio.{ByteBuffer, ByteOrder}
 import kafka.utils._
 import org.apache.kafka.common.utils.Utils
 
@@ -31,9 +33,30 @@ trait OffsetMap {
   def clear(): Unit
   def size: Int
   def utilization: Double = size.toDouble / slots
+  def collisionRate: Double = 0.0d
   def latestOffset: Long
 }
 
+object OffsetMap {
+  /**
+   * A non-cryptographic 128-bit hash which is computed directly over the key buffer, see [[Murmur3OffsetMap]]
+   */
+  val Murmur3HashAlgorithm = "MURMUR3-128"
+
+  /**
+   * Create the offset map used for deduplication with the given hash algorithm. The message digest algorithms
+   * are backed by a [[SkimpyOffsetMap]] and the Murmur3 algorithm by a [[Murmur3OffsetMap]].
+   * @param memory The amount of memory the map can use
+   * @param hashAlgorithm The hash algorithm to use: MURMUR3-128 or a message digest algorithm such as MD5
+   */
+  def apply(memory: Int, hashAlgorithm: String): OffsetMap = {
+    if (hashAlgorithm.equalsIgnoreCase(Murmur3HashAlgorithm))
+      new Murmur3OffsetMap(memory)
+    else
+      new SkimpyOffsetMap(memory, hashAlgorithm)
+  }
+}
+
 /**
  * An hash table used for deduplicating the log. This hash table uses a cryptographicly secure hash of the key as a proxy for the key
  * for comparisons and to save space on object overhead. Collisions are resolved by probing. This hash table does not support deletes.
@@ -160,7 +183,7 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   /**
    * The rate of collisions in the lookups
    */
-  def collisionRate: Double = 
+  override def collisionRate: Double =
     (this.probes - this.lookups) / this.lookups.toDouble
 
   /**
@@ -199,3 +222,419 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   }
   
 }
+
+/**
+ * A hash table used for deduplicating the log which uses the 128-bit x64 variant of MurmurHash3 of the key as a proxy
+ * for the key. The hash is computed directly over the key buffer, without copying it or going through a message
+ * digest, which makes it considerably cheaper than [[SkimpyOffsetMap]] for the same memory and number of slots.
+ *
+ * Each entry is stored as three consecutive longs (the two halves of the hash followed by the offset) in a flat array.
+ * Collisions are resolved by probing with the successive 32-bit words of the hash and then degrading to linear
+ * probing. An all-zero hash marks an empty slot. This hash table does not support deletes.
+ * @param memory The amount of memory this map can use
+ */
+@nonthreadsafe
+class Murmur3OffsetMap(val memory: Int) extends OffsetMap {
+  import Murmur3OffsetMap._
+
+  /**
+   * The number of bytes of space each entry uses (a 16 byte hash plus an 8 byte offset)
+   */
+  val bytesPerEntry: Int = BytesPerEntry
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = memory / bytesPerEntry
+
+  private val table = new Array[Long](slots * LongsPerEntry)
+
+  /* the two halves of the hash of the current key, to avoid allocating for each lookup */
+  private val hash = new Array[Long](2)
+
+  /* number of entries put into the map */
+  private var entries = 0
+
+  /* number of lookups on the map */
+  private var lookups = 0L
+
+  /* the number of probes for all lookups */
+  private var probes = 0L
+
+  /* the latest offset written into the map */
+  private var lastOffset = -1L
+
+  /**
+   * Associate this offset to the given key.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long): Unit = {
+    require(entries < slots, "Attempt to add a new entry to a full offset map.")
+    lookups += 1
+    hashInto(key, hash)
+    val hash1 = hash(0)
+    val hash2 = hash(1)
+    // probe until we find the first empty slot
+    var attempt = 0
+    var pos = positionOf(hash1, hash2, attempt)
+    while (!isEmpty(pos)) {
+      if (table(pos) == hash1 && table(pos + 1) == hash2) {
+        // we found an existing entry, overwrite it and return (size does not change)
+        table(pos + 2) = offset
+        lastOffset = offset
+        return
+      }
+      attempt += 1
+      pos = positionOf(hash1, hash2, attempt)
+    }
+    // found an empty slot, update it--size grows by 1
+    table(pos) = hash1
+    table(pos + 1) = hash2
+    table(pos + 2) = offset
+    lastOffset = offset
+    entries += 1
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = {
+    lookups += 1
+    hashInto(key, hash)
+    val hash1 = hash(0)
+    val hash2 = hash(1)
+    // we need to guard against looping forever if the map is full, the linear probing
+    // which starts at the last word of the hash visits every slot within this many attempts
+    val maxAttempts = slots + HashWords
+    var attempt = 0
+    while (attempt < maxAttempts) {
+      val pos = positionOf(hash1, hash2, attempt)
+      if (isEmpty(pos))
+        return -1L
+      if (table(pos) == hash1 && table(pos + 1) == hash2)
+        return table(pos + 2)
+      attempt += 1
+    }
+    -1L
+  }
+
+  /**
+   * Remove all the entries from the map.
+   */
+  override def clear(): Unit = {
+    this.entries = 0
+    this.lookups = 0L
+    this.probes = 0L
+    this.lastOffset = -1L
+    Arrays.fill(table, 0L)
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries
+
+  /**
+   * The rate of collisions in the lookups
+   */
+  override def collisionRate: Double =
+    (this.probes - this.lookups) / this.lookups.toDouble
+
+  /**
+   * The latest offset put into the map
+   */
+  override def latestOffset: Long = lastOffset
+
+  override def updateLatestOffset(offset: Long): Unit = {
+    lastOffset = offset
+  }
+
+  private def isEmpty(position: Int): Boolean =
+    table(position) == 0L && table(position + 1) == 0L
+
+  private def positionOf(hash1: Long, hash2: Long, attempt: Int): Int = {
+    this.probes += 1
+    probePosition(hash1, hash2, attempt, slots)
+  }
+}
+
+private[log] object Murmur3OffsetMap {
+  private[log] val BytesPerEntry = 24
+  private[log] val LongsPerEntry = 3
+  private[log] val HashWords = 4
+  private val C1 = 0x87c37b91114253d5L
+  private val C2 = 0x4cf5ad432745937fL
+
+  /**
+   * Calculate the ith probe position. We first try the successive 32-bit words of the hash then
+   * if all of those fail we degrade to linear probing.
+   * @param hash1 The upper half of the hash of the key
+   * @param hash2 The lower half of the hash of the key
+   * @param attempt The ith probe
+   * @param slots The number of slots of the table
+   * @return The index in the table at which the ith probing for the given hash would reside
+   */
+  private[log] def probePosition(hash1: Long, hash2: Long, attempt: Int, slots: Int): Int = {
+    val probe = attempt match {
+      case 0 => (hash1 >>> 32).toInt
+      case 1 => hash1.toInt
+      case 2 => (hash2 >>> 32).toInt
+      case _ => hash2.toInt + attempt - (HashWords - 1)
+    }
+    (Utils.abs(probe) % slots) * LongsPerEntry
+  }
+
+  /**
+   * Compute the hash of the key into the first two elements of `hash` without modifying the key buffer.
+   * The all-zero hash is reserved for empty slots, so it is never returned.
+   */
+  private[log] def hashInto(key: ByteBuffer, hash: Array[Long]): Unit = {
+    murmur3(key, hash)
+    if (hash(0) == 0L && hash(1) == 0L)
+      hash(1) = 1L
+  }
+
+  /**
+   * MurmurHash3_x64_128 with a zero seed over the remaining bytes of the buffer. The blocks are read
+   * as little-endian longs regardless of the byte order of the buffer.
+   */
+  private[log] def murmur3(key: ByteBuffer, hash: Array[Long]): Unit = {
+    val start = key.position()
+    val length = key.remaining()
+    val littleEndian = key.order() == ByteOrder.LITTLE_ENDIAN
+    var h1 = 0L
+    var h2 = 0L
+
+    val blocksEnd = start + (length & ~15)
+    var i = start
+    while (i < blocksEnd) {
+      var k1 = key.getLong(i)
+      var k2 = key.getLong(i + 8)
+      if (!littleEndian) {
+        k1 = JLong.reverseBytes(k1)
+        k2 = JLong.reverseBytes(k2)
+      }
+      h1 ^= mixK1(k1)
+      h1 = JLong.rotateLeft(h1, 27) + h2
+      h1 = h1 * 5 + 0x52dce729
+      h2 ^= mixK2(k2)
+      h2 = JLong.rotateLeft(h2, 31) + h1
+      h2 = h2 * 5 + 0x38495ab5
+      i += 16
+    }
+
+    var k1 = 0L
+    var k2 = 0L
+    var shift = 0
+    while (i < start + length) {
+      val b = (key.get(i) & 0xff).toLong
+      if (shift < 64)
+        k1 ^= b << shift
+      else
+        k2 ^= b << (shift - 64)
+      shift += 8
+      i += 1
+    }
+    if (shift > 64)
+      h2 ^= mixK2(k2)
+    if (shift > 0)
+      h1 ^= mixK1(k1)
+
+    h1 ^= length
+    h2 ^= length
+    h1 += h2
+    h2 += h1
+    h1 = fmix(h1)
+    h2 = fmix(h2)
+    h1 += h2
+    h2 += h1
+
+    hash(0) = h1
+    hash(1) = h2
+  }
+
+  private def mixK1(k: Long): Long = JLong.rotateLeft(k * C1, 31) * C2
+
+  private def mixK2(k: Long): Long = JLong.rotateLeft(k * C2, 33) * C1
+
+  private def fmix(h: Long): Long = {
+    var k = h
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^= k >>> 33
+    k
+  }
+}
+
+/**
+ * A thread-safe variant of [[Murmur3OffsetMap]] with the same hash, layout and probing, which allows several threads
+ * to build the map for different parts of a log concurrently. Since the order in which the threads insert keys is
+ * not defined, the map retains the highest offset associated with a key (rather than the last one put) and
+ * `updateLatestOffset` only ever moves the latest offset forward. For a single thread inserting increasing offsets
+ * this is the same as the other maps.
+ *
+ * A slot is claimed by a compare-and-set of the first half of the hash and published by writing the second half, so
+ * neither half is ever zero for a key. Lookups must not run concurrently with puts of the same key.
+ * @param memory The amount of memory this map can use
+ */
+@threadsafe
+class ConcurrentOffsetMap(val memory: Int) extends OffsetMap {
+  import Murmur3OffsetMap._
+
+  /**
+   * The number of bytes of space each entry uses (a 16 byte hash plus an 8 byte offset)
+   */
+  val bytesPerEntry: Int = BytesPerEntry
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = memory / bytesPerEntry
+
+  private val table = new AtomicLongArray(slots * LongsPerEntry)
+
+  /* the scratch space for the hash of the current key of each thread */
+  private val hashes = ThreadLocal.withInitial[Array[Long]](() => new Array[Long](2))
+
+  private val entries = new AtomicInteger(0)
+  private val lookups = new LongAdder
+  private val probes = new LongAdder
+  private val lastOffset = new AtomicLong(-1L)
+
+  /**
+   * Associate this offset to the given key unless the key is already associated with a higher offset.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long): Unit = {
+    lookups.increment()
+    val hash = hashOf(key)
+    val hash1 = hash(0)
+    val hash2 = hash(1)
+    var attempt = 0
+    while (true) {
+      require(attempt < slots + HashWords, "Attempt to add a new entry to a full offset map.")
+      val pos = positionOf(hash1, hash2, attempt)
+      var current = table.get(pos)
+      if (current == 0L) {
+        if (table.compareAndSet(pos, 0L, hash1)) {
+          // we claimed an empty slot--size grows by 1
+          table.set(pos + 1, hash2)
+          entries.incrementAndGet()
+          current = hash1
+        } else {
+          // another thread claimed the slot first, possibly for the same key
+          current = table.get(pos)
+        }
+      }
+      if (current == hash1 && awaitSecondHalf(pos) == hash2) {
+        maxUpdate(pos + 2, offset)
+        updateLatestOffset(offset)
+        return
+      }
+      attempt += 1
+    }
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = {
+    lookups.increment()
+    val hash = hashOf(key)
+    val hash1 = hash(0)
+    val hash2 = hash(1)
+    val maxAttempts = slots + HashWords
+    var attempt = 0
+    while (attempt < maxAttempts) {
+      val pos = positionOf(hash1, hash2, attempt)
+      val current = table.get(pos)
+      if (current == 0L)
+        return -1L
+      if (current == hash1 && awaitSecondHalf(pos) == hash2)
+        return table.get(pos + 2)
+      attempt += 1
+    }
+    -1L
+  }
+
+  /**
+   * Remove all the entries from the map. This must not be called concurrently with other operations.
+   */
+  override def clear(): Unit = {
+    entries.set(0)
+    lookups.reset()
+    probes.reset()
+    lastOffset.set(-1L)
+    var i = 0
+    while (i < table.length) {
+      table.lazySet(i, 0L)
+      i += 1
+    }
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries.get
+
+  /**
+   * The rate of collisions in the lookups
+   */
+  override def collisionRate: Double = {
+    val totalLookups = lookups.sum
+    (probes.sum - totalLookups) / totalLookups.toDouble
+  }
+
+  /**
+   * The latest offset put into the map
+   */
+  override def latestOffset: Long = lastOffset.get
+
+  override def updateLatestOffset(offset: Long): Unit = {
+    var current = lastOffset.get
+    while (offset > current && !lastOffset.compareAndSet(current, offset))
+      current = lastOffset.get
+  }
+
+  private def hashOf(key: ByteBuffer): Array[Long] = {
+    val hash = hashes.get
+    hashInto(key, hash)
+    // the first half of the hash marks a claimed slot and the second half marks a published one
+    if (hash(0) == 0L)
+      hash(0) = 1L
+    if (hash(1) == 0L)
+      hash(1) = 1L
+    hash
+  }
+
+  /**
+   * The second half of the hash is written right after the slot is claimed, wait for it if we raced with the writer
+   */
+  private def awaitSecondHalf(position: Int): Long = {
+    var hash2 = table.get(position + 1)
+    while (hash2 == 0L) {
+      Thread.`yield`()
+      hash2 = table.get(position + 1)
+    }
+    hash2
+  }
+
+  private def maxUpdate(position: Int, offset: Long): Unit = {
+    var current = table.get(position)
+    while (offset > current && !table.compareAndSet(position, current, offset))
+      current = table.get(position)
+  }
+
+  private def positionOf(hash1: Long, hash2: Long, attempt: Int): Int = {
+    probes.increment()
+    probePosition(hash1, hash2, attempt, slots)
+  }
+}
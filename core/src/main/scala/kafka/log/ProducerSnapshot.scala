@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.util
+
+import org.apache.kafka.common.utils.{ByteUtils, Crc32C}
+
+import scala.collection.mutable
+
+/**
+ * The producer entries of a snapshot file, which may be decoded on demand. An entry is taken out of the snapshot when
+ * its producer is loaded into the producer state, so that the snapshot only holds the producers not accessed since.
+ */
+private[log] sealed trait ProducerSnapshot {
+  /**
+   * The number of producers remaining in the snapshot
+   */
+  def remaining: Int
+
+  /**
+   * The latest last timestamp of the producers in the snapshot
+   */
+  def maxTimestamp: Long
+
+  /**
+   * Take the entries of the producers with an ongoing transaction out of the snapshot, they are needed to compute the
+   * last stable offset
+   */
+  def takeEntriesWithOngoingTxn(): Iterable[ProducerStateEntry]
+
+  /**
+   * Take the entry of the given producer out of the snapshot, if it remains in the snapshot
+   */
+  def take(producerId: Long): Option[ProducerStateEntry]
+
+  /**
+   * Decode the entries remaining in the snapshot, without taking them
+   */
+  def entries: Iterator[ProducerStateEntry]
+}
+
+/**
+ * A snapshot whose entries were all decoded when it was read, i.e. a snapshot in the original format.
+ */
+private[log] class DecodedProducerSnapshot(decoded: Iterable[ProducerStateEntry]) extends ProducerSnapshot {
+  private val producers = mutable.Map.empty[Long, ProducerStateEntry] ++= decoded.map(entry => entry.producerId -> entry)
+
+  override val maxTimestamp: Long = producers.valuesIterator.foldLeft(-1L)((max, entry) => math.max(max, entry.lastTimestamp))
+
+  override def remaining: Int = producers.size
+
+  override def takeEntriesWithOngoingTxn(): Iterable[ProducerStateEntry] =
+    producers.values.filter(_.currentTxnFirstOffset.isDefined).toSeq.flatMap(entry => take(entry.producerId))
+
+  override def take(producerId: Long): Option[ProducerStateEntry] = producers.remove(producerId)
+
+  override def entries: Iterator[ProducerStateEntry] = producers.valuesIterator
+}
+
+/**
+ * A snapshot in the indexed format, whose entries have a fixed size and are sorted by producer id so that the entry
+ * of a producer can be found by binary search and decoded when the producer is first accessed. The producers with an
+ * ongoing transaction are listed separately so that they can be loaded without scanning the entries. The entries
+ * which are taken are only marked as such, and the others can be copied to the next snapshot without decoding them.
+ *
+ * The format is:
+ *  - version (int16)
+ *  - crc (uint32) of the rest of the file, checked when the snapshot is read
+ *  - entry count (int32)
+ *  - ongoing transaction count (int32)
+ *  - ongoing transactions: producer id (int64), first offset (int64)
+ *  - entries sorted by producer id: producer id (int64), epoch (int16), last sequence (int32), last offset (int64),
+ *    offset delta (int32), timestamp (int64), coordinator epoch (int32), current transaction first offset (int64)
+ */
+private[log] class IndexedProducerSnapshot private(private val buffer: ByteBuffer) extends ProducerSnapshot {
+  import IndexedProducerSnapshot._
+
+  private val size: Int = buffer.getInt(EntryCountOffset)
+  private val numOngoingTxns = buffer.getInt(OngoingTxnCountOffset)
+  private val entriesOffset = OngoingTxnsOffset + numOngoingTxns * OngoingTxnSize
+  private val taken = new util.BitSet(size)
+  private var _remaining = size
+
+  override lazy val maxTimestamp: Long = {
+    var max = -1L
+    for (i <- 0 until size)
+      max = math.max(max, buffer.getLong(entryPosition(i) + TimestampOffset))
+    max
+  }
+
+  override def remaining: Int = _remaining
+
+  override def takeEntriesWithOngoingTxn(): Iterable[ProducerStateEntry] = {
+    (0 until numOngoingTxns).flatMap { i =>
+      take(buffer.getLong(OngoingTxnsOffset + i * OngoingTxnSize))
+    }
+  }
+
+  override def take(producerId: Long): Option[ProducerStateEntry] = {
+    var lo = 0
+    var hi = size - 1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      val midProducerId = buffer.getLong(entryPosition(mid))
+      if (midProducerId < producerId)
+        lo = mid + 1
+      else if (midProducerId > producerId)
+        hi = mid - 1
+      else if (taken.get(mid))
+        return None
+      else {
+        taken.set(mid)
+        _remaining -= 1
+        return Some(decodeEntry(entryPosition(mid)))
+      }
+    }
+    None
+  }
+
+  override def entries: Iterator[ProducerStateEntry] = remainingEntries.map(i => decodeEntry(entryPosition(i)))
+
+  private def remainingEntries: Iterator[Int] = Iterator.range(0, size).filterNot(taken.get)
+
+  private def entryPosition(n: Int): Int = entriesOffset + n * EntrySize
+
+  /**
+   * The positions of the remaining entries whose producer was last active after the given time
+   */
+  private def remainingPositions(activeAfterMs: Long): Array[Int] =
+    remainingEntries.map(entryPosition).filter(position => buffer.getLong(position + TimestampOffset) > activeAfterMs).toArray
+
+  private def decodeEntry(position: Int): ProducerStateEntry = {
+    val producerId = buffer.getLong(position)
+    val producerEpoch = buffer.getShort(position + 8)
+    val seq = buffer.getInt(position + 10)
+    val offset = buffer.getLong(position + 14)
+    val offsetDelta = buffer.getInt(position + 22)
+    val timestamp = buffer.getLong(position + TimestampOffset)
+    val coordinatorEpoch = buffer.getInt(position + 34)
+    val currentTxnFirstOffset = buffer.getLong(position + 38)
+    val lastAppendedDataBatches = mutable.Queue.empty[BatchMetadata]
+    if (offset >= 0)
+      lastAppendedDataBatches += BatchMetadata(seq, offset, offsetDelta, timestamp)
+    new ProducerStateEntry(producerId, lastAppendedDataBatches, producerEpoch, coordinatorEpoch, timestamp,
+      if (currentTxnFirstOffset >= 0) Some(currentTxnFirstOffset) else None)
+  }
+}
+
+private[log] object IndexedProducerSnapshot {
+  val Version: Short = 2
+
+  private val VersionOffset = 0
+  private val CrcOffset = VersionOffset + 2
+  private val EntryCountOffset = CrcOffset + 4
+  private val OngoingTxnCountOffset = EntryCountOffset + 4
+  private val OngoingTxnsOffset = OngoingTxnCountOffset + 4
+  private val OngoingTxnSize = 8 + 8
+  private val EntrySize = 8 + 2 + 4 + 8 + 4 + 8 + 4 + 8
+  private val TimestampOffset = 26
+
+  /**
+   * Validate the snapshot in the given buffer, which holds the whole snapshot file
+   * @throws CorruptSnapshotException if the snapshot is truncated or its CRC doesn't match
+   */
+  def apply(buffer: ByteBuffer): IndexedProducerSnapshot = {
+    if (buffer.limit() < OngoingTxnsOffset)
+      throw new CorruptSnapshotException(s"Snapshot is truncated to ${buffer.limit()} bytes")
+    val numEntries = buffer.getInt(EntryCountOffset)
+    val numOngoingTxns = buffer.getInt(OngoingTxnCountOffset)
+    val expectedSize = OngoingTxnsOffset + numOngoingTxns.toLong * OngoingTxnSize + numEntries.toLong * EntrySize
+    if (numEntries < 0 || numOngoingTxns < 0 || buffer.limit() != expectedSize)
+      throw new CorruptSnapshotException(s"Snapshot size ${buffer.limit()} doesn't match its $numEntries entries " +
+        s"and $numOngoingTxns ongoing transactions")
+
+    val crc = ByteUtils.readUnsignedInt(buffer, CrcOffset)
+    val computedCrc = Crc32C.compute(buffer, EntryCountOffset, buffer.limit() - EntryCountOffset)
+    if (crc != computedCrc)
+      throw new CorruptSnapshotException(s"Snapshot is corrupt (CRC is no longer valid). " +
+        s"Stored crc: $crc. Computed crc: $computedCrc")
+    new IndexedProducerSnapshot(buffer)
+  }
+
+  /**
+   * Serialize the given entries in the indexed format
+   */
+  def write(entries: Iterable[ProducerStateEntry]): ByteBuffer = write(entries, None, Long.MinValue)
+
+  /**
+   * Serialize the given entries in the indexed format, along with the entries remaining in the given snapshot whose
+   * producer was last active after the given time. These are copied without being decoded. They must not have an
+   * ongoing transaction, nor be among the given entries, which holds since these entries were taken from the snapshot.
+   */
+  def write(entries: Iterable[ProducerStateEntry], snapshot: Option[IndexedProducerSnapshot], activeAfterMs: Long): ByteBuffer = {
+    val sorted = entries.toArray.sortBy(_.producerId)
+    val ongoingTxns = sorted.filter(_.currentTxnFirstOffset.isDefined)
+    val copiedPositions = snapshot.map(_.remainingPositions(activeAfterMs)).getOrElse(Array.empty[Int])
+    val numEntries = sorted.length + copiedPositions.length
+    val buffer = ByteBuffer.allocate(OngoingTxnsOffset + ongoingTxns.length * OngoingTxnSize + numEntries * EntrySize)
+    buffer.putShort(Version)
+    buffer.putInt(0) // we'll fill this after writing the entries
+    buffer.putInt(numEntries)
+    buffer.putInt(ongoingTxns.length)
+    ongoingTxns.foreach { entry =>
+      buffer.putLong(entry.producerId)
+      buffer.putLong(entry.currentTxnFirstOffset.get)
+    }
+    // merge the entries and the copied ones, both are sorted by producer id
+    val copiedFrom = snapshot.map(_.buffer.duplicate()).orNull
+    var i = 0
+    var j = 0
+    while (i < sorted.length || j < copiedPositions.length) {
+      if (j == copiedPositions.length || (i < sorted.length && sorted(i).producerId < copiedFrom.getLong(copiedPositions(j)))) {
+        val entry = sorted(i)
+        buffer.putLong(entry.producerId)
+        buffer.putShort(entry.producerEpoch)
+        buffer.putInt(entry.lastSeq)
+        buffer.putLong(entry.lastDataOffset)
+        buffer.putInt(entry.lastOffsetDelta)
+        buffer.putLong(entry.lastTimestamp)
+        buffer.putInt(entry.coordinatorEpoch)
+        buffer.putLong(entry.currentTxnFirstOffset.getOrElse(-1L))
+        i += 1
+      } else {
+        copiedFrom.limit(copiedPositions(j) + EntrySize)
+        copiedFrom.position(copiedPositions(j))
+        buffer.put(copiedFrom)
+        copiedFrom.clear()
+        j += 1
+      }
+    }
+    buffer.flip()
+
+    val crc = Crc32C.compute(buffer, EntryCountOffset, buffer.limit() - EntryCountOffset)
+    ByteUtils.writeUnsignedInt(buffer, CrcOffset, crc)
+    buffer
+  }
+}
@@ -378,9 +378,22 @@ object ProducerStateManager {
     new Field(CrcField, Type.UNSIGNED_INT32, "CRC of the snapshot data"),
     new Field(ProducerEntriesField, new ArrayOf(ProducerSnapshotEntrySchema), "The entries in the producer table"))
 
-  def readSnapshot(file: File): Iterable[ProducerStateEntry] = {
+  def readSnapshot(file: File): Iterable[ProducerStateEntry] = openSnapshot(file).entries.toSeq
+
+  /**
+   * Read a snapshot file in either format. The CRC of the snapshot is checked, but the entries of a snapshot in the
+   * indexed format are only decoded when accessed.
+   */
+  private[log] def openSnapshot(file: File): ProducerSnapshot = {
+    val buffer = Files.readAllBytes(file.toPath)
+    if (buffer.length >= 2 && ByteBuffer.wrap(buffer).getShort(VersionOffset) == IndexedProducerSnapshot.Version)
+      IndexedProducerSnapshot(ByteBuffer.wrap(buffer))
+    else
+      new DecodedProducerSnapshot(readSnapshot(buffer))
+  }
+
+  private def readSnapshot(buffer: Array[Byte]): Iterable[ProducerStateEntry] = {
     try {
-      val buffer = Files.readAllBytes(file.toPath)
       val struct = PidSnapshotMapSchema.read(ByteBuffer.wrap(buffer))
 
       val version = struct.getShort(VersionField)
@@ -417,22 +430,31 @@ object ProducerStateManager {
     }
   }
 
-  private def writeSnapshot(file: File, entries: mutable.Map[Long, ProducerStateEntry]): Unit = {
+  private def writeSnapshot(file: File, buffer: ByteBuffer): Unit = {
+    val fileChannel = FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+    try {
+      fileChannel.write(buffer)
+      fileChannel.force(true)
+    } finally {
+      fileChannel.close()
+    }
+  }
+
+  private def serializeSnapshot(entries: Iterable[ProducerStateEntry]): ByteBuffer = {
     val struct = new Struct(PidSnapshotMapSchema)
     struct.set(VersionField, ProducerSnapshotVersion)
     struct.set(CrcField, 0L) // we'll fill this after writing the entries
-    val entriesArray = entries.map {
-      case (producerId, entry) =>
-        val producerEntryStruct = struct.instance(ProducerEntriesField)
-        producerEntryStruct.set(ProducerIdField, producerId)
-          .set(ProducerEpochField, entry.producerEpoch)
-          .set(LastSequenceField, entry.lastSeq)
-          .set(LastOffsetField, entry.lastDataOffset)
-          .set(OffsetDeltaField, entry.lastOffsetDelta)
-          .set(TimestampField, entry.lastTimestamp)
-          .set(CoordinatorEpochField, entry.coordinatorEpoch)
-          .set(CurrentTxnFirstOffsetField, entry.currentTxnFirstOffset.getOrElse(-1L))
-        producerEntryStruct
+    val entriesArray = entries.map { entry =>
+      val producerEntryStruct = struct.instance(ProducerEntriesField)
+      producerEntryStruct.set(ProducerIdField, entry.producerId)
+        .set(ProducerEpochField, entry.producerEpoch)
+        .set(LastSequenceField, entry.lastSeq)
+        .set(LastOffsetField, entry.lastDataOffset)
+        .set(OffsetDeltaField, entry.lastOffsetDelta)
+        .set(TimestampField, entry.lastTimestamp)
+        .set(CoordinatorEpochField, entry.coordinatorEpoch)
+        .set(CurrentTxnFirstOffsetField, entry.currentTxnFirstOffset.getOrElse(-1L))
+      producerEntryStruct
     }.toArray
     struct.set(ProducerEntriesField, entriesArray)
 
@@ -443,14 +465,7 @@ object ProducerStateManager {
     // now fill in the CRC
     val crc = Crc32C.compute(buffer, ProducerEntriesOffset, buffer.limit() - ProducerEntriesOffset)
     ByteUtils.writeUnsignedInt(buffer, CrcOffset, crc)
-
-    val fileChannel = FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
-    try {
-      fileChannel.write(buffer)
-      fileChannel.force(true)
-    } finally {
-      fileChannel.close()
-    }
+    buffer
   }
 
   private def isSnapshotFile(file: File): Boolean = file.getName.endsWith(Log.ProducerSnapshotFileSuffix)
@@ -484,7 +499,9 @@ object ProducerStateManager {
 @nonthreadsafe
 class ProducerStateManager(val topicPartition: TopicPartition,
                            @volatile var _logDir: File,
-                           val maxProducerIdExpirationMs: Int = 60 * 60 * 1000) extends Logging {
+                           val maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
+                           val indexedSnapshots: Boolean = false,
+                           val offHeapTable: Boolean = false) extends Logging {
   import ProducerStateManager._
   import java.util
 
@@ -494,8 +511,14 @@ class ProducerStateManager(val topicPartition: TopicPartition,
     loadSnapshots()
   }
 
-  private val producers = mutable.Map.empty[Long, ProducerStateEntry]
+  private val producers = new ProducerStateTable(direct = offHeapTable)
   private var lastMapOffset = 0L
+
+  // the snapshot the state was loaded from, whose entries are only decoded and moved to `producers` when accessed. It
+  // is released once all of its producers are either accessed or expired
+  private var loadedSnapshot: Option[ProducerSnapshot] = None
+  // the producers remaining in the loaded snapshot which were last active before this time are expired
+  private var snapshotExpirationTimeMs = 0L
   private var lastSnapOffset = 0L
 
   // ongoing transactions sorted by the first offset of the transaction
@@ -596,20 +619,51 @@ class ProducerStateManager(val topicPartition: TopicPartition,
   def mapEndOffset: Long = lastMapOffset
 
   /**
-   * Get a copy of the active producers
+   * Get a copy of the active producers. This moves the producers remaining in the loaded snapshot to the producer
+   * state, so it should not be called on a hot path.
+   */
+  def activeProducers: immutable.Map[Long, ProducerStateEntry] = {
+    loadedSnapshot.foreach { snapshot =>
+      snapshot.entries.filterNot(isProducerExpired(snapshotExpirationTimeMs, _)).foreach(producers.put)
+      loadedSnapshot = None
+    }
+    producers.entries.map(entry => entry.producerId -> entry).toMap
+  }
+
+  // producers of the loaded snapshot which are not accessed yet may be expired, so the state may be empty nonetheless
+  def isEmpty: Boolean = producers.isEmpty && loadedSnapshot.forall(_.remaining == 0) && unreplicatedTxns.isEmpty
+
+  /**
+   * Release the loaded snapshot once it holds no producer which may still be accessed
    */
-  def activeProducers: immutable.Map[Long, ProducerStateEntry] = producers.toMap
+  private def maybeReleaseSnapshot(): Unit = {
+    loadedSnapshot.foreach { snapshot =>
+      if (snapshot.remaining == 0 || snapshot.maxTimestamp <= snapshotExpirationTimeMs - maxProducerIdExpirationMs)
+        loadedSnapshot = None
+    }
+  }
 
-  def isEmpty: Boolean = producers.isEmpty && unreplicatedTxns.isEmpty
+  private def clearProducers(): Unit = {
+    producers.clear()
+    loadedSnapshot = None
+  }
 
+  /**
+   * Load the producer state from the latest snapshot. Only the producers with an ongoing transaction are loaded, the
+   * others are loaded from the snapshot when accessed, which saves decoding the entries of the producers which are
+   * not active anymore.
+   */
   private def loadFromSnapshot(logStartOffset: Long, currentTime: Long): Unit = {
     while (true) {
       latestSnapshotFile match {
         case Some(snapshot) =>
           try {
             info(s"Loading producer state from snapshot file '$snapshot'")
-            val loadedProducers = readSnapshot(snapshot.file).filter { producerEntry => !isProducerExpired(currentTime, producerEntry) }
-            loadedProducers.foreach(loadProducerEntry)
+            val producerSnapshot = openSnapshot(snapshot.file)
+            loadedSnapshot = Some(producerSnapshot)
+            snapshotExpirationTimeMs = currentTime
+            producerSnapshot.takeEntriesWithOngoingTxn().foreach(loadProducerEntry)
+            maybeReleaseSnapshot()
             lastSnapOffset = snapshot.offset
             lastMapOffset = lastSnapOffset
             return
@@ -629,7 +683,7 @@ class ProducerStateManager(val topicPartition: TopicPartition,
   // visible for testing
   private[log] def loadProducerEntry(entry: ProducerStateEntry): Unit = {
     val producerId = entry.producerId
-    producers.put(producerId, entry)
+    producers.put(entry)
     entry.currentTxnFirstOffset.foreach { offset =>
       ongoingTxns.put(offset, new TxnMetadata(producerId, offset))
     }
@@ -642,7 +696,11 @@ class ProducerStateManager(val topicPartition: TopicPartition,
    * Expire any producer ids which have been idle longer than the configured maximum expiration timeout.
    */
   def removeExpiredProducers(currentTimeMs: Long): Unit = {
-    producers --= producers.filter { case (_, lastEntry) => isProducerExpired(currentTimeMs, lastEntry) }.keySet
+    producers.removeIdle(currentTimeMs, maxProducerIdExpirationMs)
+    if (loadedSnapshot.isDefined) {
+      snapshotExpirationTimeMs = currentTimeMs
+      maybeReleaseSnapshot()
+    }
   }
 
   /**
@@ -662,7 +720,7 @@ class ProducerStateManager(val topicPartition: TopicPartition,
     }
 
     if (logEndOffset != mapEndOffset) {
-      producers.clear()
+      clearProducers()
       ongoingTxns.clear()
 
       // since we assume that the offset is less than or equal to the high watermark, it is
@@ -688,14 +746,10 @@ class ProducerStateManager(val topicPartition: TopicPartition,
         s"for partition $topicPartition")
 
     trace(s"Updated producer ${appendInfo.producerId} state to $appendInfo")
-    val updatedEntry = appendInfo.toEntry
-    producers.get(appendInfo.producerId) match {
-      case Some(currentEntry) =>
-        currentEntry.update(updatedEntry)
-
-      case None =>
-        producers.put(appendInfo.producerId, updatedEntry)
-    }
+    // promote the entry of the producer from the snapshot first, if it was not accessed yet
+    if (loadedSnapshot.isDefined && !producers.contains(appendInfo.producerId))
+      lastEntry(appendInfo.producerId)
+    producers.update(appendInfo.toEntry)
 
     appendInfo.startedTransactions.foreach { txn =>
       ongoingTxns.put(txn.firstOffset.messageOffset, txn)
@@ -709,7 +763,27 @@ class ProducerStateManager(val topicPartition: TopicPartition,
   /**
    * Get the last written entry for the given producer id.
    */
-  def lastEntry(producerId: Long): Option[ProducerStateEntry] = producers.get(producerId)
+  def lastEntry(producerId: Long): Option[ProducerStateEntry] = {
+    producers.get(producerId).orElse {
+      loadedSnapshot.flatMap { snapshot =>
+        val snapshotEntry = snapshot.take(producerId).filterNot(isProducerExpired(snapshotExpirationTimeMs, _))
+        snapshotEntry.foreach(producers.put)
+        maybeReleaseSnapshot()
+        snapshotEntry
+      }
+    }
+  }
+
+  /**
+   * Find the metadata of the batch with the same producer epoch and sequence range as the given batch among the last
+   * batches appended by its producer, if any.
+   */
+  def findDuplicateBatch(batch: RecordBatch): Option[BatchMetadata] = {
+    if (producers.contains(batch.producerId))
+      producers.findDuplicateBatch(batch.producerId, batch.producerEpoch, batch.baseSequence, batch.lastSequence)
+    else
+      lastEntry(batch.producerId).flatMap(_.findDuplicateBatch(batch))
+  }
 
   /**
    * Take a snapshot at the current end offset if one does not already exist.
@@ -719,7 +793,17 @@ class ProducerStateManager(val topicPartition: TopicPartition,
     if (lastMapOffset > lastSnapOffset) {
       val snapshotFile = SnapshotFile(Log.producerSnapshotFile(_logDir, lastMapOffset))
       info(s"Writing producer snapshot at offset $lastMapOffset")
-      writeSnapshot(snapshotFile.file, producers)
+      val buffer = loadedSnapshot match {
+        // copy the producers remaining in the loaded snapshot without decoding them
+        case Some(snapshot: IndexedProducerSnapshot) if indexedSnapshots =>
+          IndexedProducerSnapshot.write(producers.entries.toSeq, Some(snapshot), snapshotExpirationTimeMs - maxProducerIdExpirationMs)
+        case _ =>
+          val entries = producers.entries.toSeq ++ loadedSnapshot.iterator.flatMap(_.entries)
+            .filterNot(isProducerExpired(snapshotExpirationTimeMs, _))
+          if (indexedSnapshots) IndexedProducerSnapshot.write(entries)
+          else serializeSnapshot(entries)
+      }
+      writeSnapshot(snapshotFile.file, buffer)
       snapshots.put(snapshotFile.offset, snapshotFile)
 
       // Update the last snap offset according to the serialized map
@@ -772,7 +856,7 @@ class ProducerStateManager(val topicPartition: TopicPartition,
    * Truncate the producer id mapping and remove all snapshots. This resets the state of the mapping.
    */
   def truncateFullyAndStartAt(offset: Long): Unit = {
-    producers.clear()
+    clearProducers()
     ongoingTxns.clear()
     unreplicatedTxns.clear()
     snapshots.values().asScala.foreach { snapshot =>
@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.nio.ByteBuffer
+
+import kafka.utils.nonthreadsafe
+import org.apache.kafka.common.record.DefaultRecordBatch
+
+import scala.collection.mutable
+
+/**
+ * A hash table of the producer states of a partition keyed by producer id. Each producer occupies a fixed size slot of
+ * a single buffer which holds its epoch, coordinator epoch, last timestamp, ongoing transaction and a ring of the
+ * metadata of its last `ProducerStateEntry.NumBatchesToRetain` batches, so that the table needs no object per producer.
+ * Collisions are resolved by linear probing.
+ *
+ * Entries are decoded into a new `ProducerStateEntry` when read and encoded back when written, so changes made to a
+ * decoded entry are only visible once it is put back in the table.
+ *
+ * The slot layout is:
+ *  - producer id (int64)
+ *  - producer epoch (int16)
+ *  - used flag (int8)
+ *  - batch count (int8)
+ *  - coordinator epoch (int32)
+ *  - last timestamp (int64)
+ *  - current transaction first offset (int64), -1 if there is none
+ *  - index of the oldest batch in the ring (int32)
+ *  - padding (int32)
+ *  - batches: last sequence (int32), offset delta (int32), last offset (int64), timestamp (int64)
+ *
+ * @param direct Whether the slots are allocated in direct memory rather than on the heap. The memory is released when
+ *               the table is garbage collected, like any direct buffer.
+ */
+@nonthreadsafe
+private[log] class ProducerStateTable(val direct: Boolean) {
+  import ProducerStateTable._
+
+  // the buffer is only allocated on the first insertion since most partitions have no producers
+  private var slots: ByteBuffer = null
+  private var capacity = 0
+  private var _size = 0
+
+  def size: Int = _size
+
+  def isEmpty: Boolean = _size == 0
+
+  /**
+   * The number of bytes allocated for the slots
+   */
+  def sizeInBytes: Long = capacity.toLong * SlotSize
+
+  def contains(producerId: Long): Boolean = _size > 0 && slotOf(producerId) >= 0
+
+  def get(producerId: Long): Option[ProducerStateEntry] = {
+    if (_size == 0)
+      return None
+    val slot = slotOf(producerId)
+    if (slot < 0) None else Some(decode(position(slot)))
+  }
+
+  def put(entry: ProducerStateEntry): Unit = {
+    if (slots == null)
+      resize(InitialCapacity)
+    else if ((_size + 1) > capacity * MaxLoadFactor)
+      resize(capacity * 2)
+
+    var slot = indexFor(entry.producerId)
+    while (isUsed(slot) && slots.getLong(position(slot)) != entry.producerId)
+      slot = (slot + 1) & (capacity - 1)
+    if (!isUsed(slot))
+      _size += 1
+    encode(position(slot), entry)
+  }
+
+  def remove(producerId: Long): Boolean = {
+    if (_size == 0)
+      return false
+    val slot = slotOf(producerId)
+    if (slot < 0)
+      return false
+    deleteSlot(slot)
+    true
+  }
+
+  /**
+   * Find the metadata of the batch with the same epoch and sequence range as the given batch among the last batches of
+   * its producer, without decoding the entry of the producer.
+   */
+  def findDuplicateBatch(producerId: Long, producerEpoch: Short, firstSeq: Int, lastSeq: Int): Option[BatchMetadata] = {
+    if (_size == 0)
+      return None
+    val slot = slotOf(producerId)
+    if (slot < 0)
+      return None
+    val pos = position(slot)
+    if (slots.getShort(pos + EpochOffset) != producerEpoch)
+      return None
+
+    val count = slots.get(pos + CountOffset)
+    val head = slots.getInt(pos + HeadOffset)
+    var i = 0
+    while (i < count) {
+      val batchPos = batchPosition(pos, (head + i) % NumBatches)
+      val batchLastSeq = slots.getInt(batchPos)
+      val offsetDelta = slots.getInt(batchPos + 4)
+      if (batchLastSeq == lastSeq && DefaultRecordBatch.decrementSequence(batchLastSeq, offsetDelta) == firstSeq)
+        return Some(BatchMetadata(batchLastSeq, slots.getLong(batchPos + 8), offsetDelta, slots.getLong(batchPos + 16)))
+      i += 1
+    }
+    None
+  }
+
+  /**
+   * Remove the producers without an ongoing transaction whose last timestamp is at least `maxIdleMs` before
+   * `currentTimeMs`. The table shrinks if most of it is left empty.
+   *
+   * @return The ids of the removed producers
+   */
+  def removeIdle(currentTimeMs: Long, maxIdleMs: Long): collection.Seq[Long] = {
+    if (_size == 0)
+      return Seq.empty
+
+    val idle = mutable.ArrayBuffer.empty[Long]
+    var slot = 0
+    while (slot < capacity) {
+      val pos = position(slot)
+      if (isUsed(slot) && slots.getLong(pos + TxnFirstOffsetOffset) < 0 &&
+          currentTimeMs - slots.getLong(pos + LastTimestampOffset) >= maxIdleMs)
+        idle += slots.getLong(pos)
+      slot += 1
+    }
+    idle.foreach(remove)
+
+    if (_size == 0)
+      clear()
+    else if (capacity > InitialCapacity && _size < capacity * MinLoadFactor)
+      resize(math.max(InitialCapacity, Integer.highestOneBit(math.ceil(_size / MaxLoadFactor).toInt) * 2))
+    idle
+  }
+
+  /**
+   * Decode all the entries, in no particular order
+   */
+  def entries: Iterator[ProducerStateEntry] = {
+    Iterator.range(0, capacity).filter(isUsed).map(slot => decode(position(slot)))
+  }
+
+  def clear(): Unit = {
+    slots = null
+    capacity = 0
+    _size = 0
+  }
+
+  private def slotOf(producerId: Long): Int = {
+    var slot = indexFor(producerId)
+    while (isUsed(slot)) {
+      if (slots.getLong(position(slot)) == producerId)
+        return slot
+      slot = (slot + 1) & (capacity - 1)
+    }
+    -1
+  }
+
+  private def indexFor(producerId: Long): Int = (mix(producerId) & (capacity - 1)).toInt
+
+  private def position(slot: Int): Int = slot * SlotSize
+
+  private def batchPosition(pos: Int, batch: Int): Int = pos + BatchesOffset + batch * BatchSize
+
+  private def isUsed(slot: Int): Boolean = slots.get(position(slot) + UsedOffset) != 0
+
+  /**
+   * Empty the slot and shift back the following entries of the probe sequence which would otherwise become
+   * unreachable, so that no tombstones are needed
+   */
+  private def deleteSlot(slot: Int): Unit = {
+    var hole = slot
+    var next = (hole + 1) & (capacity - 1)
+    while (isUsed(next)) {
+      val ideal = indexFor(slots.getLong(position(next)))
+      // move the entry into the hole unless its ideal slot lies cyclically in (hole, next]
+      val reachable = if (hole <= next) hole < ideal && ideal <= next else hole < ideal || ideal <= next
+      if (!reachable) {
+        copySlot(next, hole)
+        hole = next
+      }
+      next = (next + 1) & (capacity - 1)
+    }
+    clearSlot(hole)
+    _size -= 1
+  }
+
+  private def copySlot(from: Int, to: Int): Unit = {
+    val source = slots.duplicate()
+    source.position(position(from)).limit(position(from) + SlotSize)
+    val target = slots.duplicate()
+    target.position(position(to))
+    target.put(source)
+  }
+
+  private def clearSlot(slot: Int): Unit = {
+    val pos = position(slot)
+    var i = 0
+    while (i < SlotSize) {
+      slots.putLong(pos + i, 0L)
+      i += 8
+    }
+  }
+
+  private def resize(newCapacity: Int): Unit = {
+    val oldSlots = slots
+    val oldCapacity = capacity
+    slots = if (direct) ByteBuffer.allocateDirect(newCapacity * SlotSize) else ByteBuffer.allocate(newCapacity * SlotSize)
+    capacity = newCapacity
+    var i = 0
+    while (i < oldCapacity) {
+      val pos = i * SlotSize
+      if (oldSlots.get(pos + UsedOffset) != 0) {
+        var slot = indexFor(oldSlots.getLong(pos))
+        while (isUsed(slot))
+          slot = (slot + 1) & (capacity - 1)
+        val source = oldSlots.duplicate()
+        source.position(pos).limit(pos + SlotSize)
+        val target = slots.duplicate()
+        target.position(position(slot))
+        target.put(source)
+      }
+      i += 1
+    }
+  }
+
+  private def encode(pos: Int, entry: ProducerStateEntry): Unit = {
+    slots.putLong(pos, entry.producerId)
+    slots.putShort(pos + EpochOffset, entry.producerEpoch)
+    slots.put(pos + UsedOffset, 1.toByte)
+    slots.put(pos + CountOffset, entry.batchMetadata.size.toByte)
+    slots.putInt(pos + CoordinatorEpochOffset, entry.coordinatorEpoch)
+    slots.putLong(pos + LastTimestampOffset, entry.lastTimestamp)
+    slots.putLong(pos + TxnFirstOffsetOffset, entry.currentTxnFirstOffset.getOrElse(-1L))
+    // the batches are rewritten from the start of the ring, oldest first
+    slots.putInt(pos + HeadOffset, 0)
+    var i = 0
+    entry.batchMetadata.foreach { batch =>
+      val batchPos = batchPosition(pos, i)
+      slots.putInt(batchPos, batch.lastSeq)
+      slots.putInt(batchPos + 4, batch.offsetDelta)
+      slots.putLong(batchPos + 8, batch.lastOffset)
+      slots.putLong(batchPos + 16, batch.timestamp)
+      i += 1
+    }
+  }
+
+  private def decode(pos: Int): ProducerStateEntry = {
+    val count = slots.get(pos + CountOffset)
+    val head = slots.getInt(pos + HeadOffset)
+    val batches = mutable.Queue.empty[BatchMetadata]
+    var i = 0
+    while (i < count) {
+      val batchPos = batchPosition(pos, (head + i) % NumBatches)
+      batches += BatchMetadata(slots.getInt(batchPos), slots.getLong(batchPos + 8), slots.getInt(batchPos + 4),
+        slots.getLong(batchPos + 16))
+      i += 1
+    }
+    val txnFirstOffset = slots.getLong(pos + TxnFirstOffsetOffset)
+    new ProducerStateEntry(slots.getLong(pos), batches, slots.getShort(pos + EpochOffset),
+      slots.getInt(pos + CoordinatorEpochOffset), slots.getLong(pos + LastTimestampOffset),
+      if (txnFirstOffset >= 0) Some(txnFirstOffset) else None)
+  }
+
+  /**
+   * Apply the changes of an append to the entry of its producer in place, see `ProducerStateEntry.update`, or insert
+   * the entry if the producer is not in the table.
+   */
+  def update(nextEntry: ProducerStateEntry): Unit = {
+    val slot = if (_size == 0) -1 else slotOf(nextEntry.producerId)
+    if (slot < 0) {
+      put(nextEntry)
+    } else {
+      val pos = position(slot)
+      if (slots.getShort(pos + EpochOffset) != nextEntry.producerEpoch) {
+        slots.putShort(pos + EpochOffset, nextEntry.producerEpoch)
+        slots.put(pos + CountOffset, 0.toByte)
+        slots.putInt(pos + HeadOffset, 0)
+      }
+      nextEntry.batchMetadata.foreach(appendBatch(pos, _))
+      slots.putInt(pos + CoordinatorEpochOffset, nextEntry.coordinatorEpoch)
+      slots.putLong(pos + LastTimestampOffset, nextEntry.lastTimestamp)
+      slots.putLong(pos + TxnFirstOffsetOffset, nextEntry.currentTxnFirstOffset.getOrElse(-1L))
+    }
+  }
+
+  /**
+   * Append the metadata of a batch to the ring of the slot, replacing the oldest batch if the ring is full
+   */
+  private def appendBatch(pos: Int, batch: BatchMetadata): Unit = {
+    val count = slots.get(pos + CountOffset)
+    val head = slots.getInt(pos + HeadOffset)
+    val batchPos =
+      if (count < NumBatches) {
+        slots.put(pos + CountOffset, (count + 1).toByte)
+        batchPosition(pos, (head + count) % NumBatches)
+      } else {
+        slots.putInt(pos + HeadOffset, (head + 1) % NumBatches)
+        batchPosition(pos, head)
+      }
+    slots.putInt(batchPos, batch.lastSeq)
+    slots.putInt(batchPos + 4, batch.offsetDelta)
+    slots.putLong(batchPos + 8, batch.lastOffset)
+    slots.putLong(batchPos + 16, batch.timestamp)
+  }
+}
+
+private[log] object ProducerStateTable {
+  private val NumBatches = ProducerStateEntry.NumBatchesToRetain
+  private val InitialCapacity = 16
+  private val MaxLoadFactor = 0.75
+  private val MinLoadFactor = 0.125
+
+  private val EpochOffset = 8
+  private val UsedOffset = EpochOffset + 2
+  private val CountOffset = UsedOffset + 1
+  private val CoordinatorEpochOffset = CountOffset + 1
+  private val LastTimestampOffset = CoordinatorEpochOffset + 4
+  private val TxnFirstOffsetOffset = LastTimestampOffset + 8
+  private val HeadOffset = TxnFirstOffsetOffset + 8
+  private val BatchesOffset = HeadOffset + 4 + 4
+  private val BatchSize = 4 + 4 + 8 + 8
+  private[log] val SlotSize = BatchesOffset + NumBatches * BatchSize
+
+  // the finalizer of murmur3, so that sequential producer ids spread over the table
+  private def mix(producerId: Long): Long = {
+    var k = producerId
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^= k >>> 33
+    k
+  }
+}
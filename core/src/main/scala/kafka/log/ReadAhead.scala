@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReferenceArray}
+import java.util.concurrent.{ArrayBlockingQueue, RejectedExecutionException, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{Logging, threadsafe}
+import org.apache.kafka.common.utils.KafkaThread
+
+/**
+ * Reads the data following the sequential reads of the logs in the background, so that it is in the page cache by the
+ * time it is fetched. Consumers catching up on older segments otherwise block the request handler threads on disk
+ * reads when their fetches look up the offset index and the batches of the segment.
+ *
+ * Since the JVM has no access to `posix_fadvise` or `readahead`, the data is read through the file channel of the
+ * segment into a scratch buffer which is discarded. The prefetch threads must never be interrupted since that would
+ * close the channel of the segment, so the pool is only ever shut down gracefully.
+ *
+ * @param bytes The number of bytes to read ahead of a sequential read
+ * @param threads The number of threads reading ahead
+ */
+@threadsafe
+private[log] class ReadAhead(val bytes: Int, threads: Int) extends Logging with KafkaMetricsGroup {
+  import ReadAhead._
+
+  private val executor = {
+    val threadId = new AtomicInteger(0)
+    new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue[Runnable](threads * MaxQueuedPrefetchesPerThread),
+      new ThreadFactory {
+        override def newThread(r: Runnable): Thread = KafkaThread.daemon(s"log-read-ahead-${threadId.getAndIncrement()}", r)
+      })
+  }
+
+  private val prefetchedBytesMeter = newMeter(PrefetchedBytesPerSec, "bytes", TimeUnit.SECONDS)
+  private val coldReadMeter = newMeter(ColdReadsPerSec, "reads", TimeUnit.SECONDS)
+  private val droppedMeter = newMeter(DroppedPrefetchesPerSec, "prefetches", TimeUnit.SECONDS)
+
+  private[log] def prefetchedBytes: Long = prefetchedBytesMeter.count
+
+  /**
+   * Read the given range of the segment in the background, unless too many prefetches are queued already
+   */
+  def prefetch(segment: LogSegment, from: Int, to: Int): Unit = {
+    try executor.execute(() => load(segment, from, to))
+    catch {
+      case _: RejectedExecutionException => droppedMeter.mark()
+    }
+  }
+
+  /**
+   * Record a read of a segment other than the active one which was not prefetched, which is likely to be served from
+   * disk by the request handler thread
+   */
+  def onColdRead(): Unit = coldReadMeter.mark()
+
+  /**
+   * Stop reading ahead, the prefetches which are queued already are dropped
+   */
+  def shutdown(): Unit = {
+    executor.shutdown()
+    executor.getQueue.clear()
+    removeMetric(PrefetchedBytesPerSec)
+    removeMetric(ColdReadsPerSec)
+    removeMetric(DroppedPrefetchesPerSec)
+  }
+
+  private def load(segment: LogSegment, from: Int, to: Int): Unit = {
+    val buffer = scratchBuffer.get
+    val channel = segment.log.channel
+    var position = from.toLong
+    try {
+      while (position < to) {
+        buffer.clear()
+        buffer.limit(math.min(buffer.capacity.toLong, to - position).toInt)
+        val read = channel.read(buffer, position)
+        if (read <= 0)
+          position = to
+        else {
+          position += read
+          prefetchedBytesMeter.mark(read)
+        }
+      }
+    } catch {
+      // the segment may have been deleted or closed in the meantime
+      case e: IOException => debug(s"Failed to prefetch $segment from position $from to $to", e)
+    }
+  }
+}
+
+object ReadAhead {
+  private val MaxQueuedPrefetchesPerThread = 64
+  private val ScratchBufferSize = 1024 * 1024
+
+  private val PrefetchedBytesPerSec = "PrefetchedBytesPerSec"
+  private val ColdReadsPerSec = "ColdReadsPerSec"
+  private val DroppedPrefetchesPerSec = "DroppedPrefetchesPerSec"
+
+  private val scratchBuffer = ThreadLocal.withInitial[ByteBuffer](() => ByteBuffer.allocateDirect(ScratchBufferSize))
+}
+
+/**
+ * Detects the sequential reads of a log and prefetches the data following them. A read is sequential if it starts
+ * within the range of a recent read of the same segment, past its start, which is the case of consumers and followers
+ * fetching one batch of data after the other. A few of these streams are tracked per log since several consumer groups
+ * may catch up on a partition at the same time.
+ *
+ * The range ahead of a stream is prefetched again once the stream has consumed half of it. Reads towards the end of
+ * the active segment are not prefetched since recently appended data is still in the page cache.
+ *
+ * The reads of a log are concurrent, so the streams are immutable and replaced by compare-and-set rather than under a
+ * lock. A read racing with another one on the same stream may be left out of it, which only costs a prefetch. The
+ * streams refer to their segment by base offset so that they don't retain the deleted segments of the log.
+ */
+@threadsafe
+private[log] class SequentialReadDetector(readAhead: ReadAhead) {
+  import SequentialReadDetector._
+
+  private val streams = new AtomicReferenceArray[ReadStream](MaxStreams)
+  private val nextStream = new AtomicInteger(0)
+
+  /**
+   * @param segment The segment which was read
+   * @param position The position of the read in the segment
+   * @param size The number of bytes read
+   * @param isActiveSegment Whether the segment is the active segment of the log
+   */
+  def onRead(segment: LogSegment, position: Int, size: Int, isActiveSegment: Boolean): Unit = {
+    val readAheadBytes = readAhead.bytes
+    if (readAheadBytes <= 0 || size <= 0)
+      return
+
+    val baseOffset = segment.baseOffset
+    val end = position + size
+    var index = 0
+    var stream: ReadStream = null
+    while (stream == null && index < MaxStreams) {
+      val current = streams.get(index)
+      if (current != null && current.isFollowedBy(baseOffset, position))
+        stream = current
+      else
+        index += 1
+    }
+
+    if (stream == null) {
+      if (!isActiveSegment)
+        readAhead.onColdRead()
+      streams.set(Math.floorMod(nextStream.getAndIncrement(), MaxStreams), ReadStream(baseOffset, position, end, 0))
+    } else {
+      if (!isActiveSegment && end > stream.prefetchedUpTo)
+        readAhead.onColdRead()
+      val segmentSize = segment.size
+      val isHot = isActiveSegment && segmentSize - end <= readAheadBytes
+      val from = math.max(end, stream.prefetchedUpTo)
+      val to = math.min(end.toLong + readAheadBytes, segmentSize.toLong).toInt
+      val prefetch = !isHot && stream.prefetchedUpTo - end < readAheadBytes / 2 && to > from
+      val prefetchedUpTo = if (prefetch) to else stream.prefetchedUpTo
+      if (streams.compareAndSet(index, stream, ReadStream(baseOffset, position, end, prefetchedUpTo)) && prefetch)
+        readAhead.prefetch(segment, from, to)
+    }
+  }
+}
+
+private object SequentialReadDetector {
+  private val MaxStreams = 4
+
+  private case class ReadStream(baseOffset: Long, start: Int, end: Int, prefetchedUpTo: Int) {
+    def isFollowedBy(baseOffset: Long, position: Int): Boolean =
+      this.baseOffset == baseOffset && position > start && position <= end
+  }
+}
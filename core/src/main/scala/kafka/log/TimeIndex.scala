@@ -50,8 +50,9 @@ import org.apache.kafka.common.record.RecordBatch
  *
  */
 // Avoid shadowing mutable file in AbstractIndex
-class TimeIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true)
-    extends AbstractIndex(_file, baseOffset, maxIndexSize, writable) {
+class TimeIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true,
+                sampleCache: Option[IndexSampleCache] = None)
+    extends AbstractIndex(_file, baseOffset, maxIndexSize, writable, sampleCache) {
   import TimeIndex._
 
   @volatile private var _lastEntry = lastEntryFromIndexFile
@@ -201,6 +202,8 @@ class TimeIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable:
    */
   private def truncateToEntries(entries: Int): Unit = {
     inLock(lock) {
+      if (entries < _entries)
+        onEntriesRemoved()
       _entries = entries
       mmap.position(_entries * entrySize)
       _lastEntry = lastEntryFromIndexFile
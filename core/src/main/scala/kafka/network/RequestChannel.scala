@@ -34,7 +34,7 @@ import org.apache.kafka.common.memory.MemoryPool
 import org.apache.kafka.common.message.ApiMessageType.ListenerType
 import org.apache.kafka.common.message.IncrementalAlterConfigsRequestData
 import org.apache.kafka.common.message.IncrementalAlterConfigsRequestData._
-import org.apache.kafka.common.network.Send
+import org.apache.kafka.common.network.{PooledSend, Send}
 import org.apache.kafka.common.protocol.{ApiKeys, Errors, ObjectSerializationCache}
 import org.apache.kafka.common.requests._
 import org.apache.kafka.common.security.auth.KafkaPrincipal
@@ -51,6 +51,10 @@ object RequestChannel extends Logging {
   val RequestQueueSizeMetric = "RequestQueueSize"
   val ResponseQueueSizeMetric = "ResponseQueueSize"
   val ProcessorMetricTag = "processor"
+  val ShardMetricTag = "requestQueueShard"
+
+  /* the longest time an idle handler waits for a request of its own shard before looking for one in other shards */
+  private val StealIntervalMs = 10L
 
   def isRequestLoggingEnabled: Boolean = requestLogger.underlying.isDebugEnabled
 
@@ -67,6 +71,7 @@ object RequestChannel extends Logging {
     }
 
     private val metricsMap = mutable.Map[String, RequestMetrics]()
+    private val schedulingClassMetrics = SchedulingClass.values.map(new SchedulingClassMetrics(_))
 
     (enabledApis.map(_.name) ++
       Seq(RequestMetrics.consumerFetchMetricName, RequestMetrics.followFetchMetricName)).foreach { name =>
@@ -75,8 +80,11 @@ object RequestChannel extends Logging {
 
     def apply(metricName: String): RequestMetrics = metricsMap(metricName)
 
+    def apply(schedulingClass: SchedulingClass): SchedulingClassMetrics = schedulingClassMetrics(schedulingClass.id)
+
     def close(): Unit = {
        metricsMap.values.foreach(_.removeMetrics())
+       schedulingClassMetrics.foreach(_.removeMetrics())
     }
   }
 
@@ -102,6 +110,8 @@ object RequestChannel extends Logging {
 
     private val bodyAndSize: RequestAndSize = context.parseRequest(buffer)
 
+    val schedulingClass: SchedulingClass = SchedulingClass.of(this)
+
     // This is constructed on creation of a Request so that the JSON representation is computed before the request is
     // processed by the api layer. Otherwise, a ProduceRequest can occur without its data (ie. it goes into purgatory).
     val requestLog: Option[JsonNode] =
@@ -134,6 +144,18 @@ object RequestChannel extends Logging {
       }
     }
 
+    /** Build the response send into a buffer allocated from the memory pool, which is released once it has been sent */
+    def buildResponseSend(abstractResponse: AbstractResponse, memoryPool: MemoryPool): PooledSend = {
+      envelope match {
+        case Some(request) =>
+          val responseBytes = context.buildResponseEnvelopePayload(abstractResponse)
+          val envelopeResponse = new EnvelopeResponse(responseBytes, Errors.NONE)
+          request.context.buildResponseSend(envelopeResponse, memoryPool)
+        case None =>
+          context.buildResponseSend(abstractResponse, memoryPool)
+      }
+    }
+
     def responseNode(response: AbstractResponse): Option[JsonNode] = {
       if (RequestChannel.isRequestLoggingEnabled)
         Some(RequestConvertToJson.response(response, context.apiVersion))
@@ -228,6 +250,10 @@ object RequestChannel extends Logging {
       val responseSendTimeMs = nanosToMs(endTimeNanos - responseDequeueTimeNanos)
       val messageConversionsTimeMs = nanosToMs(messageConversionsTimeNanos)
       val totalTimeMs = nanosToMs(endTimeNanos - startTimeNanos)
+      val responseBufferBytes = response match {
+        case sendResponse: SendResponse => sendResponse.bufferSize
+        case _ => None
+      }
       val fetchMetricNames =
         if (header.apiKey == ApiKeys.FETCH) {
           val isFromFollower = body[FetchRequest].isFromFollower
@@ -249,9 +275,11 @@ object RequestChannel extends Logging {
         m.responseSendTimeHist.update(Math.round(responseSendTimeMs))
         m.totalTimeHist.update(Math.round(totalTimeMs))
         m.requestBytesHist.update(sizeOfBodyInBytes)
+        responseBufferBytes.foreach(m.responseBufferBytesHist.update(_))
         m.messageConversionsTimeHist.foreach(_.update(Math.round(messageConversionsTimeMs)))
         m.tempMemoryBytesHist.foreach(_.update(temporaryMemoryBytes))
       }
+      metrics(schedulingClass).requestQueueTimeHist.update(Math.round(requestQueueTimeMs))
 
       // Records network handler thread usage. This is included towards the request quota for the
       // user/client. Throttling is only performed when request handler thread usage
@@ -312,6 +340,18 @@ object RequestChannel extends Logging {
 
     override def onComplete: Option[Send => Unit] = onCompleteCallback
 
+    /** The size of the buffer the response was serialized into, if known, excluding the zero-copy records */
+    def bufferSize: Option[Int] = responseSend match {
+      case send: PooledSend => Some(send.bufferSize)
+      case _ => None
+    }
+
+    /** Release the buffer of the response if it was allocated from a memory pool, once it has been sent or dropped */
+    def releaseBuffer(): Unit = responseSend match {
+      case send: PooledSend => send.release()
+      case _ =>
+    }
+
     override def toString: String =
       s"Response(type=Send, request=$request, send=$responseSend, asString=$responseLogValue)"
   }
@@ -337,17 +377,41 @@ object RequestChannel extends Logging {
   }
 }
 
+/**
+ * The queues of the requests from the processors to the request handlers, and of the responses back to the processors.
+ *
+ * The requests may be split into several shards, each of them with its own queue, to avoid the contention of all
+ * the processors and handlers on one queue. The requests of a processor always go to the same shard, and each handler
+ * polls a home shard, taking requests from the other shards when its own is empty.
+ *
+ * The requests of a shard are handled in the order they were received, unless scheduling class weights are given, in
+ * which case the scheduling classes of the requests take turns in proportion to their weights, see `WeightedRequestQueue`.
+ *
+ * @param queueSize The maximum number of queued requests, split evenly between the shards
+ * @param numShards The number of request queues
+ * @param schedulingClassWeights The weight of each scheduling class, the classes which are not given have a weight of 1.
+ *                               Requests are handled in the order they were received if empty.
+ * @param responseMemoryPool The pool of the buffers the responses are serialized into, released by the processors once
+ *                           the responses have been sent
+ */
 class RequestChannel(val queueSize: Int,
                      val metricNamePrefix: String,
                      time: Time,
-                     val metrics: RequestChannel.Metrics) extends KafkaMetricsGroup {
+                     val metrics: RequestChannel.Metrics,
+                     val numShards: Int = 1,
+                     schedulingClassWeights: Map[SchedulingClass, Int] = Map.empty,
+                     responseMemoryPool: MemoryPool = MemoryPool.NONE) extends KafkaMetricsGroup {
   import RequestChannel._
-  private val requestQueue = new ArrayBlockingQueue[BaseRequest](queueSize)
+  private val requestQueues = Array.fill(numShards)(newRequestQueue(math.max(1, queueSize / numShards)))
   private val processors = new ConcurrentHashMap[Int, Processor]()
   val requestQueueSizeMetricName = metricNamePrefix.concat(RequestQueueSizeMetric)
   val responseQueueSizeMetricName = metricNamePrefix.concat(ResponseQueueSizeMetric)
 
-  newGauge(requestQueueSizeMetricName, () => requestQueue.size)
+  newGauge(requestQueueSizeMetricName, () => requestQueues.foldLeft(0)(_ + _.size))
+  if (numShards > 1) {
+    for (shard <- 0 until numShards)
+      newGauge(requestQueueSizeMetricName, () => requestQueues(shard).size, Map(ShardMetricTag -> shard.toString))
+  }
 
   newGauge(responseQueueSizeMetricName, () => {
     processors.values.asScala.foldLeft(0) {(total, processor) =>
@@ -355,6 +419,13 @@ class RequestChannel(val queueSize: Int,
     }
   })
 
+  private def newRequestQueue(capacity: Int): RequestQueue = {
+    if (schedulingClassWeights.isEmpty)
+      new FifoRequestQueue(capacity)
+    else
+      new WeightedRequestQueue(capacity, SchedulingClass.values.map(schedulingClassWeights.getOrElse(_, 1)).toArray)
+  }
+
   def addProcessor(processor: Processor): Unit = {
     if (processors.putIfAbsent(processor.id, processor) != null)
       warn(s"Unexpected processor with processorId ${processor.id}")
@@ -370,7 +441,7 @@ class RequestChannel(val queueSize: Int,
 
   /** Send a request to be handled, potentially blocking until there is room in the queue for the request */
   def sendRequest(request: RequestChannel.Request): Unit = {
-    requestQueue.put(request)
+    requestQueues(request.processor % numShards).put(request)
   }
 
   def closeConnection(
@@ -391,7 +462,7 @@ class RequestChannel(val queueSize: Int,
     updateErrorMetrics(request.header.apiKey, response.errorCounts.asScala)
     sendResponse(new RequestChannel.SendResponse(
       request,
-      request.buildResponseSend(response),
+      request.buildResponseSend(response, responseMemoryPool),
       request.responseNode(response),
       onComplete
     ))
@@ -449,12 +520,51 @@ class RequestChannel(val queueSize: Int,
   }
 
   /** Get the next request or block until specified time has elapsed */
-  def receiveRequest(timeout: Long): RequestChannel.BaseRequest =
-    requestQueue.poll(timeout, TimeUnit.MILLISECONDS)
+  def receiveRequest(timeout: Long): RequestChannel.BaseRequest = receiveRequest(timeout, shard = 0)
+
+  /**
+   * Get the next request of the given shard, or of another shard if there is none, or block until specified time has
+   * elapsed
+   */
+  def receiveRequest(timeout: Long, shard: Int): RequestChannel.BaseRequest = {
+    val homeShard = shard % numShards
+    if (numShards == 1)
+      requestQueues(homeShard).poll(timeout)
+    else {
+      var request = requestQueues(homeShard).poll()
+      var remainingMs = timeout
+      while (request == null && remainingMs > 0) {
+        request = stealRequest(homeShard)
+        if (request == null) {
+          val waitMs = math.min(remainingMs, StealIntervalMs)
+          request = requestQueues(homeShard).poll(waitMs)
+          remainingMs -= waitMs
+        }
+      }
+      if (request == null)
+        stealRequest(homeShard)
+      else
+        request
+    }
+  }
+
+  private def stealRequest(homeShard: Int): RequestChannel.BaseRequest = {
+    var request: BaseRequest = null
+    var i = 1
+    while (request == null && i < numShards) {
+      request = requestQueues((homeShard + i) % numShards).poll()
+      i += 1
+    }
+    request
+  }
 
   /** Get the next request or block until there is one */
-  def receiveRequest(): RequestChannel.BaseRequest =
-    requestQueue.take()
+  def receiveRequest(): RequestChannel.BaseRequest = {
+    var request: BaseRequest = null
+    while (request == null)
+      request = receiveRequest(Long.MaxValue)
+    request
+  }
 
   def updateErrorMetrics(apiKey: ApiKeys, errors: collection.Map[Errors, Integer]): Unit = {
     errors.forKeyValue { (error, count) =>
@@ -463,7 +573,7 @@ class RequestChannel(val queueSize: Int,
   }
 
   def clear(): Unit = {
-    requestQueue.clear()
+    requestQueues.foreach(_.clear())
   }
 
   def shutdown(): Unit = {
@@ -471,7 +581,8 @@ class RequestChannel(val queueSize: Int,
     metrics.close()
   }
 
-  def sendShutdownRequest(): Unit = requestQueue.put(ShutdownRequest)
+  /** Send a shutdown request, which is taken by one of the handlers */
+  def sendShutdownRequest(): Unit = requestQueues(0).put(ShutdownRequest)
 
 }
 
@@ -490,9 +601,21 @@ object RequestMetrics {
   val RequestBytes = "RequestBytes"
   val MessageConversionsTimeMs = "MessageConversionsTimeMs"
   val TemporaryMemoryBytes = "TemporaryMemoryBytes"
+  val ResponseBufferBytes = "ResponseBufferBytes"
   val ErrorsPerSec = "ErrorsPerSec"
 }
 
+/**
+ * The metrics of the requests of a scheduling class, whatever their API
+ */
+class SchedulingClassMetrics(schedulingClass: SchedulingClass) extends KafkaMetricsGroup {
+  private val tags = Map("schedulingClass" -> schedulingClass.name)
+  // time a request spent in a request queue
+  val requestQueueTimeHist = newHistogram(RequestMetrics.RequestQueueTimeMs, biased = true, tags)
+
+  def removeMetrics(): Unit = removeMetric(RequestMetrics.RequestQueueTimeMs, tags)
+}
+
 class RequestMetrics(name: String) extends KafkaMetricsGroup {
 
   import RequestMetrics._
@@ -515,6 +638,8 @@ class RequestMetrics(name: String) extends KafkaMetricsGroup {
   val totalTimeHist = newHistogram(TotalTimeMs, biased = true, tags)
   // request size in bytes
   val requestBytesHist = newHistogram(RequestBytes, biased = true, tags)
+  // size of the buffer a response is serialized into, excluding the records sent without copy
+  val responseBufferBytesHist = newHistogram(ResponseBufferBytes, biased = true, tags)
   // time for message conversions (only relevant to fetch and produce requests)
   val messageConversionsTimeHist =
     if (name == ApiKeys.FETCH.name || name == ApiKeys.PRODUCE.name)
@@ -578,6 +703,7 @@ class RequestMetrics(name: String) extends KafkaMetricsGroup {
     removeMetric(TotalTimeMs, tags)
     removeMetric(ResponseSendTimeMs, tags)
     removeMetric(RequestBytes, tags)
+    removeMetric(ResponseBufferBytes, tags)
     removeMetric(ResponseSendTimeMs, tags)
     if (name == ApiKeys.FETCH.name || name == ApiKeys.PRODUCE.name) {
       removeMetric(MessageConversionsTimeMs, tags)
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+import java.util.concurrent.locks.ReentrantLock
+
+import kafka.network.RequestChannel.{BaseRequest, Request, ShutdownRequest}
+import kafka.utils.CoreUtils.inLock
+import kafka.utils.threadsafe
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.requests.FetchRequest
+
+/**
+ * The class of a request for the scheduling of the request handlers, see `WeightedRequestQueue`
+ */
+sealed abstract class SchedulingClass(val name: String, val id: Int) {
+  override def toString: String = name
+}
+
+object SchedulingClass {
+  /* follower fetches and the requests between brokers, e.g. LeaderAndIsr */
+  case object Replication extends SchedulingClass("replication", 0)
+  case object Produce extends SchedulingClass("produce", 1)
+  case object ConsumerFetch extends SchedulingClass("consumer-fetch", 2)
+  /* all the other requests, e.g. Metadata, ListOffsets, the group coordination and the admin requests */
+  case object Other extends SchedulingClass("other", 3)
+
+  val values: Seq[SchedulingClass] = Seq(Replication, Produce, ConsumerFetch, Other)
+
+  def fromName(name: String): Option[SchedulingClass] = values.find(_.name == name)
+
+  def apply(request: BaseRequest): SchedulingClass = request match {
+    case ShutdownRequest => Other
+    case request: Request => request.schedulingClass
+  }
+
+  private[network] def of(request: Request): SchedulingClass = request.header.apiKey match {
+    case ApiKeys.FETCH => if (request.body[FetchRequest].isFromFollower) Replication else ConsumerFetch
+    case ApiKeys.PRODUCE => Produce
+    case apiKey if apiKey.clusterAction => Replication
+    case _ => Other
+  }
+}
+
+/**
+ * A bounded queue of the requests of a shard of the request channel, which blocks the senders while it is full
+ */
+@threadsafe
+private[network] trait RequestQueue {
+  def put(request: BaseRequest): Unit
+
+  /** Get the next request, or null if there is none */
+  def poll(): BaseRequest
+
+  /** Get the next request, or null if there is none within the timeout */
+  def poll(timeoutMs: Long): BaseRequest
+
+  def size: Int
+
+  def clear(): Unit
+}
+
+/**
+ * Requests in the order they were received
+ */
+private[network] class FifoRequestQueue(capacity: Int) extends RequestQueue {
+  private val queue = new ArrayBlockingQueue[BaseRequest](capacity)
+
+  override def put(request: BaseRequest): Unit = queue.put(request)
+
+  override def poll(): BaseRequest = queue.poll()
+
+  override def poll(timeoutMs: Long): BaseRequest = queue.poll(timeoutMs, TimeUnit.MILLISECONDS)
+
+  override def size: Int = queue.size
+
+  override def clear(): Unit = queue.clear()
+}
+
+/**
+ * Requests of each scheduling class in the order they were received, with the classes taking turns in proportion to
+ * their weights, so that a burst of requests of one class, e.g. consumers catching up, only delays the requests of the
+ * other classes by its share of the request handlers.
+ *
+ * The turns are taken by smooth weighted round-robin among the classes which have queued requests, so a class with a
+ * weight of 4 next to a class with a weight of 1 gets four of every five requests, interleaved with the other class
+ * rather than in a row. A class without queued requests takes no turns and accumulates no credit, so the handlers are
+ * never idle while requests are queued.
+ *
+ * @param capacity The maximum number of queued requests of all the classes
+ * @param weights The weight of each scheduling class, by id
+ */
+private[network] class WeightedRequestQueue(capacity: Int, weights: Array[Int]) extends RequestQueue {
+  private val lock = new ReentrantLock
+  private val notEmpty = lock.newCondition()
+  private val notFull = lock.newCondition()
+  // the queues and credits of the classes and the total number of queued requests, guarded by the lock
+  private val queues = Array.fill(weights.length)(new util.ArrayDeque[BaseRequest])
+  private val credits = new Array[Long](weights.length)
+  private var count = 0
+
+  override def put(request: BaseRequest): Unit = {
+    val schedulingClass = SchedulingClass(request)
+    lock.lockInterruptibly()
+    try {
+      while (count == capacity)
+        notFull.await()
+      queues(schedulingClass.id).add(request)
+      count += 1
+      notEmpty.signal()
+    } finally lock.unlock()
+  }
+
+  override def poll(): BaseRequest = inLock(lock) {
+    if (count == 0) null else dequeue()
+  }
+
+  override def poll(timeoutMs: Long): BaseRequest = {
+    var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+    lock.lockInterruptibly()
+    try {
+      while (count == 0 && remainingNanos > 0)
+        remainingNanos = notEmpty.awaitNanos(remainingNanos)
+      if (count == 0) null else dequeue()
+    } finally lock.unlock()
+  }
+
+  private def dequeue(): BaseRequest = {
+    var next = -1
+    var totalWeight = 0L
+    for (id <- queues.indices) {
+      if (!queues(id).isEmpty) {
+        credits(id) += weights(id)
+        totalWeight += weights(id)
+        if (next == -1 || credits(id) > credits(next))
+          next = id
+      }
+    }
+    credits(next) -= totalWeight
+    val request = queues(next).poll()
+    if (queues(next).isEmpty)
+      credits(next) = 0
+    count -= 1
+    notFull.signal()
+    request
+  }
+
+  override def size: Int = inLock(lock) { count }
+
+  override def clear(): Unit = inLock(lock) {
+    queues.foreach(_.clear())
+    util.Arrays.fill(credits, 0L)
+    count = 0
+    notFull.signalAll()
+  }
+}
@@ -39,7 +39,7 @@ import kafka.utils._
 import org.apache.kafka.common.config.ConfigException
 import org.apache.kafka.common.config.internals.QuotaConfigs
 import org.apache.kafka.common.errors.InvalidRequestException
-import org.apache.kafka.common.memory.{MemoryPool, SimpleMemoryPool}
+import org.apache.kafka.common.memory.{MemoryPool, RecyclingMemoryPool, SimpleMemoryPool}
 import org.apache.kafka.common.metrics._
 import org.apache.kafka.common.metrics.stats.{Avg, CumulativeSum, Meter, Rate}
 import org.apache.kafka.common.network.KafkaChannel.ChannelMuteEvent
@@ -93,11 +93,22 @@ class SocketServer(val config: KafkaConfig,
   private val memoryPoolDepletedPercentMetricName = metrics.metricName("MemoryPoolAvgDepletedPercent", MetricsGroup)
   private val memoryPoolDepletedTimeMetricName = metrics.metricName("MemoryPoolDepletedTimeTotal", MetricsGroup)
   memoryPoolSensor.add(new Meter(TimeUnit.MILLISECONDS, memoryPoolDepletedPercentMetricName, memoryPoolDepletedTimeMetricName))
-  private val memoryPool = if (config.queuedMaxBytes > 0) new SimpleMemoryPool(config.queuedMaxBytes, config.socketRequestMaxBytes, false, memoryPoolSensor) else MemoryPool.NONE
+  private val memoryPool =
+    if (config.queuedMaxBytes <= 0) MemoryPool.NONE
+    else if (config.socketRequestBufferRecyclingEnable)
+      new RecyclingMemoryPool(config.queuedMaxBytes, config.socketRequestMaxBytes, false, memoryPoolSensor, config.socketRequestBufferDirectEnable)
+    else new SimpleMemoryPool(config.queuedMaxBytes, config.socketRequestMaxBytes, false, memoryPoolSensor)
+  // the buffers of the serialized responses, which are not released if a processor is shut down with pending responses,
+  // so the pool is not strict
+  private val responseMemoryPool =
+    if (config.socketResponseBufferPoolBytes <= 0) MemoryPool.NONE
+    else new RecyclingMemoryPool(config.socketResponseBufferPoolBytes, math.min(config.socketResponseBufferPoolBytes, Int.MaxValue).toInt,
+      false, null, true)
   // data-plane
   private val dataPlaneProcessors = new ConcurrentHashMap[Int, Processor]()
   private[network] val dataPlaneAcceptors = new ConcurrentHashMap[EndPoint, Acceptor]()
-  val dataPlaneRequestChannel = new RequestChannel(maxQueuedRequests, DataPlaneMetricPrefix, time, apiVersionManager.newRequestMetrics)
+  val dataPlaneRequestChannel = new RequestChannel(maxQueuedRequests, DataPlaneMetricPrefix, time, apiVersionManager.newRequestMetrics,
+    config.numRequestQueueShards, config.requestSchedulingClassWeights.toMap, responseMemoryPool)
   // control-plane
   private var controlPlaneProcessorOpt : Option[Processor] = None
   private[network] var controlPlaneAcceptorOpt : Option[Acceptor] = None
@@ -152,6 +163,20 @@ class SocketServer(val config: KafkaConfig,
     })
     newGauge("MemoryPoolAvailable", () => memoryPool.availableMemory)
     newGauge("MemoryPoolUsed", () => memoryPool.size() - memoryPool.availableMemory)
+    memoryPool match {
+      case pool: RecyclingMemoryPool =>
+        newGauge("MemoryPoolHitRatio", () => pool.hitRatio)
+        newGauge("MemoryPoolRetainedBytes", () => pool.retainedBytes)
+        newGauge("MemoryPoolFragmentationBytes", () => pool.fragmentationBytes)
+      case _ =>
+    }
+    responseMemoryPool match {
+      case pool: RecyclingMemoryPool =>
+        newGauge("ResponseMemoryPoolAvailable", () => pool.availableMemory)
+        newGauge("ResponseMemoryPoolUsed", () => pool.size() - pool.availableMemory)
+        newGauge("ResponseMemoryPoolHitRatio", () => pool.hitRatio)
+      case _ =>
+    }
     newGauge(s"${DataPlaneMetricPrefix}ExpiredConnectionsKilledCount", () => SocketServer.this.synchronized {
       val expiredConnectionsKilledCountMetricNames = dataPlaneProcessors.values.asScala.iterator.map { p =>
         metrics.metricName("expired-connections-killed-count", MetricsGroup, p.metricTags)
@@ -285,7 +310,8 @@ class SocketServer(val config: KafkaConfig,
   private def createAcceptor(endPoint: EndPoint, metricPrefix: String) : Acceptor = {
     val sendBufferSize = config.socketSendBufferBytes
     val recvBufferSize = config.socketReceiveBufferBytes
-    new Acceptor(endPoint, sendBufferSize, recvBufferSize, nodeId, connectionQuotas, metricPrefix, time)
+    new Acceptor(endPoint, sendBufferSize, recvBufferSize, nodeId, connectionQuotas, metricPrefix, time,
+      connectionLoadBalancing = config.connectionLoadBalancingEnable)
   }
 
   private def addDataPlaneProcessors(acceptor: Acceptor, endpoint: EndPoint, newProcessorsPerListener: Int): Unit = {
@@ -553,7 +579,8 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
                               connectionQuotas: ConnectionQuotas,
                               metricPrefix: String,
                               time: Time,
-                              logPrefix: String = "") extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
+                              logPrefix: String = "",
+                              connectionLoadBalancing: Boolean = false) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
 
   this.logIdent = logPrefix
   private val nioSelector = NSelector.open()
@@ -670,7 +697,8 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
   }
 
   /**
-   * Listen for new connections and assign accepted connections to processors using round-robin.
+   * Listen for new connections and assign accepted connections to processors using round-robin, or to the less loaded
+   * of the next processor in round-robin order and a random other one if connection load balancing is enabled.
    */
   private def acceptNewConnections(): Unit = {
     val ready = nioSelector.select(500)
@@ -691,13 +719,7 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
               var processor: Processor = null
               do {
                 retriesLeft -= 1
-                processor = synchronized {
-                  // adjust the index (if necessary) and retrieve the processor atomically for
-                  // correct behaviour in case the number of processors is reduced dynamically
-                  currentProcessorIndex = currentProcessorIndex % processors.length
-                  processors(currentProcessorIndex)
-                }
-                currentProcessorIndex += 1
+                processor = nextProcessor()
               } while (!assignNewConnection(socketChannel, processor, retriesLeft == 0))
             }
           } else
@@ -709,6 +731,22 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
     }
   }
 
+  private def nextProcessor(): Processor = synchronized {
+    // adjust the index (if necessary) and retrieve the processor atomically for
+    // correct behaviour in case the number of processors is reduced dynamically
+    currentProcessorIndex = currentProcessorIndex % processors.length
+    val processor = processors(currentProcessorIndex)
+    currentProcessorIndex += 1
+    if (!connectionLoadBalancing || processors.length == 1)
+      processor
+    else {
+      // Comparing with one random processor rather than taking the least loaded of all of them keeps a burst of
+      // connections from all going to the same processor before its load reflects them
+      val other = processors((currentProcessorIndex + ThreadLocalRandom.current.nextInt(processors.length - 1)) % processors.length)
+      if (Processor.isLessLoaded(other, processor)) other else processor
+    }
+  }
+
   /**
    * Accept a new connection
    */
@@ -773,6 +811,25 @@ private[kafka] object Processor {
   val NetworkProcessorMetricTag = "networkProcessor"
   val ListenerMetricTag = "listener"
   val ConnectionQueueSize = 20
+  val ConnectionCountMetricName = "ConnectionCount"
+  val IncomingByteRateMetricName = "IncomingByteRate"
+  val OutgoingByteRateMetricName = "OutgoingByteRate"
+
+  // processors whose busy ratios differ by less than this are compared by their numbers of connections
+  private val BusyRatioTolerance = 0.1
+
+  /**
+   * Whether a new connection should rather be assigned to the first processor than to the second, because it is
+   * significantly less busy or, if they are about as busy, because it has fewer connections
+   */
+  private[network] def isLessLoaded(processor: Processor, other: Processor): Boolean = {
+    val busyRatio = processor.busyRatio
+    val otherBusyRatio = other.busyRatio
+    if (math.abs(busyRatio - otherBusyRatio) >= BusyRatioTolerance)
+      busyRatio < otherBusyRatio
+    else
+      processor.connectionCount < other.connectionCount
+  }
 }
 
 /**
@@ -835,6 +892,10 @@ private[kafka] class Processor(val id: Int,
     // also includes the listener name)
     Map(NetworkProcessorMetricTag -> id.toString)
   )
+  // aliases of the Selector metrics of the load of the processor, to compare the processors of all the listeners
+  newGauge(ConnectionCountMetricName, () => connectionCount, Map(NetworkProcessorMetricTag -> id.toString))
+  newGauge(IncomingByteRateMetricName, () => selectorMetricValue("incoming-byte-rate"), Map(NetworkProcessorMetricTag -> id.toString))
+  newGauge(OutgoingByteRateMetricName, () => selectorMetricValue("outgoing-byte-rate"), Map(NetworkProcessorMetricTag -> id.toString))
 
   val expiredConnectionsKilledCount = new CumulativeSum()
   private val expiredConnectionsKilledCountMetricName = metrics.metricName("expired-connections-killed-count", MetricsGroup, metricTags)
@@ -872,6 +933,7 @@ private[kafka] class Processor(val id: Int,
       true,
       channelBuilder,
       memoryPool,
+      config.socketEagerWritesEnable,
       logContext)
   }
 
@@ -981,6 +1043,15 @@ private[kafka] class Processor(val id: Int,
     if (openOrClosingChannel(connectionId).isDefined) {
       selector.send(new NetworkSend(connectionId, responseSend))
       inflightResponses += (connectionId -> response)
+    } else
+      releaseResponse(response)
+  }
+
+  // Release the pooled buffer of a response once it has been sent or dropped
+  private def releaseResponse(response: RequestChannel.Response): Unit = {
+    response match {
+      case sendResponse: SendResponse => sendResponse.releaseBuffer()
+      case _ =>
     }
   }
 
@@ -1068,6 +1139,7 @@ private[kafka] class Processor(val id: Int,
 
         // Invoke send completion callback
         response.onComplete.foreach(onComplete => onComplete(send))
+        releaseResponse(response)
 
         // Try unmuting the channel. If there was no quota violation and the channel has not been throttled,
         // it will be unmuted immediately. If the channel has been throttled, it will unmuted only if the throttling
@@ -1094,7 +1166,10 @@ private[kafka] class Processor(val id: Int,
         val remoteHost = ConnectionId.fromString(connectionId).getOrElse {
           throw new IllegalStateException(s"connectionId has unexpected format: $connectionId")
         }.remoteHost
-        inflightResponses.remove(connectionId).foreach(updateRequestMetrics)
+        inflightResponses.remove(connectionId).foreach { response =>
+          updateRequestMetrics(response)
+          releaseResponse(response)
+        }
         // the channel has been closed by the selector but the quotas still need to be updated
         connectionQuotas.dec(listenerName, InetAddress.getByName(remoteHost))
       } catch {
@@ -1126,7 +1201,10 @@ private[kafka] class Processor(val id: Int,
         connectionQuotas.dec(listenerName, address)
       selector.close(connectionId)
 
-      inflightResponses.remove(connectionId).foreach(response => updateRequestMetrics(response))
+      inflightResponses.remove(connectionId).foreach { response =>
+        updateRequestMetrics(response)
+        releaseResponse(response)
+      }
     }
   }
 
@@ -1187,7 +1265,15 @@ private[kafka] class Processor(val id: Int,
       close(channel.id)
     }
     selector.close()
-    removeMetric(IdlePercentMetricName, Map(NetworkProcessorMetricTag -> id.toString))
+    removeMetrics()
+  }
+
+  private def removeMetrics(): Unit = {
+    val tags = Map(NetworkProcessorMetricTag -> id.toString)
+    removeMetric(IdlePercentMetricName, tags)
+    removeMetric(ConnectionCountMetricName, tags)
+    removeMetric(IncomingByteRateMetricName, tags)
+    removeMetric(OutgoingByteRateMetricName, tags)
   }
 
   // 'protected` to allow override for testing
@@ -1215,6 +1301,19 @@ private[kafka] class Processor(val id: Int,
 
   private[network] def responseQueueSize = responseQueue.size
 
+  private def selectorMetricValue(name: String): Double =
+    Option(metrics.metric(metrics.metricName(name, MetricsGroup, metricTags))).fold(0.0)(_.metricValue.asInstanceOf[Double])
+
+  /**
+   * The fraction of the time the processor was not waiting for I/O in the current window of the Selector metrics
+   */
+  private[network] def busyRatio: Double = 1.0 - math.min(math.max(selectorMetricValue("io-wait-ratio"), 0.0), 1.0)
+
+  /**
+   * The number of connections of the processor, including the new connections which are not set up yet
+   */
+  private[network] def connectionCount: Int = selectorMetricValue("connection-count").toInt + newConnections.size
+
   // Only for testing
   private[network] def inflightResponseCount: Int = inflightResponses.size
 
@@ -1244,7 +1343,7 @@ private[kafka] class Processor(val id: Int,
 
   override def initiateShutdown(): Unit = {
     super.initiateShutdown()
-    removeMetric("IdlePercent", Map("networkProcessor" -> id.toString))
+    removeMetrics()
     metrics.removeMetric(expiredConnectionsKilledCountMetricName)
   }
 }
@@ -33,6 +33,8 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
   private[server] val fetcherThreadMap = new mutable.HashMap[BrokerIdAndFetcherId, T]
   private val lock = new Object
   private var numFetchersPerBroker = numFetchers
+  // the fetcher ids of the partitions moved by rebalanceFetchers(), which take precedence over the hash-based ones
+  private val assignedFetcherIds = new mutable.HashMap[TopicPartition, Int]
   val failedPartitions = new FailedPartitions
   this.logIdent = "[" + name + "] "
 
@@ -101,7 +103,71 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
   // Visibility for testing
   private[server] def getFetcherId(topicPartition: TopicPartition): Int = {
     lock synchronized {
-      Utils.abs(31 * topicPartition.topic.hashCode() + topicPartition.partition) % numFetchersPerBroker
+      assignedFetcherIds.get(topicPartition).filter(_ < numFetchersPerBroker).getOrElse(
+        Utils.abs(31 * topicPartition.topic.hashCode() + topicPartition.partition) % numFetchersPerBroker)
+    }
+  }
+
+  /**
+   * Moves partitions between the fetcher threads of each source broker according to the bytes fetched for them since
+   * the previous rebalance. Every move takes a partition from the most loaded thread to the least loaded one, and
+   * only if it reduces the difference between their loads, so that partitions aren't moved back and forth. At most
+   * numFetchersPerBroker partitions are moved per source broker, since a moved partition is fetched again with a new
+   * fetch session. The moved partitions keep their fetcher thread until they are removed from the fetchers.
+   */
+  def rebalanceFetchers(): Unit = {
+    lock synchronized {
+      val fetchedBytes = fetcherThreadMap.map { case (id, thread) => id -> thread.fetchedBytes() }
+      val moves = mutable.Map.empty[TopicPartition, (T, Int)]
+
+      fetchedBytes.groupBy(_._1.brokerId).forKeyValue { (brokerId, brokerFetchedBytes) =>
+        val loads = new Array[Long](numFetchersPerBroker)
+        val partitionBytes = Array.fill(numFetchersPerBroker)(mutable.Map.empty[TopicPartition, Long])
+        brokerFetchedBytes.forKeyValue { (id, threadFetchedBytes) =>
+          if (id.fetcherId < numFetchersPerBroker) {
+            loads(id.fetcherId) = threadFetchedBytes.values.sum
+            partitionBytes(id.fetcherId) ++= threadFetchedBytes
+          }
+        }
+
+        var done = false
+        var numMoves = 0
+        while (!done && numMoves < numFetchersPerBroker) {
+          val from = loads.indices.maxBy(loads(_))
+          val to = loads.indices.minBy(loads(_))
+          val imbalance = loads(from) - loads(to)
+          // the partition which brings the loads of the two threads the closest
+          val candidates = partitionBytes(from).filter { case (topicPartition, bytes) =>
+            bytes > 0 && bytes < imbalance && !moves.contains(topicPartition)
+          }
+          if (candidates.isEmpty) {
+            done = true
+          } else {
+            val (topicPartition, bytes) = candidates.minBy { case (_, bytes) => math.abs(imbalance - 2 * bytes) }
+            val sourceThread = fetcherThreadMap(BrokerIdAndFetcherId(brokerId, from))
+            moves.put(topicPartition, (sourceThread, to))
+            partitionBytes(from).remove(topicPartition)
+            partitionBytes(to).put(topicPartition, bytes)
+            loads(from) -= bytes
+            loads(to) += bytes
+            numMoves += 1
+          }
+        }
+      }
+
+      if (moves.nonEmpty) {
+        info(s"Moving partitions between fetcher threads: ${moves.map { case (topicPartition, (thread, fetcherId)) =>
+          s"$topicPartition from ${thread.name} to fetcher $fetcherId" }.mkString(", ")}")
+        val partitionStates = removeFetcherForPartitions(moves.keySet)
+        val fetchStates = partitionStates.map { case (topicPartition, currentFetchState) =>
+          val (thread, fetcherId) = moves(topicPartition)
+          assignedFetcherIds.put(topicPartition, fetcherId)
+          topicPartition -> InitialFetchState(thread.sourceBroker,
+            currentLeaderEpoch = currentFetchState.currentLeaderEpoch,
+            initOffset = currentFetchState.fetchOffset)
+        }
+        addFetcherForPartitions(fetchStates)
+      }
     }
   }
 
@@ -163,6 +229,7 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
       for (fetcher <- fetcherThreadMap.values)
         fetchStates ++= fetcher.removePartitions(partitions)
       failedPartitions.removeAll(partitions)
+      assignedFetcherIds --= partitions
     }
     if (partitions.nonEmpty)
       info(s"Removed fetcher for partitions $partitions")
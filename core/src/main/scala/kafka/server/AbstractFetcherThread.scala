@@ -45,6 +45,7 @@ import scala.collection.{Map, Set, mutable}
 import scala.compat.java8.OptionConverters._
 import scala.jdk.CollectionConverters._
 import scala.math._
+import scala.util.{Failure, Success, Try}
 
 /**
  *  Abstract class for fetching data from multiple partitions from the same broker.
@@ -65,8 +66,20 @@ abstract class AbstractFetcherThread(name: String,
   protected val partitionMapLock = new ReentrantLock
   private val partitionMapCond = partitionMapLock.newCondition()
 
+  // The partitions of the pipelined fetches in flight, in the order they were sent, and whether the last response
+  // had records. Only accessed by the fetcher thread.
+  private val inFlightFetches = new util.ArrayDeque[util.Map[TopicPartition, FetchRequest.PartitionData]]
+  private val inFlightPartitions = mutable.Set.empty[TopicPartition]
+  private var fetchedRecords = false
+
+  // The partitions whose fetched data is processed asynchronously, which are neither fetched nor truncated meanwhile
+  private val appendingPartitions = mutable.Set.empty[TopicPartition]
+
+  // The bytes appended for each partition since the last call of fetchedBytes()
+  private val fetchedBytesPerPartition = mutable.Map.empty[TopicPartition, Long]
+
   private val metricId = ClientIdAndBroker(clientId, sourceBroker.host, sourceBroker.port)
-  val fetcherStats = new FetcherStats(metricId)
+  val fetcherStats = new FetcherStats(metricId, () => partitionCount)
   val fetcherLagStats = new FetcherLagStats(metricId)
 
   /* callbacks to be defined in subclass */
@@ -76,6 +89,16 @@ abstract class AbstractFetcherThread(name: String,
                                      fetchOffset: Long,
                                      partitionData: FetchData): Option[LogAppendInfo]
 
+  // process fetched data in another thread, calling the callback once done, or return false to process it in this one
+  protected def processPartitionDataAsync(topicPartition: TopicPartition,
+                                          fetchOffset: Long,
+                                          partitionData: FetchData,
+                                          callback: Try[Option[LogAppendInfo]] => Unit): Boolean = false
+
+  // cancel the processing of the fetched data passed to processPartitionDataAsync() for the partitions which hasn't
+  // started yet, calling the callbacks with no append info
+  protected def cancelPartitionDataAsync(topicPartitions: Set[TopicPartition]): Unit = {}
+
   protected def truncate(topicPartition: TopicPartition, truncationState: OffsetTruncationState): Unit
 
   protected def truncateFullyAndStartAt(topicPartition: TopicPartition, offset: Long): Unit
@@ -102,6 +125,12 @@ abstract class AbstractFetcherThread(name: String,
 
   protected val isTruncationOnFetchSupported: Boolean
 
+  // The fetcher if it keeps several fetches in flight, see maybeFetchPipelined()
+  private lazy val pipelinedFetcher: Option[PipelinedFetching] = this match {
+    case fetcher: PipelinedFetching if fetcher.maxInFlightFetches > 1 => Some(fetcher)
+    case _ => None
+  }
+
   override def shutdown(): Unit = {
     initiateShutdown()
     inLock(partitionMapLock) {
@@ -116,25 +145,147 @@ abstract class AbstractFetcherThread(name: String,
 
   override def doWork(): Unit = {
     maybeTruncate()
-    maybeFetch()
+    pipelinedFetcher match {
+      case Some(fetcher) => maybeFetchPipelined(fetcher)
+      case None => maybeFetch()
+    }
   }
 
   private def maybeFetch(): Unit = {
     val fetchRequestOpt = inLock(partitionMapLock) {
-      val ResultWithPartitions(fetchRequestOpt, partitionsWithError) = buildFetch(partitionStates.partitionStateMap.asScala)
+      // The partitions being appended can't be fetched: a fetch without them could be held by the leader for up to its
+      // max wait, and would remove them from the fetch session, so the fetch is sent once their records are appended
+      if (appendingPartitions.nonEmpty) {
+        trace(s"Wait up to $fetchBackOffMs ms for the records of partitions $appendingPartitions to be appended " +
+          "before sending a fetch request")
+        partitionMapCond.await(fetchBackOffMs, TimeUnit.MILLISECONDS)
+        None
+      } else {
+        val ResultWithPartitions(fetchRequestOpt, partitionsWithError) = buildFetch(partitionStates.partitionStateMap.asScala)
+
+        handlePartitionsWithErrors(partitionsWithError, "maybeFetch")
 
-      handlePartitionsWithErrors(partitionsWithError, "maybeFetch")
+        if (fetchRequestOpt.isEmpty) {
+          trace(s"There are no active partitions. Back off for $fetchBackOffMs ms before sending a fetch request")
+          partitionMapCond.await(fetchBackOffMs, TimeUnit.MILLISECONDS)
+        }
+
+        fetchRequestOpt
+      }
+    }
+
+    fetchRequestOpt.foreach { case ReplicaFetch(sessionPartitions, fetchRequest) =>
+      processFetchRequest(sessionPartitions, fetchRequest)
+    }
+  }
+
+  /**
+   * Keeps up to maxInFlightFetches fetches in flight to the leader, each of them for different partitions, so that the
+   * leader doesn't wait for the next fetch of the follower while there are records to replicate. When a response is
+   * received, its records are appended before the next fetch of its partitions is sent, while the other fetches are
+   * still in flight: the leader considers the records before the fetch offset of a follower as replicated, so it must
+   * not be sent before they are appended.
+   *
+   * The leader processes the requests of a connection one at a time, hence a fetch waiting for records on the leader
+   * delays the fetches sent after it. The partitions are therefore only split between several fetches while the
+   * responses have records, and are otherwise fetched by a single fetch once the fetches in flight are received.
+   */
+  private def maybeFetchPipelined(fetcher: PipelinedFetching): Unit = {
+    if (inFlightFetches.isEmpty)
+      sendPipelinedFetches(fetcher)
 
-      if (fetchRequestOpt.isEmpty) {
+    if (inFlightFetches.isEmpty) {
+      inLock(partitionMapLock) {
         trace(s"There are no active partitions. Back off for $fetchBackOffMs ms before sending a fetch request")
         partitionMapCond.await(fetchBackOffMs, TimeUnit.MILLISECONDS)
       }
+    } else {
+      val sessionPartitions = inFlightFetches.peek()
+      val partitionsWithError = mutable.Set[TopicPartition]()
+      var responseData: Map[TopicPartition, FetchData] = Map.empty
+
+      try {
+        responseData = fetcher.receiveFetch()
+        inFlightFetches.remove()
+        inFlightPartitions --= sessionPartitions.keySet.asScala
+      } catch {
+        case t: Throwable =>
+          partitionsWithError ++= onPipelinedFetchError(t)
+      }
+      fetcherStats.requestRate.mark()
 
-      fetchRequestOpt
+      if (responseData.nonEmpty)
+        fetchedRecords = responseData.valuesIterator.exists(FetchResponse.recordsSize(_) > 0)
+      processFetchResponse(sessionPartitions, responseData, partitionsWithError)
+      sendPipelinedFetches(fetcher)
     }
+  }
 
-    fetchRequestOpt.foreach { case ReplicaFetch(sessionPartitions, fetchRequest) =>
-      processFetchRequest(sessionPartitions, fetchRequest)
+  /**
+   * Sends fetches for the partitions which are neither in flight nor being appended, from their current fetch states.
+   * Unless the last response had records, no fetch is sent while partitions are appended, since the leader could hold
+   * it for up to its max wait, delaying the next fetch of these partitions once their records are appended.
+   */
+  private def sendPipelinedFetches(fetcher: PipelinedFetching): Unit = {
+    val numFetches = if (fetchedRecords) fetcher.maxInFlightFetches - inFlightFetches.size
+      else if (inFlightFetches.isEmpty) 1
+      else 0
+
+    if (numFetches > 0) {
+      val fetches = inLock(partitionMapLock) {
+        if (!fetchedRecords && appendingPartitions.nonEmpty) {
+          Array.empty[ReplicaFetch]
+        } else {
+          val partitionMaps = Array.fill(numFetches)(mutable.LinkedHashMap.empty[TopicPartition, PartitionFetchState])
+          var numPartitions = 0
+          partitionStates.partitionStateMap.forEach { (topicPartition, fetchState) =>
+            if (!inFlightPartitions.contains(topicPartition) && !appendingPartitions.contains(topicPartition)) {
+              partitionMaps(numPartitions % numFetches).put(topicPartition, fetchState)
+              if (fetchState.isReadyForFetch)
+                numPartitions += 1
+            }
+          }
+
+          partitionMaps.filter(_.nonEmpty).flatMap { partitionMap =>
+            val ResultWithPartitions(fetchRequestOpt, partitionsWithError) = buildFetch(partitionMap)
+            handlePartitionsWithErrors(partitionsWithError, "sendPipelinedFetches")
+            fetchRequestOpt.filter(!_.partitionData.isEmpty)
+          }
+        }
+      }
+
+      var failed = false
+      fetches.foreach { case ReplicaFetch(sessionPartitions, fetchRequest) =>
+        if (!failed) {
+          try {
+            trace(s"Sending fetch request $fetchRequest")
+            fetcher.sendFetch(fetchRequest)
+            inFlightFetches.add(sessionPartitions)
+            inFlightPartitions ++= sessionPartitions.keySet.asScala
+          } catch {
+            case t: Throwable =>
+              handlePartitionsWithErrors(onPipelinedFetchError(t), "sendPipelinedFetches")
+              failed = true
+          }
+        }
+      }
+    }
+  }
+
+  // The fetches in flight are lost when the connection to the leader fails, returns the partitions to retry later
+  private def onPipelinedFetchError(t: Throwable): Set[TopicPartition] = {
+    inFlightFetches.clear()
+    inFlightPartitions.clear()
+    fetchedRecords = false
+    if (isRunning) {
+      warn("Error in response for pipelined fetch requests", t)
+      inLock(partitionMapLock) {
+        // see processFetchRequest
+        partitionMapCond.await(fetchBackOffMs, TimeUnit.MILLISECONDS)
+        partitionStates.partitionSet.asScala.toSet
+      }
+    } else {
+      Set.empty
     }
   }
 
@@ -155,7 +306,7 @@ abstract class AbstractFetcherThread(name: String,
     val partitionsWithoutEpochs = mutable.Set.empty[TopicPartition]
 
     partitionStates.partitionStateMap.forEach { (tp, state) =>
-      if (state.isTruncating) {
+      if (state.isTruncating && !appendingPartitions.contains(tp)) {
         latestEpoch(tp) match {
           case Some(epoch) if isOffsetForLeaderEpochSupported =>
             partitionsWithEpochs += tp -> new EpochData()
@@ -305,7 +456,6 @@ abstract class AbstractFetcherThread(name: String,
   private def processFetchRequest(sessionPartitions: util.Map[TopicPartition, FetchRequest.PartitionData],
                                   fetchRequest: FetchRequest.Builder): Unit = {
     val partitionsWithError = mutable.Set[TopicPartition]()
-    val divergingEndOffsets = mutable.Map.empty[TopicPartition, EpochEndOffset]
     var responseData: Map[TopicPartition, FetchData] = Map.empty
 
     try {
@@ -326,6 +476,14 @@ abstract class AbstractFetcherThread(name: String,
     }
     fetcherStats.requestRate.mark()
 
+    processFetchResponse(sessionPartitions, responseData, partitionsWithError)
+  }
+
+  private def processFetchResponse(sessionPartitions: util.Map[TopicPartition, FetchRequest.PartitionData],
+                                   responseData: Map[TopicPartition, FetchData],
+                                   partitionsWithError: mutable.Set[TopicPartition]): Unit = {
+    val divergingEndOffsets = mutable.Map.empty[TopicPartition, EpochEndOffset]
+
     if (responseData.nonEmpty) {
       // process fetched data
       inLock(partitionMapLock) {
@@ -335,8 +493,12 @@ abstract class AbstractFetcherThread(name: String,
             // In this case, we only want to process the fetch response if the partition state is ready for fetch and
             // the current offset is the same as the offset requested.
             val fetchPartitionData = sessionPartitions.get(topicPartition)
-            if (fetchPartitionData != null && fetchPartitionData.fetchOffset == currentFetchState.fetchOffset && currentFetchState.isReadyForFetch) {
+            if (fetchPartitionData != null && fetchPartitionData.fetchOffset == currentFetchState.fetchOffset &&
+              currentFetchState.isReadyForFetch && !appendingPartitions.contains(topicPartition)) {
               Errors.forCode(partitionData.errorCode) match {
+                case Errors.NONE if maybeProcessPartitionDataAsync(topicPartition, currentFetchState, partitionData) =>
+                  // the fetch state is updated by onPartitionDataProcessed()
+
                 case Errors.NONE =>
                   try {
                     // Once we hand off the partition data to the subclass, we can't mess with it any more in this thread
@@ -344,20 +506,7 @@ abstract class AbstractFetcherThread(name: String,
                       partitionData)
 
                     logAppendInfoOpt.foreach { logAppendInfo =>
-                      val validBytes = logAppendInfo.validBytes
-                      val nextOffset = if (validBytes > 0) logAppendInfo.lastOffset + 1 else currentFetchState.fetchOffset
-                      val lag = Math.max(0L, partitionData.highWatermark - nextOffset)
-                      fetcherLagStats.getAndMaybePut(topicPartition).lag = lag
-
-                      // ReplicaDirAlterThread may have removed topicPartition from the partitionStates after processing the partition data
-                      if (validBytes > 0 && partitionStates.contains(topicPartition)) {
-                        // Update partitionStates only if there is no exception during processPartitionData
-                        val newFetchState = PartitionFetchState(nextOffset, Some(lag),
-                          currentFetchState.currentLeaderEpoch, state = Fetching,
-                          logAppendInfo.lastLeaderEpoch)
-                        partitionStates.updateAndMoveToEnd(topicPartition, newFetchState)
-                        fetcherStats.byteRate.mark(validBytes)
-                      }
+                      updateFetchStateAfterAppend(topicPartition, currentFetchState, partitionData, logAppendInfo)
                     }
                     if (isTruncationOnFetchSupported) {
                       FetchResponse.divergingEpoch(partitionData).ifPresent { divergingEpoch =>
@@ -369,24 +518,8 @@ abstract class AbstractFetcherThread(name: String,
                       }
                     }
                   } catch {
-                    case ime@( _: CorruptRecordException | _: InvalidRecordException) =>
-                      // we log the error and continue. This ensures two things
-                      // 1. If there is a corrupt message in a topic partition, it does not bring the fetcher thread
-                      //    down and cause other topic partition to also lag
-                      // 2. If the message is corrupt due to a transient state in the log (truncation, partial writes
-                      //    can cause this), we simply continue and should get fixed in the subsequent fetches
-                      error(s"Found invalid messages during fetch for partition $topicPartition " +
-                        s"offset ${currentFetchState.fetchOffset}", ime)
-                      partitionsWithError += topicPartition
-                    case e: KafkaStorageException =>
-                      error(s"Error while processing data for partition $topicPartition " +
-                        s"at offset ${currentFetchState.fetchOffset}", e)
-                      markPartitionFailed(topicPartition)
                     case t: Throwable =>
-                      // stop monitoring this partition and add it to the set of failed partitions
-                      error(s"Unexpected error occurred while processing data for partition $topicPartition " +
-                        s"at offset ${currentFetchState.fetchOffset}", t)
-                      markPartitionFailed(topicPartition)
+                      onProcessPartitionDataError(topicPartition, currentFetchState, t, partitionsWithError)
                   }
                 case Errors.OFFSET_OUT_OF_RANGE =>
                   if (handleOutOfRangeError(topicPartition, currentFetchState, fetchPartitionData.currentLeaderEpoch))
@@ -429,6 +562,93 @@ abstract class AbstractFetcherThread(name: String,
     }
   }
 
+  private def updateFetchStateAfterAppend(topicPartition: TopicPartition,
+                                          currentFetchState: PartitionFetchState,
+                                          partitionData: FetchData,
+                                          logAppendInfo: LogAppendInfo): Unit = {
+    val validBytes = logAppendInfo.validBytes
+    val nextOffset = if (validBytes > 0) logAppendInfo.lastOffset + 1 else currentFetchState.fetchOffset
+    val lag = Math.max(0L, partitionData.highWatermark - nextOffset)
+    fetcherLagStats.getAndMaybePut(topicPartition).lag = lag
+
+    // ReplicaDirAlterThread may have removed topicPartition from the partitionStates after processing the partition data
+    if (validBytes > 0 && partitionStates.contains(topicPartition)) {
+      // Update partitionStates only if there is no exception during processPartitionData
+      val newFetchState = PartitionFetchState(nextOffset, Some(lag),
+        currentFetchState.currentLeaderEpoch, state = Fetching,
+        logAppendInfo.lastLeaderEpoch)
+      partitionStates.updateAndMoveToEnd(topicPartition, newFetchState)
+      fetcherStats.byteRate.mark(validBytes)
+      fetchedBytesPerPartition(topicPartition) = fetchedBytesPerPartition.getOrElse(topicPartition, 0L) + validBytes
+    }
+  }
+
+  private def onProcessPartitionDataError(topicPartition: TopicPartition,
+                                          currentFetchState: PartitionFetchState,
+                                          t: Throwable,
+                                          partitionsWithError: mutable.Set[TopicPartition]): Unit = {
+    t match {
+      case ime@( _: CorruptRecordException | _: InvalidRecordException) =>
+        // we log the error and continue. This ensures two things
+        // 1. If there is a corrupt message in a topic partition, it does not bring the fetcher thread
+        //    down and cause other topic partition to also lag
+        // 2. If the message is corrupt due to a transient state in the log (truncation, partial writes
+        //    can cause this), we simply continue and should get fixed in the subsequent fetches
+        error(s"Found invalid messages during fetch for partition $topicPartition " +
+          s"offset ${currentFetchState.fetchOffset}", ime)
+        partitionsWithError += topicPartition
+      case e: KafkaStorageException =>
+        error(s"Error while processing data for partition $topicPartition " +
+          s"at offset ${currentFetchState.fetchOffset}", e)
+        markPartitionFailed(topicPartition)
+      case t: Throwable =>
+        // stop monitoring this partition and add it to the set of failed partitions
+        error(s"Unexpected error occurred while processing data for partition $topicPartition " +
+          s"at offset ${currentFetchState.fetchOffset}", t)
+        markPartitionFailed(topicPartition)
+    }
+  }
+
+  /**
+   * Hands off the fetched records of the partition to processPartitionDataAsync(), unless the response has a diverging
+   * epoch. The partition is neither fetched nor truncated until they are processed.
+   */
+  private def maybeProcessPartitionDataAsync(topicPartition: TopicPartition,
+                                             currentFetchState: PartitionFetchState,
+                                             partitionData: FetchData): Boolean = {
+    if (FetchResponse.recordsSize(partitionData) > 0 && !FetchResponse.isDivergingEpoch(partitionData)) {
+      appendingPartitions += topicPartition
+      val processingAsync = processPartitionDataAsync(topicPartition, currentFetchState.fetchOffset, partitionData,
+        result => onPartitionDataProcessed(topicPartition, currentFetchState, partitionData, result))
+      if (!processingAsync)
+        appendingPartitions -= topicPartition
+      processingAsync
+    } else {
+      false
+    }
+  }
+
+  private def onPartitionDataProcessed(topicPartition: TopicPartition,
+                                       fetchState: PartitionFetchState,
+                                       partitionData: FetchData,
+                                       result: Try[Option[LogAppendInfo]]): Unit = inLock(partitionMapLock) {
+    appendingPartitions -= topicPartition
+    val partitionsWithError = mutable.Set[TopicPartition]()
+    result match {
+      case Success(logAppendInfoOpt) =>
+        // the partition may have been re-added with another fetch state while its data was processed
+        Option(partitionStates.stateValue(topicPartition)).foreach { currentFetchState =>
+          if (currentFetchState.fetchOffset == fetchState.fetchOffset &&
+            currentFetchState.currentLeaderEpoch == fetchState.currentLeaderEpoch)
+            logAppendInfoOpt.foreach(updateFetchStateAfterAppend(topicPartition, currentFetchState, partitionData, _))
+        }
+      case Failure(t) =>
+        onProcessPartitionDataError(topicPartition, fetchState, t, partitionsWithError)
+    }
+    handlePartitionsWithErrors(partitionsWithError, "onPartitionDataProcessed")
+    partitionMapCond.signalAll()
+  }
+
   /**
    * This is used to mark partitions for truncation in ReplicaAlterLogDirsThread after leader
    * offsets are known.
@@ -703,9 +923,19 @@ abstract class AbstractFetcherThread(name: String,
   def removePartitions(topicPartitions: Set[TopicPartition]): Map[TopicPartition, PartitionFetchState] = {
     partitionMapLock.lockInterruptibly()
     try {
+      // the fetched data of the partitions must not be appended once they are removed, e.g. once the replica is the
+      // leader: the queued appends are cancelled and the ones in progress are waited for, as the fetcher thread did when
+      // it appended the records itself while holding partitionMapLock
+      val appending = topicPartitions.filter(appendingPartitions.contains)
+      if (appending.nonEmpty) {
+        cancelPartitionDataAsync(appending)
+        while (topicPartitions.exists(appendingPartitions.contains))
+          partitionMapCond.await()
+      }
       topicPartitions.map { topicPartition =>
         val state = partitionStates.stateValue(topicPartition)
         partitionStates.remove(topicPartition)
+        fetchedBytesPerPartition.remove(topicPartition)
         fetcherLagStats.unregister(topicPartition)
         topicPartition -> state
       }.filter(_._2 != null).toMap
@@ -724,6 +954,18 @@ abstract class AbstractFetcherThread(name: String,
     finally partitionMapLock.unlock()
   }
 
+  /**
+   * Returns the bytes appended for each partition of the thread since the previous call, which measures the load of
+   * the partitions on the thread, see AbstractFetcherManager.rebalanceFetchers().
+   */
+  def fetchedBytes(): Map[TopicPartition, Long] = inLock(partitionMapLock) {
+    val fetchedBytes = partitionStates.partitionSet.asScala.map { topicPartition =>
+      topicPartition -> fetchedBytesPerPartition.getOrElse(topicPartition, 0L)
+    }.toMap
+    fetchedBytesPerPartition.clear()
+    fetchedBytes
+  }
+
   // Visible for testing
   private[server] def fetchState(topicPartition: TopicPartition): Option[PartitionFetchState] = inLock(partitionMapLock) {
     Option(partitionStates.stateValue(topicPartition))
@@ -751,6 +993,9 @@ object FetcherMetrics {
   val ConsumerLag = "ConsumerLag"
   val RequestsPerSec = "RequestsPerSec"
   val BytesPerSec = "BytesPerSec"
+  val AppendQueueSize = "AppendQueueSize"
+  val AppendTimeMs = "AppendTimeMs"
+  val PartitionCount = "PartitionCount"
 }
 
 class FetcherLagMetrics(metricId: ClientIdTopicPartition) extends KafkaMetricsGroup {
@@ -794,7 +1039,7 @@ class FetcherLagStats(metricId: ClientIdAndBroker) {
   }
 }
 
-class FetcherStats(metricId: ClientIdAndBroker) extends KafkaMetricsGroup {
+class FetcherStats(metricId: ClientIdAndBroker, partitionCount: () => Int) extends KafkaMetricsGroup {
   val tags = Map("clientId" -> metricId.clientId,
     "brokerHost" -> metricId.brokerHost,
     "brokerPort" -> metricId.brokerPort.toString)
@@ -803,9 +1048,12 @@ class FetcherStats(metricId: ClientIdAndBroker) extends KafkaMetricsGroup {
 
   val byteRate = newMeter(FetcherMetrics.BytesPerSec, "bytes", TimeUnit.SECONDS, tags)
 
+  newGauge(FetcherMetrics.PartitionCount, () => partitionCount(), tags)
+
   def unregister(): Unit = {
     removeMetric(FetcherMetrics.RequestsPerSec, tags)
     removeMetric(FetcherMetrics.BytesPerSec, tags)
+    removeMetric(FetcherMetrics.PartitionCount, tags)
   }
 
 }
@@ -826,6 +1074,21 @@ object PartitionFetchState {
 }
 
 
+/**
+ * A fetcher thread which can keep several fetches in flight to the leader, see
+ * AbstractFetcherThread.maybeFetchPipelined(). Fetches are only pipelined if maxInFlightFetches is greater than 1.
+ */
+trait PipelinedFetching { this: AbstractFetcherThread =>
+
+  protected[server] def maxInFlightFetches: Int
+
+  // send a fetch request without waiting for its response
+  protected[server] def sendFetch(fetchRequest: FetchRequest.Builder): Unit
+
+  // wait for the response of the oldest fetch request sent by sendFetch() whose response wasn't received yet
+  protected[server] def receiveFetch(): Map[TopicPartition, FetchResponseData.PartitionData]
+}
+
 /**
  * case class to keep partition offset and its state(truncatingLog, delayed)
  * This represents a partition as being either:
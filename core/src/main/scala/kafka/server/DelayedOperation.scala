@@ -17,6 +17,7 @@
 
 package kafka.server
 
+import java.util.{Collections, IdentityHashMap}
 import java.util.concurrent._
 import java.util.concurrent.atomic._
 import java.util.concurrent.locks.{Lock, ReentrantLock}
@@ -27,7 +28,7 @@ import kafka.utils._
 import kafka.utils.timer._
 
 import scala.collection._
-import scala.collection.mutable.ListBuffer
+import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 
 /**
  * An operation whose processing needs to be delayed for at most the given delayMs. For example
@@ -132,13 +133,15 @@ abstract class DelayedOperation(override val delayMs: Long,
 object DelayedOperationPurgatory {
 
   private val Shards = 512 // Shard the watcher list to reduce lock contention
+  private val CheckAndCompleteTimeSampleRate = 16
 
   def apply[T <: DelayedOperation](purgatoryName: String,
                                    brokerId: Int = 0,
                                    purgeInterval: Int = 1000,
                                    reaperEnabled: Boolean = true,
-                                   timerEnabled: Boolean = true): DelayedOperationPurgatory[T] = {
-    val timer = new SystemTimer(purgatoryName)
+                                   timerEnabled: Boolean = true,
+                                   lockFreeTimer: Boolean = false): DelayedOperationPurgatory[T] = {
+    val timer = if (lockFreeTimer) new LockFreeTimer(purgatoryName) else new SystemTimer(purgatoryName)
     new DelayedOperationPurgatory[T](purgatoryName, timer, brokerId, purgeInterval, reaperEnabled, timerEnabled)
   }
 
@@ -183,6 +186,9 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
   private val metricsTags = Map("delayedOperation" -> purgatoryName)
   newGauge("PurgatorySize", () => watched, metricsTags)
   newGauge("NumDelayedOperations", () => numDelayed, metricsTags)
+  /* the time spent trying to complete the operations watched on the checked keys. Checks are frequent, so only one in
+   * CheckAndCompleteTimeSampleRate of them is timed and the rate of the timer is that of the sampled checks */
+  private val checkAndCompleteTimer = newTimer("CheckAndCompleteTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS, metricsTags)
 
   if (reaperEnabled)
     expirationReaper.start()
@@ -261,11 +267,50 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     val numCompleted = if (watchers == null)
       0
     else
-      watchers.tryCompleteWatched()
+      timeSampled(watchers.tryCompleteWatched(_ => true))
     debug(s"Request key $key unblocked $numCompleted $purgatoryName operations")
     numCompleted
   }
 
+  /**
+   * Check if some delayed operations can be completed with any of the given watch keys, and if yes complete them.
+   * This is cheaper than checking the keys one by one: the lock of each watcher list is acquired once for all its
+   * keys, and an operation watched on several of the keys, e.g. a produce request to several of the partitions, is
+   * only tried once rather than once per key.
+   *
+   * @return the number of completed operations during this process
+   */
+  def checkAndComplete(keys: Iterable[Any]): Int = {
+    val watchersOfKeys = new ArrayBuffer[Watchers]
+    keys.groupBy(watcherList).foreach { case (wl, keysOfList) =>
+      inLock(wl.watchersLock) {
+        keysOfList.foreach { key =>
+          val watchers = wl.watchersByKey.get(key)
+          if (watchers != null)
+            watchersOfKeys += watchers
+        }
+      }
+    }
+    val numCompleted = if (watchersOfKeys.isEmpty)
+      0
+    else timeSampled {
+      val tried = Collections.newSetFromMap(new IdentityHashMap[T, java.lang.Boolean])
+      watchersOfKeys.foldLeft(0) { case (sum, watchers) => sum + watchers.tryCompleteWatched(tried.add) }
+    }
+    debug(s"Request keys ${keys.mkString(",")} unblocked $numCompleted $purgatoryName operations")
+    numCompleted
+  }
+
+  private def timeSampled[R](check: => R): R = {
+    if (ThreadLocalRandom.current.nextInt(DelayedOperationPurgatory.CheckAndCompleteTimeSampleRate) != 0)
+      check
+    else {
+      val startNs = System.nanoTime
+      try check
+      finally checkAndCompleteTimer.update(System.nanoTime - startNs, TimeUnit.NANOSECONDS)
+    }
+  }
+
   /**
    * Return the total size of watch lists the purgatory. Since an operation may be watched
    * on multiple lists, and some of its watched entries may still be in the watch lists
@@ -331,6 +376,7 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     timeoutTimer.shutdown()
     removeMetric("PurgatorySize", metricsTags)
     removeMetric("NumDelayedOperations", metricsTags)
+    removeMetric("CheckAndCompleteTimeMs", metricsTags)
   }
 
   /**
@@ -349,8 +395,8 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
       operations.add(t)
     }
 
-    // traverse the list and try to complete some watched elements
-    def tryCompleteWatched(): Int = {
+    // traverse the list and try to complete the watched elements for which shouldTry returns true
+    def tryCompleteWatched(shouldTry: T => Boolean): Int = {
       var completed = 0
 
       val iter = operations.iterator()
@@ -359,7 +405,7 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
         if (curr.isCompleted) {
           // another thread has completed this operation, just remove it
           iter.remove()
-        } else if (curr.safeTryComplete()) {
+        } else if (shouldTry(curr) && curr.safeTryComplete()) {
           iter.remove()
           completed += 1
         }
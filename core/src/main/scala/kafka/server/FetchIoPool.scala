@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util.concurrent.{ArrayBlockingQueue, CountDownLatch, TimeUnit}
+
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{Exit, Logging}
+import org.apache.kafka.common.internals.FatalExitError
+import org.apache.kafka.common.utils.{KafkaThread, Time}
+
+/**
+ * A bounded pool of threads which read the fetches of data which is likely not in the page cache, so that the request
+ * handler threads are not blocked on disk reads while other requests, e.g. produce requests, wait for them.
+ *
+ * @param brokerId The id of the broker
+ * @param numThreads The number of threads of the pool
+ * @param queueSize The maximum number of fetches waiting for a thread, further fetches are rejected
+ */
+class FetchIoPool(brokerId: Int, numThreads: Int, queueSize: Int, time: Time) extends Logging with KafkaMetricsGroup {
+  this.logIdent = s"[Fetch I/O Pool on Broker $brokerId], "
+
+  private val queue = new ArrayBlockingQueue[FetchIoPool.Task](queueSize)
+  @volatile private var stopped = false
+  private val shutdownLatch = new CountDownLatch(numThreads)
+
+  /* a meter to track the average free capacity of the fetch I/O threads */
+  private val aggregateIdleMeter = newMeter("FetchIoThreadAvgIdlePercent", "percent", TimeUnit.NANOSECONDS)
+  /* the time fetches wait for a fetch I/O thread */
+  private val ioWaitTimeHist = newHistogram("FetchIoWaitTimeMs", biased = true)
+  private val dispatchedMeter = newMeter("FetchIoDispatchedPerSec", "fetches", TimeUnit.SECONDS)
+  private val rejectedMeter = newMeter("FetchIoRejectedPerSec", "fetches", TimeUnit.SECONDS)
+
+  newGauge("FetchIoQueueSize", () => queue.size)
+
+  for (i <- 0 until numThreads)
+    KafkaThread.daemon(s"fetch-io-thread-$i", () => run()).start()
+
+  /**
+   * Run the fetch in the pool, unless too many fetches are queued already
+   *
+   * @return true if the fetch was queued, false if it must be run by the caller
+   */
+  def submit(fetch: () => Unit): Boolean = {
+    if (!stopped && queue.offer(new FetchIoPool.Task(fetch, time.nanoseconds))) {
+      dispatchedMeter.mark()
+      true
+    } else {
+      rejectedMeter.mark()
+      false
+    }
+  }
+
+  private def run(): Unit = {
+    try {
+      while (!stopped || !queue.isEmpty) {
+        // see KafkaRequestHandler for the aggregate idle percentage
+        val startPollTime = time.nanoseconds
+        val task = queue.poll(300, TimeUnit.MILLISECONDS)
+        val endTime = time.nanoseconds
+        aggregateIdleMeter.mark((endTime - startPollTime) / numThreads)
+
+        if (task != null) {
+          ioWaitTimeHist.update(TimeUnit.NANOSECONDS.toMillis(endTime - task.enqueueTimeNanos))
+          try task.fetch()
+          catch {
+            case e: FatalExitError => Exit.exit(e.statusCode)
+            case e: Throwable => error("Exception when handling fetch", e)
+          }
+        }
+      }
+    } finally shutdownLatch.countDown()
+  }
+
+  /**
+   * Stop accepting fetches and wait for the queued ones to complete
+   */
+  def shutdown(): Unit = {
+    info("shutting down")
+    stopped = true
+    shutdownLatch.await()
+    removeMetric("FetchIoThreadAvgIdlePercent")
+    removeMetric("FetchIoWaitTimeMs")
+    removeMetric("FetchIoDispatchedPerSec")
+    removeMetric("FetchIoRejectedPerSec")
+    removeMetric("FetchIoQueueSize")
+    info("shut down completely")
+  }
+}
+
+object FetchIoPool {
+  private class Task(val fetch: () => Unit, val enqueueTimeNanos: Long)
+}
@@ -66,7 +66,12 @@ class ForwardingManagerImpl(
         "since there is no serde defined")
     )
     val serializedPrincipal = principalSerde.serialize(request.context.principal)
-    val forwardRequestBuffer = request.buffer.duplicate()
+    // the request buffer goes back to the memory pool once the request is handled, before the request is sent to the
+    // controller, and it may be reused by then
+    val requestBuffer = request.buffer.duplicate()
+    requestBuffer.flip()
+    val forwardRequestBuffer = ByteBuffer.allocate(requestBuffer.remaining)
+    forwardRequestBuffer.put(requestBuffer)
     forwardRequestBuffer.flip()
     val envelopeRequest = new EnvelopeRequest.Builder(
       forwardRequestBuffer,
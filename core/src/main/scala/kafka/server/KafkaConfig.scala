@@ -24,8 +24,9 @@ import kafka.api.{ApiVersion, ApiVersionValidator, KAFKA_0_10_0_IV1, KAFKA_2_1_I
 import kafka.cluster.EndPoint
 import kafka.coordinator.group.OffsetConfig
 import kafka.coordinator.transaction.{TransactionLog, TransactionStateManager}
-import kafka.log.LogConfig
+import kafka.log.{LogConfig, OffsetMap}
 import kafka.message.{BrokerCompressionCodec, CompressionCodec, ZStdCompressionCodec}
+import kafka.network.SchedulingClass
 import kafka.security.authorizer.AuthorizerUtils
 import kafka.server.KafkaRaftServer.{BrokerRole, ControllerRole, ProcessRole}
 import kafka.utils.CoreUtils
@@ -67,9 +68,15 @@ object Defaults {
   val MessageMaxBytes = 1024 * 1024 + Records.LOG_OVERHEAD
   val NumNetworkThreads = 3
   val NumIoThreads = 8
+  val NumFetchIoThreads = 0
+  val NumPurgatoryCompletionThreads = 0
+  val PurgatoryLockFreeTimerEnable = false
   val BackgroundThreads = 10
   val QueuedMaxRequests = 500
+  val NumRequestQueueShards = 1
+  val RequestSchedulingClassWeights = ""
   val QueuedMaxRequestBytes = -1
+  val QueuedMaxFetchIoRequests = 500
   val InitialBrokerRegistrationTimeoutMs = 60000
   val BrokerHeartbeatIntervalMs = 2000
   val BrokerSessionTimeoutMs = 9000
@@ -91,6 +98,11 @@ object Defaults {
   val SocketSendBufferBytes: Int = 100 * 1024
   val SocketReceiveBufferBytes: Int = 100 * 1024
   val SocketRequestMaxBytes: Int = 100 * 1024 * 1024
+  val SocketRequestBufferRecyclingEnable = false
+  val SocketRequestBufferDirectEnable = false
+  val SocketResponseBufferPoolBytes = 0L
+  val SocketEagerWritesEnable = false
+  val ConnectionLoadBalancingEnable = false
   val MaxConnectionsPerIp: Int = Int.MaxValue
   val MaxConnectionsPerIpOverrides: String = ""
   val MaxConnections: Int = Int.MaxValue
@@ -120,16 +132,25 @@ object Defaults {
   val LogCleanerIoBufferSize = 512 * 1024
   val LogCleanerDedupeBufferLoadFactor = 0.9d
   val LogCleanerBackoffMs = 15 * 1000
+  val LogCleanerHashAlgorithm = "MD5"
+  val LogCleanerParallelismPerLog = 1
+  val LogCleanerKeySummaryEnable = false
   val LogCleanerMinCleanRatio = 0.5d
   val LogCleanerEnable = true
   val LogCleanerDeleteRetentionMs = 24 * 60 * 60 * 1000L
   val LogCleanerMinCompactionLagMs = 0L
   val LogCleanerMaxCompactionLagMs = Long.MaxValue
   val LogIndexSizeMaxBytes = 10 * 1024 * 1024
+  val LogIndexSampleCacheMaxBytes = 0L
+  val LogProducerSnapshotIndexedEnable = false
+  val LogProducerStateOffHeapEnable = false
+  val LogReadAheadBytes = 0
+  val LogReadAheadThreads = 2
   val LogIndexIntervalBytes = 4096
   val LogFlushIntervalMessages = Long.MaxValue
   val LogDeleteDelayMs = 60000
   val LogFlushSchedulerIntervalMs = Long.MaxValue
+  val LogFlushGroupCommitMaxDelayMs = -1L
   val LogFlushOffsetCheckpointIntervalMs = 60000
   val LogFlushStartOffsetCheckpointIntervalMs = 60000
   val LogPreAllocateEnable = false
@@ -153,6 +174,9 @@ object Defaults {
   val ReplicaFetchWaitMaxMs = 500
   val ReplicaFetchMinBytes = 1
   val ReplicaFetchResponseMaxBytes = 10 * 1024 * 1024
+  val ReplicaFetchMaxInFlightRequests = 1
+  val ReplicaFetchAppendQueueSize = 0
+  val ReplicaFetcherRebalanceIntervalMs = 0L
   val NumReplicaFetchers = 1
   val ReplicaFetchBackoffMs = 1000
   val ReplicaHighWatermarkCheckpointIntervalMs = 5000L
@@ -362,10 +386,16 @@ object KafkaConfig {
   val MessageMaxBytesProp = "message.max.bytes"
   val NumNetworkThreadsProp = "num.network.threads"
   val NumIoThreadsProp = "num.io.threads"
+  val NumFetchIoThreadsProp = "num.fetch.io.threads"
+  val NumPurgatoryCompletionThreadsProp = "num.purgatory.completion.threads"
+  val PurgatoryLockFreeTimerEnableProp = "purgatory.lock.free.timer.enable"
   val BackgroundThreadsProp = "background.threads"
   val NumReplicaAlterLogDirsThreadsProp = "num.replica.alter.log.dirs.threads"
   val QueuedMaxRequestsProp = "queued.max.requests"
+  val NumRequestQueueShardsProp = "num.request.queue.shards"
+  val RequestSchedulingClassWeightsProp = "request.scheduling.class.weights"
   val QueuedMaxBytesProp = "queued.max.request.bytes"
+  val QueuedMaxFetchIoRequestsProp = "queued.max.fetch.io.requests"
   val RequestTimeoutMsProp = CommonClientConfigs.REQUEST_TIMEOUT_MS_CONFIG
   val ConnectionSetupTimeoutMsProp = CommonClientConfigs.SOCKET_CONNECTION_SETUP_TIMEOUT_MS_CONFIG
   val ConnectionSetupTimeoutMaxMsProp = CommonClientConfigs.SOCKET_CONNECTION_SETUP_TIMEOUT_MAX_MS_CONFIG
@@ -394,6 +424,11 @@ object KafkaConfig {
   val SocketSendBufferBytesProp = "socket.send.buffer.bytes"
   val SocketReceiveBufferBytesProp = "socket.receive.buffer.bytes"
   val SocketRequestMaxBytesProp = "socket.request.max.bytes"
+  val SocketRequestBufferRecyclingEnableProp = "socket.request.buffer.recycling.enable"
+  val SocketRequestBufferDirectEnableProp = "socket.request.buffer.direct.enable"
+  val SocketResponseBufferPoolBytesProp = "socket.response.buffer.pool.bytes"
+  val SocketEagerWritesEnableProp = "socket.eager.writes.enable"
+  val ConnectionLoadBalancingEnableProp = "connection.load.balancing.enable"
   val MaxConnectionsPerIpProp = "max.connections.per.ip"
   val MaxConnectionsPerIpOverridesProp = "max.connections.per.ip.overrides"
   val MaxConnectionsProp = "max.connections"
@@ -427,17 +462,26 @@ object KafkaConfig {
   val LogCleanerIoBufferSizeProp = "log.cleaner.io.buffer.size"
   val LogCleanerDedupeBufferLoadFactorProp = "log.cleaner.io.buffer.load.factor"
   val LogCleanerBackoffMsProp = "log.cleaner.backoff.ms"
+  val LogCleanerHashAlgorithmProp = "log.cleaner.hash.algorithm"
+  val LogCleanerParallelismPerLogProp = "log.cleaner.parallelism.per.log"
+  val LogCleanerKeySummaryEnableProp = "log.cleaner.key.summary.enable"
   val LogCleanerMinCleanRatioProp = "log.cleaner.min.cleanable.ratio"
   val LogCleanerEnableProp = "log.cleaner.enable"
   val LogCleanerDeleteRetentionMsProp = "log.cleaner.delete.retention.ms"
   val LogCleanerMinCompactionLagMsProp = "log.cleaner.min.compaction.lag.ms"
   val LogCleanerMaxCompactionLagMsProp = "log.cleaner.max.compaction.lag.ms"
   val LogIndexSizeMaxBytesProp = "log.index.size.max.bytes"
+  val LogIndexSampleCacheMaxBytesProp = "log.index.sample.cache.max.bytes"
+  val LogProducerSnapshotIndexedEnableProp = "log.producer.snapshot.indexed.enable"
+  val LogProducerStateOffHeapEnableProp = "log.producer.state.off.heap.enable"
+  val LogReadAheadBytesProp = "log.read.ahead.bytes"
+  val LogReadAheadThreadsProp = "log.read.ahead.threads"
   val LogIndexIntervalBytesProp = "log.index.interval.bytes"
   val LogFlushIntervalMessagesProp = "log.flush.interval.messages"
   val LogDeleteDelayMsProp = "log.segment.delete.delay.ms"
   val LogFlushSchedulerIntervalMsProp = "log.flush.scheduler.interval.ms"
   val LogFlushIntervalMsProp = "log.flush.interval.ms"
+  val LogFlushGroupCommitMaxDelayMsProp = "log.flush.group.commit.max.delay.ms"
   val LogFlushOffsetCheckpointIntervalMsProp = "log.flush.offset.checkpoint.interval.ms"
   val LogFlushStartOffsetCheckpointIntervalMsProp = "log.flush.start.offset.checkpoint.interval.ms"
   val LogPreAllocateProp = "log.preallocate"
@@ -461,6 +505,9 @@ object KafkaConfig {
   val ReplicaFetchWaitMaxMsProp = "replica.fetch.wait.max.ms"
   val ReplicaFetchMinBytesProp = "replica.fetch.min.bytes"
   val ReplicaFetchResponseMaxBytesProp = "replica.fetch.response.max.bytes"
+  val ReplicaFetchMaxInFlightRequestsProp = "replica.fetch.max.in.flight.requests"
+  val ReplicaFetchAppendQueueSizeProp = "replica.fetch.append.queue.size"
+  val ReplicaFetcherRebalanceIntervalMsProp = "replica.fetcher.rebalance.interval.ms"
   val ReplicaFetchBackoffMsProp = "replica.fetch.backoff.ms"
   val NumReplicaFetchersProp = "num.replica.fetchers"
   val ReplicaHighWatermarkCheckpointIntervalMsProp = "replica.high.watermark.checkpoint.interval.ms"
@@ -655,10 +702,32 @@ object KafkaConfig {
     s"This can be set per topic with the topic level <code>${TopicConfig.MAX_MESSAGE_BYTES_CONFIG}</code> config."
   val NumNetworkThreadsDoc = "The number of threads that the server uses for receiving requests from the network and sending responses to the network"
   val NumIoThreadsDoc = "The number of threads that the server uses for processing requests, which may include disk I/O"
+  val NumFetchIoThreadsDoc = "The number of threads that the server uses for reading fetches of data which is likely not in the page cache, " +
+    "i.e. which is older than the active segment of the log, so that they don't block the request handler threads. " +
+    "If 0, fetches are always read by the request handler threads."
+  val NumPurgatoryCompletionThreadsDoc = "The number of threads that the server uses for completing the delayed produce, fetch and " +
+    "delete records requests which may be unblocked by the appends of a produce request, so that the request handler threads " +
+    "don't check the delayed requests of every partition of the produce request. The request handler threads complete them when too many " +
+    "are queued for these threads. If 0, they are completed by the request handler threads."
+  val PurgatoryLockFreeTimerEnableDoc = "Whether the purgatories of the delayed produce, fetch, delete records and elect leader requests use a " +
+    "timer whose tasks are added and cancelled through lock-free queues, rather than under the locks of the timer and of its buckets. " +
+    "This reduces the contention of the request handler threads when there are many delayed requests."
   val NumReplicaAlterLogDirsThreadsDoc = "The number of threads that can move replicas between log directories, which may include disk I/O"
   val BackgroundThreadsDoc = "The number of threads to use for various background processing tasks"
   val QueuedMaxRequestsDoc = "The number of queued requests allowed for data-plane, before blocking the network threads"
+  val NumRequestQueueShardsDoc = "The number of queues the data-plane requests are split into, to reduce the contention of the network " +
+    "and request handler threads on a single queue. The requests of a network thread always go to the same queue, and the request " +
+    s"handler threads are spread over the queues, taking requests from other queues when theirs is empty. The <code>$QueuedMaxRequestsProp</code> " +
+    s"are split evenly between the queues, and the number of queues should not exceed <code>$NumIoThreadsProp</code>."
+  val RequestSchedulingClassWeightsDoc = "A comma-separated list of weights of the scheduling classes of the data-plane requests, " +
+    "e.g. <code>replication:8,produce:4,consumer-fetch:1,other:2</code>. The classes are <code>replication</code> for the follower " +
+    "fetches and the requests between brokers, <code>produce</code>, <code>consumer-fetch</code> for the fetches of consumers, and " +
+    "<code>other</code> for all the other requests. When set, the request handler threads take the queued requests of the classes " +
+    "in proportion to their weights, so that a burst of requests of one class does not delay the requests of the others, and the " +
+    "classes which are not listed have a weight of 1. When empty, the requests are handled in the order they were received."
   val QueuedMaxRequestBytesDoc = "The number of queued bytes allowed before no more requests are read"
+  val QueuedMaxFetchIoRequestsDoc = s"The number of fetches allowed to wait for a fetch I/O thread, see <code>$NumFetchIoThreadsProp</code>. " +
+    "Further fetches are read by the request handler threads."
   val RequestTimeoutMsDoc = CommonClientConfigs.REQUEST_TIMEOUT_MS_DOC
   val ConnectionSetupTimeoutMsDoc = CommonClientConfigs.SOCKET_CONNECTION_SETUP_TIMEOUT_MS_DOC
   val ConnectionSetupTimeoutMaxMsDoc = CommonClientConfigs.SOCKET_CONNECTION_SETUP_TIMEOUT_MAX_MS_DOC
@@ -744,6 +813,24 @@ object KafkaConfig {
   val SocketSendBufferBytesDoc = "The SO_SNDBUF buffer of the socket server sockets. If the value is -1, the OS default will be used."
   val SocketReceiveBufferBytesDoc = "The SO_RCVBUF buffer of the socket server sockets. If the value is -1, the OS default will be used."
   val SocketRequestMaxBytesDoc = "The maximum number of bytes in a socket request"
+  val SocketRequestBufferRecyclingEnableDoc = "Whether the buffers of the received requests are recycled instead of being allocated for " +
+    s"every request. Buffers are recycled within the memory pool bounded by <code>$QueuedMaxBytesProp</code>, so this has no effect " +
+    "unless it is set, and the free buffers kept for reuse never exceed the size of the pool. Since buffers are rounded up to a " +
+    "power of two, the buffers of the queued requests may take up to twice this size."
+  val SocketRequestBufferDirectEnableDoc = "Whether the recycled buffers of the received requests are allocated off-heap, see " +
+    s"<code>$SocketRequestBufferRecyclingEnableProp</code>. Direct memory must allow for twice <code>$QueuedMaxBytesProp</code> if enabled."
+  val SocketResponseBufferPoolBytesDoc = "The size of the pool of off-heap buffers into which the responses of the data-plane requests " +
+    "are serialized, apart from the records sent from the log segments or memory, which are never copied. The buffers are " +
+    "recycled once the responses have been sent. Responses are serialized into buffers allocated on the heap when the pool " +
+    "is exhausted, or for all of them if this is 0. Since buffers are rounded up to a power of two, direct memory must allow " +
+    "for twice this size if set."
+  val SocketEagerWritesEnableDoc = "Whether the network threads write the responses to the sockets as soon as they get them, " +
+    "rather than waiting for the sockets to be reported writable. Most responses fit in the socket send buffer, so this saves a " +
+    "poll of the sockets and two updates of their registration with the OS for each of them."
+  val ConnectionLoadBalancingEnableDoc = "Whether the new connections of a listener are assigned to the network threads by " +
+    "their load rather than round-robin. Each connection goes to the less loaded of the next thread in round-robin order and " +
+    "a random other one: the less busy one, or the one with fewer connections if they are about as busy. Connections stay " +
+    "on the thread they were assigned to until they are closed."
   val MaxConnectionsPerIpDoc = "The maximum number of connections we allow from each ip address. This can be set to 0 if there are overrides " +
     s"configured using $MaxConnectionsPerIpOverridesProp property. New connections from the ip address are dropped if the limit is reached."
   val MaxConnectionsPerIpOverridesDoc = "A comma-separated list of per-ip or hostname overrides to the default maximum number of connections. " +
@@ -789,6 +876,18 @@ object KafkaConfig {
   val LogCleanerDedupeBufferLoadFactorDoc = "Log cleaner dedupe buffer load factor. The percentage full the dedupe buffer can become. A higher value " +
   "will allow more log to be cleaned at once but will lead to more hash collisions"
   val LogCleanerBackoffMsDoc = "The amount of time to sleep when there are no logs to clean"
+  val LogCleanerHashAlgorithmDoc = "The hash algorithm used by the log cleaner to identify keys in the dedupe buffer. " +
+    "MURMUR3-128 is a non-cryptographic hash which is significantly cheaper to compute than the message digest algorithms " +
+    s"for the same buffer size. Ignored if $LogCleanerParallelismPerLogProp is greater than 1."
+  val LogCleanerKeySummaryEnableDoc = "Enable the log cleaner to write a summary of the keys and offsets retained in each cleaned " +
+    "segment next to the segment files. A later cleaning checks the summary against its offset map and leaves the segment " +
+    "in place without reading it if none of its keys have been updated since, which saves most of the cleaner I/O on " +
+    "large compacted logs whose updates only touch a small part of the keys."
+  val LogCleanerParallelismPerLogDoc = "The number of workers used by a log cleaner thread to build the offset map and recopy the " +
+    "segments of a single log. If greater than 1, the workers of all the cleaner threads share a pool of " +
+    s"$LogCleanerThreadsProp times this many threads, each worker has its own I/O buffers of the size derived from " +
+    s"$LogCleanerIoBufferSizeProp and the dedupe buffer is a thread-safe map keyed by the ${OffsetMap.Murmur3HashAlgorithm} hash, " +
+    s"regardless of $LogCleanerHashAlgorithmProp."
   val LogCleanerMinCleanRatioDoc = "The minimum ratio of dirty log to total log for a log to eligible for cleaning. " +
     "If the " + LogCleanerMaxCompactionLagMsProp + " or the " + LogCleanerMinCompactionLagMsProp +
     " configurations are also specified, then the log compactor considers the log eligible for compaction " +
@@ -800,11 +899,33 @@ object KafkaConfig {
   val LogCleanerMinCompactionLagMsDoc = "The minimum time a message will remain uncompacted in the log. Only applicable for logs that are being compacted."
   val LogCleanerMaxCompactionLagMsDoc = "The maximum time a message will remain ineligible for compaction in the log. Only applicable for logs that are being compacted."
   val LogIndexSizeMaxBytesDoc = "The maximum size in bytes of the offset index"
+  val LogIndexSampleCacheMaxBytesDoc = "The maximum memory in bytes used across all logs to cache the keys of the offset " +
+    "and time indexes sampled at page intervals. Lookups of entries outside the most recently appended section of an index " +
+    "use them to search a single page of the index, which avoids page faults when reading older segments. When full, the " +
+    "samples of the oldest segments are evicted first. The cache is disabled by default (0)."
+  val LogProducerSnapshotIndexedEnableDoc = "Write the producer state snapshots of the logs in the indexed format, whose " +
+    "entries are only decoded when a producer is first accessed after the log is loaded. Snapshots in either format can " +
+    "be read, but brokers older than this version discard snapshots in the indexed format and rebuild the producer " +
+    "state from the log, so this should only be enabled once downgrading is no longer an option, like the " +
+    "inter.broker.protocol.version."
+  val LogProducerStateOffHeapEnableDoc = "Keep the producer state of the logs in direct memory rather than on the heap. " +
+    "The state of each producer takes a fixed size slot either way, this only moves the tables out of the heap of brokers " +
+    "with many idempotent producers. Direct memory is limited by -XX:MaxDirectMemorySize."
+  val LogReadAheadBytesDoc = "The number of bytes of a segment read in the background ahead of the sequential reads of " +
+    "the log, e.g. consumers catching up, so that the data is in the page cache by the time it is fetched rather than " +
+    "read from disk by the request handler threads. Reads towards the end of the active segment are not read ahead. " +
+    "Read-ahead is disabled by default (0)."
+  val LogReadAheadThreadsDoc = "The number of threads reading ahead of the sequential reads of the logs"
   val LogIndexIntervalBytesDoc = "The interval with which we add an entry to the offset index"
   val LogFlushIntervalMessagesDoc = "The number of messages accumulated on a log partition before messages are flushed to disk "
   val LogDeleteDelayMsDoc = "The amount of time to wait before deleting a file from the filesystem"
   val LogFlushSchedulerIntervalMsDoc = "The frequency in ms that the log flusher checks whether any log needs to be flushed to disk"
   val LogFlushIntervalMsDoc = "The maximum time in ms that a message in any topic is kept in memory before flushed to disk. If not set, the value in " + LogFlushSchedulerIntervalMsProp + " is used"
+  val LogFlushGroupCommitMaxDelayMsDoc = "The maximum time in ms to wait for the flushes of other partitions of the same log directory " +
+    "before flushing a partition whose messages reached <code>" + LogFlushIntervalMessagesProp + "</code>, so that they are flushed together " +
+    "by one thread per log directory and the appends to the partition don't wait for its flush. The flushes which are requested while " +
+    "another one is in progress are always done together, and they are done without waiting any longer once enough partitions are waiting " +
+    "for them. If negative, partitions are flushed by the appending thread."
   val LogFlushOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of the last flush which acts as the log recovery point"
   val LogFlushStartOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of log start offset"
   val LogPreAllocateEnableDoc = "Should pre allocate file when create new segment? If you are using Kafka on Windows, you probably need to set it to true."
@@ -858,6 +979,23 @@ object KafkaConfig {
     "will still be returned to ensure that progress can be made. As such, this is not an absolute maximum. The maximum " +
     "record batch size accepted by the broker is defined via <code>message.max.bytes</code> (broker config) or " +
     "<code>max.message.bytes</code> (topic config)."
+  val ReplicaFetchMaxInFlightRequestsDoc = "The maximum number of fetch requests that a fetcher thread keeps in flight to the leader. " +
+    "When greater than 1, the partitions of the fetcher are split between several fetch requests while the leader returns records, " +
+    "and the next fetch of a partition is sent once the records fetched for it are appended. " +
+    "This lets followers on high-latency links keep up without increasing <code>num.replica.fetchers</code>. " +
+    "Note that since a fetch session only allows one fetch in flight, every fetch is then a full fetch without a session: the " +
+    "incremental fetch requests of KIP-227, which only list the partitions that changed, are not used, so the fetch requests and " +
+    "responses are larger and the leader does more work for each of them when a fetcher has many partitions."
+  val ReplicaFetchAppendQueueSizeDoc = "The maximum number of partitions whose fetched records are queued to be appended by a " +
+    "thread of the replica fetcher thread for their log directory, so that the records fetched for several log directories are " +
+    "appended concurrently and, when <code>replica.fetch.max.in.flight.requests</code> is greater than 1, the fetcher thread keeps " +
+    "receiving the other fetch responses while they are appended. Otherwise, the next fetch request is sent once the fetched records " +
+    "are appended. When the queue is full, the fetcher thread appends the records itself. If 0, the fetcher thread appends all " +
+    "the fetched records."
+  val ReplicaFetcherRebalanceIntervalMsDoc = "The frequency with which partitions are moved between the replica fetcher threads of a " +
+    "source broker according to the bytes replicated for them since the previous rebalance, from the most loaded thread to the least " +
+    "loaded one, so that a few busy partitions assigned to the same thread don't make it fall behind while the other threads are idle. " +
+    "If 0, each partition is assigned to a fetcher thread by the hash of its topic and partition."
   val NumReplicaFetchersDoc = "Number of fetcher threads used to replicate messages from a source broker. " +
   "Increasing this value can increase the degree of I/O parallelism in the follower broker."
   val ReplicaFetchBackoffMsDoc = "The amount of time to sleep when fetch partition error occurs."
@@ -1064,10 +1202,16 @@ object KafkaConfig {
       .define(MessageMaxBytesProp, INT, Defaults.MessageMaxBytes, atLeast(0), HIGH, MessageMaxBytesDoc)
       .define(NumNetworkThreadsProp, INT, Defaults.NumNetworkThreads, atLeast(1), HIGH, NumNetworkThreadsDoc)
       .define(NumIoThreadsProp, INT, Defaults.NumIoThreads, atLeast(1), HIGH, NumIoThreadsDoc)
+      .define(NumFetchIoThreadsProp, INT, Defaults.NumFetchIoThreads, atLeast(0), MEDIUM, NumFetchIoThreadsDoc)
+      .define(NumPurgatoryCompletionThreadsProp, INT, Defaults.NumPurgatoryCompletionThreads, atLeast(0), LOW, NumPurgatoryCompletionThreadsDoc)
+      .define(PurgatoryLockFreeTimerEnableProp, BOOLEAN, Defaults.PurgatoryLockFreeTimerEnable, LOW, PurgatoryLockFreeTimerEnableDoc)
       .define(NumReplicaAlterLogDirsThreadsProp, INT, null, HIGH, NumReplicaAlterLogDirsThreadsDoc)
       .define(BackgroundThreadsProp, INT, Defaults.BackgroundThreads, atLeast(1), HIGH, BackgroundThreadsDoc)
       .define(QueuedMaxRequestsProp, INT, Defaults.QueuedMaxRequests, atLeast(1), HIGH, QueuedMaxRequestsDoc)
+      .define(NumRequestQueueShardsProp, INT, Defaults.NumRequestQueueShards, atLeast(1), MEDIUM, NumRequestQueueShardsDoc)
+      .define(RequestSchedulingClassWeightsProp, STRING, Defaults.RequestSchedulingClassWeights, MEDIUM, RequestSchedulingClassWeightsDoc)
       .define(QueuedMaxBytesProp, LONG, Defaults.QueuedMaxRequestBytes, MEDIUM, QueuedMaxRequestBytesDoc)
+      .define(QueuedMaxFetchIoRequestsProp, INT, Defaults.QueuedMaxFetchIoRequests, atLeast(1), LOW, QueuedMaxFetchIoRequestsDoc)
       .define(RequestTimeoutMsProp, INT, Defaults.RequestTimeoutMs, HIGH, RequestTimeoutMsDoc)
       .define(ConnectionSetupTimeoutMsProp, LONG, Defaults.ConnectionSetupTimeoutMs, MEDIUM, ConnectionSetupTimeoutMsDoc)
       .define(ConnectionSetupTimeoutMaxMsProp, LONG, Defaults.ConnectionSetupTimeoutMaxMs, MEDIUM, ConnectionSetupTimeoutMaxMsDoc)
@@ -1100,6 +1244,11 @@ object KafkaConfig {
       .define(SocketSendBufferBytesProp, INT, Defaults.SocketSendBufferBytes, HIGH, SocketSendBufferBytesDoc)
       .define(SocketReceiveBufferBytesProp, INT, Defaults.SocketReceiveBufferBytes, HIGH, SocketReceiveBufferBytesDoc)
       .define(SocketRequestMaxBytesProp, INT, Defaults.SocketRequestMaxBytes, atLeast(1), HIGH, SocketRequestMaxBytesDoc)
+      .define(SocketRequestBufferRecyclingEnableProp, BOOLEAN, Defaults.SocketRequestBufferRecyclingEnable, LOW, SocketRequestBufferRecyclingEnableDoc)
+      .define(SocketRequestBufferDirectEnableProp, BOOLEAN, Defaults.SocketRequestBufferDirectEnable, LOW, SocketRequestBufferDirectEnableDoc)
+      .define(SocketResponseBufferPoolBytesProp, LONG, Defaults.SocketResponseBufferPoolBytes, atLeast(0), LOW, SocketResponseBufferPoolBytesDoc)
+      .define(SocketEagerWritesEnableProp, BOOLEAN, Defaults.SocketEagerWritesEnable, LOW, SocketEagerWritesEnableDoc)
+      .define(ConnectionLoadBalancingEnableProp, BOOLEAN, Defaults.ConnectionLoadBalancingEnable, LOW, ConnectionLoadBalancingEnableDoc)
       .define(MaxConnectionsPerIpProp, INT, Defaults.MaxConnectionsPerIp, atLeast(0), MEDIUM, MaxConnectionsPerIpDoc)
       .define(MaxConnectionsPerIpOverridesProp, STRING, Defaults.MaxConnectionsPerIpOverrides, MEDIUM, MaxConnectionsPerIpOverridesDoc)
       .define(MaxConnectionsProp, INT, Defaults.MaxConnections, atLeast(0), MEDIUM, MaxConnectionsDoc)
@@ -1135,17 +1284,26 @@ object KafkaConfig {
       .define(LogCleanerIoBufferSizeProp, INT, Defaults.LogCleanerIoBufferSize, atLeast(0), MEDIUM, LogCleanerIoBufferSizeDoc)
       .define(LogCleanerDedupeBufferLoadFactorProp, DOUBLE, Defaults.LogCleanerDedupeBufferLoadFactor, MEDIUM, LogCleanerDedupeBufferLoadFactorDoc)
       .define(LogCleanerBackoffMsProp, LONG, Defaults.LogCleanerBackoffMs, atLeast(0), MEDIUM, LogCleanerBackoffMsDoc)
+      .define(LogCleanerParallelismPerLogProp, INT, Defaults.LogCleanerParallelismPerLog, atLeast(1), LOW, LogCleanerParallelismPerLogDoc)
+      .define(LogCleanerKeySummaryEnableProp, BOOLEAN, Defaults.LogCleanerKeySummaryEnable, LOW, LogCleanerKeySummaryEnableDoc)
+      .define(LogCleanerHashAlgorithmProp, STRING, Defaults.LogCleanerHashAlgorithm, in("MD5", "SHA-1", "SHA-256", "SHA-384", "SHA-512", OffsetMap.Murmur3HashAlgorithm), LOW, LogCleanerHashAlgorithmDoc)
       .define(LogCleanerMinCleanRatioProp, DOUBLE, Defaults.LogCleanerMinCleanRatio, MEDIUM, LogCleanerMinCleanRatioDoc)
       .define(LogCleanerEnableProp, BOOLEAN, Defaults.LogCleanerEnable, MEDIUM, LogCleanerEnableDoc)
       .define(LogCleanerDeleteRetentionMsProp, LONG, Defaults.LogCleanerDeleteRetentionMs, MEDIUM, LogCleanerDeleteRetentionMsDoc)
       .define(LogCleanerMinCompactionLagMsProp, LONG, Defaults.LogCleanerMinCompactionLagMs, MEDIUM, LogCleanerMinCompactionLagMsDoc)
       .define(LogCleanerMaxCompactionLagMsProp, LONG, Defaults.LogCleanerMaxCompactionLagMs, MEDIUM, LogCleanerMaxCompactionLagMsDoc)
       .define(LogIndexSizeMaxBytesProp, INT, Defaults.LogIndexSizeMaxBytes, atLeast(4), MEDIUM, LogIndexSizeMaxBytesDoc)
+      .define(LogIndexSampleCacheMaxBytesProp, LONG, Defaults.LogIndexSampleCacheMaxBytes, atLeast(0), LOW, LogIndexSampleCacheMaxBytesDoc)
+      .define(LogProducerSnapshotIndexedEnableProp, BOOLEAN, Defaults.LogProducerSnapshotIndexedEnable, LOW, LogProducerSnapshotIndexedEnableDoc)
+      .define(LogProducerStateOffHeapEnableProp, BOOLEAN, Defaults.LogProducerStateOffHeapEnable, LOW, LogProducerStateOffHeapEnableDoc)
+      .define(LogReadAheadBytesProp, INT, Defaults.LogReadAheadBytes, atLeast(0), LOW, LogReadAheadBytesDoc)
+      .define(LogReadAheadThreadsProp, INT, Defaults.LogReadAheadThreads, atLeast(1), LOW, LogReadAheadThreadsDoc)
       .define(LogIndexIntervalBytesProp, INT, Defaults.LogIndexIntervalBytes, atLeast(0), MEDIUM, LogIndexIntervalBytesDoc)
       .define(LogFlushIntervalMessagesProp, LONG, Defaults.LogFlushIntervalMessages, atLeast(1), HIGH, LogFlushIntervalMessagesDoc)
       .define(LogDeleteDelayMsProp, LONG, Defaults.LogDeleteDelayMs, atLeast(0), HIGH, LogDeleteDelayMsDoc)
       .define(LogFlushSchedulerIntervalMsProp, LONG, Defaults.LogFlushSchedulerIntervalMs, HIGH, LogFlushSchedulerIntervalMsDoc)
       .define(LogFlushIntervalMsProp, LONG, null, HIGH, LogFlushIntervalMsDoc)
+      .define(LogFlushGroupCommitMaxDelayMsProp, LONG, Defaults.LogFlushGroupCommitMaxDelayMs, MEDIUM, LogFlushGroupCommitMaxDelayMsDoc)
       .define(LogFlushOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushOffsetCheckpointIntervalMsDoc)
       .define(LogFlushStartOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushStartOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushStartOffsetCheckpointIntervalMsDoc)
       .define(LogPreAllocateProp, BOOLEAN, Defaults.LogPreAllocateEnable, MEDIUM, LogPreAllocateEnableDoc)
@@ -1170,6 +1328,9 @@ object KafkaConfig {
       .define(ReplicaFetchBackoffMsProp, INT, Defaults.ReplicaFetchBackoffMs, atLeast(0), MEDIUM, ReplicaFetchBackoffMsDoc)
       .define(ReplicaFetchMinBytesProp, INT, Defaults.ReplicaFetchMinBytes, HIGH, ReplicaFetchMinBytesDoc)
       .define(ReplicaFetchResponseMaxBytesProp, INT, Defaults.ReplicaFetchResponseMaxBytes, atLeast(0), MEDIUM, ReplicaFetchResponseMaxBytesDoc)
+      .define(ReplicaFetchMaxInFlightRequestsProp, INT, Defaults.ReplicaFetchMaxInFlightRequests, atLeast(1), LOW, ReplicaFetchMaxInFlightRequestsDoc)
+      .define(ReplicaFetchAppendQueueSizeProp, INT, Defaults.ReplicaFetchAppendQueueSize, atLeast(0), LOW, ReplicaFetchAppendQueueSizeDoc)
+      .define(ReplicaFetcherRebalanceIntervalMsProp, LONG, Defaults.ReplicaFetcherRebalanceIntervalMs, atLeast(0), LOW, ReplicaFetcherRebalanceIntervalMsDoc)
       .define(NumReplicaFetchersProp, INT, Defaults.NumReplicaFetchers, HIGH, NumReplicaFetchersDoc)
       .define(ReplicaHighWatermarkCheckpointIntervalMsProp, LONG, Defaults.ReplicaHighWatermarkCheckpointIntervalMs, HIGH, ReplicaHighWatermarkCheckpointIntervalMsDoc)
       .define(FetchPurgatoryPurgeIntervalRequestsProp, INT, Defaults.FetchPurgatoryPurgeIntervalRequests, MEDIUM, FetchPurgatoryPurgeIntervalRequestsDoc)
@@ -1557,8 +1718,27 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def numNetworkThreads = getInt(KafkaConfig.NumNetworkThreadsProp)
   def backgroundThreads = getInt(KafkaConfig.BackgroundThreadsProp)
   val queuedMaxRequests = getInt(KafkaConfig.QueuedMaxRequestsProp)
+  val numRequestQueueShards = getInt(KafkaConfig.NumRequestQueueShardsProp)
+  val requestSchedulingClassWeights: Map[SchedulingClass, Int] = {
+    val propValue = getString(KafkaConfig.RequestSchedulingClassWeightsProp)
+    getMap(KafkaConfig.RequestSchedulingClassWeightsProp, propValue).map { case (name, weight) =>
+      val schedulingClass = SchedulingClass.fromName(name).getOrElse(throw new ConfigException(
+        KafkaConfig.RequestSchedulingClassWeightsProp, propValue, s"Unknown scheduling class $name"))
+      val weightValue = try weight.toInt catch {
+        case _: NumberFormatException => -1
+      }
+      if (weightValue < 1)
+        throw new ConfigException(KafkaConfig.RequestSchedulingClassWeightsProp, propValue,
+          s"The weight of scheduling class $name must be a positive integer")
+      schedulingClass -> weightValue
+    }
+  }
   val queuedMaxBytes = getLong(KafkaConfig.QueuedMaxBytesProp)
   def numIoThreads = getInt(KafkaConfig.NumIoThreadsProp)
+  val numFetchIoThreads = getInt(KafkaConfig.NumFetchIoThreadsProp)
+  val numPurgatoryCompletionThreads = getInt(KafkaConfig.NumPurgatoryCompletionThreadsProp)
+  val purgatoryLockFreeTimerEnable = getBoolean(KafkaConfig.PurgatoryLockFreeTimerEnableProp)
+  val queuedMaxFetchIoRequests = getInt(KafkaConfig.QueuedMaxFetchIoRequestsProp)
   def messageMaxBytes = getInt(KafkaConfig.MessageMaxBytesProp)
   val requestTimeoutMs = getInt(KafkaConfig.RequestTimeoutMsProp)
   val connectionSetupTimeoutMs = getLong(KafkaConfig.ConnectionSetupTimeoutMsProp)
@@ -1588,6 +1768,11 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val socketSendBufferBytes = getInt(KafkaConfig.SocketSendBufferBytesProp)
   val socketReceiveBufferBytes = getInt(KafkaConfig.SocketReceiveBufferBytesProp)
   val socketRequestMaxBytes = getInt(KafkaConfig.SocketRequestMaxBytesProp)
+  val socketRequestBufferRecyclingEnable = getBoolean(KafkaConfig.SocketRequestBufferRecyclingEnableProp)
+  val socketRequestBufferDirectEnable = getBoolean(KafkaConfig.SocketRequestBufferDirectEnableProp)
+  val socketResponseBufferPoolBytes = getLong(KafkaConfig.SocketResponseBufferPoolBytesProp)
+  val socketEagerWritesEnable = getBoolean(KafkaConfig.SocketEagerWritesEnableProp)
+  val connectionLoadBalancingEnable = getBoolean(KafkaConfig.ConnectionLoadBalancingEnableProp)
   val maxConnectionsPerIp = getInt(KafkaConfig.MaxConnectionsPerIpProp)
   val maxConnectionsPerIpOverrides: Map[String, Int] =
     getMap(KafkaConfig.MaxConnectionsPerIpOverridesProp, getString(KafkaConfig.MaxConnectionsPerIpOverridesProp)).map { case (k, v) => (k, v.toInt)}
@@ -1609,6 +1794,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val logCleanerThreads = getInt(KafkaConfig.LogCleanerThreadsProp)
   def numRecoveryThreadsPerDataDir = getInt(KafkaConfig.NumRecoveryThreadsPerDataDirProp)
   val logFlushSchedulerIntervalMs = getLong(KafkaConfig.LogFlushSchedulerIntervalMsProp)
+  val logFlushGroupCommitMaxDelayMs = getLong(KafkaConfig.LogFlushGroupCommitMaxDelayMsProp)
   val logFlushOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushOffsetCheckpointIntervalMsProp).toLong
   val logFlushStartOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushStartOffsetCheckpointIntervalMsProp).toLong
   val logCleanupIntervalMs = getLong(KafkaConfig.LogCleanupIntervalMsProp)
@@ -1624,9 +1810,17 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def logCleanerMinCompactionLagMs = getLong(KafkaConfig.LogCleanerMinCompactionLagMsProp)
   def logCleanerMaxCompactionLagMs = getLong(KafkaConfig.LogCleanerMaxCompactionLagMsProp)
   val logCleanerBackoffMs = getLong(KafkaConfig.LogCleanerBackoffMsProp)
+  val logCleanerHashAlgorithm = getString(KafkaConfig.LogCleanerHashAlgorithmProp)
+  val logCleanerParallelismPerLog = getInt(KafkaConfig.LogCleanerParallelismPerLogProp)
+  val logCleanerKeySummaryEnable = getBoolean(KafkaConfig.LogCleanerKeySummaryEnableProp)
   def logCleanerMinCleanRatio = getDouble(KafkaConfig.LogCleanerMinCleanRatioProp)
   val logCleanerEnable = getBoolean(KafkaConfig.LogCleanerEnableProp)
   def logIndexSizeMaxBytes = getInt(KafkaConfig.LogIndexSizeMaxBytesProp)
+  def logIndexSampleCacheMaxBytes = getLong(KafkaConfig.LogIndexSampleCacheMaxBytesProp)
+  def logProducerSnapshotIndexedEnable = getBoolean(KafkaConfig.LogProducerSnapshotIndexedEnableProp)
+  def logProducerStateOffHeapEnable = getBoolean(KafkaConfig.LogProducerStateOffHeapEnableProp)
+  def logReadAheadBytes = getInt(KafkaConfig.LogReadAheadBytesProp)
+  def logReadAheadThreads = getInt(KafkaConfig.LogReadAheadThreadsProp)
   def logIndexIntervalBytes = getInt(KafkaConfig.LogIndexIntervalBytesProp)
   def logDeleteDelayMs = getLong(KafkaConfig.LogDeleteDelayMsProp)
   def logRollTimeMillis: java.lang.Long = Option(getLong(KafkaConfig.LogRollTimeMillisProp)).getOrElse(60 * 60 * 1000L * getInt(KafkaConfig.LogRollTimeHoursProp))
@@ -1653,6 +1847,9 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val replicaFetchMinBytes = getInt(KafkaConfig.ReplicaFetchMinBytesProp)
   val replicaFetchResponseMaxBytes = getInt(KafkaConfig.ReplicaFetchResponseMaxBytesProp)
   val replicaFetchBackoffMs = getInt(KafkaConfig.ReplicaFetchBackoffMsProp)
+  val replicaFetchMaxInFlightRequests = getInt(KafkaConfig.ReplicaFetchMaxInFlightRequestsProp)
+  val replicaFetchAppendQueueSize = getInt(KafkaConfig.ReplicaFetchAppendQueueSizeProp)
+  val replicaFetcherRebalanceIntervalMs = getLong(KafkaConfig.ReplicaFetcherRebalanceIntervalMsProp)
   def numReplicaFetchers = getInt(KafkaConfig.NumReplicaFetchersProp)
   val replicaHighWatermarkCheckpointIntervalMs = getLong(KafkaConfig.ReplicaHighWatermarkCheckpointIntervalMsProp)
   val fetchPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.FetchPurgatoryPurgeIntervalRequestsProp)
@@ -36,6 +36,9 @@ trait ApiRequestHandler {
 
 /**
  * A thread that answers kafka requests.
+ *
+ * The handler takes the requests of the shard of the request channel it is assigned to, or of other shards when there
+ * are none, and tracks its idle time in the meter of its shard, if the request channel is sharded.
  */
 class KafkaRequestHandler(id: Int,
                           brokerId: Int,
@@ -43,10 +46,12 @@ class KafkaRequestHandler(id: Int,
                           val totalHandlerThreads: AtomicInteger,
                           val requestChannel: RequestChannel,
                           apis: ApiRequestHandler,
-                          time: Time) extends Runnable with Logging {
+                          time: Time,
+                          shardIdleMeter: Option[Meter] = None) extends Runnable with Logging {
   this.logIdent = "[Kafka Request Handler " + id + " on Broker " + brokerId + "], "
   private val shutdownComplete = new CountDownLatch(1)
   @volatile private var stopped = false
+  private val shard = id % requestChannel.numShards
 
   def run(): Unit = {
     while (!stopped) {
@@ -56,10 +61,11 @@ class KafkaRequestHandler(id: Int,
       // time should be discounted by # threads.
       val startSelectTime = time.nanoseconds
 
-      val req = requestChannel.receiveRequest(300)
+      val req = requestChannel.receiveRequest(300, shard)
       val endTime = time.nanoseconds
       val idleTime = endTime - startSelectTime
       aggregateIdleMeter.mark(idleTime / totalHandlerThreads.get)
+      shardIdleMeter.foreach(_.mark(idleTime / shardHandlerThreads))
 
       req match {
         case RequestChannel.ShutdownRequest =>
@@ -87,6 +93,13 @@ class KafkaRequestHandler(id: Int,
     shutdownComplete.countDown()
   }
 
+  // the number of handlers assigned to the shard of this handler, handlers being assigned to the shards by id
+  private def shardHandlerThreads: Int = {
+    val numShards = requestChannel.numShards
+    val total = totalHandlerThreads.get
+    math.max(1, total / numShards + (if (shard < total % numShards) 1 else 0))
+  }
+
   def stop(): Unit = {
     stopped = true
   }
@@ -108,6 +121,12 @@ class KafkaRequestHandlerPool(val brokerId: Int,
   private val threadPoolSize: AtomicInteger = new AtomicInteger(numThreads)
   /* a meter to track the average free capacity of the request handlers */
   private val aggregateIdleMeter = newMeter(requestHandlerAvgIdleMetricName, "percent", TimeUnit.NANOSECONDS)
+  /* the average free capacity of the request handlers of each shard of the request channel, if it is sharded */
+  private val shardIdleMeters =
+    if (requestChannel.numShards == 1) IndexedSeq.empty
+    else (0 until requestChannel.numShards).map { shard =>
+      newMeter(requestHandlerAvgIdleMetricName, "percent", TimeUnit.NANOSECONDS, Map(RequestChannel.ShardMetricTag -> shard.toString))
+    }
 
   this.logIdent = "[" + logAndThreadNamePrefix + " Kafka Request Handler on Broker " + brokerId + "], "
   val runnables = new mutable.ArrayBuffer[KafkaRequestHandler](numThreads)
@@ -116,7 +135,9 @@ class KafkaRequestHandlerPool(val brokerId: Int,
   }
 
   def createHandler(id: Int): Unit = synchronized {
-    runnables += new KafkaRequestHandler(id, brokerId, aggregateIdleMeter, threadPoolSize, requestChannel, apis, time)
+    val shardIdleMeter = shardIdleMeters.lift(id % requestChannel.numShards)
+    runnables += new KafkaRequestHandler(id, brokerId, aggregateIdleMeter, threadPoolSize, requestChannel, apis, time,
+      shardIdleMeter)
     KafkaThread.daemon(logAndThreadNamePrefix + "-kafka-request-handler-" + id, runnables(id)).start()
   }
 
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+
+import kafka.log.LogAppendInfo
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{Logging, ShutdownableThread}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.utils.Time
+
+import scala.collection.{Map, Set}
+import scala.jdk.CollectionConverters._
+import scala.util.{Failure, Success, Try}
+
+/**
+ * Appends the records fetched by a replica fetcher thread for the partitions of a log directory in a thread of its
+ * own, so that the log directories are appended to concurrently, and the pipelined fetches of the fetcher thread keep
+ * being received while the records are appended. The appends are queued in a bounded queue, see submit().
+ */
+class ReplicaAppendStage(fetcherName: String,
+                         logDir: String,
+                         queueSize: Int,
+                         fetcherTags: Map[String, String],
+                         time: Time) extends KafkaMetricsGroup with Logging {
+
+  private class Append(val topicPartition: TopicPartition,
+                       append: () => Option[LogAppendInfo],
+                       callback: Try[Option[LogAppendInfo]] => Unit) {
+    def run(): Unit = {
+      val startNs = time.nanoseconds
+      val result = try Success(append()) catch {
+        case t: Throwable => Failure(t)
+      }
+      appendTimeHist.update(TimeUnit.NANOSECONDS.toMillis(time.nanoseconds - startNs))
+      complete(result)
+    }
+
+    // the fetcher thread waits for the callback of every append, so an error must not stop the append thread
+    def complete(result: Try[Option[LogAppendInfo]]): Unit = {
+      try callback(result) catch {
+        case t: Throwable => error(s"Error while completing the append to $topicPartition", t)
+      }
+    }
+  }
+
+  private val appendQueue = new ArrayBlockingQueue[Append](queueSize)
+
+  private val tags = fetcherTags ++ Map("logDirectory" -> logDir)
+  newGauge(FetcherMetrics.AppendQueueSize, () => appendQueue.size, tags)
+  private val appendTimeHist = newHistogram(FetcherMetrics.AppendTimeMs, biased = true, tags)
+
+  private val appendThread = new ShutdownableThread(s"$fetcherName-append-$logDir", isInterruptible = false) {
+    override def doWork(): Unit = {
+      val append = appendQueue.poll(100, TimeUnit.MILLISECONDS)
+      if (append != null)
+        append.run()
+    }
+
+    override def run(): Unit = {
+      try super.run()
+      // the appends still queued once the thread stopped, e.g. due to an unexpected error, are dropped
+      finally dropQueuedAppends()
+    }
+  }
+  appendThread.start()
+
+  /**
+   * Queues the append, whose result is passed to the callback in the append thread, and returns false if the queue is
+   * full or the append thread stopped, in which case the caller appends the records itself.
+   */
+  def submit(topicPartition: TopicPartition,
+             append: () => Option[LogAppendInfo],
+             callback: Try[Option[LogAppendInfo]] => Unit): Boolean = {
+    if (appendThread.isShutdownComplete) {
+      false
+    } else {
+      val queued = appendQueue.offer(new Append(topicPartition, append, callback))
+      // the append thread may have dropped the queued appends before this one was queued
+      if (queued && appendThread.isShutdownComplete)
+        dropQueuedAppends()
+      queued
+    }
+  }
+
+  /**
+   * Drops the queued appends of the partitions, i.e. nothing is appended and their callbacks are called with no
+   * append info. The appends of the partitions in progress aren't affected.
+   */
+  def cancel(topicPartitions: Set[TopicPartition]): Unit = {
+    val cancelled = new util.ArrayList[Append]
+    appendQueue.removeIf { append =>
+      topicPartitions.contains(append.topicPartition) && cancelled.add(append)
+    }
+    cancelled.asScala.foreach(_.complete(Success(None)))
+  }
+
+  private def dropQueuedAppends(): Unit = {
+    var append = appendQueue.poll()
+    while (append != null) {
+      append.complete(Success(None))
+      append = appendQueue.poll()
+    }
+  }
+
+  def shutdown(): Unit = {
+    appendThread.shutdown()
+    // the queued appends are dropped, i.e. nothing was appended
+    dropQueuedAppends()
+    removeMetric(FetcherMetrics.AppendQueueSize, tags)
+    removeMetric(FetcherMetrics.AppendTimeMs, tags)
+  }
+}
@@ -16,10 +16,13 @@
   */
 package kafka.server
 
+import java.io.IOException
 import java.net.SocketTimeoutException
+import java.util
 
 import kafka.cluster.BrokerEndPoint
 import org.apache.kafka.clients._
+import org.apache.kafka.common.errors.DisconnectException
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network._
 import org.apache.kafka.common.requests.AbstractRequest
@@ -40,83 +43,190 @@ trait BlockingSend {
   def close(): Unit
 }
 
+trait PipelinedBlockingSend extends BlockingSend {
+
+  // Send a request without waiting for its response, which is returned by receiveResponse()
+  def send(requestBuilder: AbstractRequest.Builder[_ <: AbstractRequest]): Unit
+
+  // Wait for the response of the oldest request sent by send() whose response wasn't returned yet
+  def receiveResponse(): ClientResponse
+}
+
 class ReplicaFetcherBlockingSend(sourceBroker: BrokerEndPoint,
                                  brokerConfig: KafkaConfig,
                                  metrics: Metrics,
                                  time: Time,
                                  fetcherId: Int,
                                  clientId: String,
-                                 logContext: LogContext) extends BlockingSend {
+                                 logContext: LogContext,
+                                 // Visible for testing
+                                 networkClientOpt: Option[KafkaClient] = None) extends PipelinedBlockingSend {
 
   private val sourceNode = new Node(sourceBroker.id, sourceBroker.host, sourceBroker.port)
   private val socketTimeout: Int = brokerConfig.replicaSocketTimeoutMs
 
-  private val (networkClient, reconfigurableChannelBuilder) = {
-    val channelBuilder = ChannelBuilders.clientChannelBuilder(
-      brokerConfig.interBrokerSecurityProtocol,
-      JaasContext.Type.SERVER,
-      brokerConfig,
-      brokerConfig.interBrokerListenerName,
-      brokerConfig.saslMechanismInterBrokerProtocol,
-      time,
-      brokerConfig.saslInterBrokerHandshakeRequestEnable,
-      logContext
-    )
-    val reconfigurableChannelBuilder = channelBuilder match {
-      case reconfigurable: Reconfigurable =>
-        brokerConfig.addReconfigurable(reconfigurable)
-        Some(reconfigurable)
-      case _ => None
-    }
-    val selector = new Selector(
-      NetworkReceive.UNLIMITED,
-      brokerConfig.connectionsMaxIdleMs,
-      metrics,
-      time,
-      "replica-fetcher",
-      Map("broker-id" -> sourceBroker.id.toString, "fetcher-id" -> fetcherId.toString).asJava,
-      false,
-      channelBuilder,
-      logContext
-    )
-    val networkClient = new NetworkClient(
-      selector,
-      new ManualMetadataUpdater(),
-      clientId,
-      1,
-      0,
-      0,
-      Selectable.USE_DEFAULT_BUFFER_SIZE,
-      brokerConfig.replicaSocketReceiveBufferBytes,
-      brokerConfig.requestTimeoutMs,
-      brokerConfig.connectionSetupTimeoutMs,
-      brokerConfig.connectionSetupTimeoutMaxMs,
-      ClientDnsLookup.USE_ALL_DNS_IPS,
-      time,
-      false,
-      new ApiVersions,
-      logContext
-    )
-    (networkClient, reconfigurableChannelBuilder)
+  // The correlation ids of the requests sent by send() whose responses weren't returned yet, in order, and the
+  // responses received while waiting for other ones
+  private val pendingRequests = new util.ArrayDeque[Integer]
+  private val receivedResponses = new util.HashMap[Integer, ClientResponse]
+
+  private val (networkClient, reconfigurableChannelBuilder) = networkClientOpt match {
+    case Some(networkClient) => (networkClient, None)
+    case None =>
+      val channelBuilder = ChannelBuilders.clientChannelBuilder(
+        brokerConfig.interBrokerSecurityProtocol,
+        JaasContext.Type.SERVER,
+        brokerConfig,
+        brokerConfig.interBrokerListenerName,
+        brokerConfig.saslMechanismInterBrokerProtocol,
+        time,
+        brokerConfig.saslInterBrokerHandshakeRequestEnable,
+        logContext
+      )
+      val reconfigurableChannelBuilder = channelBuilder match {
+        case reconfigurable: Reconfigurable =>
+          brokerConfig.addReconfigurable(reconfigurable)
+          Some(reconfigurable)
+        case _ => None
+      }
+      val selector = new Selector(
+        NetworkReceive.UNLIMITED,
+        brokerConfig.connectionsMaxIdleMs,
+        metrics,
+        time,
+        "replica-fetcher",
+        Map("broker-id" -> sourceBroker.id.toString, "fetcher-id" -> fetcherId.toString).asJava,
+        false,
+        channelBuilder,
+        logContext
+      )
+      val networkClient = new NetworkClient(
+        selector,
+        new ManualMetadataUpdater(),
+        clientId,
+        // the pipelined fetches leave room for one more request, e.g. to fetch the epoch end offsets
+        if (brokerConfig.replicaFetchMaxInFlightRequests > 1) brokerConfig.replicaFetchMaxInFlightRequests + 1 else 1,
+        0,
+        0,
+        Selectable.USE_DEFAULT_BUFFER_SIZE,
+        brokerConfig.replicaSocketReceiveBufferBytes,
+        brokerConfig.requestTimeoutMs,
+        brokerConfig.connectionSetupTimeoutMs,
+        brokerConfig.connectionSetupTimeoutMaxMs,
+        ClientDnsLookup.USE_ALL_DNS_IPS,
+        time,
+        false,
+        new ApiVersions,
+        logContext
+      )
+      (networkClient, reconfigurableChannelBuilder)
   }
 
   override def sendRequest(requestBuilder: Builder[_ <: AbstractRequest]): ClientResponse = {
     try {
-      if (!NetworkClientUtils.awaitReady(networkClient, sourceNode, time, socketTimeout))
-        throw new SocketTimeoutException(s"Failed to connect within $socketTimeout ms")
-      else {
-        val clientRequest = networkClient.newClientRequest(sourceBroker.id.toString, requestBuilder,
-          time.milliseconds(), true)
-        NetworkClientUtils.sendAndReceive(networkClient, clientRequest, time)
+      if (pendingRequests.isEmpty) {
+        NetworkClientUtils.sendAndReceive(networkClient, newClientRequest(requestBuilder), time)
+      } else {
+        // the responses of the pipelined requests sent before this one are kept for receiveResponse()
+        val clientRequest = newClientRequest(requestBuilder)
+        networkClient.send(clientRequest, time.milliseconds())
+        receive(clientRequest.correlationId)
       }
     }
     catch {
       case e: Throwable =>
-        networkClient.close(sourceBroker.id.toString)
+        closeConnection()
         throw e
     }
   }
 
+  override def send(requestBuilder: Builder[_ <: AbstractRequest]): Unit = {
+    try {
+      val clientRequest = newClientRequest(requestBuilder)
+      networkClient.send(clientRequest, time.milliseconds())
+      pendingRequests.add(clientRequest.correlationId)
+    }
+    catch {
+      case e: Throwable =>
+        closeConnection()
+        throw e
+    }
+  }
+
+  override def receiveResponse(): ClientResponse = {
+    val correlationId = pendingRequests.poll()
+    if (correlationId == null)
+      throw new IllegalStateException("There is no request whose response wasn't received")
+    try {
+      receive(correlationId)
+    }
+    catch {
+      case e: Throwable =>
+        closeConnection()
+        throw e
+    }
+  }
+
+  private def newClientRequest(requestBuilder: Builder[_ <: AbstractRequest]): ClientRequest = {
+    awaitReady()
+    networkClient.newClientRequest(sourceBroker.id.toString, requestBuilder, time.milliseconds(), true)
+  }
+
+  // Like NetworkClientUtils.awaitReady(), but keeps the responses of the requests in flight received meanwhile
+  private def awaitReady(): Unit = {
+    var nowMs = time.milliseconds()
+    val expiryMs = nowMs + socketTimeout
+    poll(0, nowMs)
+    if (!networkClient.isReady(sourceNode, nowMs) && !networkClient.ready(sourceNode, nowMs)) {
+      while (!networkClient.isReady(sourceNode, nowMs) && nowMs < expiryMs) {
+        if (networkClient.connectionFailed(sourceNode))
+          throw new IOException(s"Connection to $sourceNode failed.")
+        poll(expiryMs - nowMs, nowMs)
+        val authenticationException = networkClient.authenticationException(sourceNode)
+        if (authenticationException != null)
+          throw authenticationException
+        nowMs = time.milliseconds()
+      }
+      if (!networkClient.isReady(sourceNode, nowMs))
+        throw new SocketTimeoutException(s"Failed to connect within $socketTimeout ms")
+    }
+  }
+
+  private def poll(timeoutMs: Long, nowMs: Long): Unit = {
+    networkClient.poll(timeoutMs, nowMs).forEach { received =>
+      receivedResponses.put(received.requestHeader.correlationId, received)
+    }
+  }
+
+  // Like NetworkClientUtils.sendAndReceive(), but keeps the responses of the other requests
+  private def receive(correlationId: Int): ClientResponse = {
+    var response: ClientResponse = null
+    try {
+      while (response == null && networkClient.active()) {
+        response = receivedResponses.remove(correlationId)
+        if (response == null)
+          poll(Long.MaxValue, time.milliseconds())
+      }
+    } catch {
+      case e: DisconnectException if networkClient.active() => throw e
+      case _: DisconnectException => response = null
+    }
+    if (response == null)
+      throw new IOException("Client was shutdown before response was read")
+    if (response.wasDisconnected)
+      throw new IOException(s"Connection to ${response.destination} was disconnected before the response was read")
+    if (response.versionMismatch != null)
+      throw response.versionMismatch
+    response
+  }
+
+  // The requests in flight are cancelled when the connection is closed
+  private def closeConnection(): Unit = {
+    networkClient.close(sourceBroker.id.toString)
+    pendingRequests.clear()
+    receivedResponses.clear()
+  }
+
   override def initiateClose(): Unit = {
     reconfigurableChannelBuilder.foreach(brokerConfig.removeReconfigurable)
     networkClient.initiateClose()
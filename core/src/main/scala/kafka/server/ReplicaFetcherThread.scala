@@ -17,6 +17,7 @@
 
 package kafka.server
 
+import java.util
 import java.util.Collections
 import java.util.Optional
 
@@ -40,8 +41,9 @@ import org.apache.kafka.common.requests._
 import org.apache.kafka.common.utils.{LogContext, Time}
 
 import scala.jdk.CollectionConverters._
-import scala.collection.{Map, mutable}
+import scala.collection.{Map, Set, mutable}
 import scala.compat.java8.OptionConverters._
+import scala.util.Try
 
 class ReplicaFetcherThread(name: String,
                            fetcherId: Int,
@@ -59,7 +61,7 @@ class ReplicaFetcherThread(name: String,
                                 failedPartitions,
                                 fetchBackOffMs = brokerConfig.replicaFetchBackoffMs,
                                 isInterruptible = false,
-                                replicaMgr.brokerTopicStats) {
+                                replicaMgr.brokerTopicStats) with PipelinedFetching {
 
   private val replicaId = brokerConfig.brokerId
   private val logContext = new LogContext(s"[ReplicaFetcher replicaId=$replicaId, leaderId=${sourceBroker.id}, " +
@@ -110,6 +112,19 @@ class ReplicaFetcherThread(name: String,
   override protected val isTruncationOnFetchSupported = ApiVersion.isTruncationOnFetchSupported(brokerConfig.interBrokerProtocolVersion)
   val fetchSessionHandler = new FetchSessionHandler(logContext, sourceBroker.id)
 
+  // Fetches are only pipelined if the leader endpoint supports it, as the default one does
+  private val pipelinedLeaderEndpoint: Option[PipelinedBlockingSend] = leaderEndpoint match {
+    case endpoint: PipelinedBlockingSend if brokerConfig.replicaFetchMaxInFlightRequests > 1 => Some(endpoint)
+    case _ => None
+  }
+  override protected[server] val maxInFlightFetches: Int =
+    if (pipelinedLeaderEndpoint.isDefined) brokerConfig.replicaFetchMaxInFlightRequests else 1
+
+  // The append stages of the log directories, created by the fetcher thread and shut down once it is, see
+  // processPartitionDataAsync()
+  private val appendQueueSize = brokerConfig.replicaFetchAppendQueueSize
+  private val appendStages = mutable.Map.empty[String, ReplicaAppendStage]
+
   override protected def latestEpoch(topicPartition: TopicPartition): Option[Int] = {
     replicaMgr.localLogOrException(topicPartition).latestEpoch
   }
@@ -144,6 +159,8 @@ class ReplicaFetcherThread(name: String,
 
   override def awaitShutdown(): Unit = {
     super.awaitShutdown()
+    appendStages.values.foreach(_.shutdown())
+    appendStages.clear()
     // We don't expect any exceptions here, but catch and log any errors to avoid failing the caller,
     // especially during shutdown. It is safe to catch the exception here without causing correctness
     // issue because we are going to shutdown the thread and will not re-use the leaderEndpoint anyway.
@@ -202,6 +219,22 @@ class ReplicaFetcherThread(name: String,
     logAppendInfo
   }
 
+  override protected def processPartitionDataAsync(topicPartition: TopicPartition,
+                                                   fetchOffset: Long,
+                                                   partitionData: FetchData,
+                                                   callback: Try[Option[LogAppendInfo]] => Unit): Boolean = {
+    // errors are left to processPartitionData() in the fetcher thread
+    appendQueueSize > 0 && replicaMgr.onlinePartition(topicPartition).flatMap(_.log).exists { log =>
+      val appendStage = appendStages.getOrElseUpdate(log.parentDir,
+        new ReplicaAppendStage(name, log.parentDir, appendQueueSize, fetcherStats.tags, time))
+      appendStage.submit(topicPartition, () => processPartitionData(topicPartition, fetchOffset, partitionData), callback)
+    }
+  }
+
+  override protected def cancelPartitionDataAsync(topicPartitions: Set[TopicPartition]): Unit = {
+    appendStages.values.foreach(_.cancel(topicPartitions))
+  }
+
   def maybeWarnIfOversizedRecords(records: MemoryRecords, topicPartition: TopicPartition): Unit = {
     // oversized messages don't cause replication to fail from fetch request version 3 (KIP-74)
     if (fetchRequestVersion <= 2 && records.sizeInBytes > 0 && records.validBytes <= 0)
@@ -228,6 +261,22 @@ class ReplicaFetcherThread(name: String,
     }
   }
 
+  // The pipelined fetches are only sent if pipelinedLeaderEndpoint is defined, see maxInFlightFetches
+  override protected[server] def sendFetch(fetchRequest: FetchRequest.Builder): Unit = {
+    pipelinedLeaderEndpoint.get.send(fetchRequest)
+  }
+
+  override protected[server] def receiveFetch(): Map[TopicPartition, FetchData] = {
+    val clientResponse = pipelinedLeaderEndpoint.get.receiveResponse()
+    val fetchResponse = clientResponse.responseBody.asInstanceOf[FetchResponse]
+    if (fetchResponse.error != Errors.NONE) {
+      info(s"Pipelined fetch request failed with error ${fetchResponse.error}")
+      Map.empty
+    } else {
+      fetchResponse.responseData.asScala
+    }
+  }
+
   override protected def fetchEarliestOffsetFromLeader(topicPartition: TopicPartition, currentLeaderEpoch: Int): Long = {
     fetchOffsetFromLeader(topicPartition, currentLeaderEpoch, ListOffsetsRequest.EARLIEST_TIMESTAMP)
   }
@@ -265,7 +314,9 @@ class ReplicaFetcherThread(name: String,
   override def buildFetch(partitionMap: Map[TopicPartition, PartitionFetchState]): ResultWithPartitions[Option[ReplicaFetch]] = {
     val partitionsWithError = mutable.Set[TopicPartition]()
 
-    val builder = fetchSessionHandler.newBuilder(partitionMap.size, false)
+    // The pipelined fetches are full fetches without a session, since a session only allows one fetch in flight
+    val builder = if (maxInFlightFetches > 1) None else Some(fetchSessionHandler.newBuilder(partitionMap.size, false))
+    val sessionlessPartitions = new util.LinkedHashMap[TopicPartition, FetchRequest.PartitionData]
     partitionMap.forKeyValue { (topicPartition, fetchState) =>
       // We will not include a replica in the fetch request if it should be throttled.
       if (fetchState.isReadyForFetch && !shouldFollowerThrottle(quota, fetchState, topicPartition)) {
@@ -275,12 +326,16 @@ class ReplicaFetcherThread(name: String,
             fetchState.lastFetchedEpoch.map(_.asInstanceOf[Integer]).asJava
           else
             Optional.empty[Integer]
-          builder.add(topicPartition, new FetchRequest.PartitionData(
+          val partitionData = new FetchRequest.PartitionData(
             fetchState.fetchOffset,
             logStartOffset,
             fetchSize,
             Optional.of(fetchState.currentLeaderEpoch),
-            lastFetchedEpoch))
+            lastFetchedEpoch)
+          builder match {
+            case Some(sessionBuilder) => sessionBuilder.add(topicPartition, partitionData)
+            case None => sessionlessPartitions.put(topicPartition, partitionData)
+          }
         } catch {
           case _: KafkaStorageException =>
             // The replica has already been marked offline due to log directory failure and the original failure should have already been logged.
@@ -290,16 +345,28 @@ class ReplicaFetcherThread(name: String,
       }
     }
 
-    val fetchData = builder.build()
-    val fetchRequestOpt = if (fetchData.sessionPartitions.isEmpty && fetchData.toForget.isEmpty) {
-      None
-    } else {
-      val requestBuilder = FetchRequest.Builder
-        .forReplica(fetchRequestVersion, replicaId, maxWait, minBytes, fetchData.toSend)
-        .setMaxBytes(maxBytes)
-        .toForget(fetchData.toForget)
-        .metadata(fetchData.metadata)
-      Some(ReplicaFetch(fetchData.sessionPartitions(), requestBuilder))
+    val fetchRequestOpt = builder match {
+      case Some(sessionBuilder) =>
+        val fetchData = sessionBuilder.build()
+        if (fetchData.sessionPartitions.isEmpty && fetchData.toForget.isEmpty) {
+          None
+        } else {
+          val requestBuilder = FetchRequest.Builder
+            .forReplica(fetchRequestVersion, replicaId, maxWait, minBytes, fetchData.toSend)
+            .setMaxBytes(maxBytes)
+            .toForget(fetchData.toForget)
+            .metadata(fetchData.metadata)
+          Some(ReplicaFetch(fetchData.sessionPartitions(), requestBuilder))
+        }
+      case None =>
+        if (sessionlessPartitions.isEmpty) {
+          None
+        } else {
+          val requestBuilder = FetchRequest.Builder
+            .forReplica(fetchRequestVersion, replicaId, maxWait, minBytes, sessionlessPartitions)
+            .setMaxBytes(maxBytes)
+          Some(ReplicaFetch(sessionlessPartitions, requestBuilder))
+        }
     }
 
     ResultWithPartitions(fetchRequestOpt, partitionsWithError)
@@ -18,7 +18,8 @@ package kafka.server
 
 import java.io.File
 import java.util.Optional
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{ArrayBlockingQueue, ExecutorService, ThreadPoolExecutor, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.locks.Lock
 
@@ -59,7 +60,7 @@ import org.apache.kafka.common.replica.{ClientMetadata, _}
 import org.apache.kafka.common.requests.FetchRequest.PartitionData
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse
 import org.apache.kafka.common.requests._
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{KafkaThread, Time}
 
 import scala.jdk.CollectionConverters._
 import scala.collection.{Map, Seq, Set, mutable}
@@ -195,6 +196,7 @@ object HostedPartition {
 
 object ReplicaManager {
   val HighWatermarkFilename = "replication-offset-checkpoint"
+  private val MaxQueuedCompletionsPerThread = 64
 }
 
 class ReplicaManager(val config: KafkaConfig,
@@ -234,15 +236,19 @@ class ReplicaManager(val config: KafkaConfig,
       quotaManagers, brokerTopicStats, metadataCache, logDirFailureChannel,
       DelayedOperationPurgatory[DelayedProduce](
         purgatoryName = "Produce", brokerId = config.brokerId,
-        purgeInterval = config.producerPurgatoryPurgeIntervalRequests),
+        purgeInterval = config.producerPurgatoryPurgeIntervalRequests,
+        lockFreeTimer = config.purgatoryLockFreeTimerEnable),
       DelayedOperationPurgatory[DelayedFetch](
         purgatoryName = "Fetch", brokerId = config.brokerId,
-        purgeInterval = config.fetchPurgatoryPurgeIntervalRequests),
+        purgeInterval = config.fetchPurgatoryPurgeIntervalRequests,
+        lockFreeTimer = config.purgatoryLockFreeTimerEnable),
       DelayedOperationPurgatory[DelayedDeleteRecords](
         purgatoryName = "DeleteRecords", brokerId = config.brokerId,
-        purgeInterval = config.deleteRecordsPurgatoryPurgeIntervalRequests),
+        purgeInterval = config.deleteRecordsPurgatoryPurgeIntervalRequests,
+        lockFreeTimer = config.purgatoryLockFreeTimerEnable),
       DelayedOperationPurgatory[DelayedElectLeader](
-        purgatoryName = "ElectLeader", brokerId = config.brokerId),
+        purgatoryName = "ElectLeader", brokerId = config.brokerId,
+        lockFreeTimer = config.purgatoryLockFreeTimerEnable),
       threadNamePrefix, configRepository, alterIsrManager)
   }
 
@@ -278,6 +284,12 @@ class ReplicaManager(val config: KafkaConfig,
   // Visible for testing
   private[server] val replicaSelectorOpt: Option[ReplicaSelector] = createReplicaSelector()
 
+  // Visible for testing
+  private[server] val fetchIoPoolOpt: Option[FetchIoPool] = createFetchIoPool()
+
+  // Visible for testing
+  private[server] val purgatoryCompletionExecutorOpt: Option[ExecutorService] = createPurgatoryCompletionExecutor()
+
   newGauge("LeaderCount", () => leaderPartitionsIterator.size)
   // Visible for testing
   private[kafka] val partitionCount = newGauge("PartitionCount", () => allPartitions.size)
@@ -308,6 +320,11 @@ class ReplicaManager(val config: KafkaConfig,
     replicaAlterLogDirsManager.shutdownIdleFetcherThreads()
   }
 
+  // Moves partitions between the replica fetcher threads according to their load, see replica.fetcher.rebalance.interval.ms
+  def rebalanceReplicaFetchers(): Unit = {
+    replicaFetcherManager.rebalanceFetchers()
+  }
+
   def getLog(topicPartition: TopicPartition): Option[Log] = logManager.getLog(topicPartition)
 
   def hasDelayedElectionOperations: Boolean = delayedElectLeaderPurgatory.numDelayed != 0
@@ -322,6 +339,9 @@ class ReplicaManager(val config: KafkaConfig,
     // A follower can lag behind leader for up to config.replicaLagTimeMaxMs x 1.5 before it is removed from ISR
     scheduler.schedule("isr-expiration", maybeShrinkIsr _, period = config.replicaLagTimeMaxMs / 2, unit = TimeUnit.MILLISECONDS)
     scheduler.schedule("shutdown-idle-replica-alter-log-dirs-thread", shutdownIdleReplicaAlterLogDirsThread _, period = 10000L, unit = TimeUnit.MILLISECONDS)
+    if (config.replicaFetcherRebalanceIntervalMs > 0)
+      scheduler.schedule("replica-fetcher-rebalance", rebalanceReplicaFetchers _,
+        period = config.replicaFetcherRebalanceIntervalMs, unit = TimeUnit.MILLISECONDS)
 
     // If inter-broker protocol (IBP) < 1.0, the controller will send LeaderAndIsrRequest V0 which does not include isNew field.
     // In this case, the broker receiving the request cannot determine whether it is safe to create a partition if a log directory has failed.
@@ -592,6 +612,42 @@ class ReplicaManager(val config: KafkaConfig,
 
   def tryCompleteActions(): Unit = actionQueue.tryCompleteActions()
 
+  /**
+   * Check and complete the delayed requests which may be unblocked by the appends to the given partitions, in the
+   * purgatory completion threads if any. The keys of all the partitions are checked at once in each purgatory.
+   */
+  private def completeDelayedRequestsAfterAppend(localProduceResults: Map[TopicPartition, LogAppendResult]): Unit = {
+    val hwIncreasedKeys = mutable.ArrayBuffer.empty[TopicPartitionOperationKey]
+    val leoIncreasedKeys = mutable.ArrayBuffer.empty[TopicPartitionOperationKey]
+    localProduceResults.forKeyValue { (topicPartition, result) =>
+      result.info.leaderHwChange match {
+        case LeaderHwChange.Increased =>
+          // some delayed operations may be unblocked after HW changed
+          hwIncreasedKeys += TopicPartitionOperationKey(topicPartition)
+        case LeaderHwChange.Same =>
+          // probably unblock some follower fetch requests since log end offset has been updated
+          leoIncreasedKeys += TopicPartitionOperationKey(topicPartition)
+        case LeaderHwChange.None =>
+          // nothing
+      }
+    }
+    if (hwIncreasedKeys.nonEmpty || leoIncreasedKeys.nonEmpty) {
+      def complete(): Unit = {
+        if (hwIncreasedKeys.nonEmpty) {
+          delayedProducePurgatory.checkAndComplete(hwIncreasedKeys)
+          delayedDeleteRecordsPurgatory.checkAndComplete(hwIncreasedKeys)
+        }
+        delayedFetchPurgatory.checkAndComplete(hwIncreasedKeys ++ leoIncreasedKeys)
+      }
+      // the completions are skipped once the executor is shut down with the replica manager, the delayed requests
+      // expire then
+      purgatoryCompletionExecutorOpt match {
+        case Some(executor) => executor.execute(() => complete())
+        case None => complete()
+      }
+    }
+  }
+
   /**
    * Append messages to leader replicas of the partition, and wait for them to be replicated to other replicas;
    * the callback function will be triggered either when timeout or the required acks are satisfied;
@@ -630,23 +686,7 @@ class ReplicaManager(val config: KafkaConfig,
       }
 
       actionQueue.add {
-        () =>
-          localProduceResults.foreach {
-            case (topicPartition, result) =>
-              val requestKey = TopicPartitionOperationKey(topicPartition)
-              result.info.leaderHwChange match {
-                case LeaderHwChange.Increased =>
-                  // some delayed operations may be unblocked after HW changed
-                  delayedProducePurgatory.checkAndComplete(requestKey)
-                  delayedFetchPurgatory.checkAndComplete(requestKey)
-                  delayedDeleteRecordsPurgatory.checkAndComplete(requestKey)
-                case LeaderHwChange.Same =>
-                  // probably unblock some follower fetch requests since log end offset has been updated
-                  delayedFetchPurgatory.checkAndComplete(requestKey)
-                case LeaderHwChange.None =>
-                  // nothing
-              }
-          }
+        () => completeDelayedRequestsAfterAppend(localProduceResults)
       }
 
       recordConversionStatsCallback(localProduceResults.map { case (k, v) => k -> v.info.recordConversionStats })
@@ -1049,60 +1089,77 @@ class ReplicaManager(val config: KafkaConfig,
       else result
     }
 
-    val logReadResults = readFromLog()
-
-    // check if this fetch request can be satisfied right away
-    var bytesReadable: Long = 0
-    var errorReadingData = false
-    var hasDivergingEpoch = false
-    val logReadResultMap = new mutable.HashMap[TopicPartition, LogReadResult]
-    logReadResults.foreach { case (topicPartition, logReadResult) =>
-      brokerTopicStats.topicStats(topicPartition.topic).totalFetchRequestRate.mark()
-      brokerTopicStats.allTopicsStats.totalFetchRequestRate.mark()
-
-      if (logReadResult.error != Errors.NONE)
-        errorReadingData = true
-      if (logReadResult.divergingEpoch.nonEmpty)
-        hasDivergingEpoch = true
-      bytesReadable = bytesReadable + logReadResult.info.records.sizeInBytes
-      logReadResultMap.put(topicPartition, logReadResult)
-    }
-
-    // respond immediately if 1) fetch request does not want to wait
-    //                        2) fetch request does not require any data
-    //                        3) has enough data to respond
-    //                        4) some error happens while reading data
-    //                        5) we found a diverging epoch
-    if (timeout <= 0 || fetchInfos.isEmpty || bytesReadable >= fetchMinBytes || errorReadingData || hasDivergingEpoch) {
-      val fetchPartitionData = logReadResults.map { case (tp, result) =>
-        val isReassignmentFetch = isFromFollower && isAddingReplica(tp, replicaId)
-        tp -> result.toFetchPartitionData(isReassignmentFetch)
+    def readAndRespond(): Unit = {
+      val logReadResults = readFromLog()
+
+      // check if this fetch request can be satisfied right away
+      var bytesReadable: Long = 0
+      var errorReadingData = false
+      var hasDivergingEpoch = false
+      val logReadResultMap = new mutable.HashMap[TopicPartition, LogReadResult]
+      logReadResults.foreach { case (topicPartition, logReadResult) =>
+        brokerTopicStats.topicStats(topicPartition.topic).totalFetchRequestRate.mark()
+        brokerTopicStats.allTopicsStats.totalFetchRequestRate.mark()
+
+        if (logReadResult.error != Errors.NONE)
+          errorReadingData = true
+        if (logReadResult.divergingEpoch.nonEmpty)
+          hasDivergingEpoch = true
+        bytesReadable = bytesReadable + logReadResult.info.records.sizeInBytes
+        logReadResultMap.put(topicPartition, logReadResult)
       }
-      responseCallback(fetchPartitionData)
-    } else {
-      // construct the fetch results from the read results
-      val fetchPartitionStatus = new mutable.ArrayBuffer[(TopicPartition, FetchPartitionStatus)]
-      fetchInfos.foreach { case (topicPartition, partitionData) =>
-        logReadResultMap.get(topicPartition).foreach(logReadResult => {
-          val logOffsetMetadata = logReadResult.info.fetchOffsetMetadata
-          fetchPartitionStatus += (topicPartition -> FetchPartitionStatus(logOffsetMetadata, partitionData))
-        })
+
+      // respond immediately if 1) fetch request does not want to wait
+      //                        2) fetch request does not require any data
+      //                        3) has enough data to respond
+      //                        4) some error happens while reading data
+      //                        5) we found a diverging epoch
+      if (timeout <= 0 || fetchInfos.isEmpty || bytesReadable >= fetchMinBytes || errorReadingData || hasDivergingEpoch) {
+        val fetchPartitionData = logReadResults.map { case (tp, result) =>
+          val isReassignmentFetch = isFromFollower && isAddingReplica(tp, replicaId)
+          tp -> result.toFetchPartitionData(isReassignmentFetch)
+        }
+        responseCallback(fetchPartitionData)
+      } else {
+        // construct the fetch results from the read results
+        val fetchPartitionStatus = new mutable.ArrayBuffer[(TopicPartition, FetchPartitionStatus)]
+        fetchInfos.foreach { case (topicPartition, partitionData) =>
+          logReadResultMap.get(topicPartition).foreach(logReadResult => {
+            val logOffsetMetadata = logReadResult.info.fetchOffsetMetadata
+            fetchPartitionStatus += (topicPartition -> FetchPartitionStatus(logOffsetMetadata, partitionData))
+          })
+        }
+        val fetchMetadata: SFetchMetadata = SFetchMetadata(fetchMinBytes, fetchMaxBytes, hardMaxBytesLimit,
+          fetchOnlyFromLeader, fetchIsolation, isFromFollower, replicaId, fetchPartitionStatus)
+        val delayedFetch = new DelayedFetch(timeout, fetchMetadata, this, quota, clientMetadata,
+          responseCallback)
+
+        // create a list of (topic, partition) pairs to use as keys for this delayed fetch operation
+        val delayedFetchKeys = fetchPartitionStatus.map { case (tp, _) => TopicPartitionOperationKey(tp) }
+
+        // try to complete the request immediately, otherwise put it into the purgatory;
+        // this is because while the delayed fetch operation is being created, new requests
+        // may arrive and hence make this operation completable.
+        delayedFetchPurgatory.tryCompleteElseWatch(delayedFetch, delayedFetchKeys)
       }
-      val fetchMetadata: SFetchMetadata = SFetchMetadata(fetchMinBytes, fetchMaxBytes, hardMaxBytesLimit,
-        fetchOnlyFromLeader, fetchIsolation, isFromFollower, replicaId, fetchPartitionStatus)
-      val delayedFetch = new DelayedFetch(timeout, fetchMetadata, this, quota, clientMetadata,
-        responseCallback)
-
-      // create a list of (topic, partition) pairs to use as keys for this delayed fetch operation
-      val delayedFetchKeys = fetchPartitionStatus.map { case (tp, _) => TopicPartitionOperationKey(tp) }
-
-      // try to complete the request immediately, otherwise put it into the purgatory;
-      // this is because while the delayed fetch operation is being created, new requests
-      // may arrive and hence make this operation completable.
-      delayedFetchPurgatory.tryCompleteElseWatch(delayedFetch, delayedFetchKeys)
     }
+
+    // reads of data which is likely not in the page cache are done by the fetch I/O pool, if enabled, so that they
+    // don't block the request handler thread. The fetch is read here if the pool is saturated.
+    val readByPool = fetchIoPoolOpt.exists { pool =>
+      fetchInfos.exists { case (tp, fetchInfo) => isColdRead(tp, fetchInfo) } && pool.submit(() => readAndRespond())
+    }
+    if (!readByPool)
+      readAndRespond()
   }
 
+  /**
+   * A read is estimated to be cold if it is not from the active segment of the log, whose data was appended recently
+   * and is likely to be in the page cache.
+   */
+  private def isColdRead(tp: TopicPartition, fetchInfo: PartitionData): Boolean =
+    onlinePartition(tp).flatMap(_.log).exists(log => fetchInfo.fetchOffset < log.activeSegment.baseOffset)
+
   /**
    * Read from multiple topic partitions at the given offset up to maxSize bytes
    */
@@ -1876,6 +1933,11 @@ class ReplicaManager(val config: KafkaConfig,
       logDirFailureHandler.shutdown()
     replicaFetcherManager.shutdown()
     replicaAlterLogDirsManager.shutdown()
+    fetchIoPoolOpt.foreach(_.shutdown())
+    purgatoryCompletionExecutorOpt.foreach { executor =>
+      executor.shutdown()
+      executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
     delayedFetchPurgatory.shutdown()
     delayedProducePurgatory.shutdown()
     delayedDeleteRecordsPurgatory.shutdown()
@@ -1894,6 +1956,27 @@ class ReplicaManager(val config: KafkaConfig,
     new ReplicaAlterLogDirsManager(config, this, quotaManager, brokerTopicStats)
   }
 
+  protected def createFetchIoPool(): Option[FetchIoPool] = {
+    if (config.numFetchIoThreads > 0)
+      Some(new FetchIoPool(localBrokerId, config.numFetchIoThreads, config.queuedMaxFetchIoRequests, time))
+    else
+      None
+  }
+
+  protected def createPurgatoryCompletionExecutor(): Option[ExecutorService] = {
+    val numThreads = config.numPurgatoryCompletionThreads
+    if (numThreads > 0) {
+      val threadId = new AtomicInteger(0)
+      // the request handler threads run the completions themselves when too many are queued, which bounds the queue
+      // and slows down the produce requests if the completion threads fall behind
+      Some(new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue[Runnable](numThreads * ReplicaManager.MaxQueuedCompletionsPerThread),
+        (runnable: Runnable) => KafkaThread.daemon(s"purgatory-completion-thread-${threadId.getAndIncrement()}", runnable),
+        new ThreadPoolExecutor.CallerRunsPolicy))
+    } else
+      None
+  }
+
   protected def createReplicaSelector(): Option[ReplicaSelector] = {
     config.replicaSelectorClassName.map { className =>
       val tmpReplicaSelector: ReplicaSelector = CoreUtils.createObject[ReplicaSelector](className)
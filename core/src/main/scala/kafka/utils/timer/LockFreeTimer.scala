@@ -0,0 +1,292 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.utils.timer
+
+import java.util.PriorityQueue
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors, TimeUnit}
+
+import kafka.utils.threadsafe
+import org.apache.kafka.common.utils.{KafkaThread, Time}
+
+/**
+ * A timer with the same hierarchical timing wheels as [[SystemTimer]], but whose wheels and buckets are only accessed
+ * by the thread advancing the clock. Added and cancelled tasks are put in lock-free queues, from which that thread
+ * inserts them into, or removes them from, the buckets when it advances the clock, so that adding and cancelling tasks
+ * takes neither a lock shared by the adding threads nor the lock of a bucket.
+ *
+ * The thread advancing the clock waits for the expiration of the next bucket, and is only woken up by the tasks
+ * which expire before that, though it waits at most BusyWaitMs while tasks are being added so that the queues don't
+ * grow. The clock must be advanced by one thread, e.g. the expiration reaper of a purgatory: concurrent calls to
+ * advanceClock() are serialized.
+ */
+@threadsafe
+class LockFreeTimer(executorName: String,
+                    tickMs: Long = 1,
+                    wheelSize: Int = 20,
+                    startMs: Long = Time.SYSTEM.hiResClockMs) extends Timer {
+  import LockFreeTimer._
+
+  // timeout timer
+  private[this] val taskExecutor = Executors.newFixedThreadPool(1,
+    (runnable: Runnable) => KafkaThread.nonDaemon("executor-" + executorName, runnable))
+
+  private[this] val taskCounter = new LongAdder
+  private[this] val addedEntries = new ConcurrentLinkedQueue[Entry]()
+  private[this] val cancelledEntries = new ConcurrentLinkedQueue[Entry]()
+
+  // The buckets to expire and the timing wheel, only accessed by the thread advancing the clock
+  private[this] val bucketQueue = new PriorityQueue[Bucket]()
+  private[this] val timingWheel = new Wheel(tickMs, wheelSize, startMs, bucketQueue)
+  // The number of consecutive rounds of processQueuedEntries() which found no queued entries
+  private[this] var idleRounds = 0
+
+  // The thread advancing the clock, and the time at which it wakes up while it waits, Long.MinValue otherwise
+  @volatile private[this] var reaperThread: Thread = null
+  @volatile private[this] var wakeUpMs = Long.MinValue
+
+  def add(timerTask: TimerTask): Unit = {
+    val entry = new Entry(timerTask, timerTask.delayMs + Time.SYSTEM.hiResClockMs, this)
+    taskCounter.increment()
+    addedEntries.add(entry)
+    // The waiting thread either sees the entry before it waits, or is woken up here
+    if (entry.expirationMs < wakeUpMs)
+      LockSupport.unpark(reaperThread)
+  }
+
+  private def cancel(entry: Entry, inserted: Boolean): Unit = {
+    taskCounter.decrement()
+    // the entries which are not inserted yet are skipped when they are
+    if (inserted)
+      cancelledEntries.add(entry)
+  }
+
+  /*
+   * Inserts the added entries into the buckets and removes the cancelled ones, then advances the clock if there is an
+   * expired bucket. If there isn't any expired bucket, waits for one up to timeoutMs before giving up.
+   */
+  def advanceClock(timeoutMs: Long): Boolean = synchronized {
+    reaperThread = Thread.currentThread
+    val deadlineMs = Time.SYSTEM.hiResClockMs + timeoutMs
+    var advanced = false
+    var done = false
+    while (!done) {
+      advanced = processQueuedEntries()
+      val nowMs = Time.SYSTEM.hiResClockMs
+      var bucket = bucketQueue.peek()
+      while (bucket != null && bucket.expirationMs <= nowMs) {
+        bucketQueue.poll()
+        timingWheel.advanceClock(bucket.expirationMs)
+        bucket.flush(addEntry)
+        advanced = true
+        bucket = bucketQueue.peek()
+      }
+
+      if (advanced || nowMs >= deadlineMs) {
+        done = true
+      } else {
+        var parkUntilMs = if (bucket == null) deadlineMs else Math.min(bucket.expirationMs, deadlineMs)
+        // keep waiting for short times unless no entries were queued during the last wait
+        if (idleRounds <= 1)
+          parkUntilMs = Math.min(parkUntilMs, nowMs + BusyWaitMs)
+        wakeUpMs = parkUntilMs
+        if (addedEntries.isEmpty)
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(parkUntilMs - nowMs))
+        wakeUpMs = Long.MinValue
+      }
+    }
+    advanced
+  }
+
+  // Returns true if any of the added entries had already expired
+  private def processQueuedEntries(): Boolean = {
+    var expired = false
+    var entry = addedEntries.poll()
+    var queued = entry != null
+    while (entry != null) {
+      if (entry.markInserted() && addEntry(entry))
+        expired = true
+      entry = addedEntries.poll()
+    }
+    entry = cancelledEntries.poll()
+    queued ||= entry != null
+    while (entry != null) {
+      if (entry.bucket != null)
+        entry.bucket.remove(entry)
+      entry = cancelledEntries.poll()
+    }
+    idleRounds = if (queued) 0 else Math.min(idleRounds + 1, 2)
+    expired
+  }
+
+  // Returns true if the entry had expired and its task was submitted
+  private def addEntry(entry: Entry): Boolean = {
+    if (!timingWheel.add(entry) && entry.expire()) {
+      taskCounter.decrement()
+      taskExecutor.submit(entry.timerTask)
+      true
+    } else {
+      false
+    }
+  }
+
+  def size: Int = taskCounter.intValue
+
+  override def shutdown(): Unit = {
+    taskExecutor.shutdown()
+  }
+
+}
+
+private[timer] object LockFreeTimer {
+
+  // The maximum time to wait while entries are being queued
+  private val BusyWaitMs = 10L
+
+  // The states of an entry besides the initial one, 0, when it is added
+  private val Inserted = 1
+  private val Removed = 2
+
+  private class Entry(task: TimerTask, expiration: Long, timer: LockFreeTimer)
+    extends TimerTaskEntry(task, expiration) {
+
+    // The state of the entry, updated under the lock of the task. It is not initialized here, i.e. it is 0, since the
+    // task may be cancelled by another thread while the constructor of TimerTaskEntry is still running.
+    @volatile private[this] var state: Int = _
+
+    // The bucket of the entry and its neighbours, only accessed by the thread advancing the clock
+    var bucket: Bucket = _
+    var nextInBucket: Entry = _
+    var prevInBucket: Entry = _
+
+    // Returns false if the entry was cancelled, and otherwise marks it as inserted so that its cancellation is queued
+    def markInserted(): Boolean = {
+      // most entries are cancelled before they are inserted, and an entry is never added again once removed
+      if (state == Removed) {
+        false
+      } else timerTask.synchronized {
+        if (state == Removed) {
+          false
+        } else {
+          state = Inserted
+          true
+        }
+      }
+    }
+
+    // Returns true if the task should be run, i.e. it was not cancelled
+    def expire(): Boolean = timerTask.synchronized {
+      val expired = state != Removed
+      state = Removed
+      expired
+    }
+
+    override def remove(): Unit = {
+      val previousState = timerTask.synchronized {
+        val previousState = state
+        state = Removed
+        previousState
+      }
+      if (previousState != Removed)
+        timer.cancel(this, previousState == Inserted)
+    }
+  }
+
+  // A doubly linked cyclic list of entries using a dummy root entry, like TimerTaskList but not thread-safe
+  private class Bucket extends Comparable[Bucket] {
+    private[this] val root = new Entry(null, -1L, null)
+    root.nextInBucket = root
+    root.prevInBucket = root
+
+    var expirationMs = -1L
+
+    // Returns true if the expiration time is changed
+    def setExpiration(expirationMs: Long): Boolean = {
+      val changed = this.expirationMs != expirationMs
+      this.expirationMs = expirationMs
+      changed
+    }
+
+    def add(entry: Entry): Unit = {
+      val tail = root.prevInBucket
+      entry.nextInBucket = root
+      entry.prevInBucket = tail
+      entry.bucket = this
+      tail.nextInBucket = entry
+      root.prevInBucket = entry
+    }
+
+    def remove(entry: Entry): Unit = {
+      entry.nextInBucket.prevInBucket = entry.prevInBucket
+      entry.prevInBucket.nextInBucket = entry.nextInBucket
+      entry.nextInBucket = null
+      entry.prevInBucket = null
+      entry.bucket = null
+    }
+
+    // Remove all entries and apply the supplied function to each of them
+    def flush(f: Entry => Unit): Unit = {
+      var head = root.nextInBucket
+      while (head ne root) {
+        remove(head)
+        f(head)
+        head = root.nextInBucket
+      }
+      expirationMs = -1L
+    }
+
+    override def compareTo(other: Bucket): Int = java.lang.Long.compare(expirationMs, other.expirationMs)
+  }
+
+  // A timing wheel like TimingWheel, whose buckets are queued in a priority queue rather than a DelayQueue
+  private class Wheel(tickMs: Long, wheelSize: Int, startMs: Long, bucketQueue: PriorityQueue[Bucket]) {
+    private[this] val interval = tickMs * wheelSize
+    private[this] val buckets = Array.fill[Bucket](wheelSize) { new Bucket }
+    private[this] var currentTime = startMs - (startMs % tickMs)
+    private[this] var overflowWheel: Wheel = null
+
+    // Returns false if the entry has already expired
+    def add(entry: Entry): Boolean = {
+      val expiration = entry.expirationMs
+
+      if (expiration < currentTime + tickMs) {
+        false
+      } else if (expiration < currentTime + interval) {
+        val virtualId = expiration / tickMs
+        val bucket = buckets((virtualId % wheelSize.toLong).toInt)
+        bucket.add(entry)
+
+        // The bucket only needs to be queued when it expired and is reused, see TimingWheel
+        if (bucket.setExpiration(virtualId * tickMs))
+          bucketQueue.offer(bucket)
+        true
+      } else {
+        if (overflowWheel == null)
+          overflowWheel = new Wheel(interval, wheelSize, currentTime, bucketQueue)
+        overflowWheel.add(entry)
+      }
+    }
+
+    def advanceClock(timeMs: Long): Unit = {
+      if (timeMs >= currentTime + tickMs) {
+        currentTime = timeMs - (timeMs % tickMs)
+        if (overflowWheel != null) overflowWheel.advanceClock(currentTime)
+      }
+    }
+  }
+}
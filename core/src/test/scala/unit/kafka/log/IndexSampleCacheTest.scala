@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.file.Files
+
+import kafka.utils.TestUtils
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.{AfterEach, Test}
+
+import scala.collection.mutable.ArrayBuffer
+
+class IndexSampleCacheTest {
+  private val cache = new IndexSampleCache(0L)
+  private val indexes = ArrayBuffer[OffsetIndex]()
+
+  @AfterEach
+  def teardown(): Unit = {
+    cache.close()
+    indexes.foreach(_.deleteIfExists())
+  }
+
+  @Test
+  def testDisabledCache(): Unit = {
+    val idx = createIndex(numEntries = 10000, lastModified = 1000L)
+    assertEquals(OffsetPosition(100L, 100), idx.lookup(100L))
+    assertEquals(0, cache.numIndexes)
+    assertEquals(0L, cache.sizeInBytes)
+  }
+
+  @Test
+  def testSmallIndexNotSampled(): Unit = {
+    cache.resize(1024 * 1024)
+    val idx = createIndex(numEntries = 1500, lastModified = 1000L)
+    assertEquals(OffsetPosition(100L, 100), idx.lookup(100L))
+    assertFalse(cache.contains(idx))
+  }
+
+  @Test
+  def testEvictsOldestSegmentsFirst(): Unit = {
+    val oldest = createIndex(numEntries = 10000, lastModified = 1000L)
+    val older = createIndex(numEntries = 10000, lastModified = 2000L)
+    val newest = createIndex(numEntries = 10000, lastModified = 3000L)
+    cache.resize(1024 * 1024)
+    assertEquals(OffsetPosition(100L, 100), newest.lookup(100L))
+    val samplesSize = cache.sizeInBytes
+    assertTrue(samplesSize > 0)
+
+    // room for the samples of two of the indexes
+    cache.resize(samplesSize * 2 + samplesSize / 2)
+    Seq(oldest, older).foreach(idx => assertEquals(OffsetPosition(100L, 100), idx.lookup(100L)))
+    assertFalse(cache.contains(oldest))
+    assertTrue(cache.contains(older))
+    assertTrue(cache.contains(newest))
+    assertEquals(2 * samplesSize, cache.sizeInBytes)
+
+    // shrinking the cache evicts the older segment
+    cache.resize(samplesSize)
+    assertFalse(cache.contains(older))
+    assertTrue(cache.contains(newest))
+    assertEquals(samplesSize, cache.sizeInBytes)
+
+    // segments older than the evicted ones are not sampled once the cache is full
+    assertEquals(OffsetPosition(100L, 100), oldest.lookup(100L))
+    assertFalse(cache.contains(oldest))
+    assertTrue(cache.contains(newest))
+
+    cache.resize(0)
+    assertEquals(0, cache.numIndexes)
+    assertEquals(0L, cache.sizeInBytes)
+  }
+
+  private def createIndex(numEntries: Int, lastModified: Long): OffsetIndex = {
+    val file = TestUtils.tempFile()
+    Files.delete(file.toPath)
+    val idx = new OffsetIndex(file, baseOffset = 0L, maxIndexSize = numEntries * 8, sampleCache = Some(cache))
+    indexes += idx
+    for (i <- 0 until numEntries)
+      idx.append(i, i)
+    idx.flush()
+    assertTrue(idx.file.setLastModified(lastModified))
+    idx
+  }
+}
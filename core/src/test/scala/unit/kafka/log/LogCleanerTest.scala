@@ -22,7 +22,7 @@ import java.nio._
 import java.nio.charset.StandardCharsets
 import java.nio.file.Paths
 import java.util.Properties
-import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.{CountDownLatch, ForkJoinPool, TimeUnit}
 
 import kafka.common._
 import kafka.server.{BrokerTopicStats, LogDirFailureChannel}
@@ -327,6 +327,200 @@ class LogCleanerTest {
     assertEquals(List(2, 3, 6, 7, 8, 9, 11, 12), LogTest.keysInLog(log))
   }
 
+  @Test
+  def testParallelCleaningMatchesSerialCleaning(): Unit = {
+    def populate(log: Log): Unit = {
+      while (log.numberOfSegments < 20)
+        log.appendAsLeader(record(log.logEndOffset.toInt % 37, log.logEndOffset.toInt), leaderEpoch = 0)
+    }
+    assertParallelCleaningMatchesSerialCleaning(populate, offsetMapMemory = 64 * 1024)
+  }
+
+  @Test
+  def testParallelCleaningWithPartialOffsetMapMatchesSerialCleaning(): Unit = {
+    // the map only fits part of the dirty section, so some segments are mapped by the cleaner thread itself
+    def populate(log: Log): Unit = {
+      while (log.numberOfSegments < 30)
+        log.appendAsLeader(record(log.logEndOffset.toInt, log.logEndOffset.toInt), leaderEpoch = 0)
+    }
+    assertParallelCleaningMatchesSerialCleaning(populate, offsetMapMemory = 400 * 24)
+  }
+
+  @Test
+  def testParallelCleaningWithTransactionsSpanningGroupsMatchesSerialCleaning(): Unit = {
+    def populate(log: Log): Unit = {
+      val producerEpoch = 0.toShort
+      val appendProducers = (0 until 4).map(pid => appendTransactionalAsLeader(log, pid, producerEpoch))
+      val random = new scala.util.Random(0)
+      while (log.numberOfSegments < 20) {
+        val pid = random.nextInt(appendProducers.size)
+        random.nextInt(6) match {
+          case 0 => log.appendAsLeader(commitMarker(pid, producerEpoch), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+          case 1 => log.appendAsLeader(abortMarker(pid, producerEpoch), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+          case _ => appendProducers(pid)(Seq(random.nextInt(50), random.nextInt(50)))
+        }
+      }
+      for (pid <- appendProducers.indices)
+        log.appendAsLeader(commitMarker(pid, producerEpoch), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      log.roll()
+    }
+    assertParallelCleaningMatchesSerialCleaning(populate, offsetMapMemory = 64 * 1024)
+  }
+
+  @Test
+  def testKeySummaryLeavesUnchangedSegmentsInPlace(): Unit = {
+    val log = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+    val referenceLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+    val cleaner = makeCleanerWithMap(new FakeOffsetMap(Int.MaxValue), keySummaries = true)
+    val referenceCleaner = makeCleanerWithMap(new FakeOffsetMap(Int.MaxValue))
+
+    def cleanAndCompare(): CleanerStats = {
+      val (_, stats) = cleaner.clean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset))
+      referenceCleaner.clean(LogToClean(referenceLog.topicPartition, referenceLog, 0L, referenceLog.activeSegment.baseOffset))
+      assertEquals(LogTest.keysInLog(referenceLog), LogTest.keysInLog(log))
+      assertEquals(offsetsInLog(referenceLog), offsetsInLog(log))
+      assertEquals(referenceLog.logSegments.map(_.baseOffset).toList, log.logSegments.map(_.baseOffset).toList)
+      stats
+    }
+
+    // unique keys, so that cleaning leaves the segments unchanged
+    for (l <- Seq(log, referenceLog)) {
+      while (l.numberOfSegments < 10)
+        l.appendAsLeader(record(l.logEndOffset.toInt, l.logEndOffset.toInt), leaderEpoch = 0)
+    }
+    val firstStats = cleanAndCompare()
+    assertEquals(0, firstStats.segmentsSkipped)
+    val cleanedSegments = log.logSegments.filter(_.baseOffset < log.activeSegment.baseOffset).toList
+    cleanedSegments.foreach(segment => assertTrue(Log.keySummaryFile(log.dir, segment.baseOffset).exists))
+
+    // update a key of the first segment only
+    for (l <- Seq(log, referenceLog)) {
+      l.appendAsLeader(record(0, -1), leaderEpoch = 0)
+      l.roll()
+    }
+    val secondStats = cleanAndCompare()
+    assertEquals(cleanedSegments.size - 1, secondStats.segmentsSkipped)
+    assertEquals(cleanedSegments.tail.map(_.size.toLong).sum, secondStats.bytesSkipped)
+    assertEquals(cleanedSegments.head.size.toLong + log.logSegments.toSeq(cleanedSegments.size).size, secondStats.bytesRead)
+  }
+
+  @Test
+  def testKeySummaryDoesNotRetainExpiredTombstones(): Unit = {
+    val cleaner = makeCleanerWithMap(new FakeOffsetMap(Int.MaxValue), keySummaries = true)
+    val log = makeLog()
+
+    while (log.numberOfSegments < 3) {
+      val key = log.logEndOffset.toInt
+      log.appendAsLeader(if (key % 2 == 0) tombstoneRecord(key) else record(key, key), leaderEpoch = 0)
+    }
+
+    def tombstonesInLog: Int = log.logSegments(0L, log.activeSegment.baseOffset).map(_.log.records.asScala.count(!_.hasValue)).sum
+
+    // tombstones are retained before the delete horizon
+    cleaner.doClean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset), deleteHorizonMs = 0L)
+    assertTrue(tombstonesInLog > 0)
+
+    val (_, stats) = cleaner.doClean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset),
+      deleteHorizonMs = Long.MaxValue)
+    assertEquals(0, stats.segmentsSkipped)
+    assertEquals(0, tombstonesInLog, "The expired tombstones should have been removed")
+  }
+
+  @Test
+  def testKeySummaryIgnoredForModifiedSegment(): Unit = {
+    val cleaner = makeCleanerWithMap(new FakeOffsetMap(Int.MaxValue), keySummaries = true)
+    val log = makeLog()
+
+    while (log.numberOfSegments < 3)
+      log.appendAsLeader(record(log.logEndOffset.toInt, log.logEndOffset.toInt), leaderEpoch = 0)
+    cleaner.clean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset))
+
+    val segment = log.logSegments.head
+    val map = new FakeOffsetMap(Int.MaxValue)
+    assertTrue(KeySummary.isUnchanged(segment, map, retainDeletes = true))
+    segment.lastModified = segment.lastModified - 1000
+    assertFalse(KeySummary.isUnchanged(segment, map, retainDeletes = true))
+  }
+
+  @Test
+  def testNoKeySummaryForTransactionalSegment(): Unit = {
+    val cleaner = makeCleanerWithMap(new FakeOffsetMap(Int.MaxValue), keySummaries = true)
+    val log = makeLog()
+    val producerEpoch = 0.toShort
+    val appendProducer = appendTransactionalAsLeader(log, 1L, producerEpoch)
+
+    appendProducer(Seq(1, 2))
+    log.appendAsLeader(commitMarker(1L, producerEpoch), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+    log.appendAsLeader(record(3, 3), leaderEpoch = 0)
+    log.roll()
+
+    cleaner.clean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset))
+    assertEquals(List(1, 2, 3), LogTest.keysInLog(log))
+    val baseOffset = log.logSegments.head.baseOffset
+    assertFalse(Log.keySummaryFile(log.dir, baseOffset).exists)
+    assertFalse(Log.keySummaryFile(log.dir, baseOffset, Log.CleanedFileSuffix).exists)
+  }
+
+  @Test
+  def testKeySummaryDeletedWithSegment(): Unit = {
+    val cleaner = makeCleanerWithMap(new FakeOffsetMap(Int.MaxValue), keySummaries = true)
+    val log = makeLog()
+    def keySummaryFiles: Set[String] = log.dir.listFiles.map(_.getName).filter(_.contains(Log.KeySummaryFileSuffix)).toSet
+    def cleanedSegmentSummaries: Set[String] =
+      log.logSegments(0L, log.activeSegment.baseOffset).map(segment => Log.keySummaryFile(log.dir, segment.baseOffset).getName).toSet
+
+    while (log.numberOfSegments < 3)
+      log.appendAsLeader(record(log.logEndOffset.toInt, log.logEndOffset.toInt), leaderEpoch = 0)
+    cleaner.clean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset))
+    assertEquals(cleanedSegmentSummaries, keySummaryFiles)
+
+    // recleaning the first segment replaces it with a segment of the same base offset, which keeps its own summary
+    log.appendAsLeader(record(0, -1), leaderEpoch = 0)
+    log.roll()
+    cleaner.clean(LogToClean(log.topicPartition, log, 0L, log.activeSegment.baseOffset))
+    time.sleep(log.config.fileDeleteDelayMs + 1)
+    assertEquals(cleanedSegmentSummaries, keySummaryFiles)
+
+    log.truncateTo(0L)
+    time.sleep(log.config.fileDeleteDelayMs + 1)
+    assertEquals(Set.empty, keySummaryFiles)
+  }
+
+  private def assertParallelCleaningMatchesSerialCleaning(populate: Log => Unit, offsetMapMemory: Int): Unit = {
+    val workerPool = new ForkJoinPool(4)
+    try {
+      val serialLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+      val parallelLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir))
+      populate(serialLog)
+      populate(parallelLog)
+
+      val serialCleaner = makeCleanerWithMap(new ConcurrentOffsetMap(offsetMapMemory))
+      val parallelCleaner = makeCleanerWithMap(new ConcurrentOffsetMap(offsetMapMemory), parallelism = 4, workerPool = Some(workerPool))
+
+      var serialDirtyOffset = 0L
+      var parallelDirtyOffset = 0L
+      while (serialDirtyOffset < serialLog.activeSegment.baseOffset) {
+        val (nextSerialDirtyOffset, serialStats) = serialCleaner.clean(LogToClean(serialLog.topicPartition, serialLog,
+          serialDirtyOffset, serialLog.activeSegment.baseOffset))
+        val (nextParallelDirtyOffset, parallelStats) = parallelCleaner.clean(LogToClean(parallelLog.topicPartition, parallelLog,
+          parallelDirtyOffset, parallelLog.activeSegment.baseOffset))
+        serialDirtyOffset = nextSerialDirtyOffset
+        parallelDirtyOffset = nextParallelDirtyOffset
+
+        assertEquals(serialDirtyOffset, parallelDirtyOffset)
+        assertEquals(LogTest.keysInLog(serialLog), LogTest.keysInLog(parallelLog))
+        assertEquals(offsetsInLog(serialLog), offsetsInLog(parallelLog))
+        assertEquals(lastOffsetsPerBatchInLog(serialLog), lastOffsetsPerBatchInLog(parallelLog))
+        assertEquals(serialLog.collectAbortedTransactions(0L, serialLog.logEndOffset),
+          parallelLog.collectAbortedTransactions(0L, parallelLog.logEndOffset))
+        assertEquals(serialStats.mapMessagesRead, parallelStats.mapMessagesRead)
+        assertEquals(serialStats.messagesRead, parallelStats.messagesRead)
+        assertEquals(serialStats.messagesWritten, parallelStats.messagesWritten)
+        assertEquals(serialStats.bytesWritten, parallelStats.bytesWritten)
+      }
+    } finally workerPool.shutdownNow()
+  }
+
   @Test
   def testCommitMarkerRemoval(): Unit = {
     val tp = new TopicPartition("test", 0)
@@ -1630,6 +1824,8 @@ class LogCleanerTest {
     try {
       checkGauge("max-buffer-utilization-percent")
       checkGauge("max-clean-time-secs")
+      checkGauge("max-offset-map-time-secs")
+      checkGauge("max-recopy-time-secs")
       checkGauge("max-compaction-delay-secs")
     } finally logCleaner.shutdown()
   }
@@ -1686,6 +1882,22 @@ class LogCleanerTest {
                 time = time,
                 checkDone = checkDone)
 
+  private def makeCleanerWithMap(offsetMap: OffsetMap,
+                                 parallelism: Int = 1,
+                                 workerPool: Option[ForkJoinPool] = None,
+                                 keySummaries: Boolean = false): Cleaner =
+    new Cleaner(id = 0,
+                offsetMap = offsetMap,
+                ioBufferSize = 64 * 1024,
+                maxIoBufferSize = 64 * 1024,
+                dupBufferLoadFactor = 0.75,
+                throttler = throttler,
+                time = time,
+                checkDone = _ => (),
+                parallelism = parallelism,
+                workerPool = workerPool,
+                keySummaries = keySummaries)
+
   private def writeToLog(log: Log, seq: Iterable[(Int, Int)]): Iterable[Long] = {
     for ((key, value) <- seq)
       yield log.appendAsLeader(record(key, value), leaderEpoch = 0).firstOffset.get.messageOffset
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.io.File
+import java.util.Properties
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit, TimeoutException}
+
+import kafka.server.{BrokerTopicStats, LogDirFailureChannel}
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.errors.KafkaStorageException
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.utils.Utils
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.{AfterEach, BeforeEach, Test}
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mockito.{doAnswer, doThrow, mock, never, times, verify}
+
+class LogFlushCoordinatorTest {
+  private val mockTime = new MockTime()
+  private var tmpDir: File = _
+  private var coordinator: LogFlushCoordinator = _
+
+  @BeforeEach
+  def setUp(): Unit = {
+    tmpDir = TestUtils.tempDir()
+  }
+
+  @AfterEach
+  def tearDown(): Unit = {
+    if (coordinator != null)
+      coordinator.shutdown()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testAppendWaitsForFlush(): Unit = {
+    coordinator = new LogFlushCoordinator(tmpDir.getAbsolutePath, maxDelayMs = 0L, mockTime)
+    val logProps = new Properties()
+    logProps.put(LogConfig.FlushMessagesProp, 1: java.lang.Long)
+    val log = Log(new File(tmpDir, "topic-0"), LogConfig(logProps), logStartOffset = 0L, recoveryPoint = 0L,
+      mockTime.scheduler, new BrokerTopicStats, mockTime, maxProducerIdExpirationMs = 60 * 60 * 1000,
+      producerIdExpirationCheckIntervalMs = LogManager.ProducerIdExpirationCheckIntervalMs,
+      new LogDirFailureChannel(10), flushCoordinator = Some(coordinator))
+    try {
+      for (i <- 0 until 5) {
+        log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(s"value $i".getBytes)),
+          leaderEpoch = 0)
+        assertEquals(log.logEndOffset, log.recoveryPoint)
+      }
+    } finally {
+      log.close()
+    }
+  }
+
+  @Test
+  def testRequestsDuringGroupCommitAreCommittedTogether(): Unit = {
+    coordinator = new LogFlushCoordinator(tmpDir.getAbsolutePath, maxDelayMs = 0L, mockTime)
+    val (log0, log1, log2) = (mock(classOf[Log]), mock(classOf[Log]), mock(classOf[Log]))
+    val flushStarted = new CountDownLatch(1)
+    val flushReleased = new CountDownLatch(1)
+    doAnswer { _ =>
+      flushStarted.countDown()
+      flushReleased.await()
+    }.when(log0).flush(anyLong())
+
+    val executor = Executors.newFixedThreadPool(4)
+    try {
+      val first = executor.submit((() => coordinator.flush(log0, 5L)): Runnable)
+      assertTrue(flushStarted.await(30, TimeUnit.SECONDS))
+
+      // these are requested while the first group commit is in progress
+      val requests = Seq(log1 -> 3L, log1 -> 7L, log2 -> 2L).map { case (log, offset) =>
+        executor.submit((() => coordinator.flush(log, offset)): Runnable)
+      }
+      TestUtils.waitUntilTrue(() => coordinator.pendingFlushOffsets == Map(log1 -> 7L, log2 -> 2L),
+        "Flush requests were not queued")
+      verify(log1, never).flush(anyLong())
+
+      flushReleased.countDown()
+      (first +: requests).foreach(_.get(30, TimeUnit.SECONDS))
+      verify(log0).flush(5L)
+      // the log is flushed once, up to the highest requested offset
+      verify(log1, times(1)).flush(anyLong())
+      verify(log1).flush(7L)
+      verify(log2).flush(2L)
+    } finally {
+      flushReleased.countDown()
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testGroupCommitStartsOnceEnoughLogsAreWaiting(): Unit = {
+    coordinator = new LogFlushCoordinator(tmpDir.getAbsolutePath, maxDelayMs = 60 * 1000L, mockTime, maxLogsPerGroupCommit = 2)
+    val (log0, log1) = (mock(classOf[Log]), mock(classOf[Log]))
+    val executor = Executors.newFixedThreadPool(2)
+    try {
+      val first = executor.submit((() => coordinator.flush(log0, 5L)): Runnable)
+      TestUtils.waitUntilTrue(() => coordinator.pendingFlushOffsets == Map(log0 -> 5L), "Flush request was not queued")
+      // the second log completes the group commit well before the maximum delay
+      val second = executor.submit((() => coordinator.flush(log1, 3L)): Runnable)
+      first.get(30, TimeUnit.SECONDS)
+      second.get(30, TimeUnit.SECONDS)
+      verify(log0).flush(5L)
+      verify(log1).flush(3L)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testGroupCommitStartsAfterMaxDelay(): Unit = {
+    coordinator = new LogFlushCoordinator(tmpDir.getAbsolutePath, maxDelayMs = 60 * 1000L, mockTime)
+    val log = mock(classOf[Log])
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      val request = executor.submit((() => coordinator.flush(log, 5L)): Runnable)
+      TestUtils.waitUntilTrue(() => coordinator.pendingFlushOffsets == Map(log -> 5L), "Flush request was not queued")
+      mockTime.sleep(60 * 1000L - 1)
+      // the group commit waits for more requests until the first one is as old as the maximum delay
+      assertThrows(classOf[TimeoutException], () => request.get(500, TimeUnit.MILLISECONDS))
+      verify(log, never).flush(anyLong())
+
+      mockTime.sleep(1)
+      request.get(30, TimeUnit.SECONDS)
+      verify(log).flush(5L)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testFlushErrorIsThrownToRequester(): Unit = {
+    coordinator = new LogFlushCoordinator(tmpDir.getAbsolutePath, maxDelayMs = 0L, mockTime)
+    val log = mock(classOf[Log])
+    doThrow(new KafkaStorageException("Disk error")).when(log).flush(anyLong())
+    assertThrows(classOf[KafkaStorageException], () => coordinator.flush(log, 1L))
+  }
+
+  @Test
+  def testFlushAfterShutdownIsDoneByRequester(): Unit = {
+    val coordinator = new LogFlushCoordinator(tmpDir.getAbsolutePath, maxDelayMs = 60 * 1000L, mockTime)
+    coordinator.shutdown()
+    val log = mock(classOf[Log])
+    coordinator.flush(log, 1L)
+    verify(log).flush(1L)
+  }
+}
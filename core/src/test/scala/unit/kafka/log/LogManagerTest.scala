@@ -17,7 +17,7 @@
 
 package kafka.log
 
-import com.yammer.metrics.core.MetricName
+import com.yammer.metrics.core.{Meter, MetricName}
 import kafka.metrics.KafkaYammerMetrics
 import kafka.server.checkpoints.OffsetCheckpointFile
 import kafka.server.metadata.{CachedConfigRepository, ConfigRepository}
@@ -25,6 +25,7 @@ import kafka.server.{FetchDataInfo, FetchLogEnd}
 import kafka.utils._
 import org.apache.directory.api.util.FileUtils
 import org.apache.kafka.common.errors.OffsetOutOfRangeException
+import org.apache.kafka.common.internals.Topic
 import org.apache.kafka.common.utils.Utils
 import org.apache.kafka.common.{KafkaException, TopicPartition}
 import org.junit.jupiter.api.Assertions._
@@ -599,6 +600,52 @@ class LogManagerTest {
     assertTrue(logManager.partitionsInitializing.isEmpty)
   }
 
+  @Test
+  def testLogRecoveryPriority(): Unit = {
+    def createLogDir(name: String, segmentSizes: Seq[Int]): File = {
+      val dir = new File(logDir, name)
+      dir.mkdirs()
+      segmentSizes.zipWithIndex.foreach { case (size, i) =>
+        Files.write(Log.logFile(dir, i * 100L).toPath, new Array[Byte](size))
+      }
+      dir
+    }
+
+    val large = createLogDir("large-0", Seq(1000, 1000))
+    val small = createLogDir("small-0", Seq(1000, 10))
+    val offsets = createLogDir(Topic.GROUP_METADATA_TOPIC_NAME + "-0", Seq(5000))
+    // only the last segment of the small log is unflushed
+    val recoveryPoints = Map(new TopicPartition("small", 0) -> 150L)
+
+    assertEquals(Seq(offsets, small, large),
+      logManager.prioritizeLogRecovery(Array(large, small, offsets), hadCleanShutdown = false, recoveryPoints).toSeq)
+    // nothing is recovered after a clean shutdown, so only the internal topics come first
+    assertEquals(Seq(offsets, large, small),
+      logManager.prioritizeLogRecovery(Array(large, small, offsets), hadCleanShutdown = true, recoveryPoints).toSeq)
+  }
+
+  @Test
+  def testRecoveryMetrics(): Unit = {
+    def metricNames: Set[String] = KafkaYammerMetrics.defaultRegistry.allMetrics.keySet.asScala.map(_.getName).toSet
+    def recoveredBytes: Long = KafkaYammerMetrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (name, meter: Meter) if name.getName == "RecoveryBytesPerSec" => meter.count
+    }.getOrElse(0L)
+
+    val log = logManager.getOrCreateLog(new TopicPartition(name, 0))
+    for (_ <- 0 until 10)
+      log.appendAsLeader(TestUtils.singletonRecords("test".getBytes()), leaderEpoch = 0)
+    logManager.shutdown()
+    val recoveredBytesBeforeRestart = recoveredBytes
+
+    // restart after an unclean shutdown
+    Files.delete(new File(logDir, Log.CleanShutdownFile).toPath)
+    logManager = createLogManager()
+    logManager.startup(Set.empty)
+    assertTrue(recoveredBytes > recoveredBytesBeforeRestart)
+    // the progress of the recovery is only reported while loading the logs
+    assertFalse(metricNames.contains("RemainingLogsToRecover"))
+  }
+
   @Test
   def testMetricsExistWhenLogIsRecreatedBeforeDeletion(): Unit = {
     val topicName = "metric-test"
@@ -21,6 +21,7 @@ import java.io._
 import java.nio.ByteBuffer
 import java.nio.file.{Files, Paths}
 import java.util.concurrent.{Callable, Executors}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 import java.util.regex.Pattern
 import java.util.{Collections, Optional, Properties}
 import kafka.api.{ApiVersion, KAFKA_0_11_0_IV0}
@@ -100,7 +101,8 @@ class LogTest {
         brokerTopicStats = new BrokerTopicStats, logDirFailureChannel = new LogDirFailureChannel(logDirs.size), keepPartitionMetadataFile = config.usesTopicId) {
 
          override def loadLog(logDir: File, hadCleanShutdown: Boolean, recoveryPoints: Map[TopicPartition, Long],
-                     logStartOffsets: Map[TopicPartition, Long], topicConfigs: Map[String, LogConfig]): Log = {
+                     logStartOffsets: Map[TopicPartition, Long], topicConfigs: Map[String, LogConfig],
+                     recoveryContext: Option[LogRecoveryContext]): Log = {
 
           val topicPartition = Log.parseTopicPartitionName(logDir)
           val config = topicConfigs.getOrElse(topicPartition.topic, currentDefaultConfig)
@@ -188,6 +190,48 @@ class LogTest {
     assertFetchSizeAndOffsets(fetchOffset = 3L, 0, Seq())
   }
 
+  @Test
+  def testAppendAsFollowerDoesNotDecompressBatches(): Unit = {
+    val log = createLog(logDir, LogTest.createLogConfig())
+    val records = MemoryRecords.withRecords(0L, CompressionType.GZIP, 0,
+      new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes))
+
+    // corrupt the compressed records, but not their batch, whose CRC is recomputed
+    val batch = records.batches.iterator.next()
+    val buffer = records.buffer
+    for (position <- DefaultRecordBatch.RECORD_BATCH_OVERHEAD until buffer.limit)
+      buffer.put(position, 0.toByte)
+    batch.setMaxTimestamp(TimestampType.CREATE_TIME, batch.maxTimestamp + 1)
+    assertTrue(batch.isValid)
+    assertThrows(classOf[KafkaException], () => records.records.asScala.foreach(_.offset))
+
+    // the batches of a follower are validated by the leader, only their CRC is checked
+    log.appendAsFollower(records)
+    assertEquals(2L, log.logEndOffset)
+  }
+
+  @Test
+  def testCanIncrementHighWatermark(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 1024 * 1024)
+    val log = createLog(logDir, logConfig)
+
+    log.appendAsLeader(TestUtils.records(List(
+      new SimpleRecord(mockTime.milliseconds, "a".getBytes, "value".getBytes),
+      new SimpleRecord(mockTime.milliseconds, "b".getBytes, "value".getBytes)
+    )), leaderEpoch = 0)
+    assertTrue(log.canIncrementHighWatermark(log.logEndOffsetMetadata))
+
+    log.maybeIncrementHighWatermark(log.logEndOffsetMetadata)
+    assertFalse(log.canIncrementHighWatermark(log.logEndOffsetMetadata))
+    assertFalse(log.canIncrementHighWatermark(LogOffsetMetadata(1L)))
+
+    // the high watermark is updated when the same offset is on a newer segment
+    val newerSegmentOffsetMetadata = LogOffsetMetadata(2L, 2L, 0)
+    assertTrue(log.canIncrementHighWatermark(newerSegmentOffsetMetadata))
+    log.maybeIncrementHighWatermark(newerSegmentOffsetMetadata)
+    assertFalse(log.canIncrementHighWatermark(newerSegmentOffsetMetadata))
+  }
+
   @Test
   def testAppendAsLeaderWithRaftLeader(): Unit = {
     val logConfig = LogTest.createLogConfig(segmentBytes = 1024 * 1024)
@@ -4274,6 +4318,85 @@ class LogTest {
     assertEquals(List(new AbortedTxn(pid1, 0L, 29L, 8L), new AbortedTxn(pid2, 8L, 74L, 36L)), abortedTransactions)
   }
 
+  @Test
+  def testConcurrentSegmentRecovery(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 128 * 5)
+    val log = createLog(logDir, logConfig)
+    val epoch = 0.toShort
+
+    val pid1 = 1L
+    val pid2 = 2L
+    val appendPid1 = appendTransactionalAsLeader(log, pid1, epoch)
+    val appendPid2 = appendTransactionalAsLeader(log, pid2, epoch)
+
+    // transactions spanning several segments
+    appendPid1(5) // nextOffset: 5
+    appendNonTransactionalAsLeader(log, 3) // 8
+    appendPid2(2) // 10
+    appendPid1(4) // 14
+    appendNonTransactionalAsLeader(log, 2) // 16
+    appendPid1(10) // 26
+    appendEndTxnMarkerAsLeader(log, pid1, epoch, ControlRecordType.ABORT) // 27
+    appendPid2(6) // 33
+    appendNonTransactionalAsLeader(log, 10) // 43
+    appendPid2(7) // 50
+    appendEndTxnMarkerAsLeader(log, pid2, epoch, ControlRecordType.ABORT) // 51
+    appendNonTransactionalAsLeader(log, 10) // 61
+    val numSegments = log.numberOfSegments
+    assertTrue(numSegments > 2)
+
+    // delete the transaction indexes, which are rebuilt by the recovery of the unflushed segments
+    log.logSegments.foreach(_.txnIndex.deleteIfExists())
+    log.close()
+
+    val executor = Executors.newFixedThreadPool(4)
+    try {
+      val segmentsRecovered = new AtomicInteger(0)
+      val bytesRecovered = new AtomicLong(0L)
+      val recoveryContext = LogRecoveryContext(Some(executor), bytes => {
+        segmentsRecovered.incrementAndGet()
+        bytesRecovered.addAndGet(bytes)
+      })
+      val reloadedLog = createLog(logDir, logConfig, lastShutdownClean = false, recoveryContext = Some(recoveryContext))
+      assertEquals(61L, reloadedLog.logEndOffset)
+      assertEquals(numSegments, reloadedLog.numberOfSegments)
+      assertEquals(numSegments, segmentsRecovered.get)
+      assertEquals(reloadedLog.size, bytesRecovered.get)
+      assertEquals(List(new AbortedTxn(pid1, 0L, 26L, 8L), new AbortedTxn(pid2, 8L, 50L, 51L)),
+        allAbortedTransactions(reloadedLog))
+      assertEquals(None, reloadedLog.firstUnstableOffset)
+      assertEquals(Set(pid1, pid2), reloadedLog.activeProducersWithLastSequence.keySet)
+      reloadedLog.logSegments.foreach(_.offsetIndex.sanityCheck())
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testConcurrentSegmentRecoveryTruncatesAfterCorruptSegment(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 1000, indexIntervalBytes = 1)
+    var log = createLog(logDir, logConfig)
+    for (_ <- 0 until 100)
+      log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes, timestamp = mockTime.milliseconds), leaderEpoch = 0)
+    val segments = log.logSegments.toSeq
+    assertTrue(segments.size > 3)
+    val corruptSegment = segments(1)
+    val corruptSegmentNextOffset = segments(2).baseOffset
+    log.close()
+
+    TestUtils.appendNonsenseToFile(corruptSegment.log.file, 100)
+
+    val executor = Executors.newFixedThreadPool(4)
+    try {
+      log = createLog(logDir, logConfig, lastShutdownClean = false,
+        recoveryContext = Some(LogRecoveryContext(Some(executor), _ => ())))
+      assertEquals(corruptSegmentNextOffset, log.logEndOffset)
+      assertEquals(2, log.numberOfSegments)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
   @Test
   def testRecoverOnlyLastSegment(): Unit = {
     val logConfig = LogTest.createLogConfig(segmentBytes = 128 * 5)
@@ -4853,9 +4976,10 @@ class LogTest {
                         time: Time = mockTime,
                         maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
                         producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs,
-                        lastShutdownClean: Boolean = true): Log = {
+                        lastShutdownClean: Boolean = true,
+                        recoveryContext: Option[LogRecoveryContext] = None): Log = {
     LogTest.createLog(dir, config, brokerTopicStats, scheduler, time, logStartOffset, recoveryPoint,
-      maxProducerIdExpirationMs, producerIdExpirationCheckIntervalMs, lastShutdownClean)
+      maxProducerIdExpirationMs, producerIdExpirationCheckIntervalMs, lastShutdownClean, recoveryContext)
   }
 
   private def createLogWithOffsetOverflow(logConfig: LogConfig): (Log, LogSegment) = {
@@ -4921,7 +5045,8 @@ object LogTest {
                 recoveryPoint: Long = 0L,
                 maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
                 producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs,
-                lastShutdownClean: Boolean = true): Log = {
+                lastShutdownClean: Boolean = true,
+                recoveryContext: Option[LogRecoveryContext] = None): Log = {
     Log(dir = dir,
       config = config,
       logStartOffset = logStartOffset,
@@ -4932,7 +5057,8 @@ object LogTest {
       maxProducerIdExpirationMs = maxProducerIdExpirationMs,
       producerIdExpirationCheckIntervalMs = producerIdExpirationCheckIntervalMs,
       logDirFailureChannel = new LogDirFailureChannel(10),
-      lastShutdownClean = lastShutdownClean)
+      lastShutdownClean = lastShutdownClean,
+      recoveryContext = recoveryContext)
   }
 
   /**
@@ -215,6 +215,49 @@ class OffsetIndexTest {
     idx.sanityCheck()
   }
   
+  @Test
+  def testLookupWithSampleCache(): Unit = {
+    val cache = new IndexSampleCache(1024 * 1024)
+    val idx = new OffsetIndex(nonExistentTempFile(), baseOffset = 0L, maxIndexSize = 30000 * 8, sampleCache = Some(cache))
+    try {
+      val offsets = monotonicSeq(0, 20000)
+      offsets.zipWithIndex.foreach { case (offset, position) => idx.append(offset, position) }
+
+      def assertLookups(numEntries: Int): Unit = {
+        val expected = new immutable.TreeMap[Long, Int]() ++ offsets.take(numEntries).map(_.toLong).zipWithIndex
+        val random = new Random(0)
+        val targets = Seq(0L, expected.firstKey, expected.lastKey + 1) ++ Seq.fill(2000)(random.nextInt(expected.lastKey.toInt).toLong)
+        for (target <- targets) {
+          val rightAnswer = expected.rangeTo(target).lastOption match {
+            case Some((offset, position)) => OffsetPosition(offset, position)
+            case None => OffsetPosition(idx.baseOffset, 0)
+          }
+          assertEquals(rightAnswer, idx.lookup(target), s"Unexpected lookup result for $target")
+        }
+      }
+
+      assertLookups(offsets.size)
+      assertTrue(cache.contains(idx))
+      assertTrue(cache.hitCount.get > 0)
+
+      // the samples are discarded on truncation and taken again from the remaining entries
+      idx.truncateTo(offsets(12000))
+      assertFalse(cache.contains(idx))
+      assertLookups(12000)
+      assertTrue(cache.contains(idx))
+
+      // and cover the entries appended later on
+      offsets.indices.drop(12000).foreach(i => idx.append(offsets(i), i))
+      assertLookups(offsets.size)
+
+      idx.close()
+      assertFalse(cache.contains(idx))
+    } finally {
+      cache.close()
+      idx.deleteIfExists()
+    }
+  }
+
   def assertWriteFails[T](message: String, idx: OffsetIndex, offset: Int, klass: Class[T]): Unit = {
     val e = assertThrows(classOf[Exception], () => idx.append(offset, 1), () => message)
     assertEquals(klass, e.getClass, "Got an unexpected exception.")
@@ -18,10 +18,13 @@
 package kafka.log
 
 import java.nio._
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
 
 import kafka.utils.Exit
 import org.junit.jupiter.api._
 import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
 
 class OffsetMapTest {
   
@@ -32,10 +35,19 @@ class OffsetMapTest {
     validateMap(1000)
     validateMap(5000)
   }
-  
+
   @Test
-  def testClear(): Unit = {
-    val map = new SkimpyOffsetMap(4000)
+  def testBasicValidationMurmur3(): Unit = {
+    validateMap(10, hashAlgorithm = OffsetMap.Murmur3HashAlgorithm)
+    validateMap(100, hashAlgorithm = OffsetMap.Murmur3HashAlgorithm)
+    validateMap(1000, hashAlgorithm = OffsetMap.Murmur3HashAlgorithm)
+    validateMap(5000, hashAlgorithm = OffsetMap.Murmur3HashAlgorithm)
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = Array("MD5", "MURMUR3-128"))
+  def testClear(hashAlgorithm: String): Unit = {
+    val map = OffsetMap(4000, hashAlgorithm)
     for(i <- 0 until 10)
       map.put(key(i), i)
     for(i <- 0 until 10)
@@ -45,9 +57,10 @@ class OffsetMapTest {
       assertEquals(map.get(key(i)), -1L)
   }
   
-  @Test
-  def testGetWhenFull(): Unit = {
-    val map = new SkimpyOffsetMap(4096)
+  @ParameterizedTest
+  @ValueSource(strings = Array("MD5", "MURMUR3-128"))
+  def testGetWhenFull(hashAlgorithm: String): Unit = {
+    val map = OffsetMap(4096, hashAlgorithm)
     var i = 37L  //any value would do
     while (map.size < map.slots) {
       map.put(key(i), i)
@@ -57,10 +70,121 @@ class OffsetMapTest {
     assertEquals(map.get(key(i-1L)), i-1L)
   }
 
+  @Test
+  def testMurmur3UpdateExistingKey(): Unit = {
+    val map = new Murmur3OffsetMap(4096)
+    map.put(key(1), 5L)
+    map.put(key(1), 7L)
+    assertEquals(1, map.size)
+    assertEquals(7L, map.get(key(1)))
+    assertEquals(7L, map.latestOffset)
+  }
+
+  @Test
+  def testMurmur3DoesNotModifyKey(): Unit = {
+    val map = new Murmur3OffsetMap(4096)
+    val buffer = ByteBuffer.wrap("some-prefix-and-a-longer-key".getBytes)
+    buffer.position(5)
+    map.put(buffer, 3L)
+    assertEquals(5, buffer.position())
+    assertEquals(3L, map.get(ByteBuffer.wrap("prefix-and-a-longer-key".getBytes)))
+    // the hash only depends on the remaining bytes, not on the byte order of the buffer
+    assertEquals(3L, map.get(ByteBuffer.wrap("prefix-and-a-longer-key".getBytes).order(ByteOrder.LITTLE_ENDIAN)))
+  }
+
+  @Test
+  def testCollisionRate(): Unit = {
+    val map = validateMap(1000, loadFactor = 0.9, hashAlgorithm = OffsetMap.Murmur3HashAlgorithm)
+    assertTrue(map.collisionRate > 0.0)
+    map.clear()
+    map.put(key(0), 0)
+    assertEquals(0.0, map.collisionRate)
+  }
+
+  @Test
+  def testConcurrentMapBasicValidation(): Unit = {
+    for (items <- Seq(10, 100, 1000, 5000)) {
+      val map = new ConcurrentOffsetMap(items * 2 * 24)
+      for (i <- 0 until items)
+        map.put(key(i), i)
+      for (i <- 0 until items)
+        assertEquals(i.toLong, map.get(key(i)))
+      assertEquals(items, map.size)
+      map.clear()
+      for (i <- 0 until items)
+        assertEquals(-1L, map.get(key(i)))
+      assertEquals(0, map.size)
+    }
+  }
+
+  @Test
+  def testConcurrentMapRetainsLargestOffset(): Unit = {
+    val map = new ConcurrentOffsetMap(4096)
+    map.put(key(1), 7L)
+    map.put(key(1), 5L)
+    assertEquals(1, map.size)
+    assertEquals(7L, map.get(key(1)))
+    assertEquals(7L, map.latestOffset)
+  }
+
+  @Test
+  def testConcurrentMapPutFromMultipleThreads(): Unit = {
+    val numThreads = 4
+    val numKeys = 2000
+    val map = new ConcurrentOffsetMap(numKeys * 2 * 24)
+    val executor = Executors.newFixedThreadPool(numThreads)
+    try {
+      // every thread puts every key, thread t writing the offsets congruent to t modulo numThreads
+      val futures = (0 until numThreads).map { t =>
+        executor.submit(new Runnable {
+          override def run(): Unit = {
+            for (round <- 0 until 3; k <- 0 until numKeys)
+              map.put(key(k), (round * numKeys + k) * numThreads + t)
+          }
+        })
+      }
+      futures.foreach(_.get(30, TimeUnit.SECONDS))
+    } finally executor.shutdownNow()
+
+    assertEquals(numKeys, map.size)
+    for (k <- 0 until numKeys)
+      assertEquals(((2 * numKeys + k) * numThreads + numThreads - 1).toLong, map.get(key(k)))
+    assertEquals(((3 * numKeys - 1) * numThreads + numThreads - 1).toLong, map.latestOffset)
+  }
+
+  @Test
+  def testConcurrentMapDoesNotDuplicateKeysRacingForSlots(): Unit = {
+    val numThreads = 16
+    val numKeys = 8
+    for (_ <- 0 until 200) {
+      val map = new ConcurrentOffsetMap(numKeys * 4 * 24)
+      val executor = Executors.newFixedThreadPool(numThreads)
+      val start = new CountDownLatch(1)
+      try {
+        // all the threads put the same few keys at once so that they race to claim the same empty slots
+        val futures = (0 until numThreads).map { t =>
+          executor.submit(new Runnable {
+            override def run(): Unit = {
+              start.await()
+              for (k <- 0 until numKeys)
+                map.put(key(k), t)
+            }
+          })
+        }
+        start.countDown()
+        futures.foreach(_.get(30, TimeUnit.SECONDS))
+      } finally executor.shutdownNow()
+
+      assertEquals(numKeys, map.size)
+      for (k <- 0 until numKeys)
+        assertEquals(numThreads - 1L, map.get(key(k)))
+    }
+  }
+
   def key(key: Long) = ByteBuffer.wrap(key.toString.getBytes)
   
-  def validateMap(items: Int, loadFactor: Double = 0.5): SkimpyOffsetMap = {
-    val map = new SkimpyOffsetMap((items/loadFactor * 24).toInt)
+  def validateMap(items: Int, loadFactor: Double = 0.5, hashAlgorithm: String = "MD5"): OffsetMap = {
+    val map = OffsetMap((items/loadFactor * 24).toInt, hashAlgorithm)
     for(i <- 0 until items)
       map.put(key(i), i)
     for(i <- 0 until items)
@@ -72,15 +196,16 @@ class OffsetMapTest {
 
 object OffsetMapTest {
   def main(args: Array[String]): Unit = {
-    if(args.length != 2) {
-      System.err.println("USAGE: java OffsetMapTest size load")
+    if(args.length < 2) {
+      System.err.println("USAGE: java OffsetMapTest size load [hash-algorithm]")
       Exit.exit(1)
     }
     val test = new OffsetMapTest()
     val size = args(0).toInt
     val load = args(1).toDouble
+    val hashAlgorithm = if (args.length > 2) args(2) else "MD5"
     val start = System.nanoTime
-    val map = test.validateMap(size, load)
+    val map = test.validateMap(size, load, hashAlgorithm)
     val ellapsedMs = (System.nanoTime - start) / 1000.0 / 1000.0
     println(s"${map.size} entries in map of size ${map.slots} in $ellapsedMs ms")
     println("Collision rate: %.1f%%".format(100*map.collisionRate))
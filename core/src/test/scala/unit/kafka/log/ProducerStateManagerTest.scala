@@ -20,7 +20,7 @@ package kafka.log
 import java.io.File
 import java.nio.ByteBuffer
 import java.nio.channels.FileChannel
-import java.nio.file.StandardOpenOption
+import java.nio.file.{Files, StandardOpenOption}
 import java.util.Collections
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -686,6 +686,97 @@ class ProducerStateManagerTest {
     assertEquals(1L, entry2.get.lastDataOffset)
   }
 
+  @Test
+  def testLoadProducersFromIndexedSnapshotOnDemand(): Unit = {
+    val epoch = 0.toShort
+    val pid1 = 1L
+    val pid2 = 2L
+    val pid3 = 3L
+    val stateManager = new ProducerStateManager(partition, logDir, maxPidExpirationMs, indexedSnapshots = true)
+
+    append(stateManager, pid3, epoch, 0, 0L)
+    append(stateManager, pid2, epoch, 0, 1L, isTransactional = true)
+    append(stateManager, pid1, epoch, 0, 2L)
+    stateManager.takeSnapshot()
+    assertEquals(IndexedProducerSnapshot.Version, snapshotVersion(stateManager.latestSnapshotOffset.get))
+
+    val reloadedStateManager = new ProducerStateManager(partition, logDir, maxPidExpirationMs, indexedSnapshots = true)
+    reloadedStateManager.truncateAndReload(0L, 3L, time.milliseconds())
+    // the ongoing transaction is loaded along with the snapshot
+    assertEquals(Some(1L), reloadedStateManager.firstUndecidedOffset)
+
+    val entry1 = reloadedStateManager.lastEntry(pid1)
+    assertTrue(entry1.isDefined)
+    assertEquals(0, entry1.get.lastSeq)
+    assertEquals(2L, entry1.get.lastDataOffset)
+    assertEquals(None, reloadedStateManager.lastEntry(4L))
+
+    // the sequence of a producer loaded on demand is validated
+    assertThrows(classOf[OutOfOrderSequenceException], () => append(reloadedStateManager, pid3, epoch, 2, 3L))
+    append(reloadedStateManager, pid3, epoch, 1, 3L)
+    assertEquals(1, reloadedStateManager.lastEntry(pid3).get.lastSeq)
+
+    assertEquals(stateManager.activeProducers.keySet, reloadedStateManager.activeProducers.keySet)
+  }
+
+  @Test
+  def testSnapshotCopiesProducersNotAccessedSinceLoaded(): Unit = {
+    val epoch = 0.toShort
+    val stateManager = new ProducerStateManager(partition, logDir, maxPidExpirationMs, indexedSnapshots = true)
+    append(stateManager, 1L, epoch, 0, 0L)
+    time.sleep(maxPidExpirationMs / 2)
+    for (producerId <- 2L to 5L)
+      append(stateManager, producerId, epoch, 0, producerId - 1)
+    stateManager.takeSnapshot()
+
+    val reloadedStateManager = new ProducerStateManager(partition, logDir, maxPidExpirationMs, indexedSnapshots = true)
+    reloadedStateManager.truncateAndReload(0L, 5L, time.milliseconds())
+    append(reloadedStateManager, 3L, epoch, 1, 5L)
+    append(reloadedStateManager, 6L, epoch, 0, 6L)
+    // producer 1 expires while remaining in the loaded snapshot
+    time.sleep(maxPidExpirationMs / 2)
+    reloadedStateManager.removeExpiredProducers(time.milliseconds())
+    reloadedStateManager.takeSnapshot()
+
+    val entries = ProducerStateManager.readSnapshot(Log.producerSnapshotFile(logDir, 7L)).map(e => e.producerId -> e.lastSeq).toMap
+    assertEquals(Map(2L -> 0, 3L -> 1, 4L -> 0, 5L -> 0, 6L -> 0), entries)
+    assertEquals(IndexedProducerSnapshot.Version, snapshotVersion(7L))
+    assertEquals(entries.keySet, reloadedStateManager.activeProducers.keySet)
+  }
+
+  @Test
+  def testLoadFromSnapshotInOriginalFormat(): Unit = {
+    val epoch = 0.toShort
+    append(stateManager, producerId, epoch, 0, 0L)
+    append(stateManager, 2L, epoch, 0, 1L, isTransactional = true)
+    stateManager.takeSnapshot()
+    assertEquals(1, snapshotVersion(2L))
+
+    val reloadedStateManager = new ProducerStateManager(partition, logDir, maxPidExpirationMs, indexedSnapshots = true)
+    reloadedStateManager.truncateAndReload(0L, 2L, time.milliseconds())
+    assertEquals(Some(1L), reloadedStateManager.firstUndecidedOffset)
+    assertEquals(Set(producerId, 2L), reloadedStateManager.activeProducers.keySet)
+    assertEquals(0L, reloadedStateManager.lastEntry(producerId).get.lastDataOffset)
+  }
+
+  @Test
+  def testExpiredProducersAreNotLoadedFromSnapshot(): Unit = {
+    val epoch = 0.toShort
+    append(stateManager, producerId, epoch, 0, 0L)
+    append(stateManager, 2L, epoch, 0, 1L)
+    stateManager.takeSnapshot()
+
+    val reloadedStateManager = new ProducerStateManager(partition, logDir, maxPidExpirationMs)
+    reloadedStateManager.truncateAndReload(0L, 2L, time.milliseconds())
+    assertTrue(reloadedStateManager.lastEntry(producerId).isDefined)
+
+    time.sleep(maxPidExpirationMs + 1)
+    reloadedStateManager.removeExpiredProducers(time.milliseconds())
+    assertEquals(None, reloadedStateManager.lastEntry(producerId))
+    assertEquals(None, reloadedStateManager.lastEntry(2L))
+    assertTrue(reloadedStateManager.activeProducers.isEmpty)
+  }
+
   @Test
   def testSkipSnapshotIfOffsetUnchanged(): Unit = {
     val epoch = 0.toShort
@@ -900,6 +991,11 @@ class ProducerStateManagerTest {
     assertEquals(Seq(42), ProducerStateManager.listSnapshotFiles(logDir).map(_.offset).sorted)
   }
 
+  private def snapshotVersion(offset: Long): Short = {
+    val buffer = ByteBuffer.wrap(Files.readAllBytes(Log.producerSnapshotFile(logDir, offset).toPath))
+    buffer.getShort(0)
+  }
+
   private def testLoadFromCorruptSnapshot(makeFileCorrupt: FileChannel => Unit): Unit = {
     val epoch = 0.toShort
     val producerId = 1L
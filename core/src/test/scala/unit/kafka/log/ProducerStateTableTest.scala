@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.util.Random
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
+
+import scala.collection.mutable
+
+class ProducerStateTableTest {
+
+  @ParameterizedTest
+  @ValueSource(booleans = Array(true, false))
+  def testPutGetAndRemove(direct: Boolean): Unit = {
+    val table = new ProducerStateTable(direct)
+    val reference = mutable.Map.empty[Long, ProducerStateEntry]
+    val random = new Random(0)
+
+    // sequential ids, which are typical, and random ones, including negative values
+    val producerIds = (0L until 2000L) ++ Seq.fill(2000)(random.nextLong())
+    producerIds.foreach { producerId =>
+      val entry = newEntry(producerId, numBatches = random.nextInt(6))
+      table.put(entry)
+      reference.put(producerId, entry)
+    }
+    assertTableEquals(reference, table)
+
+    // removing entries shifts back the following entries of their probe sequence, which must remain reachable
+    producerIds.filter(_ => random.nextInt(3) == 0).foreach { producerId =>
+      assertEquals(reference.remove(producerId).isDefined, table.remove(producerId))
+    }
+    assertFalse(table.remove(-12345L))
+    assertTableEquals(reference, table)
+
+    table.clear()
+    assertTrue(table.isEmpty)
+    assertEquals(0L, table.sizeInBytes)
+    assertEquals(None, table.get(producerIds.head))
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = Array(true, false))
+  def testUpdateRetainsLastBatches(direct: Boolean): Unit = {
+    val table = new ProducerStateTable(direct)
+    val expected = newEntry(1L, numBatches = 3)
+    table.put(expected)
+
+    // appending more batches than retained drops the oldest ones, as for the entry itself
+    def nextEntry(): ProducerStateEntry = {
+      val next = newEntry(1L, numBatches = 4, firstSeq = 6)
+      next.coordinatorEpoch = 7
+      next.currentTxnFirstOffset = Some(100L)
+      next
+    }
+    expected.update(nextEntry())
+    table.update(nextEntry())
+    assertEntryEquals(expected, table.get(1L).get)
+    assertEquals(ProducerStateEntry.NumBatchesToRetain, table.get(1L).get.batchMetadata.size)
+
+    // a new epoch discards the batches of the previous one
+    expected.update(newEntry(1L, numBatches = 1, producerEpoch = 1))
+    table.update(newEntry(1L, numBatches = 1, producerEpoch = 1))
+    assertEntryEquals(expected, table.get(1L).get)
+
+    // the producer is inserted if it is not in the table yet
+    val other = newEntry(2L, numBatches = 2)
+    table.update(other)
+    assertEntryEquals(other, table.get(2L).get)
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = Array(true, false))
+  def testFindDuplicateBatch(direct: Boolean): Unit = {
+    val table = new ProducerStateTable(direct)
+    val entry = newEntry(1L, numBatches = 5)
+    table.put(entry)
+    // wrap the ring around
+    entry.update(newEntry(1L, numBatches = 2, firstSeq = 10))
+    table.update(newEntry(1L, numBatches = 2, firstSeq = 10))
+
+    entry.batchMetadata.foreach { batch =>
+      assertEquals(Some(batch), table.findDuplicateBatch(1L, 0.toShort, batch.firstSeq, batch.lastSeq))
+    }
+    val oldest = entry.batchMetadata.head
+    assertEquals(None, table.findDuplicateBatch(1L, 0.toShort, oldest.firstSeq - 10, oldest.firstSeq - 1))
+    assertEquals(None, table.findDuplicateBatch(1L, 1.toShort, oldest.firstSeq, oldest.lastSeq))
+    assertEquals(None, table.findDuplicateBatch(2L, 0.toShort, oldest.firstSeq, oldest.lastSeq))
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = Array(true, false))
+  def testRemoveIdle(direct: Boolean): Unit = {
+    val table = new ProducerStateTable(direct)
+    val reference = mutable.Map.empty[Long, ProducerStateEntry]
+    (0L until 1000L).foreach { producerId =>
+      val entry = newEntry(producerId, numBatches = 1, timestamp = producerId)
+      // producers with an ongoing transaction are never idle
+      if (producerId % 100 == 0)
+        entry.currentTxnFirstOffset = Some(producerId)
+      table.put(entry)
+      reference.put(producerId, entry)
+    }
+    val grownSize = table.sizeInBytes
+
+    val removed = table.removeIdle(currentTimeMs = 1000L, maxIdleMs = 50L)
+    val expectedRemoved = reference.values.filter(e => e.currentTxnFirstOffset.isEmpty && e.lastTimestamp <= 950L)
+      .map(_.producerId).toSet
+    assertEquals(expectedRemoved, removed.toSet)
+    reference --= expectedRemoved
+    assertTableEquals(reference, table)
+    // the table shrinks once most of it is empty
+    assertTrue(table.sizeInBytes < grownSize)
+
+    table.removeIdle(currentTimeMs = Long.MaxValue, maxIdleMs = 0L)
+    assertEquals(10, table.size)
+    reference.values.filter(_.currentTxnFirstOffset.isEmpty).foreach { e =>
+      assertFalse(table.contains(e.producerId))
+    }
+  }
+
+  private def newEntry(producerId: Long,
+                       numBatches: Int,
+                       firstSeq: Int = 0,
+                       producerEpoch: Short = 0,
+                       timestamp: Long = 1000L): ProducerStateEntry = {
+    val entry = ProducerStateEntry.empty(producerId)
+    entry.producerEpoch = producerEpoch
+    entry.lastTimestamp = timestamp
+    (0 until numBatches).foreach { i =>
+      val seq = firstSeq + i * 2
+      entry.addBatch(producerEpoch, seq + 1, producerId * 100 + seq + 1, 1, timestamp)
+    }
+    entry
+  }
+
+  private def assertTableEquals(expected: collection.Map[Long, ProducerStateEntry], table: ProducerStateTable): Unit = {
+    assertEquals(expected.size, table.size)
+    expected.values.foreach { entry =>
+      assertTrue(table.contains(entry.producerId))
+      assertEntryEquals(entry, table.get(entry.producerId).get)
+    }
+    assertEquals(expected.keySet, table.entries.map(_.producerId).toSet)
+  }
+
+  private def assertEntryEquals(expected: ProducerStateEntry, actual: ProducerStateEntry): Unit = {
+    assertEquals(expected.producerId, actual.producerId)
+    assertEquals(expected.producerEpoch, actual.producerEpoch)
+    assertEquals(expected.coordinatorEpoch, actual.coordinatorEpoch)
+    assertEquals(expected.lastTimestamp, actual.lastTimestamp)
+    assertEquals(expected.currentTxnFirstOffset, actual.currentTxnFirstOffset)
+    assertEquals(expected.batchMetadata.toList, actual.batchMetadata.toList)
+  }
+}
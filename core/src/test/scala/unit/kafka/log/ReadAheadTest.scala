@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+
+import kafka.utils.TestUtils
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, RecordBatch, SimpleRecord}
+import org.apache.kafka.common.utils.Utils
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.{AfterEach, BeforeEach, Test}
+
+import scala.collection.mutable
+
+class ReadAheadTest {
+  private val readAheadBytes = 16 * 1024
+  private var logDir: File = _
+  private var segment: LogSegment = _
+
+  private val prefetches = mutable.ArrayBuffer.empty[(Int, Int)]
+  private var coldReads = 0
+  private val readAhead = new ReadAhead(readAheadBytes, threads = 1) {
+    override def prefetch(segment: LogSegment, from: Int, to: Int): Unit = prefetches += from -> to
+    override def onColdRead(): Unit = coldReads += 1
+  }
+
+  @BeforeEach
+  def setUp(): Unit = {
+    logDir = TestUtils.tempDir()
+    segment = LogUtils.createSegment(0L, logDir)
+    val records = MemoryRecords.withRecords(0L, CompressionType.NONE, new SimpleRecord(new Array[Byte](64 * 1024)))
+    segment.append(0L, RecordBatch.NO_TIMESTAMP, -1L, records)
+  }
+
+  @AfterEach
+  def tearDown(): Unit = {
+    readAhead.shutdown()
+    segment.close()
+    Utils.delete(logDir)
+  }
+
+  @Test
+  def testSequentialReadsArePrefetched(): Unit = {
+    val detector = new SequentialReadDetector(readAhead)
+    detector.onRead(segment, 0, 1000, isActiveSegment = false)
+    assertEquals(Seq.empty, prefetches)
+
+    // the second read follows the first one, the data after it is prefetched
+    detector.onRead(segment, 1000, 1000, isActiveSegment = false)
+    assertEquals(Seq(2000 -> (2000 + readAheadBytes)), prefetches)
+    assertEquals(2, coldReads)
+
+    // the next reads are covered until half of the prefetched data is consumed
+    var position = 2000
+    while (position + 1000 <= 2000 + readAheadBytes / 2) {
+      detector.onRead(segment, position, 1000, isActiveSegment = false)
+      position += 1000
+    }
+    assertEquals(1, prefetches.size)
+    detector.onRead(segment, position, 1000, isActiveSegment = false)
+    assertEquals(Seq(2000 -> (2000 + readAheadBytes), (2000 + readAheadBytes) -> (position + 1000 + readAheadBytes)),
+      prefetches)
+    assertEquals(2, coldReads)
+
+    // the prefetched range stops at the end of the segment
+    detector.onRead(segment, segment.size - 10000, 1000, isActiveSegment = false)
+    detector.onRead(segment, segment.size - 9000, 1000, isActiveSegment = false)
+    assertEquals((segment.size - 8000) -> segment.size, prefetches.last)
+  }
+
+  @Test
+  def testRereadsAndRandomReadsAreNotPrefetched(): Unit = {
+    val detector = new SequentialReadDetector(readAhead)
+    detector.onRead(segment, 0, 1000, isActiveSegment = false)
+    // the same read is not a sequential read
+    detector.onRead(segment, 0, 1000, isActiveSegment = false)
+    detector.onRead(segment, 30000, 1000, isActiveSegment = false)
+    detector.onRead(segment, 10000, 1000, isActiveSegment = false)
+    assertEquals(Seq.empty, prefetches)
+    assertEquals(4, coldReads)
+  }
+
+  @Test
+  def testConcurrentStreamsArePrefetched(): Unit = {
+    val detector = new SequentialReadDetector(readAhead)
+    detector.onRead(segment, 0, 1000, isActiveSegment = false)
+    detector.onRead(segment, 30000, 1000, isActiveSegment = false)
+    detector.onRead(segment, 1000, 1000, isActiveSegment = false)
+    detector.onRead(segment, 31000, 1000, isActiveSegment = false)
+    assertEquals(Seq(2000 -> (2000 + readAheadBytes), 32000 -> (32000 + readAheadBytes)), prefetches)
+  }
+
+  @Test
+  def testTailOfActiveSegmentIsNotPrefetched(): Unit = {
+    val detector = new SequentialReadDetector(readAhead)
+    val position = segment.size - readAheadBytes
+    detector.onRead(segment, position - 1000, 1000, isActiveSegment = true)
+    detector.onRead(segment, position, 1000, isActiveSegment = true)
+    assertEquals(Seq.empty, prefetches)
+    // reads of the active segment are not cold
+    assertEquals(0, coldReads)
+
+    // further from the end of the segment, the reads are prefetched
+    detector.onRead(segment, 0, 1000, isActiveSegment = true)
+    detector.onRead(segment, 1000, 1000, isActiveSegment = true)
+    assertEquals(Seq(2000 -> (2000 + readAheadBytes)), prefetches)
+  }
+
+  @Test
+  def testDisabledReadAhead(): Unit = {
+    val disabled = new ReadAhead(0, threads = 1) {
+      override def prefetch(segment: LogSegment, from: Int, to: Int): Unit = prefetches += from -> to
+      override def onColdRead(): Unit = coldReads += 1
+    }
+    try {
+      val detector = new SequentialReadDetector(disabled)
+      detector.onRead(segment, 0, 1000, isActiveSegment = false)
+      detector.onRead(segment, 1000, 1000, isActiveSegment = false)
+      assertEquals(Seq.empty, prefetches)
+      assertEquals(0, coldReads)
+    } finally disabled.shutdown()
+  }
+
+  @Test
+  def testStreamsFollowSegmentsByBaseOffset(): Unit = {
+    val detector = new SequentialReadDetector(readAhead)
+    detector.onRead(segment, 0, 1000, isActiveSegment = false)
+    val otherSegment = LogUtils.createSegment(100L, logDir)
+    try {
+      otherSegment.append(100L, RecordBatch.NO_TIMESTAMP, -1L,
+        MemoryRecords.withRecords(100L, CompressionType.NONE, new SimpleRecord(new Array[Byte](64 * 1024))))
+      // a read of another segment at the same position does not follow the stream
+      detector.onRead(otherSegment, 1000, 1000, isActiveSegment = false)
+      assertEquals(Seq.empty, prefetches)
+      detector.onRead(segment, 1000, 1000, isActiveSegment = false)
+      assertEquals(Seq(2000 -> (2000 + readAheadBytes)), prefetches)
+    } finally otherSegment.close()
+  }
+
+  @Test
+  def testPrefetchReadsSegment(): Unit = {
+    val readAhead = new ReadAhead(readAheadBytes, threads = 1)
+    try {
+      val prefetchedBytes = readAhead.prefetchedBytes
+      readAhead.prefetch(segment, 1000, 1000 + readAheadBytes)
+      TestUtils.waitUntilTrue(() => readAhead.prefetchedBytes - prefetchedBytes >= readAheadBytes,
+        "Timed out waiting for the segment to be prefetched")
+
+      // the segment may be closed before its prefetch runs
+      segment.close()
+      readAhead.prefetch(segment, 0, readAheadBytes)
+    } finally readAhead.shutdown()
+  }
+}
@@ -22,7 +22,7 @@ import java.io.File
 import kafka.utils.TestUtils
 import org.apache.kafka.common.errors.InvalidOffsetException
 import org.junit.jupiter.api.{AfterEach, BeforeEach, Test}
-import org.junit.jupiter.api.Assertions.{assertEquals, assertThrows}
+import org.junit.jupiter.api.Assertions.{assertEquals, assertFalse, assertThrows, assertTrue}
 
 /**
  * Unit test for time index.
@@ -92,6 +92,34 @@ class TimeIndexTest {
     idx.maybeAppend(10000L, 1000L, true)
   }
 
+  @Test
+  def testLookupWithSampleCache(): Unit = {
+    val cache = new IndexSampleCache(1024 * 1024)
+    val idx = new TimeIndex(nonExistantTempFile(), baseOffset = baseOffset, maxIndexSize = 20000 * 12, sampleCache = Some(cache))
+    try {
+      for (i <- 1 until 20000)
+        idx.maybeAppend(i * 10, i * 3 + baseOffset)
+
+      def assertLookups(numEntries: Int): Unit = {
+        for (timestamp <- Seq(0L, 9L, 10L, numEntries * 10L) ++ (0 until numEntries * 10 by 37).map(_.toLong)) {
+          val entry = math.min(timestamp / 10, numEntries)
+          val rightAnswer = if (entry == 0) TimestampOffset(-1L, baseOffset) else TimestampOffset(entry * 10, entry * 3 + baseOffset)
+          assertEquals(rightAnswer, idx.lookup(timestamp), s"Unexpected lookup result for $timestamp")
+        }
+      }
+
+      assertLookups(19999)
+      assertTrue(cache.contains(idx))
+
+      idx.truncateTo(10000 * 3 + baseOffset)
+      assertFalse(cache.contains(idx))
+      assertLookups(9999)
+    } finally {
+      cache.close()
+      idx.deleteIfExists()
+    }
+  }
+
   private def appendEntries(numEntries: Int): Unit = {
     for (i <- 1 to numEntries)
       idx.maybeAppend(i * 10, i * 10 + baseOffset)
@@ -21,20 +21,25 @@ package kafka.network
 import java.io.IOException
 import java.net.InetAddress
 import java.nio.ByteBuffer
-import java.util.Collections
+import java.util.{Collections, Optional}
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
 import com.fasterxml.jackson.databind.ObjectMapper
 import kafka.network
 import org.apache.kafka.clients.admin.AlterConfigOp.OpType
+import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.config.types.Password
 import org.apache.kafka.common.config.{ConfigResource, SaslConfigs, SslConfigs, TopicConfig}
 import org.apache.kafka.common.memory.MemoryPool
 import org.apache.kafka.common.message.IncrementalAlterConfigsRequestData
 import org.apache.kafka.common.message.IncrementalAlterConfigsRequestData._
+import org.apache.kafka.common.message.ProduceRequestData
 import org.apache.kafka.common.network.{ClientInformation, ListenerName}
+import org.apache.kafka.common.protocol.ApiKeys
 import org.apache.kafka.common.requests._
 import org.apache.kafka.common.requests.AlterConfigsRequest._
 import org.apache.kafka.common.security.auth.{KafkaPrincipal, SecurityProtocol}
+import org.apache.kafka.common.utils.Time
 import org.easymock.EasyMock._
 import org.junit.jupiter.api.Assertions._
 import org.junit.jupiter.api._
@@ -179,6 +184,93 @@ class RequestChannelTest {
     assertTrue(isValidJson(RequestConvertToJson.request(alterConfigs.loggableRequest).toString))
   }
 
+  @Test
+  def testShardedRequestQueues(): Unit = {
+    val channel = new RequestChannel(10, "Test", Time.SYSTEM, createNiceMock(classOf[RequestChannel.Metrics]), numShards = 2)
+    try {
+      val requests = (0 until 4).map { processor =>
+        val req = request(new MetadataRequest.Builder(List("topic").asJava, true).build(), processor)
+        channel.sendRequest(req)
+        req
+      }
+
+      // the requests of the home shard come first, in order, then the ones of the other shard
+      assertSame(requests(1), channel.receiveRequest(0, shard = 1))
+      assertSame(requests(3), channel.receiveRequest(0, shard = 1))
+      assertSame(requests(0), channel.receiveRequest(0, shard = 1))
+      assertSame(requests(2), channel.receiveRequest(100, shard = 3))
+      assertNull(channel.receiveRequest(0, shard = 0))
+      assertNull(channel.receiveRequest(20, shard = 1))
+
+      // the queue size is split between the shards
+      (0 until 5).foreach(_ => channel.sendRequest(request(new MetadataRequest.Builder(List("topic").asJava, true).build(), 0)))
+      val sent = new CountDownLatch(1)
+      val sender = new Thread(() => {
+        channel.sendRequest(request(new MetadataRequest.Builder(List("topic").asJava, true).build(), 0))
+        sent.countDown()
+      })
+      sender.start()
+      assertFalse(sent.await(100, TimeUnit.MILLISECONDS))
+      assertNotNull(channel.receiveRequest(0, shard = 1))
+      assertTrue(sent.await(30, TimeUnit.SECONDS))
+    } finally {
+      channel.shutdown()
+    }
+  }
+
+  @Test
+  def testSchedulingClasses(): Unit = {
+    val fetchData = Collections.singletonMap(new TopicPartition("topic", 0),
+      new FetchRequest.PartitionData(0, 0, 1000, Optional.empty[Integer]))
+    assertEquals(SchedulingClass.Replication,
+      request(FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion, 1, 100, 1, fetchData).build()).schedulingClass)
+    assertEquals(SchedulingClass.ConsumerFetch,
+      request(FetchRequest.Builder.forConsumer(100, 1, fetchData).build()).schedulingClass)
+    assertEquals(SchedulingClass.Produce, produceRequest().schedulingClass)
+    assertEquals(SchedulingClass.Other,
+      request(new MetadataRequest.Builder(List("topic").asJava, true).build()).schedulingClass)
+  }
+
+  @Test
+  def testWeightedRequestScheduling(): Unit = {
+    val metrics: RequestChannel.Metrics = createNiceMock(classOf[RequestChannel.Metrics])
+    val channel = new RequestChannel(10, "Test", Time.SYSTEM, metrics, schedulingClassWeights = Map(SchedulingClass.Produce -> 3))
+    try {
+      val others = (0 until 4).map { _ =>
+        val req = request(new MetadataRequest.Builder(List("topic").asJava, true).build())
+        channel.sendRequest(req)
+        req
+      }
+      val produces = (0 until 4).map { _ =>
+        val req = produceRequest()
+        channel.sendRequest(req)
+        req
+      }
+
+      // three produce requests for every other request, interleaved, then the remaining other requests in order
+      val expected = Seq(produces(0), produces(1), others(0), produces(2), produces(3), others(1), others(2), others(3))
+      expected.foreach(req => assertSame(req, channel.receiveRequest(0)))
+      assertNull(channel.receiveRequest(10))
+
+      // the capacity is shared by the classes
+      (0 until 10).foreach(_ => channel.sendRequest(produceRequest()))
+      val sent = new CountDownLatch(1)
+      val sender = new Thread(() => {
+        channel.sendRequest(request(new MetadataRequest.Builder(List("topic").asJava, true).build()))
+        sent.countDown()
+      })
+      sender.start()
+      assertFalse(sent.await(100, TimeUnit.MILLISECONDS))
+      assertNotNull(channel.receiveRequest(0))
+      assertTrue(sent.await(30, TimeUnit.SECONDS))
+    } finally {
+      channel.shutdown()
+    }
+  }
+
+  private def produceRequest(): RequestChannel.Request =
+    request(ProduceRequest.forCurrentMagic(new ProduceRequestData().setAcks(1.toShort).setTimeoutMs(1000)).build())
+
   private def isValidJson(str: String): Boolean = {
     try {
       val mapper = new ObjectMapper
@@ -189,11 +281,11 @@ class RequestChannelTest {
     }
   }
 
-  def request(req: AbstractRequest): RequestChannel.Request = {
+  def request(req: AbstractRequest, processor: Int = 1): RequestChannel.Request = {
     val buffer = RequestTestUtils.serializeRequestWithHeader(new RequestHeader(req.apiKey, req.version, "client-id", 1),
       req)
     val requestContext = newRequestContext(buffer)
-    new network.RequestChannel.Request(processor = 1,
+    new network.RequestChannel.Request(processor = processor,
       requestContext,
       startTimeNanos = 0,
       createNiceMock(classOf[MemoryPool]),
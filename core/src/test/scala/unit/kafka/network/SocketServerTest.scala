@@ -27,16 +27,16 @@ import java.util.concurrent.{CompletableFuture, ConcurrentLinkedQueue, Executors
 import java.util.{Properties, Random}
 
 import com.fasterxml.jackson.databind.node.{JsonNodeFactory, ObjectNode, TextNode}
-import com.yammer.metrics.core.{Gauge, Meter}
+import com.yammer.metrics.core.{Gauge, Histogram, Meter}
 import javax.net.ssl._
 import kafka.metrics.KafkaYammerMetrics
 import kafka.security.CredentialProvider
 import kafka.server.{KafkaConfig, SimpleApiVersionManager, ThrottleCallback, ThrottledChannel}
 import kafka.utils.Implicits._
 import kafka.utils.TestUtils
-import org.apache.kafka.common.memory.MemoryPool
+import org.apache.kafka.common.memory.{MemoryPool, RecyclingMemoryPool}
 import org.apache.kafka.common.message.ApiMessageType.ListenerType
-import org.apache.kafka.common.message.{ProduceRequestData, SaslAuthenticateRequestData, SaslHandshakeRequestData, VoteRequestData}
+import org.apache.kafka.common.message.{ProduceRequestData, ProduceResponseData, SaslAuthenticateRequestData, SaslHandshakeRequestData, VoteRequestData}
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network.KafkaChannel.ChannelMuteState
 import org.apache.kafka.common.network.{ClientInformation, _}
@@ -233,6 +233,72 @@ class SocketServerTest {
     verifyAcceptorBlockedPercent("PLAINTEXT", expectBlocked = false)
   }
 
+  @Test
+  def testPooledResponseBufferReleasedAfterSend(): Unit = {
+    val testProps = new Properties
+    testProps ++= props
+    testProps.put(KafkaConfig.SocketResponseBufferPoolBytesProp, "1048576")
+    val testableServer = new SocketServer(KafkaConfig.fromProps(testProps), new Metrics, Time.SYSTEM, credentialProvider, apiVersionManager)
+    testableServer.startup()
+
+    def yammerMetric(name: String, tags: String = "") = KafkaYammerMetrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (k, metric) if k.getName == name && k.getMBeanName.endsWith(tags) => metric
+    }.get
+    def responseMemoryPoolUsed = yammerMetric("ResponseMemoryPoolUsed").asInstanceOf[Gauge[Long]].value
+    def responseBufferBytes = yammerMetric(RequestMetrics.ResponseBufferBytes, s"request=${ApiKeys.API_VERSIONS.name}")
+      .asInstanceOf[Histogram]
+
+    try {
+      val socket = connect(testableServer)
+      sendRequest(socket, apiVersionRequestBytes("clientId", ApiKeys.API_VERSIONS.latestVersion))
+      val request = receiveRequest(testableServer.dataPlaneRequestChannel)
+      testableServer.dataPlaneRequestChannel.sendResponse(request,
+        ApiVersionsResponse.defaultApiVersionsResponse(ListenerType.ZK_BROKER), None)
+      val response = receiveResponse(socket)
+
+      TestUtils.waitUntilTrue(() => responseBufferBytes.count == 1 && responseMemoryPoolUsed == 0,
+        "Response buffer not released")
+      // the size prefix and the response
+      assertEquals(4 + response.length, responseBufferBytes.max.toInt)
+    } finally {
+      shutdownServerAndMetrics(testableServer)
+    }
+  }
+
+  @Test
+  def testPooledResponseBufferWithPoolLargerThanRecycledSizes(): Unit = {
+    val testProps = new Properties
+    testProps ++= props
+    testProps.put(KafkaConfig.SocketResponseBufferPoolBytesProp, (4L * 1024 * 1024 * 1024).toString)
+    val testableServer = new SocketServer(KafkaConfig.fromProps(testProps), new Metrics, Time.SYSTEM, credentialProvider, apiVersionManager)
+    testableServer.startup()
+
+    def responseMemoryPoolUsed = KafkaYammerMetrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (k, metric) if k.getName == "ResponseMemoryPoolUsed" => metric.asInstanceOf[Gauge[Long]].value
+    }.get
+
+    try {
+      val socket = connect(testableServer)
+      sendRequest(socket, producerRequestBytes(ack = 1))
+      val request = receiveRequest(testableServer.dataPlaneRequestChannel)
+      // a response large enough to be serialized into a recycled buffer
+      val partitionResponses = (0 until 1000).map { partition =>
+        new ProduceResponseData.PartitionProduceResponse().setIndex(partition).setBaseOffset(partition)
+      }
+      val topicResponses = new ProduceResponseData.TopicProduceResponseCollection()
+      topicResponses.add(new ProduceResponseData.TopicProduceResponse().setName("topic")
+        .setPartitionResponses(partitionResponses.asJava))
+      val produceResponse = new ProduceResponse(new ProduceResponseData().setResponses(topicResponses))
+      testableServer.dataPlaneRequestChannel.sendResponse(request, produceResponse, None)
+      val response = receiveResponse(socket)
+
+      assertTrue(response.length > RecyclingMemoryPool.MIN_RECYCLED_SIZE)
+      TestUtils.waitUntilTrue(() => responseMemoryPoolUsed == 0, "Response buffer not released")
+    } finally {
+      shutdownServerAndMetrics(testableServer)
+    }
+  }
+
 
   private def testClientInformation(version: Short, expectedClientSoftwareName: String,
                                     expectedClientSoftwareVersion: String): Unit = {
@@ -1262,6 +1328,41 @@ class SocketServerTest {
     }
   }
 
+  @Test
+  def testConnectionLoadBalancing(): Unit = {
+    val testProps = new Properties
+    testProps ++= props
+    testProps.put(KafkaConfig.NumNetworkThreadsProp, "2")
+    testProps.put(KafkaConfig.ConnectionLoadBalancingEnableProp, "true")
+    val testableServer = new SocketServer(KafkaConfig.fromProps(testProps), new Metrics, Time.SYSTEM, credentialProvider, apiVersionManager)
+    testableServer.startup()
+
+    def processorOf(socket: Socket): Int = {
+      sendRequest(socket, producerRequestBytes())
+      val request = receiveRequest(testableServer.dataPlaneRequestChannel)
+      testableServer.dataPlaneRequestChannel.sendNoOpResponse(request)
+      request.processor
+    }
+    def connectionCounts = (0 until 2).map(testableServer.dataPlaneProcessor(_).connectionCount)
+
+    try {
+      // the processors are idle, so the connections are assigned by their numbers of connections
+      val sockets = (0 until 3).map(_ => connect(testableServer))
+      assertEquals(Seq(0, 1, 0), sockets.map(processorOf))
+      assertEquals(Seq(2, 1), connectionCounts)
+      sockets(0).close()
+      sockets(2).close()
+      TestUtils.waitUntilTrue(() => connectionCounts == Seq(0, 1), s"Connections not closed: $connectionCounts")
+
+      // the next processor in round-robin order is the second one, but the first one has fewer connections
+      val newSockets = (0 until 2).map(_ => connect(testableServer))
+      assertEquals(Seq(0, 0), newSockets.map(processorOf))
+      assertEquals(Seq(2, 1), connectionCounts)
+    } finally {
+      shutdownServerAndMetrics(testableServer)
+    }
+  }
+
   /**
    * Tests exception handling in [[Processor.configureNewConnections]]. Exception is
    * injected into [[Selector.register]] which is used to register each new connection.
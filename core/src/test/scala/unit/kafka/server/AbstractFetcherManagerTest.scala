@@ -133,4 +133,50 @@ class AbstractFetcherManagerTest {
     assertEquals(0, fetcherManager.deadThreadCount)
     EasyMock.verify(fetcher)
   }
+
+  @Test
+  def testRebalanceFetchers(): Unit = {
+    val fetchers = Array.fill(2)(EasyMock.mock[AbstractFetcherThread](classOf[AbstractFetcherThread]))
+    val fetcherManager = new AbstractFetcherManager[AbstractFetcherThread]("fetcher-manager", "fetcher-manager", 2) {
+      override def createFetcherThread(fetcherId: Int, sourceBroker: BrokerEndPoint): AbstractFetcherThread = {
+        fetchers(fetcherId)
+      }
+    }
+
+    val leader = new BrokerEndPoint(0, "localhost", 9092)
+    val leaderEpoch = 15
+    // partitions assigned to the first fetcher by their hash
+    val Seq(tp0, tp1, tp2) = (0 until 100).map(new TopicPartition("topic", _))
+      .filter(fetcherManager.getFetcherId(_) == 0).take(3)
+    val initialFetchStates = Map(
+      tp0 -> InitialFetchState(leader, leaderEpoch, initOffset = 10L),
+      tp1 -> InitialFetchState(leader, leaderEpoch, initOffset = 20L),
+      tp2 -> InitialFetchState(leader, leaderEpoch, initOffset = 30L))
+
+    EasyMock.expect(fetchers(0).start())
+    EasyMock.expect(fetchers(0).addPartitions(initialFetchStates)).andReturn(initialFetchStates.keySet)
+    EasyMock.expect(fetchers(0).sourceBroker).andReturn(leader).anyTimes()
+    // moving tp0 to the second fetcher brings the fetchers the closest, and then no move reduces the difference
+    EasyMock.expect(fetchers(0).fetchedBytes()).andReturn(Map(tp0 -> 600L, tp1 -> 300L, tp2 -> 100L))
+    EasyMock.expect(fetchers(0).removePartitions(Set(tp0)))
+      .andReturn(Map(tp0 -> PartitionFetchState(50L, None, leaderEpoch, Fetching, lastFetchedEpoch = None)))
+    EasyMock.expect(fetchers(1).start())
+    EasyMock.expect(fetchers(1).addPartitions(Map(tp0 -> InitialFetchState(leader, leaderEpoch, initOffset = 50L))))
+      .andReturn(Set(tp0))
+    EasyMock.replay(fetchers: _*)
+
+    fetcherManager.addFetcherForPartitions(initialFetchStates)
+    fetcherManager.rebalanceFetchers()
+    assertEquals(1, fetcherManager.getFetcherId(tp0))
+    assertEquals(0, fetcherManager.getFetcherId(tp1))
+    EasyMock.verify(fetchers: _*)
+
+    // the moved partition is assigned by its hash again once removed
+    EasyMock.reset(fetchers: _*)
+    fetchers.foreach(fetcher => EasyMock.expect(fetcher.removePartitions(Set(tp0))).andReturn(Map.empty))
+    EasyMock.replay(fetchers: _*)
+    fetcherManager.removeFetcherForPartitions(Set(tp0))
+    assertEquals(0, fetcherManager.getFetcherId(tp0))
+    EasyMock.verify(fetchers: _*)
+  }
 }
@@ -19,6 +19,7 @@ package kafka.server
 
 import java.nio.ByteBuffer
 import java.util.Optional
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
 import java.util.concurrent.atomic.AtomicInteger
 import kafka.cluster.BrokerEndPoint
 import kafka.log.LogAppendInfo
@@ -43,7 +44,7 @@ import org.junit.jupiter.api.{BeforeEach, Test}
 
 import scala.jdk.CollectionConverters._
 import scala.collection.{Map, Set, mutable}
-import scala.util.Random
+import scala.util.{Random, Success, Try}
 
 import scala.collection.mutable.ArrayBuffer
 import scala.compat.java8.OptionConverters._
@@ -85,7 +86,8 @@ class AbstractFetcherThreadTest {
     fetcher.start()
 
     val brokerTopicStatsMetrics = fetcher.brokerTopicStats.allTopicsStats.metricMap.keySet
-    val fetcherMetrics = Set(FetcherMetrics.BytesPerSec, FetcherMetrics.RequestsPerSec, FetcherMetrics.ConsumerLag)
+    val fetcherMetrics = Set(FetcherMetrics.BytesPerSec, FetcherMetrics.RequestsPerSec, FetcherMetrics.PartitionCount,
+      FetcherMetrics.ConsumerLag)
 
     // wait until all fetcher metrics are present
     TestUtils.waitUntilTrue(() => allMetricsNames == brokerTopicStatsMetrics ++ fetcherMetrics,
@@ -121,6 +123,24 @@ class AbstractFetcherThreadTest {
     assertFalse(allMetricsNames(FetcherMetrics.ConsumerLag))
   }
 
+  @Test
+  def testFetchedBytes(): Unit = {
+    val partition = new TopicPartition("topic", 0)
+    val fetcher = new MockFetcherThread
+
+    fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(partition -> initialFetchState(0L, leaderEpoch = 0)))
+    val batch = mkBatch(baseOffset = 0L, leaderEpoch = 0, new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes))
+    fetcher.setLeaderState(partition, MockFetcherThread.PartitionState(Seq(batch), leaderEpoch = 0, highWatermark = 2L))
+
+    fetcher.doWork()
+    assertEquals(Map(partition -> batch.sizeInBytes.toLong), fetcher.fetchedBytes())
+
+    // the fetched bytes are reset by every call
+    fetcher.doWork()
+    assertEquals(Map(partition -> 0L), fetcher.fetchedBytes())
+  }
+
   @Test
   def testSimpleFetch(): Unit = {
     val partition = new TopicPartition("topic", 0)
@@ -620,6 +640,179 @@ class AbstractFetcherThreadTest {
     assertEquals(2L, replicaState.logEndOffset)
   }
 
+  @Test
+  def testPipelinedFetches(): Unit = {
+    testPipelinedFetches(corruptFirstFetch = false)
+  }
+
+  @Test
+  def testPipelinedFetchesAfterFailedAppend(): Unit = {
+    // the partition is fetched again from its current offset once the append of the corrupt records fails
+    testPipelinedFetches(corruptFirstFetch = true)
+  }
+
+  private def testPipelinedFetches(corruptFirstFetch: Boolean): Unit = {
+    val partitions = Seq(new TopicPartition("topic", 0), new TopicPartition("topic", 1))
+    val fetcher = new PipelinedMockFetcherThread(maxInFlight = 2) {
+      var fetchedOnce = false
+      override def fetchFromLeader(fetchRequest: FetchRequest.Builder): Map[TopicPartition, FetchData] = {
+        val fetchedData = super.fetchFromLeader(fetchRequest)
+        if (corruptFirstFetch && !fetchedOnce) {
+          val buffer = fetchedData.head._2.records.asInstanceOf[MemoryRecords].buffer()
+          buffer.putInt(15, buffer.getInt(15) ^ 23422)
+          fetchedOnce = true
+        }
+        fetchedData
+      }
+    }
+
+    partitions.foreach { partition =>
+      fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+      fetcher.addPartitions(Map(partition -> initialFetchState(0L, leaderEpoch = 0)))
+      val leaderLog = (0 until 5).map { i =>
+        mkBatch(baseOffset = 2 * i, leaderEpoch = 0, new SimpleRecord(s"a$i".getBytes), new SimpleRecord(s"b$i".getBytes))
+      }
+      fetcher.setLeaderState(partition, MockFetcherThread.PartitionState(leaderLog, leaderEpoch = 0, highWatermark = 10L))
+    }
+
+    TestUtils.waitUntilTrue(() => {
+      fetcher.doWork()
+      partitions.forall(partition => fetcher.replicaPartitionState(partition).logEndOffset == 10L)
+    }, "Failed to replicate the leader logs")
+
+    partitions.foreach { partition =>
+      assertEquals(fetcher.leaderPartitionState(partition).log, fetcher.replicaPartitionState(partition).log)
+    }
+    // the fetches in flight are split once the leader returns records
+    assertEquals(2, fetcher.maxFetchesInFlight)
+  }
+
+  @Test
+  def testAsyncProcessingOfPartitionData(): Unit = {
+    val slowPartition = new TopicPartition("topic", 0)
+    val partition = new TopicPartition("topic", 1)
+    val pendingAppends = mutable.Queue[() => Unit]()
+    val fetcher = new MockFetcherThread {
+      override protected def processPartitionDataAsync(topicPartition: TopicPartition,
+                                                       fetchOffset: Long,
+                                                       partitionData: FetchData,
+                                                       callback: Try[Option[LogAppendInfo]] => Unit): Boolean = {
+        if (topicPartition == slowPartition)
+          pendingAppends.enqueue(() => callback(Try(processPartitionData(topicPartition, fetchOffset, partitionData))))
+        topicPartition == slowPartition
+      }
+    }
+
+    Seq(slowPartition, partition).foreach { tp =>
+      fetcher.setReplicaState(tp, MockFetcherThread.PartitionState(leaderEpoch = 0))
+      fetcher.addPartitions(Map(tp -> initialFetchState(0L, leaderEpoch = 0)))
+      val leaderLog = (0 until 3).map { i =>
+        mkBatch(baseOffset = 2 * i, leaderEpoch = 0, new SimpleRecord(s"a$i".getBytes), new SimpleRecord(s"b$i".getBytes))
+      }
+      fetcher.setLeaderState(tp, MockFetcherThread.PartitionState(leaderLog, leaderEpoch = 0, highWatermark = 6L))
+    }
+
+    // no fetch is sent while the records of the slow partition are appended
+    fetcher.doWork()
+    fetcher.doWork()
+    assertEquals(1, pendingAppends.size)
+    assertEquals(Some(0L), fetcher.fetchState(slowPartition).map(_.fetchOffset))
+    assertEquals(0L, fetcher.replicaPartitionState(slowPartition).logEndOffset)
+    assertEquals(Some(2L), fetcher.fetchState(partition).map(_.fetchOffset))
+
+    pendingAppends.dequeue().apply()
+    assertEquals(Some(2L), fetcher.fetchState(slowPartition).map(_.fetchOffset))
+    assertEquals(2L, fetcher.replicaPartitionState(slowPartition).logEndOffset)
+    fetcher.doWork()
+    assertEquals(1, pendingAppends.size)
+    assertEquals(Some(4L), fetcher.fetchState(partition).map(_.fetchOffset))
+
+    TestUtils.waitUntilTrue(() => {
+      fetcher.doWork()
+      while (pendingAppends.nonEmpty)
+        pendingAppends.dequeue().apply()
+      fetcher.replicaPartitionState(slowPartition).logEndOffset == 6L
+    }, "Failed to replicate the slow partition")
+    Seq(slowPartition, partition).foreach { tp =>
+      assertEquals(fetcher.leaderPartitionState(tp).log, fetcher.replicaPartitionState(tp).log)
+    }
+  }
+
+  @Test
+  def testRemovePartitionsCancelsQueuedAppends(): Unit = {
+    val partition = new TopicPartition("topic", 0)
+    val pendingAppends = mutable.Map[TopicPartition, Try[Option[LogAppendInfo]] => Unit]()
+    val fetcher = new MockFetcherThread {
+      override protected def processPartitionDataAsync(topicPartition: TopicPartition,
+                                                       fetchOffset: Long,
+                                                       partitionData: FetchData,
+                                                       callback: Try[Option[LogAppendInfo]] => Unit): Boolean = {
+        pendingAppends.put(topicPartition, callback)
+        true
+      }
+
+      override protected def cancelPartitionDataAsync(topicPartitions: Set[TopicPartition]): Unit = {
+        topicPartitions.foreach(pendingAppends.remove(_).foreach(_.apply(Success(None))))
+      }
+    }
+
+    fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(partition -> initialFetchState(0L, leaderEpoch = 0)))
+    val batch = mkBatch(baseOffset = 0L, leaderEpoch = 0, new SimpleRecord("a".getBytes))
+    fetcher.setLeaderState(partition, MockFetcherThread.PartitionState(Seq(batch), leaderEpoch = 0, highWatermark = 1L))
+
+    fetcher.doWork()
+    assertEquals(Set(partition), pendingAppends.keySet)
+
+    // the queued append is cancelled instead of waited for
+    assertEquals(Some(0L), fetcher.removePartitions(Set(partition)).get(partition).map(_.fetchOffset))
+    assertTrue(pendingAppends.isEmpty)
+    assertEquals(0L, fetcher.replicaPartitionState(partition).logEndOffset)
+    assertEquals(None, fetcher.fetchState(partition))
+  }
+
+  @Test
+  def testRemovePartitionsWaitsForAppendInProgress(): Unit = {
+    val partition = new TopicPartition("topic", 0)
+    val appendStarted = new CountDownLatch(1)
+    val appendReleased = new CountDownLatch(1)
+    val fetcher = new MockFetcherThread {
+      override protected def processPartitionDataAsync(topicPartition: TopicPartition,
+                                                       fetchOffset: Long,
+                                                       partitionData: FetchData,
+                                                       callback: Try[Option[LogAppendInfo]] => Unit): Boolean = {
+        val appendThread = new Thread(() => {
+          appendStarted.countDown()
+          appendReleased.await()
+          callback(Try(processPartitionData(topicPartition, fetchOffset, partitionData)))
+        })
+        appendThread.start()
+        true
+      }
+    }
+
+    fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(partition -> initialFetchState(0L, leaderEpoch = 0)))
+    val batch = mkBatch(baseOffset = 0L, leaderEpoch = 0, new SimpleRecord("a".getBytes))
+    fetcher.setLeaderState(partition, MockFetcherThread.PartitionState(Seq(batch), leaderEpoch = 0, highWatermark = 1L))
+
+    fetcher.doWork()
+    assertTrue(appendStarted.await(30, TimeUnit.SECONDS))
+
+    // the partition isn't removed while its records are appended, e.g. before the replica becomes the leader
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      val removed = executor.submit(() => fetcher.removePartitions(Set(partition)))
+      Thread.sleep(100)
+      assertFalse(removed.isDone)
+
+      appendReleased.countDown()
+      assertEquals(Some(1L), removed.get(30, TimeUnit.SECONDS).get(partition).map(_.fetchOffset))
+      assertEquals(1L, fetcher.replicaPartitionState(partition).logEndOffset)
+      assertEquals(None, fetcher.fetchState(partition))
+    } finally executor.shutdownNow()
+  }
+
   @Test
   def testLeaderEpochChangeDuringFencedFetchEpochsFromLeader(): Unit = {
     // The leader is on the new epoch when the OffsetsForLeaderEpoch with old epoch is sent, so it
@@ -863,6 +1056,30 @@ class AbstractFetcherThreadTest {
     }
   }
 
+  // Sends the fetches to the mock leader, which processes them in order when their responses are received
+  class PipelinedMockFetcherThread(maxInFlight: Int) extends MockFetcherThread with PipelinedFetching {
+    private val fetchesInFlight = mutable.Queue[FetchRequest.Builder]()
+    var maxFetchesInFlight = 0
+
+    override protected[server] def maxInFlightFetches: Int = maxInFlight
+
+    override protected[server] def sendFetch(fetchRequest: FetchRequest.Builder): Unit = {
+      fetchesInFlight.foreach { fetchInFlight =>
+        assertTrue(fetchInFlight.fetchData.keySet.asScala.intersect(fetchRequest.fetchData.keySet.asScala).isEmpty,
+          "A partition is fetched by several fetches in flight")
+      }
+      // the leader considers the records before the fetch offset as replicated
+      fetchRequest.fetchData.forEach { (topicPartition, partitionData) =>
+        assertEquals(replicaPartitionState(topicPartition).logEndOffset, partitionData.fetchOffset,
+          "A partition is fetched before its fetched records are appended")
+      }
+      fetchesInFlight.enqueue(fetchRequest)
+      maxFetchesInFlight = math.max(maxFetchesInFlight, fetchesInFlight.size)
+    }
+
+    override protected[server] def receiveFetch(): Map[TopicPartition, FetchData] = fetchFromLeader(fetchesInFlight.dequeue())
+  }
+
   class MockFetcherThread(val replicaId: Int = 0, val leaderId: Int = 1)
     extends AbstractFetcherThread("mock-fetcher",
       clientId = "mock-fetcher",
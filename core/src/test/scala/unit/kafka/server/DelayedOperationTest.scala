@@ -101,6 +101,40 @@ class DelayedOperationTest {
     assertEquals(0, purgatory.checkAndComplete("test2"), "Nothing satisfied")
   }
 
+  @Test
+  def testBatchedRequestSatisfaction(): Unit = {
+    class CountingDelayedOperation extends MockDelayedOperation(100000L) {
+      var tryCompleteCount = 0
+      override def tryComplete() = {
+        tryCompleteCount += 1
+        super.tryComplete()
+      }
+    }
+    val keys = (0 until 100).map(i => s"test$i")
+    val r1 = new CountingDelayedOperation
+    val r2 = new CountingDelayedOperation
+    assertEquals(0, purgatory.checkAndComplete(keys), "With no waiting requests, nothing should be satisfied")
+    assertFalse(purgatory.tryCompleteElseWatch(r1, keys), "r1 not satisfied and hence watched")
+    assertFalse(purgatory.tryCompleteElseWatch(r2, keys.take(10)), "r2 not satisfied and hence watched")
+    r1.tryCompleteCount = 0
+    r2.tryCompleteCount = 0
+
+    assertEquals(0, purgatory.checkAndComplete(keys), "Still nothing satisfied")
+    assertEquals(1, r1.tryCompleteCount, "r1 should be tried once for all its keys")
+    assertEquals(1, r2.tryCompleteCount, "r2 should be tried once for all its keys")
+
+    r1.completable = true
+    assertEquals(1, purgatory.checkAndComplete(keys.reverse), "r1 satisfied")
+    assertEquals(2, r1.tryCompleteCount)
+    assertTrue(r1.isCompleted)
+    assertEquals(10, purgatory.watched, "r1 should be removed from the watch lists of all the keys")
+
+    r2.completable = true
+    assertEquals(1, purgatory.checkAndComplete(Seq("test5", "unknown")), "r2 satisfied")
+    assertEquals(0, purgatory.checkAndComplete(keys), "Nothing satisfied")
+    assertEquals(0, purgatory.watched)
+  }
+
   @Test
   def testRequestExpiry(): Unit = {
     val expiration = 20L
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.server
+
+import java.util
+
+import kafka.cluster.BrokerEndPoint
+import kafka.utils.TestUtils
+import org.apache.kafka.clients.MockClient
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.message.FetchResponseData
+import org.apache.kafka.common.metrics.Metrics
+import org.apache.kafka.common.protocol.{ApiKeys, Errors}
+import org.apache.kafka.common.requests.{FetchRequest, FetchResponse}
+import org.apache.kafka.common.utils.{LogContext, MockTime}
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+class ReplicaFetcherBlockingSendTest {
+
+  private val time = new MockTime
+  private val brokerEndPoint = new BrokerEndPoint(1, "localhost", 9092)
+  private val config = KafkaConfig.fromProps(TestUtils.createBrokerConfig(0, "localhost:1234"))
+
+  @Test
+  def testSendRequestKeepsResponsesOfPipelinedRequests(): Unit = {
+    val client = new MockClient(time)
+    val blockingSend = new ReplicaFetcherBlockingSend(brokerEndPoint, config, new Metrics, time, 0, "fetcher-0",
+      new LogContext, Some(client))
+
+    blockingSend.send(fetchRequest(new TopicPartition("topic", 0)))
+    // the response of the pipelined fetch is ready to be polled when the next request is sent
+    client.respond(FetchResponse.of(Errors.NONE, 0, 1, new util.LinkedHashMap[TopicPartition, FetchResponseData.PartitionData]))
+    client.prepareResponse(FetchResponse.of(Errors.NONE, 0, 2, new util.LinkedHashMap[TopicPartition, FetchResponseData.PartitionData]))
+
+    val response = blockingSend.sendRequest(fetchRequest(new TopicPartition("topic", 1)))
+    assertEquals(2, response.responseBody.asInstanceOf[FetchResponse].sessionId)
+    assertEquals(1, blockingSend.receiveResponse().responseBody.asInstanceOf[FetchResponse].sessionId)
+  }
+
+  private def fetchRequest(topicPartition: TopicPartition): FetchRequest.Builder = {
+    val fetchData = new util.LinkedHashMap[TopicPartition, FetchRequest.PartitionData]
+    fetchData.put(topicPartition, new FetchRequest.PartitionData(0L, 0L, 1024, java.util.Optional.empty[Integer]))
+    FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion, config.brokerId, 0, 1, fetchData)
+  }
+}
@@ -584,6 +584,110 @@ class ReplicaManagerTest {
     }
   }
 
+  @Test
+  def testColdFetchReadByFetchIoPool(): Unit = {
+    val rm = setupReplicaManagerWithMockedPurgatories(new MockTimer(time), aliveBrokerIds = Seq(0, 1, 2),
+      propsModifier = props => props.put(KafkaConfig.NumFetchIoThreadsProp, "1"))
+    try {
+      val brokerList = Seq[Integer](0, 1, 2).asJava
+      val tp = new TopicPartition(topic, 0)
+
+      val partition = rm.createPartition(tp)
+      partition.createLogIfNotExists(isNew = false, isFutureReplica = false,
+        new LazyOffsetCheckpoints(rm.highWatermarkCheckpoints))
+
+      // Make this replica the leader.
+      val leaderAndIsrRequest = new LeaderAndIsrRequest.Builder(ApiKeys.LEADER_AND_ISR.latestVersion, 0, 0, brokerEpoch,
+        Seq(new LeaderAndIsrPartitionState()
+          .setTopicName(topic)
+          .setPartitionIndex(0)
+          .setControllerEpoch(0)
+          .setLeader(0)
+          .setLeaderEpoch(0)
+          .setIsr(brokerList)
+          .setZkVersion(0)
+          .setReplicas(brokerList)
+          .setIsNew(false)).asJava,
+        Collections.singletonMap(topic, Uuid.randomUuid()),
+        Set(new Node(0, "host1", 0), new Node(1, "host2", 1), new Node(2, "host2", 2)).asJava).build()
+      rm.becomeLeaderOrFollower(0, leaderAndIsrRequest, (_, _) => ())
+      assertTrue(rm.fetchIoPoolOpt.isDefined)
+
+      // Append a couple of messages to a segment which is then rolled, and one more to the active segment.
+      for (i <- 1 to 2) {
+        appendRecords(rm, tp, TestUtils.singletonRecords(s"message $i".getBytes)).onFire { response =>
+          assertEquals(Errors.NONE, response.error)
+        }
+      }
+      rm.localLogOrException(tp).roll()
+      appendRecords(rm, tp, TestUtils.singletonRecords("message 3".getBytes)).onFire { response =>
+        assertEquals(Errors.NONE, response.error)
+      }
+
+      // Fetches of the active segment are read by the request handler thread
+      val hotFetchResult = fetchAsFollower(rm, tp, new PartitionData(2, 0, 100000, Optional.empty()))
+      val hotFetchData = hotFetchResult.assertFired
+      assertEquals(Errors.NONE, hotFetchData.error)
+      assertEquals(2L, hotFetchData.records.batches.iterator.next().baseOffset)
+
+      // Fetches of older segments are read by the fetch I/O threads
+      val coldFetchResult = fetchAsFollower(rm, tp, new PartitionData(0, 0, 100000, Optional.empty()))
+      TestUtils.waitUntilTrue(() => coldFetchResult.isFired, "Cold fetch was not completed by the fetch I/O pool")
+      val coldFetchData = coldFetchResult.assertFired
+      assertEquals(Errors.NONE, coldFetchData.error)
+      assertEquals(0L, coldFetchData.records.batches.iterator.next().baseOffset)
+    } finally {
+      rm.shutdown(checkpointHW = false)
+    }
+  }
+
+  @Test
+  def testDelayedFetchCompletedByPurgatoryCompletionThread(): Unit = {
+    val rm = setupReplicaManagerWithMockedPurgatories(new MockTimer(time), aliveBrokerIds = Seq(0),
+      propsModifier = props => props.put(KafkaConfig.NumPurgatoryCompletionThreadsProp, "1"))
+    try {
+      val brokerList = Seq[Integer](0).asJava
+      val tp = new TopicPartition(topic, 0)
+
+      val partition = rm.createPartition(tp)
+      partition.createLogIfNotExists(isNew = false, isFutureReplica = false,
+        new LazyOffsetCheckpoints(rm.highWatermarkCheckpoints))
+
+      // Make this replica the only one in the ISR so that appends increment the high watermark.
+      val leaderAndIsrRequest = new LeaderAndIsrRequest.Builder(ApiKeys.LEADER_AND_ISR.latestVersion, 0, 0, brokerEpoch,
+        Seq(new LeaderAndIsrPartitionState()
+          .setTopicName(topic)
+          .setPartitionIndex(0)
+          .setControllerEpoch(0)
+          .setLeader(0)
+          .setLeaderEpoch(0)
+          .setIsr(brokerList)
+          .setZkVersion(0)
+          .setReplicas(brokerList)
+          .setIsNew(false)).asJava,
+        Collections.singletonMap(topic, Uuid.randomUuid()),
+        Set(new Node(0, "host1", 0)).asJava).build()
+      rm.becomeLeaderOrFollower(0, leaderAndIsrRequest, (_, _) => ())
+      assertTrue(rm.purgatoryCompletionExecutorOpt.isDefined)
+
+      val fetchResult = fetchAsConsumer(rm, tp, new PartitionData(0, 0, 100000, Optional.empty()), minBytes = 1)
+      assertFalse(fetchResult.isFired)
+
+      appendRecords(rm, tp, TestUtils.singletonRecords("message".getBytes), requiredAcks = 1).onFire { response =>
+        assertEquals(Errors.NONE, response.error)
+      }
+      assertFalse(fetchResult.isFired, "The delayed fetch should not be completed before the actions are run")
+
+      rm.tryCompleteActions()
+      TestUtils.waitUntilTrue(() => fetchResult.isFired, "Delayed fetch was not completed by the purgatory completion thread")
+      val fetchData = fetchResult.assertFired
+      assertEquals(Errors.NONE, fetchData.error)
+      assertEquals(0L, fetchData.records.batches.iterator.next().baseOffset)
+    } finally {
+      rm.shutdown(checkpointHW = false)
+    }
+  }
+
   @Test
   def testFollowerStateNotUpdatedIfLogReadFails(): Unit = {
     val maxFetchBytes = 1024 * 1024
@@ -1606,7 +1710,7 @@ class ReplicaManagerTest {
   }
 
   private class CallbackResult[T] {
-    private var value: Option[T] = None
+    @volatile private var value: Option[T] = None
     private var fun: Option[T => Unit] = None
 
     def assertFired: T = {
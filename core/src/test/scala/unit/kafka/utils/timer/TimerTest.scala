@@ -38,9 +38,11 @@ class TimerTest {
 
   private[this] var timer: Timer = null
 
+  protected def createTimer(): Timer = new SystemTimer("test", tickMs = 1, wheelSize = 3)
+
   @BeforeEach
   def setup(): Unit = {
-    timer = new SystemTimer("test", tickMs = 1, wheelSize = 3)
+    timer = createTimer()
   }
 
   @AfterEach
@@ -104,4 +106,30 @@ class TimerTest {
 
     assertEquals(ids.sorted, output.toSeq, "output should match")
   }
+
+  @Test
+  def testTaskCancellation(): Unit = {
+    val output = new ArrayBuffer[Int]()
+
+    val latch = new CountDownLatch(55)
+    val tasks = (0 until 100).map { i =>
+      val task = new TestTask(10 + i, i, latch, output)
+      timer.add(task)
+      task
+    }
+    assertEquals(100, timer.size)
+
+    tasks.filter(_.delayMs % 2 == 0).foreach(_.cancel())
+    assertEquals(50, timer.size, "cancelled tasks should not be counted")
+
+    // re-adding a task replaces its previous entry
+    tasks.take(10).foreach(timer.add)
+    assertEquals(55, timer.size)
+
+    while (timer.advanceClock(2000)) {}
+
+    assertTrue(latch.await(3, TimeUnit.SECONDS), "tasks not cancelled should run")
+    assertEquals(0, timer.size)
+    assertEquals((0 until 100).filter(i => i % 2 == 1 || i < 10), output.sorted, "only tasks not cancelled should run")
+  }
 }
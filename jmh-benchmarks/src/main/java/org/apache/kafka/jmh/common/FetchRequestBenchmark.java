@@ -70,6 +70,8 @@ public class FetchRequestBenchmark {
 
     ByteBuffer requestBuffer;
 
+    ByteBuffer replicaRequestBuffer;
+
     @Setup(Level.Trial)
     public void setup() {
         this.fetchData = new HashMap<>();
@@ -88,12 +90,20 @@ public class FetchRequestBenchmark {
         this.replicaRequest = FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion(), 1, 0, 0, fetchData)
             .build(ApiKeys.FETCH.latestVersion());
         this.requestBuffer = this.consumerRequest.serialize();
+        this.replicaRequestBuffer = this.replicaRequest.serialize();
 
     }
 
     @Benchmark
     public short testFetchRequestFromBuffer() {
-        return AbstractRequest.parseRequest(ApiKeys.FETCH, ApiKeys.FETCH.latestVersion(), requestBuffer).request.version();
+        return AbstractRequest.parseRequest(ApiKeys.FETCH, ApiKeys.FETCH.latestVersion(), requestBuffer.duplicate()).request.version();
+    }
+
+    @Benchmark
+    public int testFetchRequestFromBufferForReplica() {
+        FetchRequest fetchRequest = (FetchRequest) AbstractRequest.parseRequest(ApiKeys.FETCH,
+            ApiKeys.FETCH.latestVersion(), replicaRequestBuffer.duplicate()).request;
+        return fetchRequest.fetchData().size();
     }
 
     @Benchmark
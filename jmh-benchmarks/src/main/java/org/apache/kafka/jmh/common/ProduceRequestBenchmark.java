@@ -20,6 +20,10 @@ package org.apache.kafka.jmh.common;
 import kafka.network.RequestConvertToJson;
 import org.apache.kafka.common.message.ProduceRequestData;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.AbstractRequest;
 import org.apache.kafka.common.requests.ProduceRequest;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
@@ -34,6 +38,8 @@ import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 
+import java.nio.ByteBuffer;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 @State(Scope.Benchmark)
@@ -51,10 +57,32 @@ public class ProduceRequestBenchmark {
 
     ProduceRequest produceRequest;
 
+    ByteBuffer requestBuffer;
+
     @Setup(Level.Trial)
     public void setup() {
-        this.produceRequest = ProduceRequest.forCurrentMagic(new ProduceRequestData())
-                .build(ApiKeys.PRODUCE.latestVersion());
+        ProduceRequestData data = new ProduceRequestData().setAcks((short) -1).setTimeoutMs(30000);
+        for (int topicIdx = 0; topicIdx < topicCount; topicIdx++) {
+            ProduceRequestData.TopicProduceData topicData = new ProduceRequestData.TopicProduceData()
+                .setName(UUID.randomUUID().toString());
+            for (int partitionId = 0; partitionId < partitionCount; partitionId++) {
+                topicData.partitionData().add(new ProduceRequestData.PartitionProduceData()
+                    .setIndex(partitionId)
+                    .setRecords(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("value".getBytes()))));
+            }
+            data.topicData().add(topicData);
+        }
+        this.produceRequest = ProduceRequest.forCurrentMagic(data).build(ApiKeys.PRODUCE.latestVersion());
+        this.requestBuffer = this.produceRequest.serialize();
+    }
+
+    @Benchmark
+    public int testProduceRequestFromBuffer() {
+        ProduceRequest request = (ProduceRequest) AbstractRequest.parseRequest(ApiKeys.PRODUCE,
+            ApiKeys.PRODUCE.latestVersion(), requestBuffer.duplicate()).request;
+        // as done by the broker once the records are appended, which computes the partition sizes
+        request.clearPartitionRecords();
+        return request.acks();
     }
 
     @Benchmark
@@ -123,7 +123,7 @@ public class ReplicaFetcherThreadBenchmark {
                 JavaConverters.asScalaIteratorConverter(new ArrayList<File>().iterator()).asScala().toSeq(),
                 new CachedConfigRepository(),
                 logConfig,
-                new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5"),
+                new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5", 1, false),
                 1,
                 1000L,
                 10000L,
@@ -134,7 +134,13 @@ public class ReplicaFetcherThreadBenchmark {
                 brokerTopicStats,
                 logDirFailureChannel,
                 Time.SYSTEM,
-                true);
+                true,
+                -1L,
+                0L,
+                false,
+                false,
+                0,
+                1);
 
         LinkedHashMap<TopicPartition, FetchResponseData.PartitionData> initialFetched = new LinkedHashMap<>();
         scala.collection.mutable.Map<TopicPartition, InitialFetchState> initialFetchStates = new scala.collection.mutable.HashMap<>();
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.log;
+
+import kafka.log.OffsetMap;
+import kafka.log.OffsetMap$;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the dedupe throughput of the log cleaner offset maps: building the map over a stream of keyed
+ * records and then looking up every record as is done when recopying the cleaned segments.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OffsetMapBenchmark {
+    private static final int NUM_RECORDS = 500_000;
+
+    public enum KeyDistribution {
+        // small sequential string identifiers, e.g. entity ids
+        SEQUENTIAL,
+        // random UUID strings, e.g. event or session ids
+        UUID,
+        // serialized longs, e.g. Kafka Streams changelog keys
+        LONG,
+        // larger composite keys, e.g. group/topic/partition keys of __consumer_offsets
+        COMPOSITE
+    }
+
+    @Param({"MD5", "MURMUR3-128"})
+    private String hashAlgorithm;
+
+    @Param({"SEQUENTIAL", "UUID", "LONG", "COMPOSITE"})
+    private KeyDistribution keyDistribution;
+
+    @Param({"100000"})
+    private int numKeys;
+
+    private ByteBuffer[] records;
+    private OffsetMap offsetMap;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        ByteBuffer[] keys = new ByteBuffer[numKeys];
+        for (int i = 0; i < numKeys; i++)
+            keys[i] = createKey(i, random);
+
+        // a skewed update stream where a fifth of the keys receive most of the updates
+        records = new ByteBuffer[NUM_RECORDS];
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            int hotKeys = numKeys / 5;
+            int index = random.nextInt(10) < 8 ? random.nextInt(hotKeys) : hotKeys + random.nextInt(numKeys - hotKeys);
+            records[i] = keys[index];
+        }
+
+        // size the map like the cleaner would for the default load factor
+        int memory = (int) (numKeys / 0.9 * 24) + 24;
+        offsetMap = OffsetMap$.MODULE$.apply(memory, hashAlgorithm);
+    }
+
+    private ByteBuffer createKey(int i, Random random) {
+        switch (keyDistribution) {
+            case SEQUENTIAL:
+                return ByteBuffer.wrap(String.format("user-%08d", i).getBytes(StandardCharsets.UTF_8));
+            case UUID:
+                return ByteBuffer.wrap(new UUID(random.nextLong(), random.nextLong()).toString().getBytes(StandardCharsets.UTF_8));
+            case LONG:
+                return (ByteBuffer) ByteBuffer.allocate(8).putLong(random.nextLong()).flip();
+            case COMPOSITE:
+                String key = String.format("consumer-group-%d/some-application-topic-name-%d/%d", i % 1000, i % 50, i);
+                return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+            default:
+                throw new IllegalArgumentException("Unsupported key distribution " + keyDistribution);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RECORDS)
+    public void dedupe(Blackhole bh) {
+        offsetMap.clear();
+        for (int offset = 0; offset < records.length; offset++)
+            offsetMap.put(records[offset], offset);
+        for (ByteBuffer record : records)
+            bh.consume(offsetMap.get(record));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.log;
+
+import kafka.log.AppendOrigin;
+import kafka.log.ProducerAppendInfo;
+import kafka.log.ProducerStateManager;
+import kafka.log.ProducerStateManager$;
+import kafka.server.LogOffsetMetadata;
+import kafka.utils.TestUtils;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the producer state updates done for each appended batch of an idempotent producer: validating the batch
+ * against the state of its producer and updating it, and looking up the batches of the producer for a duplicate. The
+ * producers are picked at random among many, as on a broker serving a large number of idempotent producers.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProducerStateManagerBenchmark {
+    private static final short EPOCH = 0;
+    private static final int NUM_BATCHES = 1024;
+
+    @Param({"10000", "500000"})
+    private int numProducers;
+
+    @Param({"false", "true"})
+    private boolean offHeap;
+
+    private final TopicPartition topicPartition = new TopicPartition("topic", 0);
+    private final Random random = new Random(0);
+    private File logDir;
+    private ProducerStateManager stateManager;
+    private int[] nextSequences;
+    private long nextOffset = 0L;
+    private RecordBatch[] retriedBatches;
+    private int nextBatch = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        logDir = TestUtils.tempDir();
+        stateManager = new ProducerStateManager(topicPartition, logDir, Integer.MAX_VALUE, false, offHeap);
+        nextSequences = new int[numProducers];
+        // each producer appends the number of batches that are retained
+        for (int i = 0; i < 5; i++) {
+            for (int producerId = 0; producerId < numProducers; producerId++)
+                append(producerId);
+        }
+
+        retriedBatches = new RecordBatch[NUM_BATCHES];
+        for (int i = 0; i < NUM_BATCHES; i++) {
+            int producerId = random.nextInt(numProducers);
+            MemoryRecords records = MemoryRecords.withIdempotentRecords(CompressionType.NONE, producerId, EPOCH,
+                random.nextInt(5), new SimpleRecord("value".getBytes()));
+            retriedBatches[i] = records.batches().iterator().next();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Utils.delete(logDir);
+    }
+
+    private void append(int producerId) {
+        ProducerAppendInfo appendInfo = stateManager.prepareUpdate(producerId, AppendOrigin.Client$.MODULE$);
+        int sequence = nextSequences[producerId];
+        appendInfo.appendDataBatch(EPOCH, sequence, sequence, nextOffset, new LogOffsetMetadata(nextOffset, -1L, -1),
+            nextOffset, false);
+        stateManager.update(appendInfo);
+        nextSequences[producerId] = sequence + 1;
+        nextOffset++;
+    }
+
+    @Benchmark
+    public void prepareAndUpdate() {
+        append(random.nextInt(numProducers));
+    }
+
+    @Benchmark
+    public Object findDuplicateBatch() {
+        RecordBatch batch = retriedBatches[nextBatch++ & (NUM_BATCHES - 1)];
+        return stateManager.findDuplicateBatch(batch);
+    }
+}
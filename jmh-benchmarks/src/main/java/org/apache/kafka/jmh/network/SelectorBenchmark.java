@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.network;
+
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.network.ByteBufferSend;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.network.NetworkReceive;
+import org.apache.kafka.common.network.NetworkSend;
+import org.apache.kafka.common.network.PlaintextChannelBuilder;
+import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trips of requests through a broker-side Selector with many idle connections and a few hot ones,
+ * which send a request each and wait for the response, with and without eager writes of the responses. Compare the
+ * system time of the process, or run with `-prof perfnorm` or `strace -c`, to see the syscalls saved per round trip.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SelectorBenchmark {
+    private static final int REQUEST_SIZE = 100;
+
+    @Param({"false", "true"})
+    private boolean eagerWrites;
+
+    @Param({"1000"})
+    private int idleConnections;
+
+    @Param({"16"})
+    private int hotConnections;
+
+    private Metrics metrics;
+    private Selector selector;
+    private ServerSocketChannel serverSocketChannel;
+    private SocketChannel[] clients;
+    private ByteBuffer request;
+    private ByteBuffer response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        metrics = new Metrics();
+        PlaintextChannelBuilder channelBuilder = new PlaintextChannelBuilder(ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT));
+        channelBuilder.configure(Collections.emptyMap());
+        selector = new Selector(NetworkReceive.UNLIMITED, Selector.NO_IDLE_TIMEOUT_MS, Selector.NO_FAILED_AUTHENTICATION_DELAY,
+            metrics, Time.SYSTEM, "socket-server", Collections.emptyMap(), false, true, channelBuilder, MemoryPool.NONE,
+            eagerWrites, new LogContext());
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0), idleConnections + hotConnections);
+        clients = new SocketChannel[idleConnections + hotConnections];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = SocketChannel.open(serverSocketChannel.getLocalAddress());
+            clients[i].socket().setTcpNoDelay(true);
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            selector.register(String.valueOf(i), socketChannel);
+        }
+
+        request = ByteBuffer.allocate(4 + REQUEST_SIZE);
+        request.putInt(REQUEST_SIZE).position(0);
+        response = ByteBuffer.allocate(4 + REQUEST_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (SocketChannel client : clients)
+            Utils.closeQuietly(client, "client");
+        Utils.closeQuietly(selector, "selector");
+        Utils.closeQuietly(serverSocketChannel, "server socket channel");
+        metrics.close();
+    }
+
+    /**
+     * The hot connections send a request each, which the Selector echoes back. Returns the number of polls of the
+     * Selector.
+     */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        for (int i = 0; i < hotConnections; i++) {
+            request.rewind();
+            while (request.hasRemaining())
+                clients[i].write(request);
+        }
+
+        int polls = 0;
+        int sent = 0;
+        while (sent < hotConnections) {
+            selector.poll(1000L);
+            polls++;
+            sent += selector.completedSends().size();
+            for (NetworkReceive receive : selector.completedReceives())
+                selector.send(new NetworkSend(receive.source(), ByteBufferSend.sizePrefixed(receive.payload())));
+        }
+
+        for (int i = 0; i < hotConnections; i++) {
+            response.clear();
+            while (response.hasRemaining()) {
+                if (clients[i].read(response) < 0)
+                    throw new EOFException();
+            }
+        }
+        return polls;
+    }
+}
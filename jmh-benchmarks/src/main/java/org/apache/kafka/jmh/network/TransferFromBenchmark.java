@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.network;
+
+import org.apache.kafka.common.network.DefaultChannelMetadataRegistry;
+import org.apache.kafka.common.network.Mode;
+import org.apache.kafka.common.network.PlaintextTransportLayer;
+import org.apache.kafka.common.network.SslTransportLayer;
+import org.apache.kafka.common.network.TransportLayer;
+import org.apache.kafka.common.security.ssl.SslFactory;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.test.TestSslUtils;
+import org.apache.kafka.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending the data of a log segment over a loopback connection with `TransportLayer.transferFrom`, as done
+ * for the fetch responses, with and without TLS. The peer reads and discards the data on another thread. Run with
+ * `-prof perfnorm` or compare the CPU time of the process to see the cost per byte besides the throughput.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferFromBenchmark {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    @Param({"PLAINTEXT", "SSL"})
+    private String securityProtocol;
+
+    @Param({"1048576"})
+    private int transferSize;
+
+    private File file;
+    private FileChannel fileChannel;
+    private ServerSocketChannel serverSocketChannel;
+    private Selector selector;
+    private TransportLayer transportLayer;
+    private Thread reader;
+    private long position = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = TestUtils.tempFile();
+        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer data = ByteBuffer.wrap(TestUtils.randomBytes(FILE_SIZE));
+        while (data.hasRemaining())
+            fileChannel.write(data, data.position());
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        SocketChannel socketChannel = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel peerChannel = serverSocketChannel.accept();
+
+        SslFactory serverSslFactory = null;
+        SslFactory clientSslFactory = null;
+        if (securityProtocol.equals("SSL")) {
+            File trustStoreFile = File.createTempFile("truststore", ".jks");
+            Map<String, Object> serverConfig = TestSslUtils.createSslConfig(false, true, Mode.SERVER, trustStoreFile, "server");
+            Map<String, Object> clientConfig = TestSslUtils.createSslConfig(false, false, Mode.CLIENT, trustStoreFile, "client");
+            serverSslFactory = new SslFactory(Mode.SERVER);
+            serverSslFactory.configure(serverConfig);
+            clientSslFactory = new SslFactory(Mode.CLIENT);
+            clientSslFactory.configure(clientConfig);
+        }
+
+        // the peer, i.e. the client, reads the data
+        Selector peerSelector = Selector.open();
+        TransportLayer peerTransportLayer = transportLayer(peerChannel, peerSelector, serverSslFactory == null ? null :
+            clientSslFactory.createSslEngine("localhost", peerChannel.socket().getPort()));
+        reader = new Thread(() -> read(peerSelector, peerTransportLayer), "transfer-from-benchmark-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        // the broker sends the data
+        selector = Selector.open();
+        transportLayer = transportLayer(socketChannel, selector, serverSslFactory == null ? null :
+            serverSslFactory.createSslEngine("localhost", socketChannel.socket().getPort()));
+        while (!transportLayer.ready()) {
+            selector.select(100);
+            selector.selectedKeys().clear();
+            transportLayer.handshake();
+        }
+        // receive the request of the peer, since TLSv1.3 channels only send files once they have received data
+        ByteBuffer request = ByteBuffer.allocate(1);
+        while (request.hasRemaining()) {
+            selector.select(100);
+            selector.selectedKeys().clear();
+            transportLayer.read(request);
+        }
+        transportLayer.removeInterestOps(SelectionKey.OP_READ);
+    }
+
+    private static TransportLayer transportLayer(SocketChannel socketChannel, Selector selector,
+                                                 javax.net.ssl.SSLEngine sslEngine) throws IOException {
+        socketChannel.configureBlocking(false);
+        SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+        return sslEngine == null ? new PlaintextTransportLayer(key) : SslTransportLayer.create("0", key, sslEngine, new DefaultChannelMetadataRegistry());
+    }
+
+    private static void read(Selector selector, TransportLayer transportLayer) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (!transportLayer.ready()) {
+                selector.select(100);
+                selector.selectedKeys().clear();
+                transportLayer.handshake();
+            }
+            ByteBuffer request = ByteBuffer.allocate(1);
+            while (request.hasRemaining()) {
+                transportLayer.write(request);
+                if (request.hasRemaining() || transportLayer.hasPendingWrites())
+                    selector.select(100);
+            }
+            while (true) {
+                selector.select(100);
+                selector.selectedKeys().clear();
+                int read;
+                do {
+                    buffer.clear();
+                    read = transportLayer.read(buffer);
+                } while (read > 0 || (read == 0 && transportLayer.hasBytesBuffered()));
+                if (read < 0)
+                    return;
+            }
+        } catch (IOException e) {
+            // the connection is closed at the end of the benchmark
+        } finally {
+            Utils.closeQuietly(transportLayer, "reader transport layer");
+            Utils.closeQuietly(selector, "reader selector");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Utils.closeQuietly(transportLayer, "transport layer");
+        reader.join(TimeUnit.SECONDS.toMillis(10));
+        Utils.closeQuietly(selector, "selector");
+        Utils.closeQuietly(serverSocketChannel, "server socket channel");
+        Utils.closeQuietly(fileChannel, "file channel");
+        Utils.delete(file);
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        if (position + transferSize > FILE_SIZE)
+            position = 0;
+        long remaining = transferSize;
+        while (remaining > 0) {
+            long transferred = transportLayer.transferFrom(fileChannel, position, remaining);
+            position += transferred;
+            remaining -= transferred;
+            if (remaining > 0 || transportLayer.hasPendingWrites()) {
+                transportLayer.addInterestOps(SelectionKey.OP_WRITE);
+                selector.select(100);
+                selector.selectedKeys().clear();
+                transportLayer.removeInterestOps(SelectionKey.OP_WRITE);
+            }
+        }
+        return position;
+    }
+}
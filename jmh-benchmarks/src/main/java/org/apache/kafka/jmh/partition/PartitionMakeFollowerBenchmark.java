@@ -100,7 +100,7 @@ public class PartitionMakeFollowerBenchmark {
             JavaConverters.asScalaIteratorConverter(new ArrayList<File>().iterator()).asScala().toSeq(),
             new CachedConfigRepository(),
             logConfig,
-            new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5"),
+            new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5", 1, false),
             1,
             1000L,
             10000L,
@@ -111,7 +111,13 @@ public class PartitionMakeFollowerBenchmark {
             brokerTopicStats,
             logDirFailureChannel,
             Time.SYSTEM,
-            true);
+            true,
+            -1L,
+            0L,
+            false,
+            false,
+            0,
+            1);
 
         TopicPartition tp = new TopicPartition("topic", 0);
 
@@ -21,6 +21,7 @@ import kafka.api.ApiVersion$;
 import kafka.cluster.DelayedOperations;
 import kafka.cluster.IsrChangeListener;
 import kafka.cluster.Partition;
+import kafka.log.AppendOrigin;
 import kafka.log.CleanerConfig;
 import kafka.log.Defaults;
 import kafka.log.LogConfig;
@@ -35,6 +36,9 @@ import kafka.server.metadata.CachedConfigRepository;
 import kafka.utils.KafkaScheduler;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.message.LeaderAndIsrRequestData.LeaderAndIsrPartitionState;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
 import org.apache.kafka.common.utils.Time;
 import org.mockito.Mockito;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -44,6 +48,7 @@ import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
@@ -67,11 +72,15 @@ import java.util.concurrent.TimeUnit;
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class UpdateFollowerFetchStateBenchmark {
+    @Param({"3", "5"})
+    private int replicationFactor;
+
     private TopicPartition topicPartition = new TopicPartition(UUID.randomUUID().toString(), 0);
     private File logDir = new File(System.getProperty("java.io.tmpdir"), topicPartition.toString());
     private KafkaScheduler scheduler = new KafkaScheduler(1, "scheduler", true);
     private BrokerTopicStats brokerTopicStats = new BrokerTopicStats();
     private LogDirFailureChannel logDirFailureChannel = Mockito.mock(LogDirFailureChannel.class);
+    private static final byte[] RECORD_VALUE = new byte[100];
     private long nextOffset = 0;
     private LogManager logManager;
     private Partition partition;
@@ -85,7 +94,7 @@ public class UpdateFollowerFetchStateBenchmark {
                 JavaConverters.asScalaIteratorConverter(new ArrayList<File>().iterator()).asScala().toSeq(),
                 new CachedConfigRepository(),
                 logConfig,
-                new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5"),
+                new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5", 1, false),
                 1,
                 1000L,
                 10000L,
@@ -96,16 +105,21 @@ public class UpdateFollowerFetchStateBenchmark {
                 brokerTopicStats,
                 logDirFailureChannel,
                 Time.SYSTEM,
-                true);
+                true,
+                -1L,
+                0L,
+                false,
+                false,
+                0,
+                1);
         OffsetCheckpoints offsetCheckpoints = Mockito.mock(OffsetCheckpoints.class);
         Mockito.when(offsetCheckpoints.fetch(logDir.getAbsolutePath(), topicPartition)).thenReturn(Option.apply(0L));
         DelayedOperations delayedOperations = new DelayedOperationsMock();
 
-        // one leader, plus two followers
+        // one leader, plus the followers
         List<Integer> replicas = new ArrayList<>();
-        replicas.add(0);
-        replicas.add(1);
-        replicas.add(2);
+        for (int replicaId = 0; replicaId < replicationFactor; replicaId++)
+            replicas.add(replicaId);
         LeaderAndIsrPartitionState partitionState = new LeaderAndIsrPartitionState()
             .setControllerEpoch(0)
             .setLeader(0)
@@ -133,6 +147,10 @@ public class UpdateFollowerFetchStateBenchmark {
         public int numDelayedDelete() {
             return 0;
         }
+
+        @Override
+        public void checkAndCompleteAll() {
+        }
     }
 
     @TearDown(Level.Trial)
@@ -160,22 +178,33 @@ public class UpdateFollowerFetchStateBenchmark {
     @Benchmark
     @OutputTimeUnit(TimeUnit.NANOSECONDS)
     public void updateFollowerFetchStateBench() {
-        // measure the impact of two follower fetches on the leader
-        partition.updateFollowerFetchState(1, new LogOffsetMetadata(nextOffset, nextOffset, 0),
-                0, 1, nextOffset);
-        partition.updateFollowerFetchState(2, new LogOffsetMetadata(nextOffset, nextOffset, 0),
-                0, 1, nextOffset);
+        // measure the impact of the follower fetches on the leader
+        for (int followerId = 1; followerId < replicationFactor; followerId++)
+            partition.updateFollowerFetchState(followerId, new LogOffsetMetadata(nextOffset, nextOffset, 0),
+                    0, 1, nextOffset);
         nextOffset++;
     }
 
     @Benchmark
     @OutputTimeUnit(TimeUnit.NANOSECONDS)
     public void updateFollowerFetchStateBenchNoChange() {
-        // measure the impact of two follower fetches on the leader when the follower didn't
+        // measure the impact of the follower fetches on the leader when the followers didn't
         // end up fetching anything
-        partition.updateFollowerFetchState(1, new LogOffsetMetadata(nextOffset, nextOffset, 0),
-                0, 1, 100);
-        partition.updateFollowerFetchState(2, new LogOffsetMetadata(nextOffset, nextOffset, 0),
-                0, 1, 100);
+        for (int followerId = 1; followerId < replicationFactor; followerId++)
+            partition.updateFollowerFetchState(followerId, new LogOffsetMetadata(nextOffset, nextOffset, 0),
+                    0, 1, 100);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void updateFollowerFetchStateBenchCatchUp() {
+        // measure the impact of the follower fetches on the leader when they replicate a produced record, the
+        // fetch of the last follower advancing the high watermark
+        partition.appendRecordsToLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(RECORD_VALUE)),
+                AppendOrigin.Client$.MODULE$, 1);
+        nextOffset++;
+        for (int followerId = 1; followerId < replicationFactor; followerId++)
+            partition.updateFollowerFetchState(followerId, new LogOffsetMetadata(nextOffset, 0, 0),
+                    0, 1, nextOffset);
     }
 }
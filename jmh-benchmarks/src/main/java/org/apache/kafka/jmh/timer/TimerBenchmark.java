@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.timer;
+
+import kafka.server.DelayedOperation;
+import kafka.utils.timer.LockFreeTimer;
+import kafka.utils.timer.SystemTimer;
+import kafka.utils.timer.Timer;
+import org.apache.kafka.common.utils.Time;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the timers of the purgatories, with an expiration reaper advancing the clock like the one of a purgatory:
+ * adding operations which are then completed, and hence cancelled, by several threads, as done for most delayed
+ * fetches and produces, and adding operations which expire.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TimerBenchmark {
+    private static final int EXPIRING_OPERATIONS = 100;
+
+    @Param({"SystemTimer", "LockFreeTimer"})
+    private String timerType;
+
+    @Param({"30000"})
+    private long delayMs;
+
+    private Timer timer;
+    private Thread reaper;
+    private volatile boolean running;
+    private final AtomicInteger expired = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        timer = timerType.equals("LockFreeTimer") ? new LockFreeTimer("benchmark", 1, 20, Time.SYSTEM.hiResClockMs()) :
+            new SystemTimer("benchmark", 1, 20, Time.SYSTEM.hiResClockMs());
+        running = true;
+        reaper = new Thread(() -> {
+            while (running)
+                timer.advanceClock(200L);
+        }, "timer-benchmark-reaper");
+        reaper.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        reaper.join();
+        timer.shutdown();
+    }
+
+    /**
+     * Add an operation and complete it before it expires.
+     */
+    @Benchmark
+    @Threads(4)
+    public boolean addAndCancel() {
+        BenchmarkOperation operation = new BenchmarkOperation(delayMs);
+        timer.add(operation);
+        return operation.forceComplete();
+    }
+
+    /**
+     * Add operations which expire in a millisecond, and wait for them to expire.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EXPIRING_OPERATIONS)
+    public int addAndExpire() {
+        int target = expired.get() + EXPIRING_OPERATIONS;
+        for (int i = 0; i < EXPIRING_OPERATIONS; i++)
+            timer.add(new BenchmarkOperation(1L));
+        while (expired.get() < target)
+            Thread.yield();
+        return target;
+    }
+
+    private class BenchmarkOperation extends DelayedOperation {
+        BenchmarkOperation(long delayMs) {
+            super(delayMs, Option.empty());
+        }
+
+        @Override
+        public void onExpiration() {
+            expired.incrementAndGet();
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return false;
+        }
+    }
+}